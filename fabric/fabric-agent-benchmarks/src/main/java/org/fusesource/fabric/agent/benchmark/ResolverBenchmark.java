@@ -0,0 +1,205 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.agent.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.resolver.ResolverImpl;
+import org.fusesource.fabric.agent.repository.AggregateRepository;
+import org.fusesource.fabric.agent.repository.CacheRepository;
+import org.fusesource.fabric.agent.repository.StaticRepository;
+import org.fusesource.fabric.agent.resolver.ResolveContextImpl;
+import org.fusesource.fabric.agent.resolver.ResourceBuilder;
+import org.fusesource.fabric.agent.resolver.ResourceImpl;
+import org.fusesource.fabric.agent.resolver.Slf4jResolverLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+import org.osgi.service.repository.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Resolutions of a generated deployment shaped like a Karaf feature set: layers of
+ * bundles exporting a few packages each and importing many packages of the lower
+ * layers, some optionally, with a second version of every tenth bundle and a
+ * system bundle exporting the JRE packages everybody imports.
+ * </p>
+ * <ul>
+ * <li><code>resolve</code>: what <code>DeploymentBuilder.resolve</code> does, with or
+ * without the provider cache</li>
+ * <li><code>findProviders</code>: looks up the providers of every requirement once,
+ * without the resolver</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ResolverBenchmark {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResolverBenchmark.class);
+
+    public static final int PACKAGES_PER_BUNDLE = 5;
+
+    public static final int IMPORTS_PER_BUNDLE = 20;
+
+    public static final String[] SYSTEM_PACKAGES = {
+            "javax.management", "javax.naming", "javax.net.ssl", "javax.xml.parsers", "javax.xml.transform",
+            "org.osgi.framework", "org.osgi.service.cm", "org.osgi.util.tracker", "org.w3c.dom", "org.xml.sax"
+    };
+
+    @Param({ "100", "400" })
+    int bundles;
+
+    @Param({ "true", "false" })
+    boolean cache;
+
+    List<Resource> resources;
+    Resource requirements;
+    List<Requirement> allRequirements;
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(0);
+        resources = new ArrayList<Resource>();
+        resources.add(buildSystemBundle());
+        requirements = new ResourceImpl("dummy", "dummy", Version.emptyVersion);
+        for (int i = 0; i < bundles; i++) {
+            resources.add(buildBundle(i, "1.1.0", random));
+            if (i % 10 == 0) {
+                resources.add(buildBundle(i, "1.0.0", random));
+            }
+            for (Requirement req : ResourceBuilder.parseRequirement(requirements,
+                    "osgi.identity;filter:=\"(&(osgi.identity=bench.bundle" + i + ")(version>=1.1.0))\"")) {
+                ((ResourceImpl) requirements).addRequirement(req);
+            }
+        }
+        allRequirements = new ArrayList<Requirement>();
+        for (Resource resource : resources) {
+            allRequirements.addAll(resource.getRequirements(null));
+        }
+    }
+
+    @Benchmark
+    public Map<Resource, List<Wire>> resolve() throws Exception {
+        // Built for each resolution, as DeploymentBuilder does
+        Repository repository = new AggregateRepository(
+                Collections.<Repository>singletonList(new StaticRepository(resources)));
+        if (cache) {
+            repository = new CacheRepository(repository);
+        }
+        ResolveContextImpl context = new ResolveContextImpl(
+                Collections.singleton(requirements),
+                Collections.<Resource>emptySet(),
+                repository,
+                false);
+        return new ResolverImpl(new Slf4jResolverLog(LOGGER)).resolve(context);
+    }
+
+    @Benchmark
+    public int findProviders() {
+        Repository repository = new StaticRepository(resources);
+        if (cache) {
+            repository = new CacheRepository(repository);
+        }
+        int count = 0;
+        for (Requirement requirement : allRequirements) {
+            Collection<?> caps = repository.findProviders(Collections.singleton(requirement)).get(requirement);
+            count += caps.size();
+        }
+        return count;
+    }
+
+    private Resource buildSystemBundle() throws Exception {
+        StringBuilder exports = new StringBuilder();
+        for (String pkg : SYSTEM_PACKAGES) {
+            if (exports.length() > 0) {
+                exports.append(",");
+            }
+            exports.append(pkg).append(";version=\"1.5.0\"");
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(Constants.BUNDLE_MANIFESTVERSION, "2");
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, "system.bundle");
+        headers.put(Constants.BUNDLE_VERSION, "4.0.3");
+        headers.put(Constants.EXPORT_PACKAGE, exports.toString());
+        return ResourceBuilder.build(null, headers);
+    }
+
+    /**
+     * Builds a bundle of the layer <code>index / 20</code>, importing packages of the lower layers.
+     */
+    private Resource buildBundle(int index, String version, Random random) throws Exception {
+        StringBuilder exports = new StringBuilder();
+        for (int p = 0; p < PACKAGES_PER_BUNDLE; p++) {
+            if (exports.length() > 0) {
+                exports.append(",");
+            }
+            exports.append("bench.bundle").append(index).append(".pkg").append(p)
+                    .append(";version=\"").append(version).append("\"");
+        }
+        StringBuilder imports = new StringBuilder();
+        for (String pkg : SYSTEM_PACKAGES) {
+            if (random.nextInt(3) == 0) {
+                imports.append(pkg).append(";version=\"[1.0,2)\",");
+            }
+        }
+        int lower = index / 20 * 20;
+        for (int i = 0; lower > 0 && i < IMPORTS_PER_BUNDLE; i++) {
+            int dep = random.nextInt(lower);
+            imports.append("bench.bundle").append(dep).append(".pkg").append(random.nextInt(PACKAGES_PER_BUNDLE))
+                    .append(";version=\"[1.0,2)\"");
+            if (random.nextInt(5) == 0) {
+                imports.append(";resolution:=optional");
+            }
+            imports.append(",");
+        }
+        // The exported packages are imported too, as bnd does by default
+        imports.append(exports);
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(Constants.BUNDLE_MANIFESTVERSION, "2");
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, "bench.bundle" + index);
+        headers.put(Constants.BUNDLE_VERSION, version);
+        headers.put(Constants.EXPORT_PACKAGE, exports.toString());
+        headers.put(Constants.IMPORT_PACKAGE, imports.toString());
+        return ResourceBuilder.build("mvn:bench/bundle" + index + "/" + version, headers);
+    }
+}
@@ -16,6 +16,7 @@
  */
 package org.fusesource.fabric.agent;
 
+import org.fusesource.fabric.agent.download.DownloadManager;
 import org.fusesource.fabric.api.FabricService;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
@@ -38,6 +39,9 @@ public class Activator implements BundleActivator {
     public static final String AGENT_PID = "org.fusesource.fabric.agent";
     private static final String OBR_RESOLVE_OPTIONAL_IMPORTS = "obr.resolve.optional.imports";
     private static final String RESOLVE_OPTIONAL_IMPORTS = "resolve.optional.imports";
+    private static final String DOWNLOAD_THREADS = "download.threads";
+    private static final String DOWNLOAD_THREADS_PER_HOST = "download.threads.per.host";
+    private static final String UPDATE_DELAY = "update.delay";
     private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(Activator.class);
     
     private DeploymentAgent agent;
@@ -49,6 +53,9 @@ public class Activator implements BundleActivator {
         agent.setBundleContext(context);
         Dictionary<String, Object> config = getConfig(context);
         agent.setResolveOptionalImports(getResolveOptionalImports(config));
+        agent.setDownloadThreads(getIntProperty(config, DOWNLOAD_THREADS, DeploymentAgent.DEFAULT_DOWNLOAD_THREADS));
+        agent.setMaxDownloadsPerHost(getIntProperty(config, DOWNLOAD_THREADS_PER_HOST, DownloadManager.DEFAULT_MAX_DOWNLOADS_PER_HOST));
+        agent.setUpdateDelay(getIntProperty(config, UPDATE_DELAY, (int) DeploymentAgent.DEFAULT_UPDATE_DELAY));
         agent.setFabricService(getFabricService(context));
         agent.start();
         Hashtable<String, String> props = new Hashtable<String, String>();
@@ -75,6 +82,24 @@ public class Activator implements BundleActivator {
         return false;
     }
     
+    private int getIntProperty(Dictionary<String, Object> config, String name, int def) {
+        if (config != null) {
+            Object value = config.get(name);
+            if (value != null) {
+                try {
+                    int i = Integer.parseInt(value.toString().trim());
+                    if (i > 0) {
+                        return i;
+                    }
+                } catch (NumberFormatException e) {
+                    // fall back to the default
+                }
+                LOGGER.warn("Invalid value for " + name + ": " + value + ", using " + def);
+            }
+        }
+        return def;
+    }
+
     private Dictionary<String, Object> getConfig(BundleContext bundleContext) {
         try {
             ServiceReference configAdminServiceReference = bundleContext.getServiceReference(ConfigurationAdmin.class.getName());
@@ -21,7 +21,10 @@ import org.apache.felix.utils.properties.Properties;
 import org.apache.felix.utils.version.VersionRange;
 import org.apache.karaf.features.Repository;
 import org.apache.karaf.features.internal.FeaturesServiceImpl;
+import org.fusesource.fabric.agent.download.DownloadFuture;
 import org.fusesource.fabric.agent.download.DownloadManager;
+import org.fusesource.fabric.agent.download.DownloadStatistics;
+import org.fusesource.fabric.agent.download.FutureListener;
 import org.fusesource.fabric.agent.mvn.*;
 import org.fusesource.fabric.agent.repository.HttpMetadataProvider;
 import org.fusesource.fabric.agent.repository.MetadataRepository;
@@ -55,8 +58,12 @@ import java.util.*;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
 import static org.apache.felix.resolver.Util.getSymbolicName;
@@ -79,20 +86,45 @@ public class DeploymentAgent implements ManagedService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DeploymentAgent.class);
 
+    public static final int DEFAULT_DOWNLOAD_THREADS = 8;
+    private static final long DOWNLOAD_PROGRESS_INTERVAL = 1000L;
+    public static final long DEFAULT_UPDATE_DELAY = 500L;
+
+    /**
+     * Prefixes of the configuration keys which affect the deployment, changes to other keys
+     * do not trigger a new provisioning. The lastRefresh entries are written by fabric:profile-refresh
+     * to force a new provisioning.
+     */
+    private static final String[] DEPLOYMENT_PREFIXES = {
+            "feature.", "bundle.", "fab.", "req.", "override.", "optional.",
+            "repository.", "resources.", "config.", "system.", "org.ops4j.pax.url.mvn.",
+            "lastRefresh."
+    };
+    private static final String[] DEPLOYMENT_KEYS = { "framework" };
+
     private BundleContext bundleContext;
     private BundleContext systemBundleContext;
     private ServiceTracker<FabricService, FabricService> fabricService;
 
-    private final ExecutorService executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("fabric-agent"));
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("fabric-agent"));
     private ExecutorService downloadExecutor;
     private volatile boolean shutdownDownloadExecutor;
     private DownloadManager manager;
     private ExecutorServiceFinder executorServiceFinder;
     private boolean resolveOptionalImports = false;
+    private int downloadThreads = DEFAULT_DOWNLOAD_THREADS;
+    private int maxDownloadsPerHost = DownloadManager.DEFAULT_MAX_DOWNLOADS_PER_HOST;
+    private long updateDelay = DEFAULT_UPDATE_DELAY;
+
+    // The latest configuration not provisioned yet, updates arriving meanwhile replace it
+    private final AtomicReference<Dictionary<String, ?>> pendingUpdate = new AtomicReference<Dictionary<String, ?>>();
+    // The deployment properties of the last successful provisioning, only accessed from the executor
+    private Map<String, String> lastDeployment;
 
 	private final RequirementSort requirementSort = new RequirementSort();
 
     private Properties checksums;
+    private ResolutionCache resolutionCache;
 
     public DeploymentAgent() throws MalformedURLException {
         final MavenConfigurationImpl config = new MavenConfigurationImpl(
@@ -126,6 +158,37 @@ public class DeploymentAgent implements ManagedService {
         this.resolveOptionalImports = resolveOptionalImports;
     }
 
+    public int getDownloadThreads() {
+        return downloadThreads;
+    }
+
+    /**
+     * Sets the size of the download thread pool, used when no Felix thread pool is available.
+     */
+    public void setDownloadThreads(int downloadThreads) {
+        this.downloadThreads = downloadThreads;
+    }
+
+    public int getMaxDownloadsPerHost() {
+        return maxDownloadsPerHost;
+    }
+
+    public void setMaxDownloadsPerHost(int maxDownloadsPerHost) {
+        this.maxDownloadsPerHost = maxDownloadsPerHost;
+    }
+
+    public long getUpdateDelay() {
+        return updateDelay;
+    }
+
+    /**
+     * Sets the time in milliseconds to wait after a configuration update before provisioning,
+     * so that a burst of updates is provisioned only once.
+     */
+    public void setUpdateDelay(long updateDelay) {
+        this.updateDelay = updateDelay;
+    }
+
     public void start() throws IOException {
         LOGGER.info("Starting DeploymentAgent");
         systemBundleContext = bundleContext.getBundle(0).getBundleContext();
@@ -179,8 +242,22 @@ public class DeploymentAgent implements ManagedService {
         if (executor.isShutdown() || props == null) {
             return;
         }
-        executor.submit(new Runnable() {
+        if (pendingUpdate.getAndSet(props) != null) {
+            // An update is already scheduled and will pick these properties
+            return;
+        }
+        executor.schedule(new Runnable() {
             public void run() {
+                Dictionary<String, ?> props = pendingUpdate.getAndSet(null);
+                if (props == null) {
+                    return;
+                }
+                Map<String, String> deployment = getDeploymentProperties(props);
+                if (deployment.equals(lastDeployment)) {
+                    LOGGER.info("Deployment properties unchanged, skipping provisioning");
+                    return;
+                }
+                lastDeployment = null;
                 Throwable result = null;
                 boolean success = false;
                 try {
@@ -189,12 +266,44 @@ public class DeploymentAgent implements ManagedService {
                     result = e;
                     LOGGER.error("Unable to update agent", e);
                 }
+                if (success) {
+                    lastDeployment = deployment;
+                }
                 // This update is critical, so
                 if (success || result != null) {
                     updateStatus(success ? Container.PROVISION_SUCCESS : Container.PROVISION_ERROR, result, null, true);
                 }
             }
-        });
+        }, updateDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the sorted configuration entries which affect the deployment.
+     */
+    static Map<String, String> getDeploymentProperties(Dictionary<String, ?> props) {
+        Map<String, String> deployment = new TreeMap<String, String>();
+        for (Enumeration e = props.keys(); e.hasMoreElements(); ) {
+            String key = e.nextElement().toString();
+            if (isDeploymentProperty(key)) {
+                Object val = props.get(key);
+                deployment.put(key, val != null ? val.toString() : null);
+            }
+        }
+        return deployment;
+    }
+
+    private static boolean isDeploymentProperty(String key) {
+        for (String k : DEPLOYMENT_KEYS) {
+            if (k.equals(key)) {
+                return true;
+            }
+        }
+        for (String prefix : DEPLOYMENT_PREFIXES) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private void updateStatus(String status, Throwable result) {
@@ -255,7 +364,10 @@ public class DeploymentAgent implements ManagedService {
                 "org.ops4j.pax.url.mvn"
         );
         config.setSettings(new MavenSettingsImpl(config.getSettingsFileUrl(), config.useFallbackRepositories()));
+        DownloadManager previous = manager;
         manager = new DownloadManager(config, getDownloadExecutor());
+        manager.setMaxDownloadsPerHost(maxDownloadsPerHost);
+        previous.shutdown();
         Map<String, String> properties = new HashMap<String, String>();
         for (Enumeration e = props.keys(); e.hasMoreElements(); ) {
             Object key = e.nextElement();
@@ -312,34 +424,81 @@ public class DeploymentAgent implements ManagedService {
             }
         });
 
+        Set<String> features = getPrefixedProperties(properties, "feature.");
+        Set<String> bundles = getPrefixedProperties(properties, "bundle.");
+        Set<String> fabs = getPrefixedProperties(properties, "fab.");
+        Set<String> reqs = getPrefixedProperties(properties, "req.");
+        Set<String> overrides = getPrefixedProperties(properties, "override.");
+        Set<String> optionals = getPrefixedProperties(properties, "optional.");
+        Set<String> resourceRepositories = getPrefixedProperties(properties, "resources.");
+        Resource systemBundle = systemBundleContext.getBundle(0).adapt(BundleRevision.class);
+
+        // Fabs and metadata repositories can change without the requirements changing,
+        // so only plain feature and bundle deployments can reuse the last resolution.
+        if (resolutionCache == null) {
+            resolutionCache = new ResolutionCache(bundleContext.getDataFile("resolution.cache"));
+        }
+        String resolutionKey = null;
+        if (fabs.isEmpty() && resourceRepositories.isEmpty()) {
+            Map<String, Set<String>> requirements = new HashMap<String, Set<String>>();
+            requirements.put("feature", features);
+            requirements.put("bundle", bundles);
+            requirements.put("req", reqs);
+            requirements.put("override", overrides);
+            requirements.put("optional", optionals);
+            resolutionKey = ResolutionCache.key(bundleContext.getBundle().getVersion().toString(),
+                    requirements, repositories.values(), systemBundle, resolveOptionalImports);
+            Collection<Resource> cached = resolutionCache.get(resolutionKey, manager);
+            if (cached != null) {
+                LOGGER.info("Requirements unchanged since the last resolution, skipping resolution");
+                install(cached, Collections.<String, StreamProvider>emptyMap());
+                return true;
+            }
+        }
+
         DeploymentBuilder builder = new DeploymentBuilder(
                 manager,
                 fabResolverFactory,
                 repositories.values()
         );
+        builder.setPreferredResources(resolutionCache.getLastUris());
         updateStatus("downloading", null);
-        builder.download(
-                getPrefixedProperties(properties, "feature."),
-                getPrefixedProperties(properties, "bundle."),
-                getPrefixedProperties(properties, "fab."),
-                getPrefixedProperties(properties, "req."),
-                getPrefixedProperties(properties, "override."),
-                getPrefixedProperties(properties, "optional.")
-        );
+        final DownloadStatistics statistics = manager.getStatistics();
+        FutureListener<DownloadFuture> progress = new FutureListener<DownloadFuture>() {
+            private final AtomicLong lastUpdate = new AtomicLong(System.currentTimeMillis());
+
+            @Override
+            public void operationComplete(DownloadFuture future) {
+                long now = System.currentTimeMillis();
+                long last = lastUpdate.get();
+                if (now - last >= DOWNLOAD_PROGRESS_INTERVAL && lastUpdate.compareAndSet(last, now)) {
+                    updateStatus("downloading " + statistics, null);
+                }
+            }
+        };
+        manager.addListener(progress);
+        try {
+            builder.download(features, bundles, fabs, reqs, overrides, optionals);
+        } finally {
+            manager.removeListener(progress);
+        }
+        LOGGER.info("Downloaded {}", statistics);
 
         // TODO: handle default range policy on feature requirements
         // TODO: handle default range policy on feature dependencies requirements
 
 
-        for (String uri : getPrefixedProperties(properties, "resources.")) {
+        for (String uri : resourceRepositories) {
             builder.addResourceRepository(new MetadataRepository(new HttpMetadataProvider(uri)));
         }
 
         updateStatus("resolving", null);
-        Resource systemBundle = systemBundleContext.getBundle(0).adapt(BundleRevision.class);
         Collection<Resource> allResources = builder.resolve(systemBundle, resolveOptionalImports);
 
         Map<String, StreamProvider> providers = builder.getProviders();
+        if (resolutionKey != null) {
+            resolutionCache.put(resolutionKey, allResources, builder.getHeaders(), providers);
+        }
         install(allResources, providers);
         return true;
     }
@@ -775,7 +934,7 @@ public class DeploymentAgent implements ManagedService {
 
             if (downloadExecutor == null) {
                 LOGGER.info("Creating a new fixed thread pool for download manager.");
-                downloadExecutor = Executors.newFixedThreadPool(5);
+                downloadExecutor = Executors.newFixedThreadPool(downloadThreads, new NamedThreadFactory("fabric-agent-download"));
                 // we created our own thread pool, so we should shutdown when stopping
                 shutdownDownloadExecutor = true;
             } else {
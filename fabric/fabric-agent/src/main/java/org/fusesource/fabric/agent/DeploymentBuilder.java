@@ -27,6 +27,7 @@ import org.apache.karaf.features.Repository;
 import org.fusesource.common.util.Manifests;
 import org.fusesource.fabric.agent.download.DownloadManager;
 import org.fusesource.fabric.agent.repository.AggregateRepository;
+import org.fusesource.fabric.agent.repository.CacheRepository;
 import org.fusesource.fabric.agent.repository.StaticRepository;
 import org.fusesource.fabric.agent.resolver.FeatureNamespace;
 import org.fusesource.fabric.agent.resolver.FeatureResource;
@@ -98,6 +99,8 @@ public class DeploymentBuilder {
     ResourceImpl requirements;
     Map<String, Resource> resources;
     Map<String, StreamProvider> providers;
+    Map<String, Map<String, String>> headers;
+    Set<String> preferredResources = Collections.emptySet();
 
     Set<Feature> featuresToRegister = new HashSet<Feature>();
 
@@ -118,6 +121,21 @@ public class DeploymentBuilder {
         return providers;
     }
 
+    /**
+     * Returns the manifest headers of the bundles, by location
+     */
+    public Map<String, Map<String, String>> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Sets the uris of the resources to prefer when several resources provide the same version of a capability,
+     * usually the ones of the previous resolution, so that the wiring changes as little as possible.
+     */
+    public void setPreferredResources(Set<String> preferredResources) {
+        this.preferredResources = preferredResources;
+    }
+
     public void download(Set<String> features,
                          Set<String> bundles,
                          Set<String> fabs,
@@ -127,6 +145,7 @@ public class DeploymentBuilder {
         this.downloader = new AgentUtils.FileDownloader(manager);
         this.resources = new ConcurrentHashMap<String, Resource>();
         this.providers = new ConcurrentHashMap<String, StreamProvider>();
+        this.headers = new ConcurrentHashMap<String, Map<String, String>>();
         this.requirements = new ResourceImpl("dummy", "dummy", Version.emptyVersion);
         // First, gather all bundle resources
         for (String feature : features) {
@@ -210,8 +229,9 @@ public class DeploymentBuilder {
         ResolveContext context = new ResolveContextImpl(
                 Collections.<Resource>singleton(requirements),
                 Collections.<Resource>emptySet(),
-                new AggregateRepository(repos),
-                resolveOptionalImports);
+                new CacheRepository(new AggregateRepository(repos)),
+                resolveOptionalImports,
+                preferredResources);
 
         Map<Resource, List<Wire>> wiring = resolver.resolve(context);
         Map<String, Resource> deploy = new TreeMap<String, Resource>();
@@ -391,18 +411,24 @@ public class DeploymentBuilder {
     private Resource manageResource(String location, Attributes attributes, StreamProvider provider) throws Exception {
         Resource resource = resources.get(location);
         if (resource == null) {
-            resource = createResource(location, attributes);
+            Map<String, String> headers = getHeaders(attributes);
+            resource = createResource(location, headers);
             resources.put(location, resource);
+            this.headers.put(location, headers);
             providers.put(location, provider);
         }
         return resource;
     }
 
-    private Resource createResource(String uri, Attributes attributes) throws Exception {
+    private Map<String, String> getHeaders(Attributes attributes) {
         Map<String, String> headers = new HashMap<String, String>();
         for (Map.Entry attr : attributes.entrySet()) {
             headers.put(attr.getKey().toString(), attr.getValue().toString());
         }
+        return headers;
+    }
+
+    private Resource createResource(String uri, Map<String, String> headers) throws Exception {
         try {
             return ResourceBuilder.build(uri, headers);
         } catch (BundleException e) {
@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.agent;
+
+import org.apache.karaf.features.BundleInfo;
+import org.apache.karaf.features.Feature;
+import org.apache.karaf.features.Repository;
+import org.fusesource.fabric.agent.download.DownloadFuture;
+import org.fusesource.fabric.agent.download.DownloadManager;
+import org.fusesource.fabric.agent.resolver.ResourceBuilder;
+import org.fusesource.fabric.utils.ChecksumUtils;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.fusesource.fabric.agent.resolver.UriNamespace.getUri;
+
+/**
+ * Keeps the last resolution of the agent on disk, so that a provisioning request equal to the
+ * previous one is deployed without downloading and resolving everything again.
+ * <p>
+ * A resolution is keyed by a digest of everything it depends on: the requirements, the features
+ * of the repositories, the capabilities of the system bundle and the agent version.  The content
+ * of the release maven artifacts never changes, but the checksum of every other resolved resource
+ * is recorded and checked before the resolution is reused.
+ * </p>
+ */
+public class ResolutionCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResolutionCache.class);
+
+    private final File file;
+    private Resolution last;
+    private boolean loaded;
+
+    public ResolutionCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Computes the key of a resolution.
+     *
+     * @param requirements the requirements by kind (features, bundles, ...)
+     */
+    public static String key(String agentVersion,
+                             Map<String, Set<String>> requirements,
+                             Collection<Repository> repositories,
+                             Resource systemBundle,
+                             boolean resolveOptionalImports) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append("agent=").append(agentVersion).append('\n');
+        sb.append("optional=").append(resolveOptionalImports).append('\n');
+        for (Map.Entry<String, Set<String>> entry : new TreeMap<String, Set<String>>(requirements).entrySet()) {
+            for (String requirement : new TreeSet<String>(entry.getValue())) {
+                sb.append(entry.getKey()).append('=').append(requirement).append('\n');
+            }
+        }
+        Map<String, Repository> sortedRepositories = new TreeMap<String, Repository>();
+        for (Repository repository : repositories) {
+            sortedRepositories.put(repository.getURI().toString(), repository);
+        }
+        for (Map.Entry<String, Repository> entry : sortedRepositories.entrySet()) {
+            sb.append("repository=").append(entry.getKey()).append('\n');
+            for (Feature feature : entry.getValue().getFeatures()) {
+                sb.append("feature=").append(feature.getName()).append('/').append(feature.getVersion()).append('\n');
+                for (Feature dependency : feature.getDependencies()) {
+                    sb.append(" dependency=").append(dependency.getName()).append('/').append(dependency.getVersion()).append('\n');
+                }
+                for (BundleInfo bundle : feature.getBundles()) {
+                    sb.append(" bundle=").append(bundle.getLocation()).append(bundle.isDependency() ? " dependency" : "").append('\n');
+                }
+            }
+        }
+        for (Capability capability : systemBundle.getCapabilities(null)) {
+            sb.append("system=").append(capability.getNamespace()).append(new TreeMap<String, Object>(capability.getAttributes()))
+                    .append(new TreeMap<String, String>(capability.getDirectives())).append('\n');
+        }
+        return digest(sb.toString());
+    }
+
+    /**
+     * Returns the resources of the last resolution if it has the given key and the content
+     * of its resources did not change, or <code>null</code> otherwise.
+     */
+    public synchronized Collection<Resource> get(String key, DownloadManager manager) {
+        Resolution resolution = getLast();
+        if (resolution == null || !resolution.key.equals(key)) {
+            return null;
+        }
+        try {
+            // Start all the downloads before checking any of them
+            Map<String, DownloadFuture> downloads = new HashMap<String, DownloadFuture>();
+            for (String uri : resolution.checksums.keySet()) {
+                downloads.put(uri, manager.download(uri));
+            }
+            for (Map.Entry<String, Long> entry : resolution.checksums.entrySet()) {
+                File file = downloads.get(entry.getKey()).await().getFile();
+                if (ChecksumUtils.checksum(new FileInputStream(file)) != entry.getValue()) {
+                    LOGGER.debug("Resource {} changed since the last resolution", entry.getKey());
+                    return null;
+                }
+            }
+            List<Resource> resources = new ArrayList<Resource>();
+            for (Map.Entry<String, Map<String, String>> entry : resolution.headers.entrySet()) {
+                resources.add(ResourceBuilder.build(entry.getKey(), entry.getValue()));
+            }
+            return resources;
+        } catch (Exception e) {
+            LOGGER.debug("Unable to reuse the last resolution", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the uris of the resources of the last resolution, to be preferred by the next one.
+     */
+    public synchronized Set<String> getLastUris() {
+        Resolution resolution = getLast();
+        return resolution != null ? resolution.headers.keySet() : Collections.<String>emptySet();
+    }
+
+    /**
+     * Records a resolution.  Resolutions involving resources that can't be rebuilt from their
+     * manifest headers, such as fabs, are not recorded but still replace the last resolution.
+     *
+     * @param headers   the manifest headers of the resources, by uri
+     * @param providers the providers of the content of the resources, by uri
+     */
+    public synchronized void put(String key, Collection<Resource> resources,
+                                 Map<String, Map<String, String>> headers,
+                                 Map<String, StreamProvider> providers) {
+        Resolution resolution = new Resolution(key);
+        try {
+            for (Resource resource : resources) {
+                String uri = getUri(resource);
+                Map<String, String> resourceHeaders = headers.get(uri);
+                StreamProvider provider = providers.get(uri);
+                if (resourceHeaders == null || !(provider instanceof StreamProvider.File)) {
+                    LOGGER.debug("Not caching the resolution because of resource {}", uri);
+                    resolution = null;
+                    break;
+                }
+                resolution.headers.put(uri, resourceHeaders);
+                if (!isImmutable(uri)) {
+                    resolution.checksums.put(uri, ChecksumUtils.checksum(provider.open()));
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Not caching the resolution", e);
+            resolution = null;
+        }
+        last = resolution;
+        loaded = true;
+        save();
+    }
+
+    private static boolean isImmutable(String uri) {
+        return uri.startsWith("mvn:") && !uri.contains("SNAPSHOT");
+    }
+
+    private Resolution getLast() {
+        if (!loaded) {
+            loaded = true;
+            if (file.isFile()) {
+                try {
+                    ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
+                    try {
+                        last = (Resolution) ois.readObject();
+                    } finally {
+                        ois.close();
+                    }
+                } catch (Exception e) {
+                    LOGGER.debug("Unable to read the resolution cache " + file, e);
+                    last = null;
+                }
+            }
+        }
+        return last;
+    }
+
+    private void save() {
+        try {
+            if (last == null) {
+                file.delete();
+            } else {
+                File tmp = new File(file.getPath() + ".tmp");
+                ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(tmp));
+                try {
+                    oos.writeObject(last);
+                } finally {
+                    oos.close();
+                }
+                if (!tmp.renameTo(file)) {
+                    file.delete();
+                    if (!tmp.renameTo(file)) {
+                        throw new IOException("Unable to rename " + tmp + " to " + file);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to write the resolution cache " + file, e);
+        }
+    }
+
+    private static String digest(String data) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        byte[] bytes = md.digest(data.getBytes("UTF-8"));
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    static class Resolution implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final String key;
+        final Map<String, Map<String, String>> headers = new LinkedHashMap<String, Map<String, String>>();
+        final Map<String, Long> checksums = new HashMap<String, Long>();
+
+        Resolution(String key) {
+            this.key = key;
+        }
+    }
+}
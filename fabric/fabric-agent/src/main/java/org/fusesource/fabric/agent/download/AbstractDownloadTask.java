@@ -29,6 +29,8 @@ public abstract class AbstractDownloadTask extends DefaultFuture<DownloadFuture>
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AbstractDownloadTask.class);
 
+    static final int BUFFER_SIZE = 64 * 1024;
+
     protected final String url;
     protected final ExecutorService executor;
     private long scheduleDelay = 250;
@@ -115,7 +117,7 @@ public abstract class AbstractDownloadTask extends DefaultFuture<DownloadFuture>
      */
     static void copy(InputStream inputStream, OutputStream outputStream) throws IOException {
         try {
-            byte[] buffer = new byte[8192];
+            byte[] buffer = new byte[BUFFER_SIZE];
             int len;
             for (; ;) {
                 len = inputStream.read(buffer);
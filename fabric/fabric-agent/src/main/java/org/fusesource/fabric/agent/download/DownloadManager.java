@@ -19,7 +19,18 @@ package org.fusesource.fabric.agent.download;
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.fusesource.fabric.agent.mvn.MavenConfiguration;
 import org.fusesource.fabric.agent.mvn.MavenRepositoryURL;
@@ -27,6 +38,7 @@ import static org.fusesource.fabric.agent.download.DownloadManagerHelper.stripUr
 
 public class DownloadManager {
 
+    public static final int DEFAULT_MAX_DOWNLOADS_PER_HOST = 4;
 
     /**
      * Thread pool for downloads
@@ -42,6 +54,25 @@ public class DownloadManager {
 
     private final MavenRepositoryURL system;
 
+    /**
+     * Thread pool for probing the remote repositories of an artifact in parallel.  It is
+     * separate from the download pool so that a download never waits on its own pool.
+     */
+    private final ThreadPoolExecutor probeExecutor;
+
+    private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+
+    private volatile int maxDownloadsPerHost = DEFAULT_MAX_DOWNLOADS_PER_HOST;
+
+    /**
+     * The maven downloads in progress, so that an artifact requested twice is only downloaded once
+     */
+    private final ConcurrentMap<String, MavenDownloadTask> downloads = new ConcurrentHashMap<String, MavenDownloadTask>();
+
+    private final DownloadStatistics statistics = new DownloadStatistics();
+
+    private final List<FutureListener<DownloadFuture>> listeners = new CopyOnWriteArrayList<FutureListener<DownloadFuture>>();
+
     public DownloadManager(MavenConfiguration configuration) throws MalformedURLException {
         this(configuration, null);
     }
@@ -51,22 +82,80 @@ public class DownloadManager {
         this.executor = executor;
         this.cache = new MavenRepositoryURL("file://" + System.getProperty("karaf.data") + "/maven/agent" + "@snapshots");
         this.system = new MavenRepositoryURL("file://" + System.getProperty("karaf.home") + "/system" + "@snapshots");
+        this.probeExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "fabric-agent-download-probe-" + threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
 
     public ExecutorService getExecutor() {
         return executor;
     }
 
+    public int getMaxDownloadsPerHost() {
+        return maxDownloadsPerHost;
+    }
+
+    /**
+     * Sets how many artifacts can be transferred at the same time from a given repository host.
+     */
+    public void setMaxDownloadsPerHost(int maxDownloadsPerHost) {
+        if (maxDownloadsPerHost <= 0) {
+            throw new IllegalArgumentException("maxDownloadsPerHost should be greater than zero");
+        }
+        this.maxDownloadsPerHost = maxDownloadsPerHost;
+        hostPermits.clear();
+    }
+
+    public DownloadStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Adds a listener notified each time a download requested to this manager completes.
+     */
+    public void addListener(FutureListener<DownloadFuture> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(FutureListener<DownloadFuture> listener) {
+        listeners.remove(listener);
+    }
+
     public void shutdown() {
-        // noop
+        probeExecutor.shutdown();
+    }
+
+    ExecutorService getProbeExecutor() {
+        return probeExecutor;
+    }
+
+    /**
+     * Returns the semaphore limiting the concurrent transfers from the host of the given url.
+     */
+    Semaphore getHostPermits(URL url) {
+        String host = url.getProtocol() + "://" + url.getAuthority();
+        Semaphore permits = hostPermits.get(host);
+        if (permits == null) {
+            Semaphore newPermits = new Semaphore(maxDownloadsPerHost);
+            permits = hostPermits.putIfAbsent(host, newPermits);
+            if (permits == null) {
+                permits = newPermits;
+            }
+        }
+        return permits;
     }
 
     public DownloadFuture download(final String url) throws MalformedURLException {
         String mvnUrl = stripUrl(url);
 
         if (mvnUrl.startsWith("mvn:")) {
-            MavenDownloadTask task = new MavenDownloadTask(mvnUrl, cache, system, configuration, executor);
-            executor.submit(task);
+            MavenDownloadTask task = getMavenDownload(mvnUrl);
             if (!mvnUrl.equals(url)) {
                 final DummyDownloadTask download = new DummyDownloadTask(url, executor);
                 task.addListener(new FutureListener<DownloadFuture>() {
@@ -77,7 +166,7 @@ public class DownloadManager {
                             String file = future.getFile().toURI().toURL().toString();
                             String real = url.replace(mvn, file);
                             SimpleDownloadTask task = new SimpleDownloadTask(real, executor);
-                            executor.submit(task);
+                            submit(task);
                             task.addListener(new FutureListener<DownloadFuture>() {
                                 @Override
                                 public void operationComplete(DownloadFuture future) {
@@ -99,11 +188,51 @@ public class DownloadManager {
             }
         } else {
             final SimpleDownloadTask download = new SimpleDownloadTask(url, executor);
-            executor.submit(download);
+            submit(download);
             return download;
         }
     }
 
+    private MavenDownloadTask getMavenDownload(final String mvnUrl) {
+        while (true) {
+            MavenDownloadTask task = downloads.get(mvnUrl);
+            if (task != null) {
+                return task;
+            }
+            task = new MavenDownloadTask(mvnUrl, cache, system, configuration, executor, this);
+            if (downloads.putIfAbsent(mvnUrl, task) == null) {
+                task.addListener(new FutureListener<DownloadFuture>() {
+                    @Override
+                    public void operationComplete(DownloadFuture future) {
+                        downloads.remove(mvnUrl);
+                    }
+                });
+                submit(task);
+                return task;
+            }
+        }
+    }
+
+    private void submit(AbstractDownloadTask task) {
+        statistics.requested();
+        task.addListener(new FutureListener<DownloadFuture>() {
+            @Override
+            public void operationComplete(DownloadFuture future) {
+                boolean success;
+                try {
+                    success = future.getFile() != null;
+                } catch (IOException e) {
+                    success = false;
+                }
+                statistics.completed(success);
+                for (FutureListener<DownloadFuture> listener : listeners) {
+                    listener.operationComplete(future);
+                }
+            }
+        });
+        executor.submit(task);
+    }
+
 
     static class DummyDownloadTask extends AbstractDownloadTask {
         DummyDownloadTask(String url, ExecutorService executor) {
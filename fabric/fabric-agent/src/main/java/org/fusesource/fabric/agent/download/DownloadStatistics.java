@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.agent.download;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the downloads of a {@link DownloadManager} and the bytes they transferred.
+ */
+public class DownloadStatistics {
+
+    private final AtomicInteger requested = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong started = new AtomicLong();
+
+    void requested() {
+        started.compareAndSet(0, System.currentTimeMillis());
+        requested.incrementAndGet();
+    }
+
+    void completed(boolean success) {
+        if (success) {
+            completed.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+    }
+
+    void transferred(long count) {
+        bytes.addAndGet(count);
+    }
+
+    public int getRequested() {
+        return requested.get();
+    }
+
+    public int getCompleted() {
+        return completed.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    public int getPending() {
+        return requested.get() - completed.get() - failed.get();
+    }
+
+    /**
+     * Returns the number of bytes transferred from remote repositories.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Returns the average throughput in bytes per second since the first download was requested.
+     */
+    public long getThroughput() {
+        long start = started.get();
+        long elapsed = start > 0 ? System.currentTimeMillis() - start : 0;
+        return elapsed > 0 ? bytes.get() * 1000 / elapsed : 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(getCompleted()).append("/").append(getRequested()).append(" artifacts");
+        if (getFailed() > 0) {
+            sb.append(", ").append(getFailed()).append(" failed");
+        }
+        sb.append(", ").append(toSize(getBytes())).append(" at ").append(toSize(getThroughput())).append("/s");
+        return sb.toString();
+    }
+
+    static String toSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        } else if (bytes < 1024 * 1024) {
+            return String.format("%.1f kB", bytes / 1024.0);
+        } else {
+            return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+        }
+    }
+}
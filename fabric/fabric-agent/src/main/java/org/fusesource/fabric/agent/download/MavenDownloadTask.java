@@ -16,15 +16,26 @@
  */
 package org.fusesource.fabric.agent.download;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.fusesource.fabric.agent.mvn.DownloadableArtifact;
@@ -55,16 +66,30 @@ public class MavenDownloadTask extends AbstractDownloadTask implements Runnable
      * 4 spaces indent;
      */
     private static final String Ix4 = "    ";
+    /**
+     * Answer to a range starting after the end of the artifact.
+     */
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
 
     private final MavenRepositoryURL cache;
     private final MavenRepositoryURL system;
     private final MavenConfiguration configuration;
+    private final DownloadManager manager;
 
     public MavenDownloadTask(String url, MavenRepositoryURL cache, MavenRepositoryURL system, MavenConfiguration configuration, ExecutorService executor) {
+        this(url, cache, system, configuration, executor, null);
+    }
+
+    /**
+     * @param manager the manager limiting the transfers per host and probing repositories in parallel,
+     *                or <code>null</code> to try the repositories one after the other
+     */
+    public MavenDownloadTask(String url, MavenRepositoryURL cache, MavenRepositoryURL system, MavenConfiguration configuration, ExecutorService executor, DownloadManager manager) {
         super(url, executor);
         this.cache = cache;
         this.system = system;
         this.configuration = configuration;
+        this.manager = manager;
     }
 
     protected File download() throws Exception {
@@ -87,40 +112,264 @@ public class MavenDownloadTask extends AbstractDownloadTask implements Runnable
                 LOG.trace("  " + artifact);
             }
         }
+        String repository = cache.getFile().getAbsolutePath();
+        if (!repository.endsWith(Parser.FILE_SEPARATOR)) {
+            repository = repository + Parser.FILE_SEPARATOR;
+        }
+        File file = new File(repository + parser.getArtifactPath());
+        file.getParentFile().mkdirs();
+        if (!file.getParentFile().isDirectory()) {
+            throw new IOException("Unable to create directory " + file.getParentFile().toString());
+        }
+        // A release never changes, so what a failed attempt transferred can be resumed by the next one
+        Target target = new Target(file, !parser.getVersion().contains("SNAPSHOT"));
+        boolean done = false;
+        try {
+            long offset = target.length();
+            Transfer transfer = connect(new ArrayList<DownloadableArtifact>(downloadables), offset);
+            if (transfer == null) {
+                // no artifact found
+                throw new IOException("URL [" + url + "] could not be resolved.");
+            }
+            long start = System.currentTimeMillis();
+            long bytes = transfer.copyTo(target.file);
+            if (LOG.isDebugEnabled()) {
+                long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+                LOG.debug("Downloaded [" + transfer.artifact + "]: " + DownloadStatistics.toSize(bytes) + " in " + elapsed + " ms ("
+                        + DownloadStatistics.toSize(bytes * 1000 / elapsed) + "/s)" + (transfer.partial ? ", resumed at " + offset : ""));
+            }
+            done = true;
+        } finally {
+            target.close(done);
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to delete file: " + file.toString());
+        }
+        if (!target.tmp.renameTo(file)) {
+            throw new IOException("Unable to rename file " + target.tmp.toString() + " to " + file.toString());
+        }
+        return file;
+    }
+
+    /**
+     * Opens the artifact from the first of the given locations that has it.  When the locations
+     * all hold the same version, they are first probed in parallel and the first one to answer
+     * is tried first.
+     *
+     * @return the transfer from the chosen location, or <code>null</code> if none has the artifact
+     */
+    private Transfer connect(List<DownloadableArtifact> downloadables, long offset) throws IOException {
+        if (manager != null && downloadables.size() > 1 && isSameVersion(downloadables)) {
+            downloadables = probe(downloadables);
+        }
+        return connectSequentially(downloadables, offset);
+    }
+
+    private Transfer connectSequentially(List<DownloadableArtifact> downloadables, long offset) throws IOException {
         for (DownloadableArtifact artifact : downloadables) {
-            LOG.trace("Downloading [" + artifact + "]");
             try {
-                configuration.enableProxy(artifact.getArtifactURL());
-                String repository = cache.getFile().getAbsolutePath();
-                if (!repository.endsWith(Parser.FILE_SEPARATOR)) {
-                    repository = repository + Parser.FILE_SEPARATOR;
+                return connect(artifact, offset);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException ignore) {
+                // go on with next repository
+                LOG.debug(Ix2 + "Could not download [" + artifact + "]");
+                LOG.trace(Ix2 + "Reason [" + ignore.getClass().getName() + ": " + ignore.getMessage() + "]");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Asks all the given locations in parallel whether they have the artifact, without transferring it.
+     *
+     * @return the given locations, starting with the first one which answered it has the artifact
+     */
+    private List<DownloadableArtifact> probe(List<DownloadableArtifact> downloadables) throws IOException {
+        CompletionService<DownloadableArtifact> probes = new ExecutorCompletionService<DownloadableArtifact>(manager.getProbeExecutor());
+        int remaining = 0;
+        try {
+            for (final DownloadableArtifact artifact : downloadables) {
+                probes.submit(new Callable<DownloadableArtifact>() {
+                    public DownloadableArtifact call() throws Exception {
+                        return probe(artifact) ? artifact : null;
+                    }
+                });
+                remaining++;
+            }
+        } catch (RejectedExecutionException e) {
+            // The manager has been shut down, go on sequentially
+            LOG.debug("Probing repositories sequentially for [" + url + "]");
+            return downloadables;
+        }
+        try {
+            while (remaining > 0) {
+                java.util.concurrent.Future<DownloadableArtifact> probe = probes.take();
+                remaining--;
+                try {
+                    DownloadableArtifact artifact = probe.get();
+                    if (artifact != null) {
+                        List<DownloadableArtifact> ordered = new ArrayList<DownloadableArtifact>(downloadables.size());
+                        ordered.add(artifact);
+                        for (DownloadableArtifact other : downloadables) {
+                            if (other != artifact) {
+                                ordered.add(other);
+                            }
+                        }
+                        return ordered;
+                    }
+                } catch (ExecutionException e) {
+                    LOG.trace(Ix2 + "Probe failed [" + e.getCause().getClass().getName() + ": " + e.getCause().getMessage() + "]");
                 }
-                InputStream is = artifact.getInputStream();
-                File file = new File(repository + parser.getArtifactPath());
-                file.getParentFile().mkdirs();
-                if (!file.getParentFile().isDirectory()) {
-                    throw new IOException("Unable to create directory " + file.getParentFile().toString());
+            }
+            // None answered, they may not support HEAD requests
+            return downloadables;
+        } catch (InterruptedException e) {
+            throw (IOException) new InterruptedIOException("Interrupted while downloading " + url).initCause(e);
+        }
+    }
+
+    /**
+     * Checks whether the given location has the artifact, using a HEAD request when it is a http one.
+     */
+    private boolean probe(DownloadableArtifact artifact) throws IOException {
+        Semaphore permits = acquire(artifact);
+        try {
+            configuration.enableProxy(artifact.getArtifactURL());
+            URLConnection connection = artifact.openConnection();
+            if (connection instanceof HttpURLConnection) {
+                HttpURLConnection http = (HttpURLConnection) connection;
+                http.setRequestMethod("HEAD");
+                int code = http.getResponseCode();
+                discard(http);
+                return code == HttpURLConnection.HTTP_OK;
+            }
+            connection.getInputStream().close();
+            return true;
+        } finally {
+            if (permits != null) {
+                permits.release();
+            }
+        }
+    }
+
+    private Semaphore acquire(DownloadableArtifact artifact) throws IOException {
+        Semaphore permits = manager != null ? manager.getHostPermits(artifact.getArtifactURL()) : null;
+        if (permits != null) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                throw (IOException) new InterruptedIOException("Interrupted while downloading " + artifact).initCause(e);
+            }
+        }
+        return permits;
+    }
+
+    private static boolean isSameVersion(List<DownloadableArtifact> downloadables) {
+        for (DownloadableArtifact artifact : downloadables) {
+            if (!artifact.getVersion().equals(downloadables.get(0).getVersion())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Connects to the given artifact, asking for what follows the given offset when it is a http one.
+     */
+    private Transfer connect(DownloadableArtifact artifact, long offset) throws IOException {
+        LOG.trace("Downloading [" + artifact + "]");
+        Semaphore permits = acquire(artifact);
+        try {
+            configuration.enableProxy(artifact.getArtifactURL());
+            URLConnection connection = artifact.openConnection();
+            boolean partial = false;
+            if (connection instanceof HttpURLConnection) {
+                HttpURLConnection http = (HttpURLConnection) connection;
+                if (offset > 0) {
+                    http.setRequestProperty("Range", "bytes=" + offset + "-");
                 }
-                File tmp = File.createTempFile("fabric-agent-", null, file.getParentFile());
-                OutputStream os = new FileOutputStream(tmp);
-                copy(is, os);
-                is.close();
-                os.close();
-                if (file.exists() && !file.delete()) {
-                    throw new IOException("Unable to delete file: " + file.toString());
+                int code = http.getResponseCode();
+                if (code == HTTP_RANGE_NOT_SATISFIABLE && offset > 0) {
+                    discard(http);
+                    if (getInstanceLength(http) == offset) {
+                        // A previous attempt transferred the whole artifact but failed before renaming it
+                        return new Transfer(artifact, new ByteArrayInputStream(new byte[0]), 0, true, permits);
+                    }
+                    // What was transferred is not a part of this artifact, start over
+                    LOG.debug(Ix2 + "Restarting the download of [" + artifact + "]");
+                    offset = 0;
+                    http = (HttpURLConnection) artifact.openConnection();
+                    connection = http;
+                    code = http.getResponseCode();
                 }
-                if (!tmp.renameTo(file)) {
-                    throw new IOException("Unable to rename file " + tmp.toString() + " to " + file.toString());
+                if (code == HttpURLConnection.HTTP_PARTIAL) {
+                    String range = http.getHeaderField("Content-Range");
+                    if (range == null || !range.startsWith("bytes " + offset + "-")) {
+                        discard(http);
+                        throw new IOException("Unexpected range " + range + " for [" + artifact + "]");
+                    }
+                    partial = true;
+                } else if (code != HttpURLConnection.HTTP_OK) {
+                    discard(http);
+                    throw new IOException("Server returned HTTP " + code + " for [" + artifact + "]");
                 }
-                return file;
+            }
+            return new Transfer(artifact, connection.getInputStream(), getContentLength(connection), partial, permits);
+        } catch (IOException e) {
+            if (permits != null) {
+                permits.release();
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            if (permits != null) {
+                permits.release();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the length of the whole artifact given by the content range of a 416 response,
+     * or -1 if unknown.
+     */
+    private static long getInstanceLength(HttpURLConnection http) {
+        String range = http.getHeaderField("Content-Range");
+        int slash = range != null ? range.indexOf('/') : -1;
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(range.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long getContentLength(URLConnection connection) {
+        String length = connection.getHeaderField("Content-Length");
+        try {
+            return length != null ? Long.parseLong(length.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the body of an error response so that its connection can be kept alive and reused.
+     */
+    private static void discard(HttpURLConnection http) {
+        InputStream es = http.getErrorStream();
+        if (es != null) {
+            try {
+                byte[] buffer = new byte[1024];
+                while (es.read(buffer) > 0) {
+                }
+                es.close();
             } catch (IOException ignore) {
-                // go on with next repository
-                LOG.debug(Ix2 + "Could not download [" + artifact + "]");
-                LOG.trace(Ix2 + "Reason [" + ignore.getClass().getName() + ": " + ignore.getMessage() + "]");
+                // The connection won't be reused
             }
         }
-        // no artifact found
-        throw new IOException("URL [" + url + "] could not be resolved.");
     }
 
     /**
@@ -455,6 +704,125 @@ public class MavenDownloadTask extends AbstractDownloadTask implements Runnable
         return URLUtils.prepareInputStream(url, !configuration.getCertificateCheck());
     }
 
+    /**
+     * The stream of an artifact being downloaded, holding a permit of its host until closed.
+     */
+    private class Transfer {
+
+        final DownloadableArtifact artifact;
+        final InputStream is;
+        final long length;
+        final boolean partial;
+        final Semaphore permits;
+        boolean closed;
+
+        Transfer(DownloadableArtifact artifact, InputStream is, long length, boolean partial, Semaphore permits) {
+            this.artifact = artifact;
+            this.is = is;
+            this.length = length;
+            this.partial = partial;
+            this.permits = permits;
+        }
+
+        /**
+         * Writes the artifact to the given file, after what it already holds for a partial transfer.
+         *
+         * @return the number of bytes transferred
+         */
+        long copyTo(RandomAccessFile file) throws IOException {
+            try {
+                if (!partial) {
+                    file.setLength(0);
+                }
+                file.seek(file.length());
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long count = 0;
+                int len;
+                while ((len = is.read(buffer)) > 0) {
+                    file.write(buffer, 0, len);
+                    count += len;
+                    if (manager != null) {
+                        manager.getStatistics().transferred(len);
+                    }
+                }
+                if (length >= 0 && count != length) {
+                    throw new IOException("Premature end of [" + artifact + "] after " + count + " of " + length + " bytes");
+                }
+                return count;
+            } finally {
+                close();
+            }
+        }
+
+        synchronized void close() {
+            if (!closed) {
+                closed = true;
+                try {
+                    is.close();
+                } catch (IOException ignore) {
+                    // ignore
+                }
+                if (permits != null) {
+                    permits.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * The file an artifact is downloaded to before being moved to the cache.  A resumable download
+     * goes to a <code>.part</code> file kept across attempts, unless another download holds it.
+     */
+    private static class Target {
+
+        final File tmp;
+        final RandomAccessFile file;
+        final FileLock lock;
+
+        Target(File artifact, boolean resumable) throws IOException {
+            if (resumable) {
+                File part = new File(artifact.getPath() + ".part");
+                RandomAccessFile raf = new RandomAccessFile(part, "rw");
+                FileLock l = null;
+                try {
+                    l = raf.getChannel().tryLock();
+                } catch (OverlappingFileLockException e) {
+                    // locked by another download in this vm
+                } finally {
+                    if (l == null) {
+                        raf.close();
+                    }
+                }
+                if (l != null) {
+                    tmp = part;
+                    file = raf;
+                    lock = l;
+                    return;
+                }
+            }
+            tmp = File.createTempFile("fabric-agent-", null, artifact.getParentFile());
+            file = new RandomAccessFile(tmp, "rw");
+            lock = null;
+        }
+
+        long length() throws IOException {
+            return lock != null ? file.length() : 0;
+        }
+
+        void close(boolean success) throws IOException {
+            try {
+                if (lock != null) {
+                    lock.release();
+                }
+            } finally {
+                file.close();
+                if (!success && lock == null) {
+                    tmp.delete();
+                }
+            }
+        }
+    }
+
     /**
      * Sorting comparator for downladable artifacts.
      * The sorting is done by:
@@ -19,6 +19,7 @@ package org.fusesource.fabric.agent.mvn;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.net.URLConnection;
 
 import org.fusesource.fabric.agent.utils.NullArgumentException;
 import org.fusesource.fabric.agent.utils.URLUtils;
@@ -100,6 +101,18 @@ public class DownloadableArtifact {
         return URLUtils.prepareInputStream(m_artifactURL, !m_checkCertificate);
     }
 
+    /**
+     * Return a connection to the artifact, not connected yet.
+     *
+     * @return prepared connection
+     * @throws IOException re-thrown
+     * @see URLUtils#prepareConnection(java.net.URL, boolean)
+     */
+    public URLConnection openConnection()
+            throws IOException {
+        return URLUtils.prepareConnection(m_artifactURL, !m_checkCertificate);
+    }
+
     /**
      * Getter.
      *
@@ -39,10 +39,13 @@ public class BaseRepository implements Repository {
 
     protected final List<Resource> resources;
     protected final Map<String, CapabilitySet> capSets;
+    // Filters of the requirements not built by us, parsed once
+    protected final Map<String, SimpleFilter> filters;
 
     public BaseRepository() {
         this.resources = new ArrayList<Resource>();
         this.capSets = new HashMap<String, CapabilitySet>();
+        this.filters = new HashMap<String, SimpleFilter>();
     }
 
     protected void addResource(Resource resource) {
@@ -72,10 +75,7 @@ public class BaseRepository implements Repository {
                 if (requirement instanceof RequirementImpl) {
                     sf = ((RequirementImpl) requirement).getFilter();
                 } else {
-                    String filter = requirement.getDirectives().get(Constants.FILTER_DIRECTIVE);
-                    sf = (filter != null)
-                            ? SimpleFilter.parse(filter)
-                            : new SimpleFilter(null, null, SimpleFilter.MATCH_ALL);
+                    sf = getFilter(requirement.getDirectives().get(Constants.FILTER_DIRECTIVE));
                 }
                 result.put(requirement, set.match(sf, true));
             } else {
@@ -84,4 +84,16 @@ public class BaseRepository implements Repository {
         }
         return result;
     }
+
+    protected SimpleFilter getFilter(String filter) {
+        if (filter == null) {
+            return new SimpleFilter(null, null, SimpleFilter.MATCH_ALL);
+        }
+        SimpleFilter sf = filters.get(filter);
+        if (sf == null) {
+            sf = SimpleFilter.parse(filter);
+            filters.put(filter, sf);
+        }
+        return sf;
+    }
 }
@@ -18,20 +18,27 @@ package org.fusesource.fabric.agent.repository;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.fusesource.fabric.agent.resolver.RequirementImpl;
+import org.osgi.framework.Constants;
 import org.osgi.resource.Capability;
 import org.osgi.resource.Requirement;
 import org.osgi.service.repository.Repository;
 
+/**
+ * Caches the providers found by another repository.  Providers only depend on the namespace and
+ * filter of a requirement, so equal requirements of different resources share the same entry.
+ */
 public class CacheRepository implements Repository {
 
     private final Repository repository;
-    private final Map<Requirement, Collection<Capability>> cache =
-            new ConcurrentHashMap<Requirement, Collection<Capability>>();
+    private final Map<String, Collection<Capability>> cache =
+            new ConcurrentHashMap<String, Collection<Capability>>();
 
     public CacheRepository(Repository repository) {
         this.repository = repository;
@@ -42,18 +49,34 @@ public class CacheRepository implements Repository {
         List<Requirement> missing = new ArrayList<Requirement>();
         Map<Requirement, Collection<Capability>> result = new HashMap<Requirement, Collection<Capability>>();
         for (Requirement requirement : requirements) {
-            Collection<Capability> caps = cache.get(requirement);
+            Collection<Capability> caps = cache.get(getKey(requirement));
             if (caps == null) {
                 missing.add(requirement);
             } else {
                 result.put(requirement, caps);
             }
         }
-        Map<Requirement, Collection<Capability>> newCache = repository.findProviders(missing);
-        for (Requirement requirement : newCache.keySet()) {
-            cache.put(requirement, newCache.get(requirement));
-            result.put(requirement, newCache.get(requirement));
+        if (!missing.isEmpty()) {
+            Map<Requirement, Collection<Capability>> newCache = repository.findProviders(missing);
+            for (Requirement requirement : missing) {
+                Collection<Capability> caps = newCache.get(requirement);
+                if (caps != null) {
+                    caps = Collections.unmodifiableCollection(caps);
+                    cache.put(getKey(requirement), caps);
+                    result.put(requirement, caps);
+                }
+            }
         }
         return result;
     }
+
+    private static String getKey(Requirement requirement) {
+        String filter;
+        if (requirement instanceof RequirementImpl) {
+            filter = ((RequirementImpl) requirement).getFilter().toString();
+        } else {
+            filter = requirement.getDirectives().get(Constants.FILTER_DIRECTIVE);
+        }
+        return requirement.getNamespace() + ":" + (filter != null ? filter : "(*)");
+    }
 }
@@ -190,11 +190,24 @@ public void dump()
             // For AND we calculate the intersection of each subfilter.
             // We can short-circuit the AND operation if there are no
             // remaining capabilities.
+            // Indexed subfilters are evaluated first as they usually leave
+            // only a handful of capabilities for the other ones.
             List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
             for (int i = 0; (caps.size() > 0) && (i < sfs.size()); i++)
             {
-                matches = match(caps, sfs.get(i));
-                caps = matches;
+                if (isIndexed(sfs.get(i)))
+                {
+                    matches = match(caps, sfs.get(i));
+                    caps = matches;
+                }
+            }
+            for (int i = 0; (caps.size() > 0) && (i < sfs.size()); i++)
+            {
+                if (!isIndexed(sfs.get(i)))
+                {
+                    matches = match(caps, sfs.get(i));
+                    caps = matches;
+                }
             }
         }
         else if (sf.getOperation() == SimpleFilter.OR)
@@ -227,7 +240,10 @@ public void dump()
                 if (existingCaps != null)
                 {
                     matches.addAll(existingCaps);
-                    matches.retainAll(caps);
+                    if (caps != m_capSet)
+                    {
+                        matches.retainAll(caps);
+                    }
                 }
             }
             else
@@ -250,6 +266,11 @@ public void dump()
         return matches;
     }
 
+    private boolean isIndexed(SimpleFilter sf)
+    {
+        return (sf.getOperation() == SimpleFilter.EQ) && m_indices.containsKey(sf.getName());
+    }
+
     public static boolean matches(Capability cap, SimpleFilter sf)
     {
         return matchesInternal(cap, sf) && matchMandatory(cap, sf);
@@ -19,6 +19,7 @@ package org.fusesource.fabric.agent.resolver;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -43,17 +44,31 @@ public class ResolveContextImpl extends ResolveContext {
     private final Map<Resource, Wiring> wirings;
     private final boolean resolveOptional;
 
-    private final CandidateComparator candidateComparator = new CandidateComparator();
+    private final Comparator<Capability> candidateComparator;
 
     public ResolveContextImpl(Set<Resource> mandatory,
                               Set<Resource> optional,
                               Repository repository,
                               boolean resolveOptional) {
+        this(mandatory, optional, repository, resolveOptional, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param preferred the uris of the resources to try first when several resources
+     *                  provide a capability with the same version
+     */
+    public ResolveContextImpl(Set<Resource> mandatory,
+                              Set<Resource> optional,
+                              Repository repository,
+                              boolean resolveOptional,
+                              Set<String> preferred) {
         this.mandatory = mandatory;
         this.optional = optional;
         this.repository = repository;
         this.wirings = new HashMap<Resource, Wiring>();
         this.resolveOptional = resolveOptional;
+        this.candidateComparator = preferred.isEmpty()
+                ? new CandidateComparator() : new PreferredCandidateComparator(preferred);
     }
 
     @Override
@@ -99,4 +114,39 @@ public class ResolveContextImpl extends ResolveContext {
     public Map<Resource, Wiring> getWirings() {
         return wirings;
     }
+
+    static class PreferredCandidateComparator extends CandidateComparator {
+
+        private final Set<String> preferred;
+        // Looking up the uri of a resource goes through all its capabilities
+        private final Map<Resource, Boolean> isPreferred = new HashMap<Resource, Boolean>();
+
+        PreferredCandidateComparator(Set<String> preferred) {
+            this.preferred = preferred;
+        }
+
+        @Override
+        public int compare(Capability cap1, Capability cap2) {
+            // The system bundle and the highest versions still come first,
+            // the preferred resources only break the ties
+            int c = super.compare(cap1, cap2);
+            if (c == 0) {
+                boolean p1 = isPreferred(cap1.getResource());
+                boolean p2 = isPreferred(cap2.getResource());
+                if (p1 != p2) {
+                    c = p1 ? -1 : 1;
+                }
+            }
+            return c;
+        }
+
+        private boolean isPreferred(Resource resource) {
+            Boolean p = isPreferred.get(resource);
+            if (p == null) {
+                p = preferred.contains(UriNamespace.getUri(resource));
+                isPreferred.put(resource, p);
+            }
+            return p;
+        }
+    }
 }
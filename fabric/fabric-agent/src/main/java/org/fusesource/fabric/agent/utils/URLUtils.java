@@ -143,12 +143,26 @@ public class URLUtils {
      */
     public static InputStream prepareInputStream(final URL url, final boolean acceptAnyCertificate)
             throws IOException {
+        return prepareConnection(url, acceptAnyCertificate).getInputStream();
+    }
+
+    /**
+     * Prepare url for authentication and ssl if necessary and returns the connection to the url,
+     * which is not connected yet so that request headers can still be added.
+     *
+     * @param url                  url to prepare
+     * @param acceptAnyCertificate true if the certicate check should be skipped
+     * @return connection to the url
+     * @throws IOException re-thrown
+     */
+    public static URLConnection prepareConnection(final URL url, final boolean acceptAnyCertificate)
+            throws IOException {
         final URLConnection conn = url.openConnection();
         prepareForAuthentication(conn);
         if (acceptAnyCertificate) {
             prepareForSSL(conn);
         }
-        return conn.getInputStream();
+        return conn;
     }
 
 }
@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.agent;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeploymentAgentTest {
+
+    private static final long UPDATE_DELAY = 100L;
+    // How long to wait for a provisioning that should not happen
+    private static final long QUIET_PERIOD = 10 * UPDATE_DELAY;
+
+    private RecordingDeploymentAgent agent;
+
+    @Before
+    public void setUp() throws Exception {
+        agent = new RecordingDeploymentAgent();
+        agent.setUpdateDelay(UPDATE_DELAY);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        agent.stop();
+    }
+
+    @Test
+    public void testDeploymentProperties() {
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put("feature.karaf", "karaf");
+        props.put("bundle.foo", "mvn:com.acme/foo/1.0");
+        props.put("repository.karaf", "mvn:org.apache.karaf/features/2.3.0/xml/features");
+        props.put("org.ops4j.pax.url.mvn.repositories", "http://repo1.maven.org/maven2");
+        props.put("lastRefresh.default", "1234");
+        props.put("framework", "mvn:org.apache.felix/org.apache.felix.framework/4.0.3");
+        props.put("service.pid", "org.fusesource.fabric.agent");
+        props.put("update.delay", "500");
+        props.put("frameworkX", "ignored");
+
+        Map<String, String> deployment = DeploymentAgent.getDeploymentProperties(props);
+        assertEquals(6, deployment.size());
+        assertEquals("karaf", deployment.get("feature.karaf"));
+        assertEquals("1234", deployment.get("lastRefresh.default"));
+        assertTrue(deployment.containsKey("framework"));
+        assertFalse(deployment.containsKey("service.pid"));
+        assertFalse(deployment.containsKey("update.delay"));
+        assertFalse(deployment.containsKey("frameworkX"));
+    }
+
+    @Test
+    public void testBurstIsProvisionedOnce() throws Exception {
+        agent.updated(props("feature.a", "a"));
+        agent.updated(props("feature.b", "b"));
+        agent.updated(props("feature.c", "c"));
+
+        Dictionary<String, ?> provisioned = agent.provisioned.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS);
+        assertNotNull(provisioned);
+        assertEquals("c", provisioned.get("feature.c"));
+        assertNull(agent.provisioned.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testUnchangedDeploymentIsSkipped() throws Exception {
+        agent.updated(props("feature.a", "a"));
+        assertNotNull(agent.provisioned.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS));
+
+        Dictionary<String, Object> unrelated = props("feature.a", "a");
+        unrelated.put("some.other.key", "value");
+        agent.updated(unrelated);
+        assertNull(agent.provisioned.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS));
+
+        agent.updated(props("feature.a", "b"));
+        assertNotNull(agent.provisioned.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testProfileRefreshIsProvisioned() throws Exception {
+        agent.updated(props("feature.a", "a"));
+        assertNotNull(agent.provisioned.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS));
+
+        Dictionary<String, Object> refreshed = props("feature.a", "a");
+        refreshed.put("lastRefresh.default", String.valueOf(System.currentTimeMillis()));
+        agent.updated(refreshed);
+        assertNotNull(agent.provisioned.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testFailedDeploymentIsRetried() throws Exception {
+        agent.success = false;
+        agent.updated(props("feature.a", "a"));
+        assertNotNull(agent.provisioned.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS));
+
+        agent.success = true;
+        agent.updated(props("feature.a", "a"));
+        assertNotNull(agent.provisioned.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS));
+    }
+
+    private static Dictionary<String, Object> props(String key, String value) {
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put("service.pid", "org.fusesource.fabric.agent");
+        props.put(key, value);
+        return props;
+    }
+
+    /**
+     * Records the provisioned configurations instead of provisioning them.
+     */
+    static class RecordingDeploymentAgent extends DeploymentAgent {
+        final BlockingQueue<Dictionary<String, ?>> provisioned = new LinkedBlockingQueue<Dictionary<String, ?>>();
+        volatile boolean success = true;
+
+        RecordingDeploymentAgent() throws Exception {
+        }
+
+        @Override
+        public boolean doUpdate(Dictionary<String, ?> props) throws Exception {
+            provisioned.add(props);
+            return success;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.agent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.karaf.features.Repository;
+import org.apache.karaf.features.internal.RepositoryImpl;
+import org.fusesource.fabric.agent.download.DownloadManager;
+import org.fusesource.fabric.agent.mvn.MavenConfigurationImpl;
+import org.fusesource.fabric.agent.mvn.PropertiesPropertyResolver;
+import org.fusesource.fabric.agent.resolver.ResourceBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.resource.Resource;
+
+import static org.fusesource.fabric.agent.resolver.UriNamespace.getUri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResolutionCacheTest {
+
+    private static final String RELEASE = "mvn:org.acme/foo/1.0";
+    private static final String FILE_BUNDLE = "bar";
+
+    private File dir;
+    private File cacheFile;
+    private ExecutorService executor;
+    private DownloadManager manager;
+    private Resource systemBundle;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File("target/resolution-" + System.currentTimeMillis()).getAbsoluteFile();
+        dir.mkdirs();
+        cacheFile = new File(dir, "resolution.cache");
+        System.setProperty("karaf.data", new File(dir, "data").getAbsolutePath());
+        System.setProperty("karaf.home", new File(dir, "home").getAbsolutePath());
+        executor = Executors.newFixedThreadPool(2);
+        Properties properties = new Properties();
+        properties.setProperty("mvn.localRepository", new File(dir, "local").getAbsolutePath());
+        properties.setProperty("mvn.repositories", "");
+        manager = new DownloadManager(new MavenConfigurationImpl(new PropertiesPropertyResolver(properties), "mvn"), executor);
+        systemBundle = ResourceBuilder.build("system-bundle", headers("org.apache.felix.framework", "4.0.3"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdown();
+        manager.shutdown();
+        delete(dir);
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        Repository repository = repository("features.xml", "1.0");
+        String key = ResolutionCache.key("1.0", requirements("a", "b"),
+                Collections.singleton(repository), systemBundle, false);
+
+        assertEquals(key, ResolutionCache.key("1.0", requirements("b", "a"),
+                Collections.singleton(repository), systemBundle, false));
+        assertFalse(key.equals(ResolutionCache.key("1.1", requirements("a", "b"),
+                Collections.singleton(repository), systemBundle, false)));
+        assertFalse(key.equals(ResolutionCache.key("1.0", requirements("a", "b", "c"),
+                Collections.singleton(repository), systemBundle, false)));
+        assertFalse(key.equals(ResolutionCache.key("1.0", requirements("a", "b"),
+                Collections.singleton(repository), systemBundle, true)));
+        assertFalse(key.equals(ResolutionCache.key("1.0", requirements("a", "b"),
+                Collections.singleton(repository("features-2.xml", "2.0")), systemBundle, false)));
+        Resource otherSystemBundle = ResourceBuilder.build("system-bundle", headers("org.apache.felix.framework", "4.2.1"));
+        assertFalse(key.equals(ResolutionCache.key("1.0", requirements("a", "b"),
+                Collections.singleton(repository), otherSystemBundle, false)));
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        File bar = write("bar.jar", "bar");
+        Map<String, Map<String, String>> headers = new HashMap<String, Map<String, String>>();
+        Map<String, StreamProvider> providers = new HashMap<String, StreamProvider>();
+        List<Resource> resources = new ArrayList<Resource>();
+        resources.add(resource(RELEASE, "foo", headers, providers, write("foo.jar", "foo")));
+        resources.add(resource(uri(bar), FILE_BUNDLE, headers, providers, bar));
+
+        new ResolutionCache(cacheFile).put("key", resources, headers, providers);
+        assertTrue(cacheFile.isFile());
+
+        // read back from the disk
+        ResolutionCache cache = new ResolutionCache(cacheFile);
+        assertNull(cache.get("other", manager));
+        Collection<Resource> cached = cache.get("key", manager);
+        assertNotNull(cached);
+        Set<String> uris = new HashSet<String>();
+        for (Resource resource : cached) {
+            uris.add(getUri(resource));
+        }
+        assertEquals(new HashSet<String>(Arrays.asList(RELEASE, uri(bar))), uris);
+        assertEquals(uris, cache.getLastUris());
+    }
+
+    @Test
+    public void testChangedResource() throws Exception {
+        File bar = write("bar.jar", "bar");
+        Map<String, Map<String, String>> headers = new HashMap<String, Map<String, String>>();
+        Map<String, StreamProvider> providers = new HashMap<String, StreamProvider>();
+        List<Resource> resources = new ArrayList<Resource>();
+        resources.add(resource(uri(bar), FILE_BUNDLE, headers, providers, bar));
+
+        ResolutionCache cache = new ResolutionCache(cacheFile);
+        cache.put("key", resources, headers, providers);
+        assertNotNull(cache.get("key", manager));
+
+        write("bar.jar", "bar has changed");
+        assertNull(cache.get("key", manager));
+    }
+
+    @Test
+    public void testFabIsNotCached() throws Exception {
+        File bar = write("bar.jar", "bar");
+        Map<String, Map<String, String>> headers = new HashMap<String, Map<String, String>>();
+        Map<String, StreamProvider> providers = new HashMap<String, StreamProvider>();
+        List<Resource> resources = new ArrayList<Resource>();
+        resources.add(resource(uri(bar), FILE_BUNDLE, headers, providers, bar));
+
+        ResolutionCache cache = new ResolutionCache(cacheFile);
+        cache.put("key", resources, headers, providers);
+        assertTrue(cacheFile.isFile());
+
+        String fab = "fab:mvn:org.acme/baz/1.0";
+        resources.add(resource(fab, "baz", headers, providers, null));
+        providers.put(fab, new StreamProvider.Fab(null));
+        cache.put("key", resources, headers, providers);
+
+        assertNull(cache.get("key", manager));
+        assertTrue(cache.getLastUris().isEmpty());
+        assertFalse(cacheFile.exists());
+    }
+
+    @Test
+    public void testResourceWithoutHeadersIsNotCached() throws Exception {
+        File bar = write("bar.jar", "bar");
+        Map<String, Map<String, String>> headers = new HashMap<String, Map<String, String>>();
+        Map<String, StreamProvider> providers = new HashMap<String, StreamProvider>();
+        List<Resource> resources = new ArrayList<Resource>();
+        resources.add(resource(uri(bar), FILE_BUNDLE, headers, providers, bar));
+        headers.remove(uri(bar));
+
+        ResolutionCache cache = new ResolutionCache(cacheFile);
+        cache.put("key", resources, headers, providers);
+
+        assertNull(cache.get("key", manager));
+        assertFalse(cacheFile.exists());
+    }
+
+    private Resource resource(String uri, String symbolicName,
+                              Map<String, Map<String, String>> headers,
+                              Map<String, StreamProvider> providers,
+                              File file) throws Exception {
+        Map<String, String> resourceHeaders = headers(symbolicName, "1.0");
+        headers.put(uri, resourceHeaders);
+        if (file != null) {
+            providers.put(uri, new StreamProvider.File(file));
+        }
+        return ResourceBuilder.build(uri, resourceHeaders);
+    }
+
+    private Map<String, String> headers(String symbolicName, String version) {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Bundle-ManifestVersion", "2");
+        headers.put("Bundle-SymbolicName", symbolicName);
+        headers.put("Bundle-Version", version);
+        return headers;
+    }
+
+    private Map<String, Set<String>> requirements(String... features) {
+        Map<String, Set<String>> requirements = new HashMap<String, Set<String>>();
+        requirements.put("feature", new LinkedHashSet<String>(Arrays.asList(features)));
+        requirements.put("bundle", Collections.<String>emptySet());
+        return requirements;
+    }
+
+    private Repository repository(String name, String version) throws IOException {
+        File file = write(name, "<features xmlns=\"http://karaf.apache.org/xmlns/features/v1.0.0\">\n"
+                + "  <feature name=\"acme\" version=\"" + version + "\">\n"
+                + "    <bundle>mvn:org.acme/foo/" + version + "</bundle>\n"
+                + "  </feature>\n"
+                + "</features>\n");
+        return new RepositoryImpl(file.toURI());
+    }
+
+    private String uri(File file) {
+        return file.toURI().toString();
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(dir, name);
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(content.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
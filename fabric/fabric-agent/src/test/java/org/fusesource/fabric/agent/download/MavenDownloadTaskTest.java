@@ -0,0 +1,233 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.agent.download;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.fusesource.fabric.agent.mvn.MavenConfigurationImpl;
+import org.fusesource.fabric.agent.mvn.MavenRepositoryURL;
+import org.fusesource.fabric.agent.mvn.PropertiesPropertyResolver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MavenDownloadTaskTest {
+
+    private static final String ARTIFACT = "mvn:org.acme/foo/1.0";
+    private static final String PATH = "org/acme/foo/1.0/foo-1.0.jar";
+
+    private final Map<String, byte[]> content = new HashMap<String, byte[]>();
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private final byte[] data = new byte[100000];
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private DownloadManager manager;
+    private File dir;
+    private File cache;
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new RepositoryHandler());
+        server.start();
+
+        dir = new File("target/download-" + System.currentTimeMillis());
+        cache = new File(dir, "cache");
+        System.setProperty("karaf.data", new File(dir, "data").getAbsolutePath());
+        System.setProperty("karaf.home", new File(dir, "home").getAbsolutePath());
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop(0);
+        executor.shutdown();
+        if (manager != null) {
+            manager.shutdown();
+        }
+        delete(dir);
+    }
+
+    @Test
+    public void testProbeDoesNotTransferFromEveryRepository() throws Exception {
+        content.put("/second/" + PATH, data);
+
+        File file = createTask("first", "second").download();
+
+        assertArrayEquals(data, read(file));
+        assertTrue(requests.contains("HEAD /first/" + PATH));
+        assertTrue(requests.contains("HEAD /second/" + PATH));
+        assertFalse(requests.contains("GET /first/" + PATH));
+        assertEquals(1, Collections.frequency(requests, "GET /second/" + PATH));
+    }
+
+    @Test
+    public void testResumeWithRange() throws Exception {
+        content.put("/repo/" + PATH, data);
+        writePart(Arrays.copyOf(data, 40000));
+
+        File file = createTask("repo").download();
+
+        assertArrayEquals(data, read(file));
+        assertTrue(requests.contains("GET /repo/" + PATH + " bytes=40000-"));
+        assertFalse(requests.contains("GET /repo/" + PATH));
+        assertFalse(part().exists());
+    }
+
+    @Test
+    public void testResumeCompletePart() throws Exception {
+        content.put("/repo/" + PATH, data);
+        writePart(data);
+
+        File file = createTask("repo").download();
+
+        assertArrayEquals(data, read(file));
+        assertTrue(requests.contains("GET /repo/" + PATH + " bytes=" + data.length + "-"));
+        assertFalse(requests.contains("GET /repo/" + PATH));
+        assertFalse(part().exists());
+    }
+
+    @Test
+    public void testRestartOversizedPart() throws Exception {
+        content.put("/repo/" + PATH, data);
+        writePart(new byte[data.length + 10]);
+
+        File file = createTask("repo").download();
+
+        assertArrayEquals(data, read(file));
+        assertTrue(requests.contains("GET /repo/" + PATH + " bytes=" + (data.length + 10) + "-"));
+        assertTrue(requests.contains("GET /repo/" + PATH));
+    }
+
+    private MavenDownloadTask createTask(String... repositories) throws Exception {
+        StringBuilder urls = new StringBuilder();
+        for (String repository : repositories) {
+            if (urls.length() > 0) {
+                urls.append(",");
+            }
+            urls.append("http://localhost:").append(server.getAddress().getPort()).append("/").append(repository).append("/");
+        }
+        Properties properties = new Properties();
+        properties.setProperty("mvn.localRepository", new File(dir, "local").getAbsolutePath());
+        properties.setProperty("mvn.repositories", urls.toString());
+        properties.setProperty("mvn.proxySupport", "false");
+        MavenConfigurationImpl configuration = new MavenConfigurationImpl(new PropertiesPropertyResolver(properties), "mvn");
+        manager = new DownloadManager(configuration, executor);
+        return new MavenDownloadTask(ARTIFACT,
+                new MavenRepositoryURL("file://" + cache.getAbsolutePath() + "@snapshots"),
+                new MavenRepositoryURL("file://" + new File(dir, "system").getAbsolutePath() + "@snapshots"),
+                configuration, executor, manager);
+    }
+
+    private File part() {
+        return new File(cache, PATH + ".part");
+    }
+
+    private void writePart(byte[] bytes) throws IOException {
+        part().getParentFile().mkdirs();
+        OutputStream os = new FileOutputStream(part());
+        try {
+            os.write(bytes);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Serves the artifacts of the content map, supporting HEAD requests and ranges.
+     */
+    class RepositoryHandler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            requests.add(method + " " + path + (range != null ? " " + range : ""));
+            try {
+                byte[] bytes = content.get(path);
+                if (bytes == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else if ("HEAD".equals(method)) {
+                    exchange.getResponseHeaders().set("Content-Length", Integer.toString(bytes.length));
+                    exchange.sendResponseHeaders(200, -1);
+                } else if (range != null) {
+                    int start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+                    if (start >= bytes.length) {
+                        exchange.getResponseHeaders().set("Content-Range", "bytes */" + bytes.length);
+                        exchange.sendResponseHeaders(416, -1);
+                    } else {
+                        exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (bytes.length - 1) + "/" + bytes.length);
+                        exchange.sendResponseHeaders(206, bytes.length - start);
+                        exchange.getResponseBody().write(bytes, start, bytes.length - start);
+                    }
+                } else {
+                    exchange.sendResponseHeaders(200, bytes.length);
+                    exchange.getResponseBody().write(bytes);
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.agent.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import org.fusesource.fabric.agent.resolver.ResourceBuilder;
+import org.fusesource.fabric.agent.resolver.ResourceImpl;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Version;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.service.repository.Repository;
+
+public class CacheRepositoryTest extends TestCase {
+
+    private CountingRepository repository;
+    private CacheRepository cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        List<Resource> resources = new ArrayList<Resource>();
+        resources.add(export("foo", "1.0.0", "com.acme.foo;version=1.0.0"));
+        resources.add(export("foo", "2.0.0", "com.acme.foo;version=2.0.0"));
+        resources.add(export("bar", "1.0.0", "com.acme.bar;version=1.0.0"));
+        repository = new CountingRepository(new StaticRepository(resources));
+        cache = new CacheRepository(repository);
+    }
+
+    public void testEqualRequirementsShareEntry() throws BundleException {
+        Requirement first = importPackage("first", "com.acme.foo;version=\"[1,3)\"");
+        Requirement second = importPackage("second", "com.acme.foo;version=\"[1,3)\"");
+        assertNotSame(first, second);
+
+        Collection<Capability> caps = cache.findProviders(Collections.singleton(first)).get(first);
+        assertEquals(2, caps.size());
+        assertEquals(1, repository.lookups);
+
+        assertSame(caps, cache.findProviders(Collections.singleton(second)).get(second));
+        assertEquals(1, repository.lookups);
+    }
+
+    public void testDifferentFiltersDontShareEntry() throws BundleException {
+        Requirement all = importPackage("first", "com.acme.foo;version=\"[1,3)\"");
+        Requirement recent = importPackage("second", "com.acme.foo;version=\"[2,3)\"");
+        Requirement other = importPackage("third", "com.acme.bar");
+
+        Map<Requirement, Collection<Capability>> providers = cache.findProviders(list(all, recent, other));
+        assertEquals(2, providers.get(all).size());
+        assertEquals(1, providers.get(recent).size());
+        assertEquals(1, providers.get(other).size());
+        assertEquals(3, repository.lookups);
+
+        // All cached, a single call finds them
+        cache.findProviders(list(all, recent, other));
+        assertEquals(3, repository.lookups);
+    }
+
+    public void testCachedProvidersAreUnmodifiable() throws BundleException {
+        Requirement req = importPackage("first", "com.acme.foo");
+        Collection<Capability> caps = cache.findProviders(Collections.singleton(req)).get(req);
+        try {
+            caps.clear();
+            fail("Cached providers should not be modifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    private static Resource export(String name, String version, String exports) throws BundleException {
+        ResourceImpl resource = new ResourceImpl(name, Version.parseVersion(version));
+        resource.addCapabilities(ResourceBuilder.parseExport(resource, name, Version.parseVersion(version), exports));
+        return resource;
+    }
+
+    private static Requirement importPackage(String name, String imports) throws BundleException {
+        ResourceImpl resource = new ResourceImpl(name, Version.emptyVersion);
+        List<Requirement> reqs = ResourceBuilder.parseImport(resource, imports);
+        assertEquals(1, reqs.size());
+        return reqs.get(0);
+    }
+
+    private static List<Requirement> list(Requirement... requirements) {
+        List<Requirement> list = new ArrayList<Requirement>();
+        Collections.addAll(list, requirements);
+        return list;
+    }
+
+    /**
+     * Counts the requirements it is asked the providers of.
+     */
+    static class CountingRepository implements Repository {
+        private final Repository repository;
+        int lookups;
+
+        CountingRepository(Repository repository) {
+            this.repository = repository;
+        }
+
+        @Override
+        public Map<Requirement, Collection<Capability>> findProviders(Collection<? extends Requirement> requirements) {
+            lookups += requirements.size();
+            return repository.findProviders(requirements);
+        }
+    }
+}
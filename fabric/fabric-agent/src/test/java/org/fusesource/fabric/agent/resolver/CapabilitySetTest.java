@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.fusesource.fabric.agent.resolver;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.resource.Capability;
+
+public class CapabilitySetTest extends TestCase {
+
+    private static final int PACKAGES = 100;
+
+    private CapabilitySet set;
+    private int attributeReads;
+
+    @Override
+    protected void setUp() throws Exception {
+        set = new CapabilitySet(Collections.singletonList(PackageNamespace.PACKAGE_NAMESPACE));
+        for (int i = 0; i < PACKAGES; i++) {
+            add("com.acme.p" + i, "1.0.0");
+            add("com.acme.p" + i, "2.0.0");
+        }
+        attributeReads = 0;
+    }
+
+    public void testIndexedClauseFirst() {
+        SimpleFilter nameFirst = SimpleFilter.parse("(&(osgi.wiring.package=com.acme.p42)(version>=1.5.0))");
+        SimpleFilter versionFirst = SimpleFilter.parse("(&(version>=1.5.0)(osgi.wiring.package=com.acme.p42))");
+
+        Set<Capability> expected = set.match(nameFirst, true);
+        assertEquals(1, expected.size());
+        Capability cap = expected.iterator().next();
+        assertEquals("com.acme.p42", cap.getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE));
+        assertEquals(new Version("2.0.0"), cap.getAttributes().get(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE));
+
+        attributeReads = 0;
+        Set<Capability> actual = set.match(versionFirst, true);
+        // Only the capabilities of the package are looked at, not all the ones of the namespace
+        assertTrue("Read attributes " + attributeReads + " times", attributeReads < 20);
+        assertEquals(expected, actual);
+    }
+
+    public void testIndexedClauseOnly() {
+        assertEquals(2, set.match(SimpleFilter.parse("(osgi.wiring.package=com.acme.p7)"), true).size());
+        assertEquals(0, set.match(SimpleFilter.parse("(osgi.wiring.package=com.acme.missing)"), true).size());
+    }
+
+    public void testNoIndexedClause() {
+        assertEquals(PACKAGES, set.match(SimpleFilter.parse("(&(version>=1.5.0)(version<=3.0.0))"), true).size());
+    }
+
+    private void add(String pkg, String version) throws BundleException {
+        for (Capability cap : ResourceBuilder.parseExport(null, "bsn", Version.emptyVersion, pkg + ";version=" + version)) {
+            set.addCapability(new CapabilityImpl(cap) {
+                @Override
+                public Map<String, Object> getAttributes() {
+                    attributeReads++;
+                    return super.getAttributes();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.api;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The state of a container as read by {@link DataStore#getContainerSnapshots(DataStore.ContainerAttribute...)}.
+ * The values don't change once read, so a snapshot only fits one-shot uses such as listings.
+ */
+public class ContainerSnapshot {
+
+    private final String id;
+    private final String parentId;
+    private final String versionId;
+    private final List<String> profileIds;
+    private final boolean alive;
+    private final Set<DataStore.ContainerAttribute> readAttributes;
+    private final Map<DataStore.ContainerAttribute, String> attributes;
+
+    /**
+     * @param attributes the values of the attributes that exist among the ones read,
+     *                   the value of an attribute without any data being <code>null</code>
+     */
+    public ContainerSnapshot(String id, String parentId, String versionId, List<String> profileIds, boolean alive,
+                             Set<DataStore.ContainerAttribute> readAttributes, Map<DataStore.ContainerAttribute, String> attributes) {
+        this.id = id;
+        this.parentId = parentId;
+        this.versionId = versionId;
+        this.profileIds = Collections.unmodifiableList(profileIds);
+        this.alive = alive;
+        this.readAttributes = readAttributes.isEmpty() ? Collections.<DataStore.ContainerAttribute>emptySet() : Collections.unmodifiableSet(EnumSet.copyOf(readAttributes));
+        this.attributes = Collections.unmodifiableMap(attributes);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Returns the id of the parent container, or an empty string for a root container.
+     */
+    public String getParentId() {
+        return parentId;
+    }
+
+    public String getVersionId() {
+        return versionId;
+    }
+
+    public List<String> getProfileIds() {
+        return profileIds;
+    }
+
+    public boolean isAlive() {
+        return alive;
+    }
+
+    /**
+     * Returns true if the given attribute was read along with the snapshot.
+     */
+    public boolean hasAttribute(DataStore.ContainerAttribute attribute) {
+        return readAttributes.contains(attribute);
+    }
+
+    /**
+     * Returns the value of an attribute read along with the snapshot, or the given default when
+     * the container doesn't have that attribute.
+     */
+    public String getAttribute(DataStore.ContainerAttribute attribute, String def) {
+        if (!hasAttribute(attribute)) {
+            throw new IllegalArgumentException("Attribute " + attribute + " is not part of the snapshot of container " + id);
+        }
+        return attributes.containsKey(attribute) ? attributes.get(attribute) : def;
+    }
+
+    @Override
+    public String toString() {
+        return "ContainerSnapshot[" + id + ": version " + versionId + ", profiles " + profileIds + ", alive " + alive + "]";
+    }
+}
@@ -123,6 +123,13 @@ public interface DataStore {
 
     void setContainerAttribute(String containerId, ContainerAttribute attribute, String value);
 
+    /**
+     * Reads the parent, version, profiles and liveness of all the containers at once, along with
+     * the given attributes, whose values are not substituted.
+     * @return the snapshots keyed by container id
+     */
+    Map<String, ContainerSnapshot> getContainerSnapshots(ContainerAttribute... attributes);
+
     //
     // Default version
     //
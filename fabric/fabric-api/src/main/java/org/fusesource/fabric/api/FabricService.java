@@ -44,6 +44,14 @@ public interface FabricService {
      */
     Container[] getContainers();
 
+    /**
+     * Gets the existing {@link Container}s, reading their liveness, version, profiles and provisioning
+     * status for all of them at once.  Those values are the ones at the time of the call, so this
+     * suits listings rather than waiting on a container.
+     * @return An array of @{link Container}s
+     */
+    Container[] getContainersSnapshot();
+
     /**
      * Finds the {@link Container} with the specified name.
      * @param name  The name of the {@link Container}.
@@ -192,7 +192,7 @@ public final class AutoScaleController  extends AbstractComponent implements Gro
     }
 
     private List<Container> containersForProfile(String profile) {
-        return Containers.containersForProfile(fabricService.get().getContainers(), profile);
+        return Containers.containersForProfile(fabricService.get().getContainersSnapshot(), profile);
     }
 
     private AutoScalerNode createState() {
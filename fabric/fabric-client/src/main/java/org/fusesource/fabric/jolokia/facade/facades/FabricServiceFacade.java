@@ -63,6 +63,11 @@ public class FabricServiceFacade implements FabricService {
         return containers.toArray(new Container[containers.size()]);
     }
 
+    @Override
+    public Container[] getContainersSnapshot() {
+        return getContainers();
+    }
+
     @Override
     public Container getContainer(String containerId) {
         return new ContainerFacade(this, getJolokiaClient(), containerId);
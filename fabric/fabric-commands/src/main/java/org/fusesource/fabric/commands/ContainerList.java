@@ -49,7 +49,7 @@ public class ContainerList extends FabricCommand {
     @Override
     protected Object doExecute() throws Exception {
         checkFabricAvailable();
-        Container[] containers = fabricService.getContainers();
+        Container[] containers = fabricService.getContainersSnapshot();
 
         // filter unwanted containers, and split list into parent/child,
         // so we can sort the list as we want it 
@@ -74,6 +74,7 @@ public class ContainerList extends FabricCommand {
 
     protected void printContainers(Container[] containers, Version version, PrintStream out) {
         out.println(String.format(FORMAT, HEADERS));
+        String currentId = fabricService.getCurrentContainerName();
         for (Container container : containers) {
             if (matchVersion(container, version)) {
                 String indent = "";
@@ -82,7 +83,7 @@ public class ContainerList extends FabricCommand {
                 }
                 //Mark local container with a star symobl
                 String marker = "";
-                if (container.getId().equals(fabricService.getCurrentContainer().getId())) {
+                if (container.getId().equals(currentId)) {
                     marker = "*";
                 }
                 out.println(String.format(FORMAT, indent + container.getId() + marker, container.getVersion().getId(), container.isAlive(), toString(container.getProfiles()), status(container)));
@@ -92,6 +93,7 @@ public class ContainerList extends FabricCommand {
 
     protected void printContainersVerbose(Container[] containers, Version version, PrintStream out) {
         out.println(String.format(VERBOSE_FORMAT, VERBOSE_HEADERS));
+        String currentId = fabricService.getCurrentContainerName();
         for (Container container : containers) {
             if (matchVersion(container, version)) {
                 String indent = "";
@@ -100,7 +102,7 @@ public class ContainerList extends FabricCommand {
                 }
                 //Mark local container with a star symobl
                 String marker = "";
-                if (container.getId().equals(fabricService.getCurrentContainer().getId())) {
+                if (container.getId().equals(currentId)) {
                     marker = "*";
                 }
                 out.println(String.format(VERBOSE_FORMAT, indent + container.getId() + marker,  container.getVersion().getId(), container.isAlive(), toString(container.getProfiles()), container.getSshUrl(), container.getJmxUrl(), status(container)));
@@ -51,7 +51,7 @@ public class ProfileScale extends FabricCommand {
         fabricService.scaleProfile(name, count);
         ProfileRequirements profileRequirements = fabricService.getRequirements().getOrCreateProfileRequirement(name);
         Integer minimumInstances = profileRequirements.getMinimumInstances();
-        int size = Containers.containersForProfile(fabricService.getContainers(), name).size();
+        int size = Containers.containersForProfile(fabricService.getContainersSnapshot(), name).size();
         PrintStream output = session.getConsole();
         output.println("Profile " + name + " " + (minimumInstances != null
                 ? "now requires " + minimumInstances + " container(s)"
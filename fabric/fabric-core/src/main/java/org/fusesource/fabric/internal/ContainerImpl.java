@@ -17,6 +17,7 @@
 package org.fusesource.fabric.internal;
 
 import org.fusesource.fabric.api.Container;
+import org.fusesource.fabric.api.ContainerSnapshot;
 import org.fusesource.fabric.api.CreateContainerMetadata;
 import org.fusesource.fabric.api.DataStore;
 import org.fusesource.fabric.api.FabricException;
@@ -54,13 +55,27 @@ public class ContainerImpl implements Container {
     private final Container parent;
     private final String id;
     private final FabricService service;
+    private final ContainerSnapshot snapshot;
     private CreateContainerMetadata<?> metadata;
     private long processId;
 
     public ContainerImpl(Container parent, String id, FabricService service) {
+        this(parent, id, service, null);
+    }
+
+    /**
+     * Creates a container whose liveness, version, profiles and the attributes read along
+     * with the given snapshot are served from it rather than from the data store.
+     */
+    public ContainerImpl(Container parent, ContainerSnapshot snapshot, FabricService service) {
+        this(parent, snapshot.getId(), service, snapshot);
+    }
+
+    private ContainerImpl(Container parent, String id, FabricService service, ContainerSnapshot snapshot) {
         this.parent = parent;
         this.id = id;
         this.service = service;
+        this.snapshot = snapshot;
     }
 
     public FabricService getFabricService() {
@@ -76,6 +91,9 @@ public class ContainerImpl implements Container {
     }
 
     public boolean isAlive() {
+        if (snapshot != null) {
+            return snapshot.isAlive();
+        }
         return service.getDataStore().isContainerAlive(id);
     }
 
@@ -152,7 +170,7 @@ public class ContainerImpl implements Container {
 
     @Override
     public Version getVersion() {
-        String versionId = service.getDataStore().getContainerVersion(id);
+        String versionId = snapshot != null ? snapshot.getVersionId() : service.getDataStore().getContainerVersion(id);
         if (versionId == null) {
             return null;
         }
@@ -180,7 +198,7 @@ public class ContainerImpl implements Container {
 
     public Profile[] getProfiles() {
         Version version = getVersion();
-        List<String> profileIds = service.getDataStore().getContainerProfiles(id);
+        List<String> profileIds = snapshot != null ? snapshot.getProfileIds() : service.getDataStore().getContainerProfiles(id);
         List<Profile> profiles = new ArrayList<Profile>();
         for (String profileId : profileIds) {
             profiles.add(version.getProfile(profileId));
@@ -683,6 +701,9 @@ public class ContainerImpl implements Container {
     }
 
     private String getOptionalAttribute(DataStore.ContainerAttribute attribute, String def) {
+        if (snapshot != null && snapshot.hasAttribute(attribute)) {
+            return snapshot.getAttribute(attribute, def);
+        }
         return service.getDataStore().getContainerAttribute(id, attribute, def, false, false);
     }
 
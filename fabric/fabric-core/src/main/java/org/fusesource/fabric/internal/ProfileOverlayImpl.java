@@ -19,13 +19,22 @@ package org.fusesource.fabric.internal;
 import org.fusesource.fabric.api.Container;
 import org.fusesource.fabric.api.DataStore;
 import org.fusesource.fabric.api.FabricException;
+import org.fusesource.fabric.api.FabricService;
 import org.fusesource.fabric.api.Profile;
+import org.fusesource.fabric.service.AbstractDataStore;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static org.fusesource.fabric.internal.ProfileImpl.*;
 
@@ -34,6 +43,7 @@ public class ProfileOverlayImpl implements Profile {
     private final Profile self;
     private final boolean substitute;
     private final DataStore dataStore;
+    private final OverlayCache cache;
 
     public ProfileOverlayImpl(Profile self) {
         this(self, false, null);
@@ -43,6 +53,55 @@ public class ProfileOverlayImpl implements Profile {
         this.self = self;
         this.substitute = substitute;
         this.dataStore = dataStore;
+        this.cache = getCache(self, dataStore);
+    }
+
+    ProfileOverlayImpl(Profile self, OverlayCache cache) {
+        this.self = self;
+        this.substitute = false;
+        this.dataStore = null;
+        this.cache = cache;
+    }
+
+    /**
+     * Returns the overlay cache of the data store of the profile, if any.
+     */
+    private static OverlayCache getCache(Profile profile, DataStore dataStore) {
+        if (dataStore == null && profile instanceof ProfileImpl) {
+            FabricService service = ((ProfileImpl) profile).getService();
+            dataStore = service != null ? service.getDataStore() : null;
+        }
+        return dataStore instanceof AbstractDataStore ? ((AbstractDataStore) dataStore).getOverlayCache() : null;
+    }
+
+    /**
+     * The overlays computed so far by version and profile id, reused as long as none of the
+     * profiles they inherit from changed.  Containers sharing ancestors share their overlays.
+     * Each data store has its own cache and clears it when its data changes.
+     */
+    public static class OverlayCache {
+
+        private final ConcurrentMap<String, Overlay> overlays = new ConcurrentHashMap<String, Overlay>();
+
+        public void clear() {
+            overlays.clear();
+        }
+
+        /**
+         * Drops the overlays of the profiles of the given version.
+         */
+        public void evictVersion(String version) {
+            String prefix = version + "/";
+            for (String key : overlays.keySet()) {
+                if (key.startsWith(prefix)) {
+                    overlays.remove(key);
+                }
+            }
+        }
+
+        int size() {
+            return overlays.size();
+        }
     }
 
     @Override
@@ -204,32 +263,180 @@ public class ProfileOverlayImpl implements Profile {
     private static class SupplementControl {
         byte[] data;
         Properties props;
+
+        SupplementControl copy() {
+            SupplementControl copy = new SupplementControl();
+            copy.data = data;
+            if (props != null) {
+                copy.props = new Properties();
+                copy.props.putAll(props);
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * The files of a profile overlaid on the ones of the profiles it inherits from, along with
+     * the files of each of those profiles it has been computed from.
+     */
+    private static class Overlay {
+        final List<String> profiles;
+        final List<Map<String, byte[]>> sources;
+        // Not modified once computed, the overlays of the children start from a copy
+        final Map<String, SupplementControl> aggregate;
+        private volatile Map<String, byte[]> fileConfigurations;
+        private volatile Map<String, Map<String, String>> configurations;
+
+        Overlay(List<Profile> profiles, List<Map<String, byte[]>> sources, Map<String, SupplementControl> aggregate) {
+            this.profiles = new ArrayList<String>(profiles.size());
+            for (Profile profile : profiles) {
+                this.profiles.add(getKey(profile));
+            }
+            this.sources = new ArrayList<Map<String, byte[]>>(sources);
+            this.aggregate = aggregate;
+        }
+
+        boolean isComputedFrom(List<Profile> profiles, List<Map<String, byte[]>> sources) {
+            if (this.profiles.size() != profiles.size()) {
+                return false;
+            }
+            for (int i = 0; i < profiles.size(); i++) {
+                if (!this.profiles.get(i).equals(getKey(profiles.get(i))) || !sameFiles(this.sources.get(i), sources.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        Map<String, byte[]> getFileConfigurations() throws IOException {
+            Map<String, byte[]> answer = fileConfigurations;
+            if (answer == null) {
+                answer = new HashMap<String, byte[]>();
+                for (Map.Entry<String, SupplementControl> entry : aggregate.entrySet()) {
+                    SupplementControl ctrl = entry.getValue();
+                    answer.put(entry.getKey(), ctrl.props != null ? DataStoreHelpers.toBytes(ctrl.props) : ctrl.data);
+                }
+                fileConfigurations = answer;
+            }
+            return new HashMap<String, byte[]>(answer);
+        }
+
+        Map<String, Map<String, String>> getConfigurations() throws IOException {
+            Map<String, Map<String, String>> answer = configurations;
+            if (answer == null) {
+                answer = new HashMap<String, Map<String, String>>();
+                for (Map.Entry<String, SupplementControl> entry : aggregate.entrySet()) {
+                    SupplementControl ctrl = entry.getValue();
+                    if (ctrl.props != null) {
+                        answer.put(DataStoreHelpers.stripSuffix(entry.getKey(), ".properties"), DataStoreHelpers.toMap(ctrl.props));
+                    }
+                }
+                configurations = answer;
+            }
+            // Callers are free to modify (or substitute) what they get
+            Map<String, Map<String, String>> copy = new HashMap<String, Map<String, String>>();
+            for (Map.Entry<String, Map<String, String>> entry : answer.entrySet()) {
+                copy.put(entry.getKey(), new HashMap<String, String>(entry.getValue()));
+            }
+            return copy;
+        }
+
+        private static boolean sameFiles(Map<String, byte[]> a, Map<String, byte[]> b) {
+            if (a == b) {
+                return true;
+            }
+            if (a.size() != b.size()) {
+                return false;
+            }
+            for (Map.Entry<String, byte[]> entry : a.entrySet()) {
+                if (!Arrays.equals(entry.getValue(), b.get(entry.getKey())) || !b.containsKey(entry.getKey())) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 
     private List<Profile> getInheritedProfiles() {
         List<Profile> profiles = new ArrayList<Profile>();
-        fillParentProfiles(self, profiles);
+        fillParentProfiles(self, profiles, new HashSet<Profile>());
         return profiles;
     }
 
-    private void fillParentProfiles(Profile profile, List<Profile> profiles) {
+    private static void fillParentProfiles(Profile profile, List<Profile> profiles, Set<Profile> visited) {
         for (Profile p : profile.getParents()) {
-            fillParentProfiles(p, profiles);
+            fillParentProfiles(p, profiles, visited);
         }
-        if (!profiles.contains(profile)) {
+        if (visited.add(profile)) {
             profiles.add(profile);
         }
     }
 
-    private void supplement(Profile profile, Map<String, SupplementControl> aggregate) throws Exception {
-        // TODO fix this, should this every happen???
-        if (profile instanceof ProfileOverlayImpl) {
-            if (((ProfileOverlayImpl) profile).self.equals(self)) {
-                return;
+    private Overlay computeOverlay() throws Exception {
+        List<Profile> profiles = getInheritedProfiles();
+        List<Map<String, byte[]>> sources = new ArrayList<Map<String, byte[]>>(profiles.size());
+        boolean cacheable = true;
+        for (Profile profile : profiles) {
+            if (profile instanceof ProfileOverlayImpl) {
+                cacheable = false;
+                // TODO fix this, should this every happen???
+                if (((ProfileOverlayImpl) profile).self.equals(self)) {
+                    sources.add(Collections.<String, byte[]>emptyMap());
+                    continue;
+                }
+            }
+            sources.add(profile.getFileConfigurations());
+        }
+        if (!cacheable) {
+            Map<String, SupplementControl> aggregate = new HashMap<String, SupplementControl>();
+            for (Map<String, byte[]> source : sources) {
+                supplement(source, aggregate);
+            }
+            return new Overlay(profiles, sources, aggregate);
+        }
+        return getOverlay(cache, self, profiles, sources);
+    }
+
+    /**
+     * Returns the overlay of the given profile, given its inherited profiles and their files.
+     * Nothing is cached without a cache.
+     */
+    private static Overlay getOverlay(OverlayCache cache, Profile profile, List<Profile> profiles, List<Map<String, byte[]>> sources) throws Exception {
+        String key = getKey(profile);
+        Overlay overlay = cache != null ? cache.overlays.get(key) : null;
+        if (overlay != null && overlay.isComputedFrom(profiles, sources)) {
+            return overlay;
+        }
+        Map<String, SupplementControl> aggregate = new HashMap<String, SupplementControl>();
+        int start = 0;
+        // The profiles inherited through the first parent come first, in the same order
+        // as for the parent alone, so we can start from the overlay of that parent
+        Profile[] parents = profile.getParents();
+        if (parents.length > 0) {
+            int end = profiles.indexOf(parents[0]) + 1;
+            if (end > 0) {
+                Overlay parent = getOverlay(cache, parents[0], profiles.subList(0, end), sources.subList(0, end));
+                for (Map.Entry<String, SupplementControl> entry : parent.aggregate.entrySet()) {
+                    aggregate.put(entry.getKey(), entry.getValue().copy());
+                }
+                start = end;
             }
         }
+        for (int i = start; i < profiles.size(); i++) {
+            supplement(sources.get(i), aggregate);
+        }
+        overlay = new Overlay(profiles, sources, aggregate);
+        if (cache != null) {
+            cache.overlays.put(key, overlay);
+        }
+        return overlay;
+    }
 
-        Map<String, byte[]> configs = profile.getFileConfigurations();
+    private static String getKey(Profile profile) {
+        return profile.getVersion() + "/" + profile.getId();
+    }
+
+    private static void supplement(Map<String, byte[]> configs, Map<String, SupplementControl> aggregate) throws Exception {
         for (Map.Entry<String, byte[]> entry : configs.entrySet()) {
             // we can use fine grained inheritance based updating if it's
             // a properties file.
@@ -271,20 +478,7 @@ public class ProfileOverlayImpl implements Profile {
     @Override
     public Map<String, byte[]> getFileConfigurations() {
         try {
-            Map<String, SupplementControl> aggregate = new HashMap<String, SupplementControl>();
-            for (Profile profile : getInheritedProfiles()) {
-                supplement(profile, aggregate);
-            }
-
-            Map<String, byte[]> rc = new HashMap<String, byte[]>();
-            for (Map.Entry<String, SupplementControl> entry : aggregate.entrySet()) {
-                SupplementControl ctrl = entry.getValue();
-                if (ctrl.props != null) {
-                    ctrl.data = DataStoreHelpers.toBytes(ctrl.props);
-                }
-                rc.put(entry.getKey(), ctrl.data);
-            }
-            return rc;
+            return computeOverlay().getFileConfigurations();
         } catch (Exception e) {
             throw FabricException.launderThrowable(e);
         }
@@ -293,18 +487,7 @@ public class ProfileOverlayImpl implements Profile {
     @Override
     public Map<String, Map<String, String>> getConfigurations() {
         try {
-            Map<String, SupplementControl> aggregate = new HashMap<String, SupplementControl>();
-            for (Profile profile : getInheritedProfiles()) {
-                supplement(profile, aggregate);
-            }
-
-            Map<String, Map<String, String>> rc = new HashMap<String, Map<String, String>>();
-            for (Map.Entry<String, SupplementControl> entry : aggregate.entrySet()) {
-                SupplementControl ctrl = entry.getValue();
-                if (ctrl.props != null) {
-                    rc.put(DataStoreHelpers.stripSuffix(entry.getKey(), ".properties"), DataStoreHelpers.toMap(ctrl.props));
-                }
-            }
+            Map<String, Map<String, String>> rc = computeOverlay().getConfigurations();
             if (substitute && dataStore != null) {
                 dataStore.substituteConfigurations(rc);
             }
@@ -341,7 +524,7 @@ public class ProfileOverlayImpl implements Profile {
     public long getLastModified() {
         long lastModified = self.getLastModified();
         for (Profile parent : getParents()) {
-            Profile parentOverlay = new ProfileOverlayImpl(parent);
+            Profile parentOverlay = new ProfileOverlayImpl(parent, cache);
             lastModified = Math.max(lastModified, parentOverlay.getLastModified());
         }
         return lastModified;
@@ -17,10 +17,13 @@
 package org.fusesource.fabric.service;
 
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
 import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
 import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
 import org.apache.curator.framework.recipes.cache.TreeCache;
 import org.apache.zookeeper.KeeperException;
+import org.fusesource.fabric.api.ContainerSnapshot;
 import org.fusesource.fabric.api.CreateContainerMetadata;
 import org.fusesource.fabric.api.CreateContainerOptions;
 import org.fusesource.fabric.api.DataStore;
@@ -33,6 +36,7 @@ import org.fusesource.fabric.api.scr.AbstractComponent;
 import org.fusesource.fabric.api.scr.InvalidComponentException;
 import org.fusesource.fabric.api.scr.ValidatingReference;
 import org.fusesource.fabric.internal.DataStoreHelpers;
+import org.fusesource.fabric.internal.ProfileOverlayImpl;
 import org.fusesource.fabric.utils.Base64Encoder;
 import org.fusesource.fabric.utils.Closeables;
 import org.fusesource.fabric.utils.ObjectUtils;
@@ -49,9 +53,13 @@ import java.io.IOException;
 import java.io.InvalidClassException;
 import java.io.ObjectInputStream;
 import java.io.ObjectStreamClass;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -59,9 +67,12 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.fusesource.fabric.internal.DataStoreHelpers.substituteBundleProperty;
 import static org.fusesource.fabric.internal.PlaceholderResolverHelpers.getSchemesForProfileConfigurations;
@@ -70,6 +81,7 @@ import static org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils.deleteSafe;
 import static org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils.exists;
 import static org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils.getByteData;
 import static org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils.getChildren;
+import static org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils.getChildrenSafe;
 import static org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils.getStringData;
 import static org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils.getSubstitutedPath;
 import static org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils.setData;
@@ -82,6 +94,9 @@ public abstract class AbstractDataStore extends AbstractComponent implements Dat
     public static final String REQUIREMENTS_JSON_PATH = "/fabric/configs/org.fusesource.fabric.requirements.json";
     public static final String JVM_OPTIONS_PATH = "/fabric/configs/org.fusesource.fabric.containers.jvmOptions";
 
+    // How long the pipelined reads may take altogether, in milliseconds
+    private static final long READ_TIMEOUT = 30000L;
+
     private final ValidatingReference<CuratorFramework> curator = new ValidatingReference<CuratorFramework>();
 
     private final ExecutorService cacheExecutor = Executors.newSingleThreadExecutor();
@@ -92,6 +107,7 @@ public abstract class AbstractDataStore extends AbstractComponent implements Dat
     @GuardedBy("CopyOnWriteArrayList") private final CopyOnWriteArrayList<Runnable> callbacks = new CopyOnWriteArrayList<Runnable>();
     @GuardedBy("this") private Map<String, String> dataStoreProperties;
     @GuardedBy("active") private volatile TreeCache treeCache;
+    private final ProfileOverlayImpl.OverlayCache overlayCache = new ProfileOverlayImpl.OverlayCache();
 
     @Override
     public abstract void importFromFileSystem(String from);
@@ -118,6 +134,7 @@ public abstract class AbstractDataStore extends AbstractComponent implements Dat
             treeCache.getListenable().removeListener(this);
             Closeables.closeQuitely(treeCache);
             treeCache = null;
+            overlayCache.clear();
 
             cacheExecutor.shutdownNow();
             placeholderExecutor.shutdownNow();
@@ -130,6 +147,13 @@ public abstract class AbstractDataStore extends AbstractComponent implements Dat
         return treeCache;
     }
 
+    /**
+     * Returns the profile overlays computed from this data store.
+     */
+    public ProfileOverlayImpl.OverlayCache getOverlayCache() {
+        return overlayCache;
+    }
+
     @Override
     public synchronized Map<String, String> getDataStoreProperties() {
         assertValid();
@@ -158,6 +182,8 @@ public abstract class AbstractDataStore extends AbstractComponent implements Dat
 
     protected void runCallbacks() {
         assertValid();
+        // The callbacks usually read the overlays again
+        overlayCache.clear();
         for (Runnable callback : callbacks) {
             try {
                 if (LOG.isDebugEnabled()) {
@@ -510,6 +536,50 @@ public abstract class AbstractDataStore extends AbstractComponent implements Dat
         }
     }
 
+    @Override
+    public Map<String, ContainerSnapshot> getContainerSnapshots(ContainerAttribute... attributes) {
+        assertValid();
+        try {
+            TreeCache cache = getTreeCache();
+            List<String> containerIds = getChildren(getCurator(), ZkPath.CONFIGS_CONTAINERS.getPath());
+            Set<String> alive = new HashSet<String>(getChildrenSafe(getCurator(), ZkPath.CONTAINERS_ALIVE.getPath()));
+
+            // The registry isn't cached, so the parents and attributes of all the containers are read in one batch
+            Set<ContainerAttribute> readAttributes = EnumSet.noneOf(ContainerAttribute.class);
+            List<String> paths = new ArrayList<String>();
+            for (String containerId : containerIds) {
+                paths.add(ZkPath.CONTAINER_PARENT.getPath(containerId));
+                for (ContainerAttribute attribute : attributes) {
+                    if (attribute != ContainerAttribute.Domains) {
+                        readAttributes.add(attribute);
+                        paths.add(getAttributePath(containerId, attribute));
+                    }
+                }
+            }
+            Map<String, String> data = getStringData(paths);
+
+            Map<String, ContainerSnapshot> snapshots = new HashMap<String, ContainerSnapshot>();
+            for (String containerId : containerIds) {
+                String parentId = data.get(ZkPath.CONTAINER_PARENT.getPath(containerId));
+                String versionId = getStringData(cache, ZkPath.CONFIG_CONTAINER.getPath(containerId));
+                String str = versionId != null ? getStringData(cache, ZkPath.CONFIG_VERSIONS_CONTAINER.getPath(versionId, containerId)) : null;
+                List<String> profileIds = str == null || str.isEmpty() ? Collections.<String> emptyList() : Arrays.asList(str.trim().split(" +"));
+                Map<ContainerAttribute, String> values = new HashMap<ContainerAttribute, String>();
+                for (ContainerAttribute attribute : readAttributes) {
+                    String path = getAttributePath(containerId, attribute);
+                    if (data.containsKey(path)) {
+                        values.put(attribute, data.get(path));
+                    }
+                }
+                snapshots.put(containerId, new ContainerSnapshot(containerId, parentId != null ? parentId.trim() : "", versionId, profileIds,
+                        alive.contains(containerId), readAttributes, values));
+            }
+            return snapshots;
+        } catch (Exception e) {
+            throw FabricException.launderThrowable(e);
+        }
+    }
+
     @Override
     public String getDefaultVersion() {
         assertValid();
@@ -551,6 +621,42 @@ public abstract class AbstractDataStore extends AbstractComponent implements Dat
     // Implementation
     //-------------------------------------------------------------------------
 
+    /**
+     * Reads the given nodes with pipelined requests rather than one round trip each.
+     * The nodes that don't exist are left out of the returned map.
+     *
+     * @throws FabricException if the nodes could not be read in time
+     */
+    private Map<String, String> getStringData(Collection<String> paths) throws Exception {
+        final Map<String, String> data = Collections.synchronizedMap(new HashMap<String, String>());
+        final CountDownLatch latch = new CountDownLatch(paths.size());
+        final AtomicReference<KeeperException> failure = new AtomicReference<KeeperException>();
+        for (final String path : paths) {
+            getCurator().getData().inBackground(new BackgroundCallback() {
+                @Override
+                public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+                    try {
+                        KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+                        if (code == KeeperException.Code.OK) {
+                            data.put(path, event.getData() != null ? new String(event.getData(), "UTF-8") : null);
+                        } else if (code != KeeperException.Code.NONODE) {
+                            failure.compareAndSet(null, KeeperException.create(code, path));
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).forPath(path);
+        }
+        if (!latch.await(READ_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            throw new FabricException("Timed out reading " + latch.getCount() + " of " + paths.size() + " nodes after " + READ_TIMEOUT + " ms");
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return data;
+    }
+
     private String getAttributePath(String containerId, ContainerAttribute attribute) {
         switch (attribute) {
         case BlueprintStatus:
@@ -44,6 +44,7 @@ import org.apache.felix.scr.annotations.Service;
 import org.fusesource.fabric.api.Container;
 import org.fusesource.fabric.api.ContainerAutoScaler;
 import org.fusesource.fabric.api.ContainerAutoScalerFactory;
+import org.fusesource.fabric.api.ContainerSnapshot;
 import org.fusesource.fabric.api.Containers;
 import org.fusesource.fabric.api.ContainerProvider;
 import org.fusesource.fabric.api.CreateContainerBasicMetadata;
@@ -173,26 +174,47 @@ public final class FabricServiceImpl extends AbstractComponent implements Fabric
     @Override
     public Container[] getContainers() {
         assertValid();
+        return getContainers(getDataStore().getContainerSnapshots(), false);
+    }
+
+    @Override
+    public Container[] getContainersSnapshot() {
+        assertValid();
+        return getContainers(getDataStore().getContainerSnapshots(
+                DataStore.ContainerAttribute.ProvisionStatus, DataStore.ContainerAttribute.ProvisionException,
+                DataStore.ContainerAttribute.BlueprintStatus, DataStore.ContainerAttribute.SpringStatus), true);
+    }
+
+    /**
+     * Creates the containers of the given snapshots along with their parents, which either
+     * serve their state from the snapshots or read it from the data store.
+     */
+    private Container[] getContainers(Map<String, ContainerSnapshot> snapshots, boolean fromSnapshot) {
         Map<String, Container> containers = new HashMap<String, Container>();
-        List<String> containerIds = getDataStore().getContainers();
-        for (String containerId : containerIds) {
-            String parentId = getDataStore().getContainerParent(containerId);
-            if (parentId.isEmpty()) {
-                if (!containers.containsKey(containerId)) {
-                    Container container = new ContainerImpl(null, containerId, this);
-                    containers.put(containerId, container);
-                }
+        for (ContainerSnapshot snapshot : snapshots.values()) {
+            getContainer(snapshot.getId(), snapshots, containers, new HashSet<String>(), fromSnapshot);
+        }
+        return containers.values().toArray(new Container[containers.size()]);
+    }
+
+    private Container getContainer(String containerId, Map<String, ContainerSnapshot> snapshots, Map<String, Container> containers,
+                                   Set<String> children, boolean fromSnapshot) {
+        Container container = containers.get(containerId);
+        if (container == null) {
+            ContainerSnapshot snapshot = snapshots.get(containerId);
+            if (snapshot == null || !children.add(containerId)) {
+                // A parent without any configuration of its own, or a cycle of parents
+                container = new ContainerImpl(null, containerId, this);
             } else {
-                Container parent = containers.get(parentId);
-                if (parent == null) {
-                    parent = new ContainerImpl(null, parentId, this);
-                    containers.put(parentId, parent);
+                Container parent = null;
+                if (!snapshot.getParentId().isEmpty()) {
+                    parent = getContainer(snapshot.getParentId(), snapshots, containers, children, fromSnapshot);
                 }
-                Container container = new ContainerImpl(parent, containerId, this);
-                containers.put(containerId, container);
+                container = fromSnapshot ? new ContainerImpl(parent, snapshot, this) : new ContainerImpl(parent, containerId, this);
             }
+            containers.put(containerId, container);
         }
-        return containers.values().toArray(new Container[containers.size()]);
+        return container;
     }
 
     @Override
@@ -780,7 +802,7 @@ public final class FabricServiceImpl extends AbstractComponent implements Fabric
         FabricRequirements requirements = getRequirements();
         ProfileRequirements profileRequirements = requirements.getOrCreateProfileRequirement(profile);
         Integer minimumInstances = profileRequirements.getMinimumInstances();
-        List<Container> containers = Containers.containersForProfile(getContainers(), profile);
+        List<Container> containers = Containers.containersForProfile(getContainersSnapshot(), profile);
         int containerCount = containers.size();
         int newCount = containerCount + numberOfInstances;
         if (newCount < 0) {
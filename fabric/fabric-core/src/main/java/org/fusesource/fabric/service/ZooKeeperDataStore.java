@@ -137,6 +137,7 @@ public final class ZooKeeperDataStore extends AbstractDataStore implements DataS
         assertValid();
         try {
             deleteSafe(getCurator(), ZkPath.CONFIG_VERSION.getPath(version));
+            getOverlayCache().evictVersion(version);
         } catch (Exception e) {
             throw FabricException.launderThrowable(e);
         }
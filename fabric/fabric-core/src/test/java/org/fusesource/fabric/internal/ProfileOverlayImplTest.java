@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.fusesource.fabric.api.Profile;
+import org.junit.Test;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.reset;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ProfileOverlayImplTest {
+
+    private static final String PID = "org.fusesource.test";
+
+    private final ProfileOverlayImpl.OverlayCache cache = new ProfileOverlayImpl.OverlayCache();
+
+    @Test
+    public void testInheritance() throws Exception {
+        Profile parent = createProfile("1.0", "parent", "a = parent\nb = parent\nc = parent\n");
+        Profile child = createProfile("1.0", "child", "b = child\nc = " + Profile.DELETED + "\n", parent);
+
+        Map<String, String> config = overlay(child).getConfiguration(PID);
+        assertEquals("parent", config.get("a"));
+        assertEquals("child", config.get("b"));
+        assertFalse(config.containsKey("c"));
+    }
+
+    @Test
+    public void testInheritanceOrder() throws Exception {
+        Profile base = createProfile("1.0", "base", "a = base\nb = base\n");
+        Profile left = createProfile("1.0", "left", "a = left\n", base);
+        Profile right = createProfile("1.0", "right", "b = right\n", base);
+        Profile child = createProfile("1.0", "child", "", left, right);
+
+        // Computing the overlay of a parent first must not change the result
+        overlay(right).getConfigurations();
+        Map<String, String> config = overlay(child).getConfiguration(PID);
+        assertEquals("left", config.get("a"));
+        assertEquals("right", config.get("b"));
+    }
+
+    @Test
+    public void testChangedAncestor() throws Exception {
+        Profile parent = createProfile("1.0", "parent", "a = 1\n");
+        Profile child = createProfile("1.0", "child", "b = 2\n", parent);
+        assertEquals("1", overlay(child).getConfiguration(PID).get("a"));
+
+        reset(parent);
+        expectProfile(parent, "1.0", "parent", "a = 3\n");
+        replay(parent);
+        assertEquals("3", overlay(child).getConfiguration(PID).get("a"));
+    }
+
+    @Test
+    public void testConfigurationsCanBeModified() throws Exception {
+        Profile profile = createProfile("1.0", "profile", "a = 1\n");
+        overlay(profile).getConfigurations().get(PID).put("a", "2");
+        assertEquals("1", overlay(profile).getConfiguration(PID).get("a"));
+    }
+
+    @Test
+    public void testOverlaysAreCached() throws Exception {
+        Profile parent = createProfile("1.0", "parent", "a = 1\n");
+        Profile child = createProfile("1.0", "child", "b = 2\n", parent);
+        overlay(child).getConfigurations();
+        assertEquals(2, cache.size());
+
+        // Without a cache nothing is kept
+        assertEquals("1", new ProfileOverlayImpl(child, null).getConfiguration(PID).get("a"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testCachesAreNotShared() throws Exception {
+        Profile profile = createProfile("1.0", "profile", "a = 1\n");
+        Profile other = createProfile("1.0", "profile", "a = 2\n");
+        ProfileOverlayImpl.OverlayCache otherCache = new ProfileOverlayImpl.OverlayCache();
+
+        assertEquals("1", overlay(profile).getConfiguration(PID).get("a"));
+        assertEquals("2", new ProfileOverlayImpl(other, otherCache).getConfiguration(PID).get("a"));
+        assertEquals(1, cache.size());
+        assertEquals(1, otherCache.size());
+    }
+
+    @Test
+    public void testEvictVersion() throws Exception {
+        overlay(createProfile("1.0", "profile", "a = 1\n")).getConfigurations();
+        overlay(createProfile("1.1", "profile", "a = 1\n")).getConfigurations();
+        assertEquals(2, cache.size());
+
+        cache.evictVersion("1.0");
+        assertEquals(1, cache.size());
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    private ProfileOverlayImpl overlay(Profile profile) {
+        return new ProfileOverlayImpl(profile, cache);
+    }
+
+    private static Profile createProfile(String version, String id, String properties, Profile... parents) {
+        Profile profile = createMock(Profile.class);
+        expectProfile(profile, version, id, properties, parents);
+        replay(profile);
+        return profile;
+    }
+
+    private static void expectProfile(Profile profile, String version, String id, String properties, Profile... parents) {
+        Map<String, byte[]> files = new HashMap<String, byte[]>();
+        files.put(PID + ".properties", properties.getBytes());
+        expect(profile.getVersion()).andReturn(version).anyTimes();
+        expect(profile.getId()).andReturn(id).anyTimes();
+        expect(profile.getParents()).andReturn(parents).anyTimes();
+        expect(profile.getFileConfigurations()).andReturn(files).anyTimes();
+    }
+}
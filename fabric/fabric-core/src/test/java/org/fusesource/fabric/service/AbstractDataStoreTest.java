@@ -0,0 +1,311 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.service;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.fusesource.fabric.api.ContainerSnapshot;
+import org.fusesource.fabric.api.DataStore;
+import org.fusesource.fabric.api.FabricRequirements;
+import org.fusesource.fabric.zookeeper.ZkPath;
+import org.fusesource.fabric.zookeeper.spring.ZKServerFactoryBean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils.setData;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AbstractDataStoreTest {
+
+    private ZKServerFactoryBean sfb;
+    private CuratorFramework curator;
+    private TestDataStore dataStore;
+
+    @Before
+    public void setUp() throws Exception {
+        sfb = new ZKServerFactoryBean();
+        sfb.setPurge(true);
+        sfb.afterPropertiesSet();
+
+        curator = CuratorFrameworkFactory.builder()
+                .connectString("localhost:" + sfb.getClientPortAddress().getPort())
+                .retryPolicy(new RetryOneTime(1000))
+                .build();
+        curator.start();
+        curator.getZookeeperClient().blockUntilConnectedOrTimedOut();
+
+        // root <- child <- grandchild, plus a parent that has no configuration of its own
+        setContainer("root", "1.0", "default fabric");
+        setContainer("child", "1.0", "camel");
+        setContainer("grandchild", "1.1", null);
+        setContainer("orphan", "1.0", "default");
+        setData(curator, ZkPath.CONTAINER_PARENT.getPath("child"), "root");
+        setData(curator, ZkPath.CONTAINER_PARENT.getPath("grandchild"), " child\n");
+        setData(curator, ZkPath.CONTAINER_PARENT.getPath("orphan"), "unknown");
+        setData(curator, ZkPath.CONTAINER_ALIVE.getPath("root"), "alive");
+        setData(curator, ZkPath.CONTAINER_ALIVE.getPath("child"), "alive");
+        setData(curator, ZkPath.CONTAINER_PROVISION_RESULT.getPath("root"), "success");
+        setData(curator, ZkPath.CONTAINER_PROVISION_RESULT.getPath("child"), (String) null);
+
+        dataStore = new TestDataStore();
+        dataStore.bindCuratorForTesting(curator);
+        dataStore.activateComponent();
+        dataStore.start();
+        waitForCache(ZkPath.CONFIG_VERSIONS_CONTAINER.getPath("1.0", "root"),
+                ZkPath.CONFIG_VERSIONS_CONTAINER.getPath("1.0", "child"),
+                ZkPath.CONFIG_CONTAINER.getPath("grandchild"),
+                ZkPath.CONFIG_VERSIONS_CONTAINER.getPath("1.0", "orphan"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dataStore.stop();
+        dataStore.deactivateComponent();
+        curator.close();
+        sfb.destroy();
+    }
+
+    @Test
+    public void testGetContainerSnapshots() throws Exception {
+        Map<String, ContainerSnapshot> snapshots = dataStore.getContainerSnapshots();
+        assertEquals(4, snapshots.size());
+
+        ContainerSnapshot root = snapshots.get("root");
+        assertEquals("root", root.getId());
+        assertEquals("", root.getParentId());
+        assertEquals("1.0", root.getVersionId());
+        assertEquals(Arrays.asList("default", "fabric"), root.getProfileIds());
+        assertTrue(root.isAlive());
+        assertFalse(root.hasAttribute(DataStore.ContainerAttribute.ProvisionStatus));
+
+        ContainerSnapshot child = snapshots.get("child");
+        assertEquals("root", child.getParentId());
+        assertEquals(Collections.singletonList("camel"), child.getProfileIds());
+        assertTrue(child.isAlive());
+
+        // The parent is trimmed, and a container without profiles has none
+        ContainerSnapshot grandchild = snapshots.get("grandchild");
+        assertEquals("child", grandchild.getParentId());
+        assertEquals("1.1", grandchild.getVersionId());
+        assertTrue(grandchild.getProfileIds().isEmpty());
+        assertFalse(grandchild.isAlive());
+
+        assertEquals("unknown", snapshots.get("orphan").getParentId());
+    }
+
+    @Test
+    public void testGetContainerSnapshotsWithAttributes() throws Exception {
+        Map<String, ContainerSnapshot> snapshots = dataStore.getContainerSnapshots(
+                DataStore.ContainerAttribute.ProvisionStatus, DataStore.ContainerAttribute.Domains);
+
+        ContainerSnapshot root = snapshots.get("root");
+        assertTrue(root.hasAttribute(DataStore.ContainerAttribute.ProvisionStatus));
+        assertEquals("success", root.getAttribute(DataStore.ContainerAttribute.ProvisionStatus, "none"));
+        // The domains aren't a single node, so they are never part of a snapshot
+        assertFalse(root.hasAttribute(DataStore.ContainerAttribute.Domains));
+
+        // A node without any data, and a missing node
+        assertNull(snapshots.get("child").getAttribute(DataStore.ContainerAttribute.ProvisionStatus, "none"));
+        assertEquals("none", snapshots.get("grandchild").getAttribute(DataStore.ContainerAttribute.ProvisionStatus, "none"));
+    }
+
+    @Test
+    public void testGetContainerSnapshotsListsNewContainers() throws Exception {
+        // The ids are listed from the registry, even before the tree cache has seen them
+        setData(curator, ZkPath.CONFIG_CONTAINER.getPath("new"), "1.0");
+
+        Map<String, ContainerSnapshot> snapshots = dataStore.getContainerSnapshots();
+        assertEquals(5, snapshots.size());
+        assertEquals("", snapshots.get("new").getParentId());
+    }
+
+    private void setContainer(String containerId, String versionId, String profileIds) throws Exception {
+        setData(curator, ZkPath.CONFIG_CONTAINER.getPath(containerId), versionId);
+        if (profileIds != null) {
+            setData(curator, ZkPath.CONFIG_VERSIONS_CONTAINER.getPath(versionId, containerId), profileIds);
+        }
+    }
+
+    private void waitForCache(String... paths) throws InterruptedException {
+        for (String path : paths) {
+            for (int i = 0; dataStore.getTreeCache().getCurrentData(path) == null; i++) {
+                if (i == 100) {
+                    throw new IllegalStateException("Node " + path + " was not cached in time");
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * A data store that only supports the container methods of {@link AbstractDataStore}.
+     */
+    static class TestDataStore extends AbstractDataStore {
+
+        @Override
+        public void importFromFileSystem(String from) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getType() {
+            return "test";
+        }
+
+        @Override
+        public void createVersion(String version) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void createVersion(String parentVersionId, String toVersion) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void deleteVersion(String version) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<String> getVersions() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean hasVersion(String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<String, String> getVersionAttributes(String version) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setVersionAttribute(String version, String key, String value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<String> getProfiles(String version) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getProfile(String version, String profile, boolean create) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void createProfile(String version, String profile) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void deleteProfile(String version, String profile) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Collection<String> listFiles(String version, Iterable<String> profiles, String path) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getLastModified(String version, String profile) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<String, byte[]> getFileConfigurations(String version, String profile) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] getFileConfiguration(String version, String profile, String name) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setFileConfigurations(String version, String profile, Map<String, byte[]> configurations) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setFileConfiguration(String version, String profile, String name, byte[] configuration) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<String, String> getConfiguration(String version, String profile, String pid) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setConfigurations(String version, String profile, Map<String, Map<String, String>> configurations) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setConfiguration(String version, String profile, String pid, Map<String, String> configuration) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getDefaultJvmOptions() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setDefaultJvmOptions(String jvmOptions) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FabricRequirements getRequirements() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setRequirements(FabricRequirements requirements) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getClusterId() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<String> getEnsembleContainers() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
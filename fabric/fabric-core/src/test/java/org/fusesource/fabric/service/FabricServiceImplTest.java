@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.service;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.fusesource.fabric.api.Container;
+import org.fusesource.fabric.api.ContainerSnapshot;
+import org.fusesource.fabric.api.DataStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FabricServiceImplTest {
+
+    private static final DataStore.ContainerAttribute[] SNAPSHOT_ATTRIBUTES = {
+            DataStore.ContainerAttribute.ProvisionStatus, DataStore.ContainerAttribute.ProvisionException,
+            DataStore.ContainerAttribute.BlueprintStatus, DataStore.ContainerAttribute.SpringStatus
+    };
+
+    private FabricServiceImpl fabricService;
+    private DataStore dataStore;
+    private Map<String, ContainerSnapshot> snapshots;
+
+    @Before
+    public void setUp() {
+        dataStore = createMock(DataStore.class);
+        fabricService = new FabricServiceImpl();
+        fabricService.bindDataStore(dataStore);
+        fabricService.activateComponent();
+
+        // The children come first, so their parents are only known once they are linked
+        snapshots = new LinkedHashMap<String, ContainerSnapshot>();
+        addSnapshot("grandchild", "child", false, null);
+        addSnapshot("child", "root", true, null);
+        addSnapshot("root", "", true, "boom");
+        // The parent of an orphan has no configuration of its own
+        addSnapshot("orphan", "unknown", false, null);
+        // A cycle of parents
+        addSnapshot("a", "b", false, null);
+        addSnapshot("b", "a", false, null);
+    }
+
+    @Test
+    public void testGetContainers() throws Exception {
+        expect(dataStore.getContainerSnapshots()).andReturn(snapshots);
+        replay(dataStore);
+
+        Map<String, Container> containers = toMap(fabricService.getContainers());
+        verify(dataStore);
+
+        assertParents(containers);
+    }
+
+    @Test
+    public void testGetContainersSnapshot() throws Exception {
+        expect(dataStore.getContainerSnapshots(SNAPSHOT_ATTRIBUTES)).andReturn(snapshots);
+        replay(dataStore);
+
+        Map<String, Container> containers = toMap(fabricService.getContainersSnapshot());
+        assertParents(containers);
+
+        // Served from the snapshots, without reading the data store again
+        assertTrue(containers.get("root").isAlive());
+        assertFalse(containers.get("grandchild").isAlive());
+        assertEquals("boom", containers.get("root").getProvisionException());
+        assertNull(containers.get("child").getProvisionException());
+        verify(dataStore);
+    }
+
+    @Test
+    public void testGetContainersWithoutContainers() throws Exception {
+        expect(dataStore.getContainerSnapshots()).andReturn(Collections.<String, ContainerSnapshot>emptyMap());
+        expect(dataStore.getContainerSnapshots(SNAPSHOT_ATTRIBUTES)).andReturn(Collections.<String, ContainerSnapshot>emptyMap());
+        replay(dataStore);
+
+        assertEquals(0, fabricService.getContainers().length);
+        assertEquals(0, fabricService.getContainersSnapshot().length);
+        verify(dataStore);
+    }
+
+    private void assertParents(Map<String, Container> containers) {
+        assertEquals(7, containers.size());
+
+        Container root = containers.get("root");
+        assertNull(root.getParent());
+        assertSame(root, containers.get("child").getParent());
+        assertSame(containers.get("child"), containers.get("grandchild").getParent());
+
+        Container unknown = containers.get("unknown");
+        assertNull(unknown.getParent());
+        assertSame(unknown, containers.get("orphan").getParent());
+
+        assertEquals("a", containers.get("b").getParent().getId());
+        assertEquals("b", containers.get("a").getParent().getId());
+    }
+
+    private void addSnapshot(String id, String parentId, boolean alive, String provisionException) {
+        Set<DataStore.ContainerAttribute> readAttributes = EnumSet.noneOf(DataStore.ContainerAttribute.class);
+        Collections.addAll(readAttributes, SNAPSHOT_ATTRIBUTES);
+        Map<DataStore.ContainerAttribute, String> values = new HashMap<DataStore.ContainerAttribute, String>();
+        if (provisionException != null) {
+            values.put(DataStore.ContainerAttribute.ProvisionException, provisionException);
+        }
+        snapshots.put(id, new ContainerSnapshot(id, parentId, "1.0", Collections.<String>emptyList(), alive, readAttributes, values));
+    }
+
+    private static Map<String, Container> toMap(Container[] containers) {
+        Map<String, Container> map = new HashMap<String, Container>();
+        for (Container container : containers) {
+            map.put(container.getId(), container);
+        }
+        return map;
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.benchmark;
+
+import java.util.concurrent.Future;
+
+import org.fusesource.fabric.dosgi.api.AsyncCallback;
+import org.fusesource.fabric.dosgi.api.Serialization;
+
+/**
+ * The service called by the benchmarks, it sends back what it receives.
+ */
+public interface Echo {
+
+    byte[] echo(byte[] payload);
+
+    void echoAsync(byte[] payload, AsyncCallback<byte[]> callback);
+
+    Future<byte[]> echoFuture(byte[] payload);
+
+    @Serialization("protobuf")
+    Payload.Getter echoProtobuf(Payload.Getter payload);
+
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.benchmark;
+
+import java.util.concurrent.Future;
+
+import org.fusesource.fabric.dosgi.api.AsyncCallback;
+import org.fusesource.fabric.dosgi.api.AsyncCallbackFuture;
+
+public class EchoImpl implements Echo {
+
+    public byte[] echo(byte[] payload) {
+        return payload;
+    }
+
+    public void echoAsync(byte[] payload, AsyncCallback<byte[]> callback) {
+        callback.onSuccess(payload);
+    }
+
+    public Future<byte[]> echoFuture(byte[] payload) {
+        AsyncCallbackFuture<byte[]> future = new AsyncCallbackFuture<byte[]>();
+        future.onSuccess(payload);
+        return future;
+    }
+
+    public Payload.Getter echoProtobuf(Payload.Getter payload) {
+        return payload;
+    }
+
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.fusesource.fabric.dosgi.api.AsyncCallback;
+import org.fusesource.fabric.dosgi.api.AsyncCallbackFuture;
+import org.fusesource.fabric.dosgi.api.ProtobufSerializationStrategy;
+import org.fusesource.fabric.dosgi.api.SerializationStrategy;
+import org.fusesource.fabric.dosgi.io.ServerInvoker;
+import org.fusesource.fabric.dosgi.tcp.ClientInvokerImpl;
+import org.fusesource.fabric.dosgi.tcp.ServerInvokerImpl;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Round trips through a client and a server invoker talking over the loopback
+ * interface.  Every benchmark is run for each payload size, for a client
+ * allowed to open a single connection or several of them, and for java or
+ * compact serialization of the services not using protobuf.
+ * </p>
+ * <ul>
+ * <li><code>sync*</code>: a single caller blocked on each call, with the service
+ * serialization or protobuf</li>
+ * <li><code>async</code>: a single caller waiting on the callback of each call</li>
+ * <li><code>asyncPipelined</code>: {@link #WINDOW} calls in flight at once, enough
+ * for the client to open more connections when allowed to</li>
+ * <li><code>syncConcurrent</code>: {@link #THREADS} callers blocked on their calls</li>
+ * </ul>
+ * <p>
+ * <code>syncObject</code> and <code>syncConcurrent</code> are also run with the caller
+ * blocked on the {@link Future} returned by the call instead of on the call itself.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class InvocationBenchmark {
+
+    public static final int WINDOW = 64;
+
+    public static final int THREADS = 8;
+
+    @Param({ "16", "1024", "65536" })
+    int payloadSize;
+
+    @Param({ "1", "8" })
+    int poolSize;
+
+    @Param({ "object", "compact" })
+    String serialization;
+
+    ServerInvokerImpl server;
+    ClientInvokerImpl client;
+    Echo echo;
+    byte[] payload;
+    Payload.Getter protobufPayload;
+
+    @Setup
+    public void setup() throws Exception {
+        Map<String, SerializationStrategy> serializationStrategies = new HashMap<String, SerializationStrategy>();
+        serializationStrategies.put("protobuf", new ProtobufSerializationStrategy());
+
+        server = new ServerInvokerImpl("tcp://localhost:0", Dispatch.createQueue(), serializationStrategies);
+        server.start();
+        client = new ClientInvokerImpl(Dispatch.createQueue(), serializationStrategies);
+        client.setPoolSize(poolSize);
+        client.start();
+
+        final EchoImpl service = new EchoImpl();
+        server.registerService("echo", new ServerInvoker.ServiceFactory() {
+            public Object get() {
+                return service;
+            }
+            public void unget() {
+            }
+        }, EchoImpl.class.getClassLoader());
+
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(ServerInvokerImpl.PROTOCOL_VERSION_PROPERTY, ServerInvokerImpl.PROTOCOL_VERSION);
+        properties.put(ServerInvokerImpl.SERIALIZATION_PROPERTY, serialization);
+        InvocationHandler handler = client.getProxy(server.getConnectAddress(), "echo", properties, Echo.class.getClassLoader());
+        echo = (Echo) Proxy.newProxyInstance(Echo.class.getClassLoader(), new Class[] { Echo.class }, handler);
+
+        payload = new byte[payloadSize];
+        new Random(0).nextBytes(payload);
+        Payload.Bean bean = new Payload.Bean();
+        bean.setData(new Buffer(payload));
+        protobufPayload = bean.freeze();
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.stop();
+        server.stop();
+    }
+
+    @Benchmark
+    public byte[] syncObject(Invocation invocation) throws Exception {
+        return invocation.echo(echo, payload);
+    }
+
+    @Benchmark
+    public Payload.Getter syncProtobuf() {
+        return echo.echoProtobuf(protobufPayload);
+    }
+
+    @Benchmark
+    public byte[] async() throws Exception {
+        AsyncCallbackFuture<byte[]> future = new AsyncCallbackFuture<byte[]>();
+        echo.echoAsync(payload, future);
+        return future.get(1, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WINDOW)
+    public void asyncPipelined() throws Exception {
+        final CountDownLatch done = new CountDownLatch(WINDOW);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        AsyncCallback<byte[]> callback = new AsyncCallback<byte[]>() {
+            public void onSuccess(byte[] result) {
+                done.countDown();
+            }
+            public void onFailure(Throwable t) {
+                failure.set(t);
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < WINDOW; i++) {
+            echo.echoAsync(payload, callback);
+        }
+        if (!done.await(1, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Calls did not complete in time");
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Call failed", failure.get());
+        }
+    }
+
+    @Benchmark
+    @Threads(THREADS)
+    public byte[] syncConcurrent(Invocation invocation) throws Exception {
+        return invocation.echo(echo, payload);
+    }
+
+    /**
+     * How the <code>sync*</code> benchmarks call the service: a method returning the
+     * payload, or a method returning a {@link Future} of it.
+     */
+    @State(Scope.Benchmark)
+    public static class Invocation {
+
+        @Param({ "blocking", "future" })
+        String invocation;
+
+        byte[] echo(Echo echo, byte[] payload) throws Exception {
+            if ("future".equals(invocation)) {
+                return echo.echoFuture(payload).get(1, TimeUnit.MINUTES);
+            }
+            return echo.echo(payload);
+        }
+    }
+
+}
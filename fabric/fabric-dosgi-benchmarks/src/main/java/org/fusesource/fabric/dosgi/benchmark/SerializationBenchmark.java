@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.benchmark;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.fabric.dosgi.api.CompactSerializationStrategy;
+import org.fusesource.fabric.dosgi.api.ObjectSerializationStrategy;
+import org.fusesource.fabric.dosgi.api.ProtobufSerializationStrategy;
+import org.fusesource.fabric.dosgi.api.SerializationStrategy;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.DataByteArrayInputStream;
+import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Encodes and decodes the arguments of a request with the serialization strategies,
+ * without any transport.  The size of the encoded request is printed on setup.
+ * </p>
+ * <ul>
+ * <li><code>roundTrip</code>: java or compact serialization of a string or of a list
+ * of {@link #PEOPLE} objects</li>
+ * <li><code>roundTripProtobuf</code>: protobuf serialization of the same text in a message, as it
+ * only supports a single generated message argument</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    public static final String TEXT = "Hello Fabric!";
+
+    public static final int PEOPLE = 100;
+
+    @State(Scope.Thread)
+    public static class Arguments {
+
+        @Param({ "object", "compact" })
+        String strategy;
+
+        @Param({ "string", "people" })
+        String value;
+
+        SerializationStrategy serializationStrategy;
+        Class<?>[] types;
+        Object[] args;
+
+        @Setup
+        public void setup() throws Exception {
+            serializationStrategy = "compact".equals(strategy)
+                    ? CompactSerializationStrategy.INSTANCE : ObjectSerializationStrategy.INSTANCE;
+            if ("people".equals(value)) {
+                List<Person> people = new ArrayList<Person>();
+                for (int i = 0; i < PEOPLE; i++) {
+                    people.add(new Person("Person " + i, i));
+                }
+                types = new Class<?>[] { List.class };
+                args = new Object[] { people };
+            } else {
+                types = new Class<?>[] { String.class };
+                args = new Object[] { TEXT };
+            }
+            printSize(serializationStrategy, types, args);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ProtobufArguments {
+
+        Class<?>[] types;
+        Object[] args;
+
+        @Setup
+        public void setup() throws Exception {
+            Payload.Bean bean = new Payload.Bean();
+            bean.setData(new Buffer(TEXT.getBytes("UTF-8")));
+            types = new Class<?>[] { Payload.Getter.class };
+            args = new Object[] { bean.freeze() };
+            printSize(ProtobufSerializationStrategy.INSTANCE, types, args);
+        }
+    }
+
+    @Benchmark
+    public Object[] roundTrip(Arguments arguments) throws Exception {
+        return roundTrip(arguments.serializationStrategy, arguments.types, arguments.args);
+    }
+
+    @Benchmark
+    public Object[] roundTripProtobuf(ProtobufArguments arguments) throws Exception {
+        return roundTrip(ProtobufSerializationStrategy.INSTANCE, arguments.types, arguments.args);
+    }
+
+    static Object[] roundTrip(SerializationStrategy strategy, Class<?>[] types, Object[] args) throws Exception {
+        ClassLoader loader = SerializationBenchmark.class.getClassLoader();
+        DataByteArrayOutputStream baos = new DataByteArrayOutputStream();
+        strategy.encodeRequest(loader, types, args, baos);
+        Object[] decoded = new Object[types.length];
+        strategy.decodeRequest(loader, types, new DataByteArrayInputStream(baos.toBuffer()), decoded);
+        return decoded;
+    }
+
+    static void printSize(SerializationStrategy strategy, Class<?>[] types, Object[] args) throws Exception {
+        DataByteArrayOutputStream baos = new DataByteArrayOutputStream();
+        strategy.encodeRequest(SerializationBenchmark.class.getClassLoader(), types, args, baos);
+        System.out.println(String.format("%s %s: %d bytes", strategy.name(), Arrays.toString(types), baos.size()));
+    }
+
+    public static class Person implements Serializable {
+
+        String name;
+        int age;
+
+        public Person() {
+        }
+
+        public Person(String name, int age) {
+            this.name = name;
+            this.age = age;
+        }
+    }
+
+}
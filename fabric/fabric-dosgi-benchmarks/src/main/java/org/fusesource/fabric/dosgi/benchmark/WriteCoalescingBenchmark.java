@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.fusesource.fabric.dosgi.api.AsyncCallback;
+import org.fusesource.fabric.dosgi.api.SerializationStrategy;
+import org.fusesource.fabric.dosgi.io.ServerInvoker;
+import org.fusesource.fabric.dosgi.tcp.ClientInvokerImpl;
+import org.fusesource.fabric.dosgi.tcp.ServerInvokerImpl;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Small asynchronous calls from {@link #THREADS} callers keeping {@link #WINDOW} calls
+ * in flight each, all going through a single connection, with writes delayed by up to
+ * <code>maxWriteDelay</code> microseconds to be coalesced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class WriteCoalescingBenchmark {
+
+    public static final int WINDOW = 50;
+
+    public static final int THREADS = 10;
+
+    public static final int PAYLOAD_SIZE = 16;
+
+    @Param({ "0", "100" })
+    int maxWriteDelay;
+
+    ServerInvokerImpl server;
+    ClientInvokerImpl client;
+    Echo echo;
+    byte[] payload;
+
+    @Setup
+    public void setup() throws Exception {
+        Map<String, SerializationStrategy> serializationStrategies = new HashMap<String, SerializationStrategy>();
+
+        server = new ServerInvokerImpl("tcp://localhost:0?transport.max_write_delay=" + maxWriteDelay,
+                Dispatch.createQueue(), serializationStrategies);
+        server.start();
+        client = new ClientInvokerImpl(Dispatch.createQueue(), serializationStrategies);
+        client.setPoolSize(1);
+        client.start();
+
+        final EchoImpl service = new EchoImpl();
+        server.registerService("echo", new ServerInvoker.ServiceFactory() {
+            public Object get() {
+                return service;
+            }
+            public void unget() {
+            }
+        }, EchoImpl.class.getClassLoader());
+
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(ServerInvokerImpl.PROTOCOL_VERSION_PROPERTY, ServerInvokerImpl.PROTOCOL_VERSION);
+        properties.put(ServerInvokerImpl.SERIALIZATION_PROPERTY, "compact");
+        String address = server.getConnectAddress() + "?max_write_delay=" + maxWriteDelay;
+        InvocationHandler handler = client.getProxy(address, "echo", properties, Echo.class.getClassLoader());
+        echo = (Echo) Proxy.newProxyInstance(Echo.class.getClassLoader(), new Class[] { Echo.class }, handler);
+
+        payload = new byte[PAYLOAD_SIZE];
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.stop();
+        server.stop();
+    }
+
+    @Benchmark
+    @Threads(THREADS)
+    @OperationsPerInvocation(WINDOW)
+    public void asyncPipelined() throws Exception {
+        final CountDownLatch done = new CountDownLatch(WINDOW);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        AsyncCallback<byte[]> callback = new AsyncCallback<byte[]>() {
+            public void onSuccess(byte[] result) {
+                done.countDown();
+            }
+            public void onFailure(Throwable t) {
+                failure.set(t);
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < WINDOW; i++) {
+            echo.echoAsync(payload, callback);
+        }
+        if (!done.await(1, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Calls did not complete in time");
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Call failed", failure.get());
+        }
+    }
+
+}
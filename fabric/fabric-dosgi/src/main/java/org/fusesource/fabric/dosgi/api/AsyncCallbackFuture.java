@@ -16,6 +16,8 @@
  */
 package org.fusesource.fabric.dosgi.api;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.FutureTask;
 
@@ -27,6 +29,9 @@ import java.util.concurrent.FutureTask;
  */
 public class AsyncCallbackFuture<T> extends FutureTask<T> implements AsyncCallback<T> {
 
+    // Run once the future is done, null once they have been
+    private List<Runnable> listeners = new ArrayList<Runnable>();
+
     public AsyncCallbackFuture() {
         super(new Callable<T>() {
             public T call() {
@@ -42,4 +47,29 @@ public class AsyncCallbackFuture<T> extends FutureTask<T> implements AsyncCallba
     public void onFailure(Throwable failure) {
         super.setException(failure);
     }
-}
\ No newline at end of file
+
+    /**
+     * Runs the given listener once this future is done, right away if it already is.
+     */
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (listeners != null) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    @Override
+    protected void done() {
+        List<Runnable> toRun;
+        synchronized (this) {
+            toRun = listeners;
+            listeners = null;
+        }
+        for (Runnable listener : toRun) {
+            listener.run();
+        }
+    }
+}
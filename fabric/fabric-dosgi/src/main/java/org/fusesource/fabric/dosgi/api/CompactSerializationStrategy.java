@@ -0,0 +1,576 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.fusesource.fabric.dosgi.util.ClassLoaderObjectInputStream;
+import org.fusesource.hawtbuf.DataByteArrayInputStream;
+import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+import org.fusesource.hawtbuf.UTF8Buffer;
+
+/**
+ * <p>
+ * A compact binary serialization which does not need generated types.  Objects
+ * are written field by field using a per class layout computed once by reflection,
+ * primitives are written as varints, class names are only written once per message
+ * and repeated references to the same object are written as back references.
+ * </p>
+ * <p>
+ * Classes with custom serialization logic (<code>writeObject</code>, <code>readObject</code>,
+ * <code>writeReplace</code>, <code>readResolve</code>, {@link Externalizable}) or without a
+ * no argument constructor are transparently written using java serialization.
+ * Both ends must share the same class definitions.
+ * </p>
+ */
+public class CompactSerializationStrategy implements SerializationStrategy {
+
+    public static final CompactSerializationStrategy INSTANCE = new CompactSerializationStrategy();
+
+    static final int NULL = 0;
+    static final int REFERENCE = 1;
+    static final int TRUE = 2;
+    static final int FALSE = 3;
+    static final int BYTE = 4;
+    static final int SHORT = 5;
+    static final int CHAR = 6;
+    static final int INTEGER = 7;
+    static final int LONG = 8;
+    static final int FLOAT = 9;
+    static final int DOUBLE = 10;
+    static final int STRING = 11;
+    static final int BYTES = 12;
+    static final int ARRAY = 13;
+    static final int ENUM = 14;
+    static final int COLLECTION = 15;
+    static final int MAP = 16;
+    static final int OBJECT = 17;
+    static final int SERIALIZED = 18;
+
+    private static final HashMap<String, Class<?>> PRIMITIVES = new HashMap<String, Class<?>>(16);
+    static {
+        for (Class<?> type : new Class<?>[] { boolean.class, byte.class, char.class, short.class, int.class, long.class, float.class, double.class, void.class }) {
+            PRIMITIVES.put(type.getName(), type);
+        }
+    }
+
+    private static final List<Class<?>> COLLECTIONS = Arrays.<Class<?>>asList(ArrayList.class, LinkedList.class, HashSet.class, LinkedHashSet.class);
+    private static final List<Class<?>> MAPS = Arrays.<Class<?>>asList(HashMap.class, LinkedHashMap.class);
+
+    // Soft references so that the cached fields don't keep the classes of a refreshed bundle alive forever.
+    private static final WeakHashMap<Class<?>, SoftReference<ClassLayout>> LAYOUTS = new WeakHashMap<Class<?>, SoftReference<ClassLayout>>();
+
+    public String name() {
+        return "compact";
+    }
+
+    public void encodeRequest(ClassLoader loader, Class<?>[] types, Object[] args, DataByteArrayOutputStream target) throws Exception {
+        Encoder encoder = new Encoder(target);
+        for (int i = 0; i < types.length; i++) {
+            encoder.writeValue(types[i], args[i]);
+        }
+    }
+
+    public void decodeRequest(ClassLoader loader, Class<?>[] types, DataByteArrayInputStream source, Object[] target) throws Exception {
+        Decoder decoder = new Decoder(loader, source);
+        for (int i = 0; i < types.length; i++) {
+            target[i] = decoder.readValue(types[i]);
+        }
+    }
+
+    public void encodeResponse(ClassLoader loader, Class<?> type, Object value, Throwable error, DataByteArrayOutputStream target) throws Exception {
+        Encoder encoder = new Encoder(target);
+        if (error != null) {
+            target.writeBoolean(true);
+            encoder.writeObject(error);
+        } else {
+            target.writeBoolean(false);
+            if (type != void.class) {
+                encoder.writeValue(type, value);
+            }
+        }
+    }
+
+    public void decodeResponse(ClassLoader loader, Class<?> type, DataByteArrayInputStream source, AsyncCallback result) throws Exception {
+        Decoder decoder = new Decoder(loader, source);
+        if (source.readBoolean()) {
+            result.onFailure((Throwable) decoder.readObject());
+        } else {
+            result.onSuccess(type != void.class ? decoder.readValue(type) : null);
+        }
+    }
+
+    static ClassLayout getLayout(Class<?> clazz) {
+        synchronized (LAYOUTS) {
+            SoftReference<ClassLayout> ref = LAYOUTS.get(clazz);
+            ClassLayout rc = ref != null ? ref.get() : null;
+            if (rc == null) {
+                rc = new ClassLayout(clazz);
+                LAYOUTS.put(clazz, new SoftReference<ClassLayout>(rc));
+            }
+            return rc;
+        }
+    }
+
+    /**
+     * The fields written for a class, or no constructor if the class has to
+     * fallback to java serialization.
+     */
+    static class ClassLayout {
+
+        private static final Comparator<Field> BY_NAME = new Comparator<Field>() {
+            public int compare(Field f1, Field f2) {
+                return f1.getName().compareTo(f2.getName());
+            }
+        };
+
+        private static final List<String> CUSTOM_SERIALIZATION_METHODS = Arrays.asList(
+                "writeObject", "readObject", "readObjectNoData", "writeReplace", "readResolve");
+
+        final Constructor<?> constructor;
+        final Field[] fields;
+
+        ClassLayout(Class<?> clazz) {
+            Constructor<?> ctor = null;
+            List<Field> list = new ArrayList<Field>();
+            if (!Externalizable.class.isAssignableFrom(clazz)) {
+                try {
+                    ctor = clazz.getDeclaredConstructor();
+                    ctor.setAccessible(true);
+                } catch (Exception e) {
+                    ctor = null;
+                }
+                // Super class fields first, sorted by name within a class so that both ends agree on the order.
+                LinkedList<Class<?>> hierarchy = new LinkedList<Class<?>>();
+                for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                    if (hasCustomSerialization(c)) {
+                        ctor = null;
+                        break;
+                    }
+                    hierarchy.addFirst(c);
+                }
+                if (ctor != null) {
+                    try {
+                        for (Class<?> c : hierarchy) {
+                            Field[] declared = c.getDeclaredFields();
+                            Arrays.sort(declared, BY_NAME);
+                            for (Field field : declared) {
+                                int modifiers = field.getModifiers();
+                                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)) {
+                                    field.setAccessible(true);
+                                    list.add(field);
+                                }
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        // Not allowed to access the fields, use java serialization instead.
+                        ctor = null;
+                        list.clear();
+                    }
+                }
+            }
+            this.constructor = ctor;
+            this.fields = list.toArray(new Field[list.size()]);
+        }
+
+        boolean isSupported() {
+            return constructor != null;
+        }
+
+        private static boolean hasCustomSerialization(Class<?> c) {
+            for (java.lang.reflect.Method method : c.getDeclaredMethods()) {
+                if (CUSTOM_SERIALIZATION_METHODS.contains(method.getName()) && !Modifier.isStatic(method.getModifiers())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static class Encoder {
+
+        final DataByteArrayOutputStream out;
+        final IdentityHashMap<Object, Integer> objects = new IdentityHashMap<Object, Integer>();
+        final HashMap<Class<?>, Integer> classes = new HashMap<Class<?>, Integer>();
+
+        Encoder(DataByteArrayOutputStream out) {
+            this.out = out;
+        }
+
+        void writeValue(Class<?> type, Object value) throws Exception {
+            if (type.isPrimitive()) {
+                writePrimitive(type, value);
+            } else {
+                writeObject(value);
+            }
+        }
+
+        void writePrimitive(Class<?> type, Object value) throws IOException {
+            if (type == int.class) {
+                int v = (Integer) value;
+                out.writeVarInt((v << 1) ^ (v >> 31));
+            } else if (type == long.class) {
+                long v = (Long) value;
+                out.writeVarLong((v << 1) ^ (v >> 63));
+            } else if (type == boolean.class) {
+                out.writeBoolean((Boolean) value);
+            } else if (type == byte.class) {
+                out.writeByte((Byte) value);
+            } else if (type == short.class) {
+                int v = (Short) value;
+                out.writeVarInt((v << 1) ^ (v >> 31));
+            } else if (type == char.class) {
+                out.writeVarInt((Character) value);
+            } else if (type == float.class) {
+                out.writeInt(Float.floatToIntBits((Float) value));
+            } else if (type == double.class) {
+                out.writeLong(Double.doubleToLongBits((Double) value));
+            }
+        }
+
+        void writeString(String value) throws IOException {
+            UTF8Buffer buffer = new UTF8Buffer(value);
+            out.writeVarInt(buffer.length);
+            out.write(buffer);
+        }
+
+        void writeClass(Class<?> clazz) throws IOException {
+            Integer index = classes.get(clazz);
+            if (index != null) {
+                out.writeVarInt(index + 1);
+            } else {
+                classes.put(clazz, classes.size());
+                out.writeVarInt(0);
+                writeString(clazz.getName());
+            }
+        }
+
+        void writeObject(Object value) throws Exception {
+            if (value == null) {
+                out.writeByte(NULL);
+                return;
+            }
+            Class<?> clazz = value.getClass();
+            if (clazz == String.class) {
+                out.writeByte(STRING);
+                writeString((String) value);
+                return;
+            } else if (clazz == Integer.class) {
+                out.writeByte(INTEGER);
+                writePrimitive(int.class, value);
+                return;
+            } else if (clazz == Long.class) {
+                out.writeByte(LONG);
+                writePrimitive(long.class, value);
+                return;
+            } else if (clazz == Boolean.class) {
+                out.writeByte((Boolean) value ? TRUE : FALSE);
+                return;
+            } else if (clazz == Byte.class) {
+                out.writeByte(BYTE);
+                writePrimitive(byte.class, value);
+                return;
+            } else if (clazz == Short.class) {
+                out.writeByte(SHORT);
+                writePrimitive(short.class, value);
+                return;
+            } else if (clazz == Character.class) {
+                out.writeByte(CHAR);
+                writePrimitive(char.class, value);
+                return;
+            } else if (clazz == Float.class) {
+                out.writeByte(FLOAT);
+                writePrimitive(float.class, value);
+                return;
+            } else if (clazz == Double.class) {
+                out.writeByte(DOUBLE);
+                writePrimitive(double.class, value);
+                return;
+            }
+
+            Integer handle = objects.get(value);
+            if (handle != null) {
+                out.writeByte(REFERENCE);
+                out.writeVarInt(handle);
+                return;
+            }
+            objects.put(value, objects.size());
+
+            if (clazz == byte[].class) {
+                byte[] bytes = (byte[]) value;
+                out.writeByte(BYTES);
+                out.writeVarInt(bytes.length);
+                out.write(bytes);
+            } else if (clazz.isArray()) {
+                Class<?> component = clazz.getComponentType();
+                int length = Array.getLength(value);
+                out.writeByte(ARRAY);
+                writeClass(component);
+                out.writeVarInt(length);
+                for (int i = 0; i < length; i++) {
+                    writeValue(component, Array.get(value, i));
+                }
+            } else if (value instanceof Enum) {
+                out.writeByte(ENUM);
+                writeClass(((Enum<?>) value).getDeclaringClass());
+                writeString(((Enum<?>) value).name());
+            } else if (COLLECTIONS.contains(clazz)) {
+                Collection<?> collection = (Collection<?>) value;
+                out.writeByte(COLLECTION);
+                writeClass(clazz);
+                out.writeVarInt(collection.size());
+                for (Object element : collection) {
+                    writeObject(element);
+                }
+            } else if (MAPS.contains(clazz)) {
+                Map<?, ?> map = (Map<?, ?>) value;
+                out.writeByte(MAP);
+                writeClass(clazz);
+                out.writeVarInt(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    writeObject(entry.getKey());
+                    writeObject(entry.getValue());
+                }
+            } else {
+                if (!(value instanceof Serializable)) {
+                    throw new NotSerializableException(clazz.getName());
+                }
+                ClassLayout layout = getLayout(clazz);
+                if (layout.isSupported()) {
+                    out.writeByte(OBJECT);
+                    writeClass(clazz);
+                    for (Field field : layout.fields) {
+                        writeValue(field.getType(), field.get(value));
+                    }
+                } else {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    ObjectOutputStream oos = new ObjectOutputStream(baos);
+                    oos.writeObject(value);
+                    oos.flush();
+                    out.writeByte(SERIALIZED);
+                    out.writeVarInt(baos.size());
+                    out.write(baos.toByteArray());
+                }
+            }
+        }
+    }
+
+    static class Decoder {
+
+        final ClassLoader loader;
+        final DataByteArrayInputStream in;
+        final ArrayList<Object> objects = new ArrayList<Object>();
+        final ArrayList<Class<?>> classes = new ArrayList<Class<?>>();
+
+        Decoder(ClassLoader loader, DataByteArrayInputStream in) {
+            this.loader = loader;
+            this.in = in;
+        }
+
+        Object readValue(Class<?> type) throws Exception {
+            if (type.isPrimitive()) {
+                return readPrimitive(type);
+            } else {
+                return readObject();
+            }
+        }
+
+        Object readPrimitive(Class<?> type) throws IOException {
+            if (type == int.class) {
+                int v = in.readVarInt();
+                return (v >>> 1) ^ -(v & 1);
+            } else if (type == long.class) {
+                long v = in.readVarLong();
+                return (v >>> 1) ^ -(v & 1);
+            } else if (type == boolean.class) {
+                return in.readBoolean();
+            } else if (type == byte.class) {
+                return in.readByte();
+            } else if (type == short.class) {
+                int v = in.readVarInt();
+                return (short) ((v >>> 1) ^ -(v & 1));
+            } else if (type == char.class) {
+                return (char) in.readVarInt();
+            } else if (type == float.class) {
+                return Float.intBitsToFloat(in.readInt());
+            } else if (type == double.class) {
+                return Double.longBitsToDouble(in.readLong());
+            }
+            return null;
+        }
+
+        String readString() throws IOException {
+            byte[] bytes = new byte[in.readVarInt()];
+            in.readFully(bytes);
+            return new UTF8Buffer(bytes).toString();
+        }
+
+        Class<?> readClass() throws IOException, ClassNotFoundException {
+            int index = in.readVarInt();
+            if (index != 0) {
+                return classes.get(index - 1);
+            }
+            String name = readString();
+            Class<?> clazz = PRIMITIVES.get(name);
+            if (clazz == null) {
+                clazz = Class.forName(name, false, loader);
+            }
+            classes.add(clazz);
+            return clazz;
+        }
+
+        private int reserve() {
+            objects.add(null);
+            return objects.size() - 1;
+        }
+
+        @SuppressWarnings("unchecked")
+        Object readObject() throws Exception {
+            int tag = in.readByte();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case REFERENCE:
+                    return objects.get(in.readVarInt());
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case BYTE:
+                    return readPrimitive(byte.class);
+                case SHORT:
+                    return readPrimitive(short.class);
+                case CHAR:
+                    return readPrimitive(char.class);
+                case INTEGER:
+                    return readPrimitive(int.class);
+                case LONG:
+                    return readPrimitive(long.class);
+                case FLOAT:
+                    return readPrimitive(float.class);
+                case DOUBLE:
+                    return readPrimitive(double.class);
+                case STRING:
+                    return readString();
+                case BYTES: {
+                    int handle = reserve();
+                    byte[] bytes = new byte[in.readVarInt()];
+                    in.readFully(bytes);
+                    objects.set(handle, bytes);
+                    return bytes;
+                }
+                case ARRAY: {
+                    int handle = reserve();
+                    Class<?> component = readClass();
+                    int length = in.readVarInt();
+                    Object array = Array.newInstance(component, length);
+                    objects.set(handle, array);
+                    for (int i = 0; i < length; i++) {
+                        Array.set(array, i, readValue(component));
+                    }
+                    return array;
+                }
+                case ENUM: {
+                    int handle = reserve();
+                    Class clazz = readClass();
+                    Object value = Enum.valueOf(clazz, readString());
+                    objects.set(handle, value);
+                    return value;
+                }
+                case COLLECTION: {
+                    int handle = reserve();
+                    Class<?> clazz = readClass();
+                    if (!COLLECTIONS.contains(clazz)) {
+                        throw new StreamCorruptedException("Unsupported collection type: " + clazz.getName());
+                    }
+                    Collection<Object> collection = (Collection<Object>) clazz.newInstance();
+                    objects.set(handle, collection);
+                    for (int size = in.readVarInt(); size > 0; size--) {
+                        collection.add(readObject());
+                    }
+                    return collection;
+                }
+                case MAP: {
+                    int handle = reserve();
+                    Class<?> clazz = readClass();
+                    if (!MAPS.contains(clazz)) {
+                        throw new StreamCorruptedException("Unsupported map type: " + clazz.getName());
+                    }
+                    Map<Object, Object> map = (Map<Object, Object>) clazz.newInstance();
+                    objects.set(handle, map);
+                    for (int size = in.readVarInt(); size > 0; size--) {
+                        Object key = readObject();
+                        map.put(key, readObject());
+                    }
+                    return map;
+                }
+                case OBJECT: {
+                    int handle = reserve();
+                    Class<?> clazz = readClass();
+                    ClassLayout layout = getLayout(clazz);
+                    if (!Serializable.class.isAssignableFrom(clazz) || !layout.isSupported()) {
+                        throw new StreamCorruptedException("Unsupported object type: " + clazz.getName());
+                    }
+                    Object value = layout.constructor.newInstance();
+                    objects.set(handle, value);
+                    for (Field field : layout.fields) {
+                        field.set(value, readValue(field.getType()));
+                    }
+                    return value;
+                }
+                case SERIALIZED: {
+                    int handle = reserve();
+                    byte[] bytes = new byte[in.readVarInt()];
+                    in.readFully(bytes);
+                    ClassLoaderObjectInputStream ois = new ClassLoaderObjectInputStream(new ByteArrayInputStream(bytes));
+                    ois.setClassLoader(loader);
+                    Object value = ois.readObject();
+                    objects.set(handle, value);
+                    return value;
+                }
+                default:
+                    throw new StreamCorruptedException("Unexpected type tag: " + tag);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.impl;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import org.fusesource.fabric.dosgi.tcp.ClientInvokerImpl;
+import org.fusesource.fabric.dosgi.tcp.EndpointStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Chooses which of the remote endpoints matching an imported service a call is
+ * sent to.  Endpoints which recently failed are avoided, and among the others
+ * two are picked at random and the one with the lowest average latency times
+ * requests in flight wins, which spreads the calls while steering them away
+ * from slow or busy containers.
+ * </p>
+ */
+public class EndpointSelector {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EndpointSelector.class);
+
+    public static enum Policy {
+        /** Calls only go to the endpoint the service was imported from */
+        DIRECT,
+        /** Calls are spread over all the matching endpoints */
+        BALANCED,
+        /** Like BALANCED, but endpoints on this host are used first */
+        LOCAL
+    }
+
+    public static final long DEFAULT_FAILURE_BACKOFF = 5000;
+
+    private final ClientInvokerImpl client;
+    private final Policy policy;
+    private final Set<String> localHosts;
+    private final Random random = new Random();
+    private long failureBackoff = DEFAULT_FAILURE_BACKOFF;
+
+    public EndpointSelector(ClientInvokerImpl client, Policy policy, Collection<String> localHosts) {
+        this.client = client;
+        this.policy = policy;
+        this.localHosts = new HashSet<String>();
+        for (String host : localHosts) {
+            this.localHosts.add(host.toLowerCase(Locale.ENGLISH));
+        }
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public long getFailureBackoff() {
+        return failureBackoff;
+    }
+
+    /**
+     * Sets how long, in milliseconds, an endpoint is avoided after a transport failure.
+     */
+    public void setFailureBackoff(long failureBackoff) {
+        this.failureBackoff = failureBackoff;
+    }
+
+    /**
+     * Returns the endpoint to call among the given candidates, or <code>null</code>
+     * when all of them have been excluded.
+     */
+    public EndpointDescription select(List<EndpointDescription> candidates, Collection<EndpointDescription> excluded) {
+        List<EndpointDescription> available = new ArrayList<EndpointDescription>(candidates.size());
+        List<EndpointDescription> healthy = new ArrayList<EndpointDescription>(candidates.size());
+        List<EndpointDescription> local = new ArrayList<EndpointDescription>(candidates.size());
+        long now = System.currentTimeMillis();
+        for (EndpointDescription candidate : candidates) {
+            if (excluded.contains(candidate)) {
+                continue;
+            }
+            available.add(candidate);
+            long lastFailure = getStats(candidate).getLastFailure();
+            if (lastFailure > 0 && now - lastFailure < failureBackoff) {
+                continue;
+            }
+            healthy.add(candidate);
+            if (policy == Policy.LOCAL && isLocal(candidate)) {
+                local.add(candidate);
+            }
+        }
+        // When everything failed lately, try anyway
+        List<EndpointDescription> tier = !local.isEmpty() ? local : !healthy.isEmpty() ? healthy : available;
+        switch (tier.size()) {
+            case 0:
+                return null;
+            case 1:
+                return tier.get(0);
+            default:
+                int i = random.nextInt(tier.size());
+                int j = random.nextInt(tier.size() - 1);
+                if (j >= i) {
+                    j++;
+                }
+                EndpointDescription a = tier.get(i);
+                EndpointDescription b = tier.get(j);
+                return getCost(a) <= getCost(b) ? a : b;
+        }
+    }
+
+    protected double getCost(EndpointDescription endpoint) {
+        EndpointStats stats = getStats(endpoint);
+        // Endpoints without any response yet look cheap so that they get probed.
+        double latency = Math.max(stats.getLatency(), 0) + 1;
+        return latency * (stats.getInflight() + 1);
+    }
+
+    protected EndpointStats getStats(EndpointDescription endpoint) {
+        return client.getEndpointStats(getAddress(endpoint));
+    }
+
+    protected boolean isLocal(EndpointDescription endpoint) {
+        try {
+            String host = new URI(getAddress(endpoint)).getHost();
+            if (host != null && host.startsWith("[")) {
+                host = host.substring(1, host.length() - 1);
+            }
+            return host != null && localHosts.contains(host.toLowerCase(Locale.ENGLISH));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    static String getAddress(EndpointDescription endpoint) {
+        return (String) endpoint.getProperties().get(Manager.FABRIC_ADDRESS);
+    }
+
+    /**
+     * Returns the names and addresses this host is known by.
+     */
+    public static Set<String> getLocalHosts(String exportedAddress) {
+        Set<String> rc = new HashSet<String>();
+        rc.add("localhost");
+        if (exportedAddress != null) {
+            rc.add(exportedAddress);
+        }
+        try {
+            InetAddress localHost = InetAddress.getLocalHost();
+            rc.add(localHost.getHostName());
+            rc.add(localHost.getCanonicalHostName());
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                Enumeration<InetAddress> addresses = interfaces.nextElement().getInetAddresses();
+                while (addresses.hasMoreElements()) {
+                    String address = addresses.nextElement().getHostAddress();
+                    int scope = address.indexOf('%');
+                    rc.add(scope > 0 ? address.substring(0, scope) : address);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.info("Unable to list the local addresses", e);
+        }
+        return rc;
+    }
+
+}
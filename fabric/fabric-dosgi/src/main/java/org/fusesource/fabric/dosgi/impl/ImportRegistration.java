@@ -16,8 +16,10 @@
  */
 package org.fusesource.fabric.dosgi.impl;
 
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.framework.hooks.service.ListenerHook;
@@ -30,7 +32,7 @@ public class ImportRegistration {
     boolean closed;
 
     public ImportRegistration(ServiceRegistration importedService, EndpointDescription importedEndpoint) {
-        this.listeners = new HashSet<ListenerHook.ListenerInfo>();
+        this.listeners = new CopyOnWriteArraySet<ListenerHook.ListenerInfo>();
         this.importedService = importedService;
         this.importedEndpoint = importedEndpoint;
     }
@@ -51,6 +53,10 @@ public class ImportRegistration {
         return this.listeners.remove(listener);
     }
 
+    public Collection<ListenerHook.ListenerInfo> getReferences() {
+        return Collections.unmodifiableSet(this.listeners);
+    }
+
     public boolean hasReferences() {
         return !this.listeners.isEmpty();
     }
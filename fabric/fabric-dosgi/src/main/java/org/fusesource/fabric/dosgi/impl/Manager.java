@@ -28,8 +28,12 @@ import org.fusesource.fabric.dosgi.capset.CapabilitySet;
 import org.fusesource.fabric.dosgi.capset.SimpleFilter;
 import org.fusesource.fabric.dosgi.io.ClientInvoker;
 import org.fusesource.fabric.dosgi.io.ServerInvoker;
+import org.fusesource.fabric.dosgi.tcp.AsyncInvocationStrategy;
 import org.fusesource.fabric.dosgi.tcp.ClientInvokerImpl;
+import org.fusesource.fabric.dosgi.tcp.FutureInvocationStrategy;
 import org.fusesource.fabric.dosgi.tcp.ServerInvokerImpl;
+import org.fusesource.fabric.dosgi.tcp.TransportFailedException;
+import org.fusesource.fabric.dosgi.tcp.TransportPool;
 import org.fusesource.fabric.dosgi.util.AriesFrameworkUtil;
 import org.fusesource.fabric.dosgi.util.Utils;
 import org.fusesource.fabric.dosgi.util.UuidGenerator;
@@ -51,21 +55,29 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils.create;
 import static org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils.delete;
@@ -83,7 +95,7 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Manager.class);
     private static final String DOSGI_REGISTRY = "/fabric/dosgi";
-    private static final String FABRIC_ADDRESS = "fabric.address";
+    static final String FABRIC_ADDRESS = "fabric.address";
 
     private final BundleContext bundleContext;
 
@@ -97,8 +109,10 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
     private final CuratorFramework curator;
     // The tracked zookeeper tree
     private TreeCache tree;
-    // Remote endpoints
+    // Remote endpoints, guarded by the lock of the set as it is also matched from the calling threads
     private final CapabilitySet<EndpointDescription> remoteEndpoints;
+    // Bumped whenever the endpoints an import may call could have changed
+    private final AtomicLong importsGeneration = new AtomicLong();
 
     //
     // Internal data structures
@@ -122,6 +136,12 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
 
     private final long timeout;
 
+    private int poolSize = TransportPool.DEFAULT_POOL_SIZE;
+
+    private EndpointSelector.Policy selectionPolicy = EndpointSelector.Policy.DIRECT;
+
+    private EndpointSelector selector;
+
     private ClientInvoker client;
 
     private ServerInvoker server;
@@ -145,10 +165,27 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
         this.timeout = timeout;
     }
 
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * Sets how calls to imported services pick among the matching endpoints,
+     * one of <code>direct</code>, <code>balanced</code> or <code>local</code>.
+     */
+    public void setSelectionPolicy(String selectionPolicy) {
+        this.selectionPolicy = EndpointSelector.Policy.valueOf(selectionPolicy.trim().toUpperCase(Locale.ENGLISH));
+    }
+
     public void init() throws Exception {
         // Create client and server
-        this.client = new ClientInvokerImpl(queue, timeout, serializationStrategies);
-        this.server = new ServerInvokerImpl(uri, queue, serializationStrategies);
+        ClientInvokerImpl client = new ClientInvokerImpl(queue, timeout, serializationStrategies);
+        client.setPoolSize(poolSize);
+        this.client = client;
+        this.selector = new EndpointSelector(client, selectionPolicy, EndpointSelector.getLocalHosts(exportedAddress));
+        ServerInvokerImpl server = new ServerInvokerImpl(uri, queue, serializationStrategies);
+        server.setMBeanServer(ManagementFactory.getPlatformMBeanServer());
+        this.server = server;
         this.client.start();
         this.server.start();
         // ZooKeeper tracking
@@ -229,6 +266,7 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
             String filter = "(&" + listenerInfo.getFilter() + "(!(" + ENDPOINT_FRAMEWORK_UUID + "=" + this.uuid + ")))";
             SimpleFilter exFilter = SimpleFilter.parse(filter);
             listeners.put(listenerInfo, exFilter);
+            importsGeneration.incrementAndGet();
             // Iterate through known services and import them if needed
             Set<EndpointDescription> matches = remoteEndpoints.match(exFilter);
             for (EndpointDescription endpoint : matches) {
@@ -245,6 +283,7 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
                 continue;
             }
             SimpleFilter exFilter = listeners.remove(listenerInfo);
+            importsGeneration.incrementAndGet();
             // Iterate through known services and dereference them if needed
             Set<EndpointDescription> matches = remoteEndpoints.match(exFilter);
             for (EndpointDescription endpoint : matches) {
@@ -370,6 +409,7 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
         properties.put(SERVICE_IMPORTED_CONFIGS, new String[] { CONFIG });
         properties.put(ENDPOINT_FRAMEWORK_UUID, this.uuid);
         properties.put(FABRIC_ADDRESS, fabricAddress);
+        properties.put(ServerInvokerImpl.PROTOCOL_VERSION_PROPERTY, ServerInvokerImpl.PROTOCOL_VERSION);
 
         String uuid = UuidGenerator.getUUID();
         properties.put(ENDPOINT_ID, uuid);
@@ -385,7 +425,7 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
             public void unget() {
                 reference.getBundle().getBundleContext().ungetService(reference);
             }
-        }, AriesFrameworkUtil.getClassLoader(reference.getBundle()));
+        }, description.getProperties(), AriesFrameworkUtil.getClassLoader(reference.getBundle()));
 
         String descStr = Utils.getEndpointDescriptionXML(description);
         // Publish in ZooKeeper
@@ -401,7 +441,7 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
     protected ImportRegistration doImportService(final EndpointDescription endpoint, final ListenerInfo listener) {
         Map<Long, ImportRegistration> registrations = importedServices.get(endpoint);
         if (registrations == null) {
-            registrations = new HashMap<Long, ImportRegistration>();
+            registrations = new ConcurrentHashMap<Long, ImportRegistration>();
             importedServices.put(endpoint, registrations);
         }
         ImportRegistration reg = registrations.get(listener.getBundleContext().getBundle().getBundleId());
@@ -416,6 +456,7 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
             registrations.put(listener.getBundleContext().getBundle().getBundleId(), reg);
         }
         reg.addReference(listener);
+        importsGeneration.incrementAndGet();
         return reg;
     }
 
@@ -430,6 +471,7 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
 
                 EndpointDescription endpoint = Utils.getEndpointDescription(new String(event.getData().getData()));
                 remoteEndpoints.addCapability(endpoint);
+                importsGeneration.incrementAndGet();
                 // Check existing listeners
                 for (Map.Entry<ListenerInfo, SimpleFilter> entry : listeners.entrySet()) {
                     if (CapabilitySet.matches(endpoint, entry.getValue())) {
@@ -451,6 +493,7 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
             case CHILD_REMOVED: {
                 EndpointDescription endpoint = Utils.getEndpointDescription(new String(event.getData().getData()));
                 remoteEndpoints.removeCapability(endpoint);
+                importsGeneration.incrementAndGet();
                 Map<Long, ImportRegistration> registrations = importedServices.remove(endpoint);
                 if (registrations != null) {
                     for (ImportRegistration reg : registrations.values()) {
@@ -480,8 +523,12 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
                     // Ignore
                 }
             }
-            String address = (String) description.getProperties().get(FABRIC_ADDRESS);
-            InvocationHandler handler = client.getProxy(address, description.getId(), classLoader);
+            InvocationHandler handler;
+            if (selector.getPolicy() == EndpointSelector.Policy.DIRECT) {
+                handler = getProxy(description, classLoader);
+            } else {
+                handler = new SelectingInvocationHandler(description, bundle.getBundleId(), classLoader);
+            }
             return Proxy.newProxyInstance(classLoader, interfaces.toArray(new Class[interfaces.size()]), handler);
         }
 
@@ -490,4 +537,123 @@ public class Manager implements ServiceListener, ListenerHook, EventHook, FindHo
 
     }
 
+    InvocationHandler getProxy(EndpointDescription description, ClassLoader classLoader) {
+        String address = (String) description.getProperties().get(FABRIC_ADDRESS);
+        return client.getProxy(address, description.getId(), description.getProperties(), classLoader);
+    }
+
+    /**
+     * Sends each call to the endpoint chosen by the selector among those providing
+     * the same interfaces and matching the filters the service was imported for.
+     * Blocking calls whose transport failed before they were sent are retried on another
+     * endpoint.  Calls lost once sent are not, as the service may have run them already.
+     */
+    class SelectingInvocationHandler implements InvocationHandler {
+
+        private final EndpointDescription description;
+        private final long bundleId;
+        private final ClassLoader classLoader;
+        private final Map<String, InvocationHandler> handlers = new ConcurrentHashMap<String, InvocationHandler>();
+        // Replaced as a whole so that concurrent callers never pair a list with another generation
+        private volatile Candidates candidates = new Candidates(-1, Collections.<EndpointDescription>emptyList());
+
+        SelectingInvocationHandler(EndpointDescription description, long bundleId, ClassLoader classLoader) {
+            this.description = description;
+            this.bundleId = bundleId;
+            this.classLoader = classLoader;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            List<EndpointDescription> candidates = getCandidates();
+            boolean retry = !AsyncInvocationStrategy.isAsyncMethod(method) && !FutureInvocationStrategy.isFutureMethod(method);
+            List<EndpointDescription> failed = Collections.emptyList();
+            while (true) {
+                EndpointDescription endpoint = selector.select(candidates, failed);
+                if (endpoint == null) {
+                    endpoint = description;
+                }
+                try {
+                    return getHandler(endpoint).invoke(proxy, method, args);
+                } catch (Throwable t) {
+                    // Only calls that never reached the service count, not the ones lost in flight
+                    // nor the exceptions thrown by the service
+                    if (!retry || !isTransportFailure(t) || failed.size() + 1 >= candidates.size()) {
+                        throw t;
+                    }
+                    LOGGER.debug("Call to endpoint {} failed, trying another one", endpoint.getId(), t);
+                    if (failed.isEmpty()) {
+                        failed = new ArrayList<EndpointDescription>();
+                    }
+                    failed.add(endpoint);
+                }
+            }
+        }
+
+        private boolean isTransportFailure(Throwable t) {
+            while (t != null) {
+                if (t instanceof TransportFailedException) {
+                    return true;
+                }
+                if (t instanceof ExecutionException || t instanceof UndeclaredThrowableException) {
+                    t = t.getCause();
+                } else {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        private InvocationHandler getHandler(EndpointDescription endpoint) {
+            InvocationHandler handler = handlers.get(endpoint.getId());
+            if (handler == null) {
+                handler = getProxy(endpoint, classLoader);
+                handlers.put(endpoint.getId(), handler);
+            }
+            return handler;
+        }
+
+        private List<EndpointDescription> getCandidates() {
+            long current = importsGeneration.get();
+            Candidates candidates = this.candidates;
+            if (current != candidates.generation) {
+                Set<EndpointDescription> rc = new LinkedHashSet<EndpointDescription>();
+                rc.add(description);
+                Map<Long, ImportRegistration> registrations = importedServices.get(description);
+                ImportRegistration registration = registrations != null ? registrations.get(bundleId) : null;
+                if (registration != null) {
+                    for (ListenerInfo listener : registration.getReferences()) {
+                        SimpleFilter filter = listeners.get(listener);
+                        if (filter == null) {
+                            continue;
+                        }
+                        for (EndpointDescription endpoint : remoteEndpoints.match(filter)) {
+                            if (endpoint.getInterfaces().equals(description.getInterfaces())) {
+                                rc.add(endpoint);
+                            }
+                        }
+                    }
+                }
+                candidates = new Candidates(current, new ArrayList<EndpointDescription>(rc));
+                this.candidates = candidates;
+                // Forget the handlers of the endpoints that went away
+                Set<String> ids = new HashSet<String>();
+                for (EndpointDescription endpoint : rc) {
+                    ids.add(endpoint.getId());
+                }
+                handlers.keySet().retainAll(ids);
+            }
+            return candidates.endpoints;
+        }
+    }
+
+    static class Candidates {
+        final long generation;
+        final List<EndpointDescription> endpoints;
+
+        Candidates(long generation, List<EndpointDescription> endpoints) {
+            this.generation = generation;
+            this.endpoints = endpoints;
+        }
+    }
+
 }
\ No newline at end of file
@@ -17,9 +17,16 @@
 package org.fusesource.fabric.dosgi.io;
 
 import java.lang.reflect.InvocationHandler;
+import java.util.Map;
 
 public interface ClientInvoker extends Service {
 
     InvocationHandler getProxy(String address, String service, ClassLoader classLoader);
 
+    /**
+     * Creates a proxy handler for a remote service, using the endpoint
+     * properties published by the exporter to tune how it is invoked.
+     */
+    InvocationHandler getProxy(String address, String service, Map<String, Object> properties, ClassLoader classLoader);
+
 }
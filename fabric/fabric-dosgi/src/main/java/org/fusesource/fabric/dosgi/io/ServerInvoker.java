@@ -16,12 +16,19 @@
  */
 package org.fusesource.fabric.dosgi.io;
 
+import java.util.Map;
+
 public interface ServerInvoker extends Service {
 
     String getConnectAddress();
 
     void registerService(String id, ServiceFactory service, ClassLoader classLoader);
 
+    /**
+     * Registers a service, using the exported endpoint properties to tune how it is invoked.
+     */
+    void registerService(String id, ServiceFactory service, Map<String, Object> properties, ClassLoader classLoader);
+
     void unregisterService(String id);
 
 
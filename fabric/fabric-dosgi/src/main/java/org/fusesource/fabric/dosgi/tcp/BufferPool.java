@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.tcp;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+
+/**
+ * <p>
+ * A pool of output streams used to encode frames, organized in power of two
+ * size classes.
+ * </p>
+ * <p>
+ * Frames are encoded on the caller or service thread and written out later on
+ * the transport's dispatch queue, so the pool is shared between threads rather
+ * than kept per thread.  A stream goes back to the pool once the frame built
+ * with it has been written, see {@link PooledBuffer#release()}.
+ * </p>
+ */
+public class BufferPool {
+
+    // 256 bytes
+    public static final int MIN_SIZE_CLASS = 8;
+    // 64k, bigger frames are not pooled
+    public static final int MAX_SIZE_CLASS = 16;
+
+    public static final int DEFAULT_MAX_POOLED = 64;
+
+    private final Queue<PooledStream>[] free;
+    private final AtomicInteger[] counts;
+    private final int maxPooled;
+
+    public BufferPool() {
+        this(DEFAULT_MAX_POOLED);
+    }
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(int maxPooled) {
+        this.maxPooled = maxPooled;
+        int classes = MAX_SIZE_CLASS - MIN_SIZE_CLASS + 1;
+        free = new Queue[classes];
+        counts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<PooledStream>();
+            counts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Returns a stream able to hold at least <code>size</code> bytes without growing.
+     */
+    public PooledStream acquire(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass > MAX_SIZE_CLASS) {
+            return new PooledStream(null, -1, size);
+        }
+        int index = sizeClass - MIN_SIZE_CLASS;
+        PooledStream rc = free[index].poll();
+        if (rc == null) {
+            return new PooledStream(this, index, 1 << sizeClass);
+        }
+        counts[index].decrementAndGet();
+        rc.reset();
+        return rc;
+    }
+
+    private void release(PooledStream stream) {
+        int index = stream.index;
+        if (counts[index].incrementAndGet() <= maxPooled) {
+            free[index].offer(stream);
+        } else {
+            counts[index].decrementAndGet();
+        }
+    }
+
+    public int getPooledCount() {
+        int rc = 0;
+        for (AtomicInteger count : counts) {
+            rc += count.get();
+        }
+        return rc;
+    }
+
+    static int sizeClass(int size) {
+        int rc = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(rc, MIN_SIZE_CLASS);
+    }
+
+    /**
+     * An output stream borrowed from a pool.
+     */
+    public static class PooledStream {
+
+        private final BufferPool pool;
+        private final int index;
+        private final AtomicBoolean released = new AtomicBoolean();
+        public final DataByteArrayOutputStream stream;
+
+        PooledStream(BufferPool pool, int index, int size) {
+            this.pool = pool;
+            this.index = index;
+            this.stream = new DataByteArrayOutputStream(size);
+        }
+
+        void reset() {
+            stream.position(0);
+            released.set(false);
+        }
+
+        /**
+         * Returns the bytes written so far.  The stream goes back to the pool once the
+         * returned buffer is released.
+         */
+        public PooledBuffer toBuffer() {
+            return new PooledBuffer(stream.toBuffer(), this);
+        }
+
+        /**
+         * Gives the stream back to its pool, the data written to it must not be used afterwards.
+         */
+        public void release() {
+            if (pool != null && released.compareAndSet(false, true)) {
+                pool.release(this);
+            }
+        }
+    }
+
+    /**
+     * A frame encoded with a {@link PooledStream}.
+     */
+    public static class PooledBuffer extends Buffer {
+
+        private final PooledStream stream;
+
+        PooledBuffer(Buffer buffer, PooledStream stream) {
+            super(buffer);
+            this.stream = stream;
+        }
+
+        public void release() {
+            stream.release();
+        }
+    }
+
+}
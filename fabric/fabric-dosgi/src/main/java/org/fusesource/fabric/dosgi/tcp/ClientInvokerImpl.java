@@ -19,14 +19,21 @@ package org.fusesource.fabric.dosgi.tcp;
 import java.io.IOException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.rmi.RemoteException;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.fusesource.fabric.dosgi.api.CompactSerializationStrategy;
 import org.fusesource.fabric.dosgi.api.Dispatched;
 import org.fusesource.fabric.dosgi.api.ObjectSerializationStrategy;
 import org.fusesource.fabric.dosgi.api.Serialization;
@@ -63,12 +70,16 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
     }
 
     protected final AtomicLong correlationGenerator = new AtomicLong();
+    protected final AtomicInteger methodIdGenerator = new AtomicInteger();
     protected final DispatchQueue queue;
     protected final Map<String, TransportPool> transports = new HashMap<String, TransportPool>();
     protected final AtomicBoolean running = new AtomicBoolean(false);
     protected final Map<Long, ResponseFuture> requests = new HashMap<Long, ResponseFuture>();
     protected final long timeout;
     protected final Map<String, SerializationStrategy> serializationStrategies;
+    protected int poolSize = TransportPool.DEFAULT_POOL_SIZE;
+    protected final BufferPool bufferPool = new BufferPool();
+    protected final ConcurrentMap<String, EndpointStats> stats = new ConcurrentHashMap<String, EndpointStats>();
 
     public ClientInvokerImpl(DispatchQueue queue, Map<String, SerializationStrategy> serializationStrategies) {
         this(queue, DEFAULT_TIMEOUT, serializationStrategies);
@@ -84,6 +95,32 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
         return queue;
     }
 
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Sets the maximum number of connections opened to each remote address.
+     */
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * Returns the statistics of the requests sent to the given address.
+     */
+    public EndpointStats getEndpointStats(String address) {
+        EndpointStats rc = stats.get(address);
+        if (rc == null) {
+            rc = new EndpointStats();
+            EndpointStats previous = stats.putIfAbsent(address, rc);
+            if (previous != null) {
+                rc = previous;
+            }
+        }
+        return rc;
+    }
+
     public void start() throws Exception {
         start(null);
     }
@@ -126,7 +163,61 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
     }
 
     public InvocationHandler getProxy(String address, String service, ClassLoader classLoader) {
-        return new ProxyInvocationHandler(address, service, classLoader);
+        return new ProxyInvocationHandler(address, service, classLoader, false, false, ObjectSerializationStrategy.INSTANCE,
+                timeout, Collections.<String, Long>emptyMap());
+    }
+
+    public InvocationHandler getProxy(String address, String service, Map<String, Object> properties, ClassLoader classLoader) {
+        int version = getProtocolVersion(properties);
+        SerializationStrategy serializationStrategy = ObjectSerializationStrategy.INSTANCE;
+        Object serialization = properties != null ? properties.get(ServerInvokerImpl.SERIALIZATION_PROPERTY) : null;
+        // Older exporters don't know about the property and always use java serialization.
+        if (serialization != null && version >= 3) {
+            serializationStrategy = getSerializationStrategy(serialization.toString());
+        }
+        Map<String, Long> methodTimeouts = new HashMap<String, Long>();
+        long serviceTimeout = timeout;
+        if (properties != null) {
+            for (Map.Entry<String, Object> entry : properties.entrySet()) {
+                if (entry.getKey().equals(ServerInvokerImpl.TIMEOUT_PROPERTY)) {
+                    serviceTimeout = getTimeout(entry, serviceTimeout);
+                }
+            }
+            // Invalid method timeouts fall back to the one of the service
+            String prefix = ServerInvokerImpl.TIMEOUT_PROPERTY + ".";
+            for (Map.Entry<String, Object> entry : properties.entrySet()) {
+                if (entry.getKey().startsWith(prefix)) {
+                    methodTimeouts.put(entry.getKey().substring(prefix.length()), getTimeout(entry, serviceTimeout));
+                }
+            }
+        }
+        return new ProxyInvocationHandler(address, service, classLoader, version >= 2, version >= 4, serializationStrategy,
+                serviceTimeout, methodTimeouts);
+    }
+
+    private long getTimeout(Map.Entry<String, Object> property, long defaultValue) {
+        try {
+            long rc = Long.parseLong(property.getValue().toString().trim());
+            if (rc > 0) {
+                return rc;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        LOGGER.warn("Ignoring invalid timeout {}={}", property.getKey(), property.getValue());
+        return defaultValue;
+    }
+
+    static int getProtocolVersion(Map<String, Object> properties) {
+        Object version = properties != null ? properties.get(ServerInvokerImpl.PROTOCOL_VERSION_PROPERTY) : null;
+        if (version == null) {
+            return 1;
+        }
+        try {
+            return Integer.parseInt(version.toString());
+        } catch (NumberFormatException e) {
+            return 1;
+        }
     }
 
     protected void onCommand(TransportPool pool, Object data) {
@@ -134,6 +225,17 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
             DataByteArrayInputStream bais = new DataByteArrayInputStream( (Buffer) data);
             int size = bais.readInt();
             long correlation = bais.readVarLong();
+            if (correlation == 0) {
+                // An error frame, the server could not find the service method of the request
+                correlation = bais.readVarLong();
+                String message = bais.readBuffer(bais.readVarInt()).utf8().toString();
+                pool.onDone(correlation);
+                ResponseFuture response = requests.remove(correlation);
+                if (response != null) {
+                    response.fail(new RemoteException(message));
+                }
+                return;
+            }
             pool.onDone(correlation);
             ResponseFuture response = requests.remove(correlation);
             if( response!=null ) {
@@ -144,10 +246,23 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
         }
     }
 
-    protected void onFailure(Object id, Throwable throwable) {
+    // Called on the queue when the caller stopped waiting for the response.
+    protected void onTimeout(String address, long correlation) {
+        ResponseFuture response = requests.remove(correlation);
+        if (response != null) {
+            TransportPool pool = transports.get(address);
+            if (pool != null) {
+                pool.onDone(correlation);
+            }
+            response.fail(new TimeoutException("No response received within the timeout"));
+        }
+    }
+
+    protected void onFailure(Object id, Throwable throwable, boolean sent) {
         ResponseFuture response = requests.remove(id);
         if( response!=null ) {
-            response.fail(throwable);
+            // A request that went out may have been run by the service already
+            response.fail(sent ? new ResponseLostException(throwable) : new TransportFailedException(throwable));
         }
     }
 
@@ -186,17 +301,17 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
             Serialization annotation = method.getAnnotation(Serialization.class);
             SerializationStrategy serializationStrategy;
             if( annotation!=null ) {
-                serializationStrategy = serializationStrategies.get(annotation.value());
-                if( serializationStrategy==null ) {
-                    throw new RuntimeException("Could not find the serialization strategy named: "+annotation.value());
-                }
+                serializationStrategy = getSerializationStrategy(annotation.value());
             } else {
-                serializationStrategy = ObjectSerializationStrategy.INSTANCE;
+                // use the default serialization of the service being invoked
+                serializationStrategy = null;
             }
 
             final InvocationStrategy strategy;
             if( AsyncInvocationStrategy.isAsyncMethod(method) ) {
                 strategy = AsyncInvocationStrategy.INSTANCE;
+            } else if( FutureInvocationStrategy.isFutureMethod(method) ) {
+                strategy = FutureInvocationStrategy.INSTANCE;
             } else {
                 strategy = BlockingInvocationStrategy.INSTANCE;
             }
@@ -209,6 +324,96 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
         return rc;
     }
 
+    /**
+     * A method of a remote service identified by a small integer id.  The id is
+     * defined once per connection, subsequent requests only carry the id.
+     */
+    static class MethodDefinition {
+
+        // Requests referring to the method carry the time the caller is willing to wait
+        static final int DEADLINE_FLAG = 1;
+
+        final int id;
+        final Buffer frame;
+
+        MethodDefinition(int id, UTF8Buffer service, Buffer signature, boolean deadline) throws IOException {
+            this.id = id;
+            DataByteArrayOutputStream baos = new DataByteArrayOutputStream(service.length + signature.length + 16);
+            baos.writeInt(0); // we don't know the size yet...
+            baos.writeVarLong(0); // the correlation id 0 marks a method definition
+            baos.writeVarInt(id);
+            baos.writeVarInt(service.length);
+            baos.write(service);
+            baos.writeVarInt(signature.length);
+            baos.write(signature);
+            if (deadline) {
+                // Older servers don't read past the signature.
+                baos.writeVarInt(DEADLINE_FLAG);
+            }
+            Buffer frame = baos.toBuffer();
+            frame.buffer().bigEndianEditor().writeInt(frame.length);
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * Feeds the outcome of a request into the statistics of its address.
+     */
+    static class TrackedResponse implements ResponseFuture {
+        final ResponseFuture future;
+        final EndpointStats stats;
+        final long start = System.nanoTime();
+
+        TrackedResponse(ResponseFuture future, EndpointStats stats) {
+            this.future = future;
+            this.stats = stats;
+            stats.onRequest();
+        }
+
+        public void set(DataByteArrayInputStream responseStream) throws Exception {
+            stats.onResponse(System.nanoTime() - start);
+            future.set(responseStream);
+        }
+
+        public Object get(long timeout, TimeUnit unit) throws Exception {
+            return future.get(timeout, unit);
+        }
+
+        public void fail(Throwable throwable) {
+            if (throwable instanceof TimeoutException) {
+                // Slow rather than broken
+                stats.onResponse(System.nanoTime() - start);
+            } else {
+                stats.onFailure();
+            }
+            future.fail(throwable);
+        }
+    }
+
+    static class DefinedRequest {
+        final Buffer command;
+        final MethodDefinition definition;
+
+        DefinedRequest(Buffer command, MethodDefinition definition) {
+            this.command = command;
+            this.definition = definition;
+        }
+    }
+
+    protected SerializationStrategy getSerializationStrategy(String name) {
+        SerializationStrategy rc = serializationStrategies.get(name);
+        if( rc==null ) {
+            if( ObjectSerializationStrategy.INSTANCE.name().equals(name) ) {
+                rc = ObjectSerializationStrategy.INSTANCE;
+            } else if( CompactSerializationStrategy.INSTANCE.name().equals(name) ) {
+                rc = CompactSerializationStrategy.INSTANCE;
+            } else {
+                throw new RuntimeException("Could not find the serialization strategy named: "+name);
+            }
+        }
+        return rc;
+    }
+
     String encodeClassName(Class<?> type) {
         if( type.getComponentType()!=null ) {
             return "["+ encodeClassName(type.getComponentType());
@@ -226,34 +431,60 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
         }
 
         final long correlation = correlationGenerator.incrementAndGet();
+        final long timeout = handler.getTimeout(method);
 
         // Encode the request before we try to pass it onto
         // IO layers so that #1 we can report encoding error back to the caller
         // and #2 reduce CPU load done in the execution queue since it's
         // serially executed.
 
-        DataByteArrayOutputStream baos = new DataByteArrayOutputStream((int) (handler.lastRequestSize*1.10));
-        baos.writeInt(0); // we don't know the size yet...
-        baos.writeVarLong(correlation);
-        writeBuffer(baos, service);
-
-        MethodData methodData = getMethodData(method);
-        writeBuffer(baos, methodData.signature);
+        BufferPool.PooledStream pooled = bufferPool.acquire((int) (handler.lastRequestSize*1.10));
+        DataByteArrayOutputStream baos = pooled.stream;
+        final ResponseFuture future;
+        final MethodData methodData;
+        MethodDefinition definition = null;
+        try {
+            baos.writeInt(0); // we don't know the size yet...
+            baos.writeVarLong(correlation);
+
+            methodData = getMethodData(method);
+            if (handler.methodIds) {
+                definition = handler.getMethodDefinition(method, methodData);
+                baos.writeVarInt(0); // an empty service marks a method id reference
+                baos.writeVarInt(definition.id);
+                if (handler.deadlines) {
+                    // Relative, the clocks of both ends may differ.
+                    baos.writeVarLong(timeout);
+                }
+            } else {
+                writeBuffer(baos, service);
+                writeBuffer(baos, methodData.signature);
+            }
 
-        final ResponseFuture future = methodData.invocationStrategy.request(methodData.serializationStrategy, classLoader, method, args, baos);
+            SerializationStrategy serializationStrategy = methodData.serializationStrategy != null
+                    ? methodData.serializationStrategy : handler.serializationStrategy;
+            future = methodData.invocationStrategy.request(serializationStrategy, classLoader, method, args, baos);
+        } catch (Exception e) {
+            pooled.release();
+            throw e;
+        }
 
         // toBuffer() is better than toByteArray() since it avoids an
-        // array copy.
-        final Buffer command = baos.toBuffer();
+        // array copy.  The stream goes back to the pool once the
+        // transport has written the request out.
+        final Buffer command = pooled.toBuffer();
 
 
         // Update the field size.
         BufferEditor editor = command.buffer().bigEndianEditor();
         editor.writeInt(command.length);
         handler.lastRequestSize = command.length;
+        final Object request = definition != null ? new DefinedRequest(command, definition) : command;
+        final EndpointStats endpointStats = getEndpointStats(address);
 
         queue().execute(new Runnable() {
             public void run() {
+                ResponseFuture tracked = new TrackedResponse(future, endpointStats);
                 try {
                     TransportPool pool = transports.get(address);
                     if (pool == null) {
@@ -261,17 +492,33 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
                         transports.put(address, pool);
                         pool.start();
                     }
-                    requests.put(correlation, future);
-                    pool.offer(command, correlation);
+                    requests.put(correlation, tracked);
+                    pool.offer(request, correlation);
                 } catch (Exception e) {
                     LOGGER.info("Error while sending request", e);
-                    future.fail(e);
+                    requests.remove(correlation);
+                    tracked.fail(new TransportFailedException(e));
                 }
             }
         });
 
-        // TODO: make that configurable, that's only for tests
-        return future.get(timeout, TimeUnit.MILLISECONDS);
+        final Runnable onTimeout = new Runnable() {
+            public void run() {
+                onTimeout(address, correlation);
+            }
+        };
+        if (methodData.invocationStrategy == BlockingInvocationStrategy.INSTANCE) {
+            try {
+                return future.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                queue().execute(onTimeout);
+                throw e;
+            }
+        } else {
+            // The caller does not wait, expire the request on our own.
+            queue().executeAfter(timeout, TimeUnit.MILLISECONDS, onTimeout);
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        }
     }
 
     private void writeBuffer(DataByteArrayOutputStream baos, Buffer value) throws IOException {
@@ -284,12 +531,40 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
         final String address;
         final UTF8Buffer service;
         final ClassLoader classLoader;
+        final boolean methodIds;
+        final boolean deadlines;
+        final SerializationStrategy serializationStrategy;
+        final long timeout;
+        final Map<String, Long> methodTimeouts;
+        final Map<Method, MethodDefinition> definitions = new HashMap<Method, MethodDefinition>();
         int lastRequestSize = 250;
 
-        public ProxyInvocationHandler(String address, String service, ClassLoader classLoader) {
+        public ProxyInvocationHandler(String address, String service, ClassLoader classLoader, boolean methodIds, boolean deadlines,
+                                      SerializationStrategy serializationStrategy, long timeout, Map<String, Long> methodTimeouts) {
             this.address = address;
             this.service = new UTF8Buffer(service);
             this.classLoader = classLoader;
+            this.methodIds = methodIds;
+            this.deadlines = deadlines;
+            this.serializationStrategy = serializationStrategy;
+            this.timeout = timeout;
+            this.methodTimeouts = methodTimeouts;
+        }
+
+        long getTimeout(Method method) {
+            Long rc = methodTimeouts.get(method.getName());
+            return rc != null ? rc : timeout;
+        }
+
+        MethodDefinition getMethodDefinition(Method method, MethodData methodData) throws IOException {
+            synchronized (definitions) {
+                MethodDefinition rc = definitions.get(method);
+                if (rc == null) {
+                    rc = new MethodDefinition(methodIdGenerator.incrementAndGet(), service, methodData.signature, deadlines);
+                    definitions.put(method, rc);
+                }
+                return rc;
+            }
         }
 
         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
@@ -300,8 +575,31 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
 
     protected class InvokerTransportPool extends TransportPool {
 
+        // The method ids already defined on each connection
+        final Map<Transport, BitSet> definitions = new WeakHashMap<Transport, BitSet>();
+
         public InvokerTransportPool(String uri, DispatchQueue queue) {
-            super(uri, queue, TransportPool.DEFAULT_POOL_SIZE, timeout << 1);
+            super(uri, queue, ClientInvokerImpl.this.poolSize, timeout << 1);
+        }
+
+        @Override
+        protected boolean doOffer(Transport transport, Object command, Object id) {
+            if (command instanceof DefinedRequest) {
+                DefinedRequest request = (DefinedRequest) command;
+                BitSet defined = definitions.get(transport);
+                if (defined == null) {
+                    defined = new BitSet();
+                    definitions.put(transport, defined);
+                }
+                if (!defined.get(request.definition.id)) {
+                    // Frames are processed in order by the server, so the definition
+                    // is known before the request referring to it.
+                    transport.offer(request.definition.frame);
+                    defined.set(request.definition.id);
+                }
+                command = request.command;
+            }
+            return super.doOffer(transport, command, id);
         }
 
         @Override
@@ -320,8 +618,8 @@ public class ClientInvokerImpl implements ClientInvoker, Dispatched {
         }
 
         @Override
-        protected void onFailure(Object id, Throwable throwable) {
-            ClientInvokerImpl.this.onFailure(id, throwable);
+        protected void onFailure(Object id, Throwable throwable, boolean sent) {
+            ClientInvokerImpl.this.onFailure(id, throwable, sent);
         }
     }
 
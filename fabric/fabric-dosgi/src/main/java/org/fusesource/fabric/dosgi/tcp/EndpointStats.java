@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.tcp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Statistics of the requests sent to a remote address: the number of
+ * requests in flight, an exponentially weighted moving average of the
+ * response latency and the transport failures.  The invoker updates them
+ * from its queue, anyone can read them.
+ * </p>
+ */
+public class EndpointStats {
+
+    // Weight of the latest sample in the moving average
+    static final double ALPHA = 0.2;
+
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile double latency = -1;
+    private volatile long lastFailure;
+
+    void onRequest() {
+        inflight.incrementAndGet();
+    }
+
+    void onResponse(long nanos) {
+        inflight.decrementAndGet();
+        double current = latency;
+        latency = current < 0 ? nanos : current + ALPHA * (nanos - current);
+    }
+
+    void onFailure() {
+        inflight.decrementAndGet();
+        failures.incrementAndGet();
+        lastFailure = System.currentTimeMillis();
+    }
+
+    /**
+     * Number of requests waiting for a response.
+     */
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    /**
+     * Average latency in nanoseconds, or -1 before the first response.
+     */
+    public double getLatency() {
+        return latency;
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Time of the last transport failure, in milliseconds, or 0.
+     */
+    public long getLastFailure() {
+        return lastFailure;
+    }
+
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.tcp;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.rmi.RemoteException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.fabric.dosgi.api.AsyncCallbackFuture;
+import org.fusesource.fabric.dosgi.api.SerializationStrategy;
+import org.fusesource.hawtbuf.DataByteArrayInputStream;
+import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+
+/**
+ * <p>
+ * Invocation strategy used for methods which return a {@link Future}.  The
+ * proxy returns right away and the returned future gets completed once the
+ * response arrives, so the calling thread is never parked while the request
+ * is in flight.
+ * </p>
+ * <p>
+ * On the server side, the outcome of the future returned by the service
+ * implementation is sent back right away when it is already done.  Otherwise
+ * it is sent once the future completes: an {@link AsyncCallbackFuture} tells
+ * when it does, any other future is polled.  No thread ever waits on a future,
+ * so the service executor (the dispatch queue of a Dispatched service) stays
+ * free to complete it.
+ * </p>
+ */
+public class FutureInvocationStrategy implements InvocationStrategy {
+
+    public static final FutureInvocationStrategy INSTANCE = new FutureInvocationStrategy();
+
+    private static final long MAX_POLL_DELAY = 100;
+
+    // Polls the futures which are not done yet when the service method returns
+    private static final ScheduledExecutorService POLLER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "DOSGi future poller");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static public boolean isFutureMethod(Method method) {
+        return method.getReturnType() == Future.class;
+    }
+
+    private class FutureResponseFuture implements ResponseFuture {
+
+        private final ClassLoader loader;
+        private final Method method;
+        private final SerializationStrategy serializationStrategy;
+        private final AsyncCallbackFuture<Object> result = new AsyncCallbackFuture<Object>();
+
+        public FutureResponseFuture(ClassLoader loader, Method method, SerializationStrategy serializationStrategy) {
+            this.loader = loader;
+            this.method = method;
+            this.serializationStrategy = serializationStrategy;
+        }
+
+        public void set(DataByteArrayInputStream source) {
+            try {
+                serializationStrategy.decodeResponse(loader, getResultType(method), source, result);
+            } catch (Throwable e) {
+                result.onFailure(e);
+            }
+        }
+
+        public Object get(long timeout, TimeUnit unit) {
+            // Don't wait, hand the future over to the caller.
+            return result;
+        }
+
+        public void fail(Throwable throwable) {
+            result.onFailure(throwable);
+        }
+    }
+
+    public ResponseFuture request(SerializationStrategy serializationStrategy, ClassLoader loader, Method method, Object[] args, DataByteArrayOutputStream target) throws Exception {
+        if (!isFutureMethod(method)) {
+            throw new IllegalArgumentException("Invalid future method declaration: return type is not a " + Future.class.getName());
+        }
+        serializationStrategy.encodeRequest(loader, method.getParameterTypes(), args, target);
+        return new FutureResponseFuture(loader, method, serializationStrategy);
+    }
+
+    public void service(SerializationStrategy serializationStrategy, ClassLoader loader, Method method, Object target, DataByteArrayInputStream requestStream, DataByteArrayOutputStream responseStream, Runnable onComplete) {
+
+        final ServiceResponse helper = new ServiceResponse(loader, method, responseStream, onComplete, serializationStrategy);
+        final Future<?> future;
+        try {
+            Class<?>[] types = method.getParameterTypes();
+            final Object[] args = new Object[types.length];
+            serializationStrategy.decodeRequest(loader, types, requestStream, args);
+            future = (Future<?>) method.invoke(target, args);
+        } catch (Throwable t) {
+            helper.send(t instanceof InvocationTargetException ? t.getCause() : t, null);
+            return;
+        }
+
+        if (future == null || future.isDone()) {
+            helper.complete(future);
+        } else if (future instanceof AsyncCallbackFuture) {
+            // Waiting on the service executor would block it, and a Dispatched service
+            // could then never complete the future from its own queue.
+            ((AsyncCallbackFuture<?>) future).addListener(new Runnable() {
+                public void run() {
+                    helper.complete(future);
+                }
+            });
+        } else {
+            poll(future, helper, 1);
+        }
+    }
+
+    /**
+     * Sends the outcome of the future once it is done, checking it less and less often.
+     */
+    private static void poll(final Future<?> future, final ServiceResponse helper, final long delay) {
+        POLLER.schedule(new Runnable() {
+            public void run() {
+                if (future.isDone()) {
+                    helper.complete(future);
+                } else {
+                    poll(future, helper, Math.min(delay * 2, MAX_POLL_DELAY));
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private class ServiceResponse {
+
+        private final ClassLoader loader;
+        private final Method method;
+        private final DataByteArrayOutputStream responseStream;
+        private final Runnable onComplete;
+        private final SerializationStrategy serializationStrategy;
+        private final int pos;
+
+        public ServiceResponse(ClassLoader loader, Method method, DataByteArrayOutputStream responseStream, Runnable onComplete, SerializationStrategy serializationStrategy) {
+            this.loader = loader;
+            this.method = method;
+            this.responseStream = responseStream;
+            this.onComplete = onComplete;
+            this.serializationStrategy = serializationStrategy;
+            pos = responseStream.position();
+        }
+
+        public void complete(Future<?> future) {
+            Object value = null;
+            Throwable error = null;
+            try {
+                if (future != null) {
+                    value = future.get();
+                }
+            } catch (ExecutionException e) {
+                error = e.getCause();
+            } catch (Throwable t) {
+                error = t;
+            }
+            send(error, value);
+        }
+
+        public void send(Throwable error, Object value) {
+            Class<?> resultType = getResultType(method);
+            try {
+                serializationStrategy.encodeResponse(loader, resultType, value, error, responseStream);
+            } catch (Exception e) {
+                // we failed to encode the response.. reposition and write that error.
+                try {
+                    responseStream.position(pos);
+                    serializationStrategy.encodeResponse(loader, resultType, null, new RemoteException(e.toString()), responseStream);
+                } catch (Exception unexpected) {
+                    unexpected.printStackTrace();
+                }
+            } finally {
+                onComplete.run();
+            }
+        }
+    }
+
+    static private Class<?> getResultType(Method method) {
+        Type type = method.getGenericReturnType();
+        if (type instanceof ParameterizedType) {
+            Type arg = ((ParameterizedType) type).getActualTypeArguments()[0];
+            if (arg instanceof Class) {
+                return (Class<?>) arg;
+            } else if (arg instanceof ParameterizedType) {
+                return (Class<?>) ((ParameterizedType) arg).getRawType();
+            }
+        }
+        return Object.class;
+    }
+
+}
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.net.ProtocolException;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.WritableByteChannel;
@@ -35,10 +36,16 @@ public class LengthPrefixedCodec implements ProtocolCodec {
 
 
     final int write_buffer_size = 1024 * 64;
+    // Maximum number of frames handed to a single gathering write.
+    final int max_gather_count = 64;
     long write_counter = 0L;
     WritableByteChannel write_channel;
+    GatheringByteChannel gathering_channel;
+    final ByteBuffer[] gather_buffers = new ByteBuffer[max_gather_count];
 
     final Queue<ByteBuffer> next_write_buffers = new LinkedList<ByteBuffer>();
+    // The pooled frame each buffer of next_write_buffers comes from, or null
+    final Queue<BufferPool.PooledBuffer> next_write_frames = new LinkedList<BufferPool.PooledBuffer>();
     int next_write_size = 0;
 
     public boolean full() {
@@ -61,6 +68,7 @@ public class LengthPrefixedCodec implements ProtocolCodec {
 
     public void setWritableByteChannel(WritableByteChannel channel) {
         this.write_channel = channel;
+        this.gathering_channel = channel instanceof GatheringByteChannel ? (GatheringByteChannel) channel : null;
         if (channel instanceof SocketChannel) {
             try {
                 ((SocketChannel) channel).socket().setSendBufferSize(write_buffer_size);
@@ -78,16 +86,20 @@ public class LengthPrefixedCodec implements ProtocolCodec {
             Buffer buffer = (Buffer) value;
             next_write_size += buffer.length;
             next_write_buffers.add(buffer.toByteBuffer());
+            next_write_frames.add(buffer instanceof BufferPool.PooledBuffer ? (BufferPool.PooledBuffer) buffer : null);
             return wasEmpty ? BufferState.WAS_EMPTY : BufferState.NOT_EMPTY;
         }
     }
 
     public BufferState flush() throws IOException {
         final long writeCounterBeforeFlush = write_counter;
+        if (gathering_channel != null) {
+            gatherFlush();
+        }
         while(!next_write_buffers.isEmpty()) {
             final ByteBuffer nextBuffer = next_write_buffers.peek();
             if (nextBuffer.remaining() < 1) {
-                next_write_buffers.remove();
+                removeWritten();
                 continue;
             }
             int bytesWritten = write_channel.write(nextBuffer);
@@ -107,6 +119,46 @@ public class LengthPrefixedCodec implements ProtocolCodec {
         return BufferState.NOT_EMPTY;
     }
 
+    /**
+     * Writes the pending frames with as few system calls as possible: all the frames
+     * queued since the last flush go out in one gathering write.
+     */
+    private void gatherFlush() throws IOException {
+        while (next_write_buffers.size() > 1) {
+            int count = 0;
+            int bytes = 0;
+            for (ByteBuffer b : next_write_buffers) {
+                if (count == max_gather_count || (count > 0 && bytes >= write_buffer_size)) {
+                    break;
+                }
+                gather_buffers[count++] = b;
+                bytes += b.remaining();
+            }
+            long bytesWritten = gathering_channel.write(gather_buffers, 0, count);
+            write_counter += bytesWritten;
+            next_write_size -= bytesWritten;
+            for (int i = 0; i < count; i++) {
+                gather_buffers[i] = null;
+            }
+            while (!next_write_buffers.isEmpty() && next_write_buffers.peek().remaining() == 0) {
+                removeWritten();
+            }
+            if (bytesWritten < bytes) {
+                // The socket buffer is full, wait for the next writable event.
+                return;
+            }
+        }
+    }
+
+    private void removeWritten() {
+        next_write_buffers.remove();
+        BufferPool.PooledBuffer frame = next_write_frames.remove();
+        if (frame != null) {
+            // Fully written, the stream it was encoded with can be reused.
+            frame.release();
+        }
+    }
+
     public long getWriteCounter() {
         return write_counter;
     }
@@ -114,7 +166,10 @@ public class LengthPrefixedCodec implements ProtocolCodec {
     long read_counter = 0L;
     int read_buffer_size = 1024 * 64;
     ReadableByteChannel read_channel = null;
-    ByteBuffer read_buffer = ByteBuffer.allocate(4);
+    // The size header of every frame is read into the same buffer.  Frame bodies are
+    // not pooled since decoded values may keep referring to them.
+    final ByteBuffer read_header = ByteBuffer.allocate(4);
+    ByteBuffer read_buffer = read_header;
 
 
     public void setReadableByteChannel(ReadableByteChannel channel) {
@@ -143,17 +198,16 @@ public class LengthPrefixedCodec implements ProtocolCodec {
                 //read buffer is full.. interpret it..
                 read_buffer.flip();
 
-                if( read_buffer.capacity() == 4 ) {
+                if( read_buffer == read_header ) {
                     // Finding out the
                     int size = read_buffer.getInt(0);
+                    read_header.clear();
                     if( size < 4 ) {
                         throw new ProtocolException("Expecting a size greater than 3");
                     }
                     if( size == 4 ) {
                         // weird.. empty frame.. guess it could happen.
-                        Buffer rc = new Buffer(read_buffer);
-                        read_buffer = ByteBuffer.allocate(4);
-                        return rc;
+                        return new Buffer(read_header.array().clone());
                     } else {
                         // Resize to the right size.. this resumes the reads..
                         ByteBuffer next = ByteBuffer.allocate(size);
@@ -163,7 +217,7 @@ public class LengthPrefixedCodec implements ProtocolCodec {
                 } else {
                     // finish loading the rest of the buffer..
                     Buffer rc = new Buffer(read_buffer);
-                    read_buffer = ByteBuffer.allocate(4);
+                    read_buffer = read_header;
                     return rc;
                 }
             }
@@ -0,0 +1,31 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.tcp;
+
+import java.io.IOException;
+
+/**
+ * Fails a request that was sent on a transport that failed before the response arrived.
+ * The remote service may have run the request, so it must not be sent again.
+ */
+public class ResponseLostException extends IOException {
+
+    public ResponseLostException(Throwable cause) {
+        super(cause.getMessage(), cause);
+    }
+
+}
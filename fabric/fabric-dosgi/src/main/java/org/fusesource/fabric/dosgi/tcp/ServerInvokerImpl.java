@@ -16,6 +16,7 @@
  */
 package org.fusesource.fabric.dosgi.tcp;
 
+import org.fusesource.fabric.dosgi.api.CompactSerializationStrategy;
 import org.fusesource.fabric.dosgi.api.Dispatched;
 import org.fusesource.fabric.dosgi.api.ObjectSerializationStrategy;
 import org.fusesource.fabric.dosgi.api.Serialization;
@@ -37,9 +38,40 @@ import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
 
 public class ServerInvokerImpl implements ServerInvoker, Dispatched {
 
+    /**
+     * Endpoint property used to advertise the wire protocol version the exporter understands.
+     */
+    public static final String PROTOCOL_VERSION_PROPERTY = "fabric.dosgi.protocol.version";
+
+    /**
+     * Version 1 sends the service id and method signature with every request, version 2
+     * lets the client define them once per connection and then refer to them by a method id,
+     * version 3 honours the {@link #SERIALIZATION_PROPERTY} endpoint property, version 4
+     * lets requests referring to a method id carry the time the caller is willing to wait,
+     * version 5 answers requests for an unknown service or method with an error frame.
+     */
+    public static final int PROTOCOL_VERSION = 5;
+
+    /**
+     * Endpoint property naming the serialization strategy used for the methods of the
+     * exported service which are not annotated with {@link Serialization}.
+     */
+    public static final String SERIALIZATION_PROPERTY = "fabric.dosgi.serialization";
+
+    /**
+     * Endpoint property giving the timeout, in milliseconds, of the calls to the exported
+     * service.  <code>fabric.dosgi.timeout.&lt;method name&gt;</code> overrides it for
+     * the methods with that name.
+     */
+    public static final String TIMEOUT_PROPERTY = "fabric.dosgi.timeout";
+
     protected static final Logger LOGGER = LoggerFactory.getLogger(ServerInvokerImpl.class);
     static private final HashMap<String, Class> PRIMITIVE_TO_CLASS = new HashMap<String, Class>(8, 1.0F);
     static {
@@ -54,16 +86,19 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
     }
 
     protected final ExecutorService blockingExecutor = Executors.newFixedThreadPool(8);
+    protected final BufferPool bufferPool = new BufferPool();
     protected final DispatchQueue queue;
     private final Map<String, SerializationStrategy> serializationStrategies;
     protected final TransportServer server;
     protected final Map<UTF8Buffer, ServiceFactoryHolder> holders = new HashMap<UTF8Buffer, ServiceFactoryHolder>();
+    private MBeanServer mbeanServer;
 
     static class MethodData {
 
         private final SerializationStrategy serializationStrategy;
         final InvocationStrategy invocationStrategy;
         final Method method;
+        int lastResponseSize = 250;
 
         MethodData(InvocationStrategy invocationStrategy, SerializationStrategy serializationStrategy, Method method) {
             this.invocationStrategy = invocationStrategy;
@@ -72,16 +107,35 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
         }
     }
 
+    static class MethodReference {
+
+        final ServiceFactoryHolder holder;
+        final MethodData methodData;
+        final boolean deadline;
+
+        MethodReference(ServiceFactoryHolder holder, MethodData methodData, boolean deadline) {
+            this.holder = holder;
+            this.methodData = methodData;
+            this.deadline = deadline;
+        }
+    }
+
     class ServiceFactoryHolder {
 
         private final ServiceFactory factory;
         private final ClassLoader loader;
         private final Class clazz;
+        private final SerializationStrategy defaultSerializationStrategy;
+        private final ServiceExecutor executor;
         private HashMap<Buffer, MethodData> method_cache = new HashMap<Buffer, MethodData>();
+        // Set once unregistered so that method ids defined on a connection stop resolving.
+        private boolean removed;
 
-        public ServiceFactoryHolder(ServiceFactory factory, ClassLoader loader) {
+        public ServiceFactoryHolder(ServiceFactory factory, ClassLoader loader, SerializationStrategy defaultSerializationStrategy, ServiceExecutor executor) {
             this.factory = factory;
             this.loader = loader;
+            this.defaultSerializationStrategy = defaultSerializationStrategy;
+            this.executor = executor;
             Object o = factory.get();
             clazz = o.getClass();
             factory.unget();
@@ -102,24 +156,24 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
                 Serialization annotation = method.getAnnotation(Serialization.class);
                 SerializationStrategy serializationStrategy;
                 if( annotation!=null ) {
-                    serializationStrategy = serializationStrategies.get(annotation.value());
-                    if( serializationStrategy==null ) {
-                        throw new RuntimeException("Could not find the serialization strategy named: "+annotation.value());
-                    }
+                    serializationStrategy = getSerializationStrategy(annotation.value());
                 } else {
-                    serializationStrategy = ObjectSerializationStrategy.INSTANCE;
+                    serializationStrategy = defaultSerializationStrategy;
                 }
 
 
                 final InvocationStrategy invocationStrategy;
                 if( AsyncInvocationStrategy.isAsyncMethod(method) ) {
                     invocationStrategy = AsyncInvocationStrategy.INSTANCE;
+                } else if( FutureInvocationStrategy.isFutureMethod(method) ) {
+                    invocationStrategy = FutureInvocationStrategy.INSTANCE;
                 } else {
                     invocationStrategy = BlockingInvocationStrategy.INSTANCE;
                 }
 
                 rc = new MethodData(invocationStrategy, serializationStrategy, method);
-                method_cache.put(data, rc);
+                // data is a view on the request frame, keep a copy of it
+                method_cache.put(data.deepCopy(), rc);
             }
             return rc;
         }
@@ -161,22 +215,66 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
         return this.server.getConnectAddress();
     }
 
+    /**
+     * Sets the MBean server the {@link ServiceExecutor} of each exported service gets registered with.
+     */
+    public void setMBeanServer(MBeanServer mbeanServer) {
+        this.mbeanServer = mbeanServer;
+    }
+
     public void registerService(final String id, final ServiceFactory service, final ClassLoader classLoader) {
+        registerService(id, service, null, classLoader);
+    }
+
+    public void registerService(final String id, final ServiceFactory service, final Map<String, Object> properties, final ClassLoader classLoader) {
+        Object serialization = properties != null ? properties.get(SERIALIZATION_PROPERTY) : null;
+        final SerializationStrategy serializationStrategy = serialization != null
+                ? getSerializationStrategy(serialization.toString()) : ObjectSerializationStrategy.INSTANCE;
+        final ServiceExecutor executor = ServiceExecutor.create(id, properties);
         queue().execute(new Runnable() {
             public void run() {
-                holders.put(new UTF8Buffer(id), new ServiceFactoryHolder(service, classLoader));
+                ServiceFactoryHolder previous = holders.put(new UTF8Buffer(id), new ServiceFactoryHolder(service, classLoader, serializationStrategy, executor));
+                if (previous != null) {
+                    dispose(previous);
+                }
+                if (mbeanServer != null) {
+                    executor.registerMBeanServer(mbeanServer);
+                }
             }
         });
     }
 
+    protected SerializationStrategy getSerializationStrategy(String name) {
+        SerializationStrategy rc = serializationStrategies.get(name);
+        if( rc==null ) {
+            if( ObjectSerializationStrategy.INSTANCE.name().equals(name) ) {
+                rc = ObjectSerializationStrategy.INSTANCE;
+            } else if( CompactSerializationStrategy.INSTANCE.name().equals(name) ) {
+                rc = CompactSerializationStrategy.INSTANCE;
+            } else {
+                throw new RuntimeException("Could not find the serialization strategy named: "+name);
+            }
+        }
+        return rc;
+    }
+
     public void unregisterService(final String id) {
         queue().execute(new Runnable() {
             public void run() {
-                holders.remove(new UTF8Buffer(id));
+                ServiceFactoryHolder holder = holders.remove(new UTF8Buffer(id));
+                if (holder != null) {
+                    dispose(holder);
+                }
             }
         });
     }
 
+    private void dispose(ServiceFactoryHolder holder) {
+        holder.removed = true;
+        holder.executor.shutdown();
+        holder.executor.unregisterMBeanServer(mbeanServer);
+    }
+
     public void start() throws Exception {
         start(null);
     }
@@ -192,6 +290,10 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
     public void stop(final Runnable onComplete) {
         this.server.stop(new Runnable() {
             public void run() {
+                for (ServiceFactoryHolder holder : holders.values()) {
+                    dispose(holder);
+                }
+                holders.clear();
                 blockingExecutor.shutdown();
                 if (onComplete != null) {
                     onComplete.run();
@@ -201,26 +303,77 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
     }
 
 
-    protected void onCommand(final Transport transport, Object data) {
+    protected void onCommand(final Transport transport, Map<Integer, MethodReference> methods, Object data) {
+        final long start = System.nanoTime();
         try {
             final DataByteArrayInputStream bais = new DataByteArrayInputStream((Buffer) data);
             final int size = bais.readInt();
             final long correlation = bais.readVarLong();
 
-            // Use UTF8Buffer instead of string to avoid encoding/decoding UTF-8 strings
-            // for every request.
-            final UTF8Buffer service = readBuffer(bais).utf8();
-            final Buffer encoded_method = readBuffer(bais);
+            if (correlation == 0) {
+                // Not a request: the client is defining a method id for this connection.
+                int id = bais.readVarInt();
+                UTF8Buffer service = readBuffer(bais).utf8();
+                Buffer encoded_method = readBuffer(bais);
+                int flags = bais.available() > 0 ? bais.readVarInt() : 0;
+                ServiceFactoryHolder holder = holders.get(service);
+                if (holder == null) {
+                    throw new IllegalArgumentException("Unknown service: " + service);
+                }
+                boolean deadline = (flags & ClientInvokerImpl.MethodDefinition.DEADLINE_FLAG) != 0;
+                methods.put(id, new MethodReference(holder, holder.getMethodData(encoded_method), deadline));
+                return;
+            }
 
-            final ServiceFactoryHolder holder = holders.get(service);
-            final MethodData methodData = holder.getMethodData(encoded_method);
+            final ServiceFactoryHolder holder;
+            final MethodData methodData;
+            // How long the caller waits for the response, 0 if unknown
+            final long timeout;
+            int length = bais.readVarInt();
+            if (length == 0) {
+                int id = bais.readVarInt();
+                MethodReference reference = methods.get(id);
+                if (reference == null || reference.holder.removed) {
+                    fail(transport, correlation, "Unknown method id: " + id);
+                    return;
+                }
+                holder = reference.holder;
+                methodData = reference.methodData;
+                timeout = reference.deadline ? bais.readVarLong() : 0;
+            } else {
+                timeout = 0;
+                // Use UTF8Buffer instead of string to avoid encoding/decoding UTF-8 strings
+                // for every request.
+                final UTF8Buffer service = new UTF8Buffer(readBuffer(bais, length));
+                final Buffer encoded_method = readBuffer(bais);
+
+                holder = holders.get(service);
+                if (holder == null) {
+                    fail(transport, correlation, "Unknown service: " + service);
+                    return;
+                }
+                try {
+                    methodData = holder.getMethodData(encoded_method);
+                } catch (Exception e) {
+                    fail(transport, correlation, "Unknown method " + encoded_method.utf8() + " of service " + service + ": " + e);
+                    return;
+                }
+            }
 
             final Object svc = holder.factory.get();
 
             Runnable task = new Runnable() {
                 public void run() {
 
-                    final DataByteArrayOutputStream baos = new DataByteArrayOutputStream();
+                    if (timeout > 0 && System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(timeout)) {
+                        // The caller already gave up on this one.
+                        holder.factory.unget();
+                        holder.executor.expired();
+                        return;
+                    }
+
+                    final BufferPool.PooledStream pooled = bufferPool.acquire((int) (methodData.lastResponseSize*1.10));
+                    final DataByteArrayOutputStream baos = pooled.stream;
                     try {
                         baos.writeInt(0); // make space for the size field.
                         baos.writeVarLong(correlation);
@@ -233,7 +386,10 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
                     methodData.invocationStrategy.service(methodData.serializationStrategy, holder.loader, methodData.method, svc, bais, baos, new Runnable() {
                         public void run() {
                             holder.factory.unget();
-                            final Buffer command = baos.toBuffer();
+                            holder.executor.done(start);
+                            // Goes back to the pool once written out by the transport.
+                            final Buffer command = pooled.toBuffer();
+                            methodData.lastResponseSize = command.length;
 
                             // Update the size field.
                             BufferEditor editor = command.buffer().bigEndianEditor();
@@ -255,17 +411,58 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
             } else {
                 executor = blockingExecutor;
             }
-            executor.execute(task);
+            try {
+                holder.executor.execute(executor, task);
+            } catch (RejectedExecutionException e) {
+                holder.factory.unget();
+                if (!holder.executor.isDiscarding()) {
+                    reject(transport, correlation, holder, methodData, e);
+                }
+            }
 
         } catch (Exception e) {
             LOGGER.info("Error while reading request", e);
         }
     }
 
+    // Answers a request which could not be dispatched with an error response.
+    private void reject(Transport transport, long correlation, ServiceFactoryHolder holder, MethodData methodData, RejectedExecutionException error) throws Exception {
+        DataByteArrayOutputStream baos = new DataByteArrayOutputStream();
+        baos.writeInt(0); // make space for the size field.
+        baos.writeVarLong(correlation);
+        methodData.serializationStrategy.encodeResponse(holder.loader, methodData.method.getReturnType(), null, error, baos);
+        Buffer command = baos.toBuffer();
+        command.buffer().bigEndianEditor().writeInt(command.length);
+        transport.offer(command);
+    }
+
+    // Answers a request which could not be matched to a service method.  The serialization
+    // strategy the caller decodes the response with is unknown, hence a dedicated frame.
+    private void fail(Transport transport, long correlation, String message) throws IOException {
+        LOGGER.debug("Failing request {}: {}", correlation, message);
+        DataByteArrayOutputStream baos = new DataByteArrayOutputStream();
+        baos.writeInt(0); // make space for the size field.
+        baos.writeVarLong(0); // the correlation id 0 marks an error frame
+        baos.writeVarLong(correlation);
+        UTF8Buffer encoded = new UTF8Buffer(message);
+        baos.writeVarInt(encoded.length);
+        baos.write(encoded);
+        Buffer command = baos.toBuffer();
+        command.buffer().bigEndianEditor().writeInt(command.length);
+        transport.offer(command);
+    }
+
     private Buffer readBuffer(DataByteArrayInputStream bais) throws IOException {
-        byte b[] = new byte[bais.readVarInt()];
-        bais.readFully(b);
-        return new Buffer(b);
+        return readBuffer(bais, bais.readVarInt());
+    }
+
+    // Returns a view on the next bytes of the frame instead of copying them.
+    private Buffer readBuffer(DataByteArrayInputStream bais, int length) throws IOException {
+        Buffer rc = bais.readBuffer(length);
+        if (rc == null || rc.length != length) {
+            throw new EOFException();
+        }
+        return rc;
     }
 
     class InvokerAcceptListener implements TransportAcceptListener {
@@ -284,8 +481,11 @@ public class ServerInvokerImpl implements ServerInvoker, Dispatched {
 
     class InvokerTransportListener implements TransportListener {
 
+        // The method ids the client defined on this connection.
+        final Map<Integer, MethodReference> methods = new HashMap<Integer, MethodReference>();
+
         public void onTransportCommand(Transport transport, Object command) {
-            ServerInvokerImpl.this.onCommand(transport, command);
+            ServerInvokerImpl.this.onCommand(transport, methods, command);
         }
 
         public void onRefill(Transport transport) {
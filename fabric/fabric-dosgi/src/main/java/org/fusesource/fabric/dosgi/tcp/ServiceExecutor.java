@@ -0,0 +1,299 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.tcp;
+
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Dispatches the requests of one exported service and keeps track of its
+ * queue depth and latency.
+ * </p>
+ * <p>
+ * Unless the {@link #THREADS_PROPERTY} export property is set, requests are
+ * run on the executor shared by all the services of the server invoker.
+ * Setting it gives the service its own thread pool so that a slow service
+ * only stalls its own callers.  The number of requests waiting for a thread
+ * can be bounded with {@link #QUEUE_PROPERTY}; requests over that bound are
+ * handled according to {@link #REJECTION_PROPERTY}.
+ * </p>
+ */
+public class ServiceExecutor implements ServiceExecutorMBean {
+
+    private static final transient Logger LOG = LoggerFactory.getLogger(ServiceExecutor.class);
+
+    /**
+     * Export property giving the number of threads dedicated to the service.
+     */
+    public static final String THREADS_PROPERTY = "fabric.dosgi.executor.threads";
+
+    /**
+     * Export property giving the maximum number of requests waiting for a thread, 0 meaning unbounded.
+     */
+    public static final String QUEUE_PROPERTY = "fabric.dosgi.executor.queue";
+
+    /**
+     * Export property selecting what happens to the requests exceeding the queue bound:
+     * {@link #REJECTION_ABORT} or {@link #REJECTION_DISCARD}.
+     */
+    public static final String REJECTION_PROPERTY = "fabric.dosgi.executor.rejection";
+
+    /**
+     * The caller gets a {@link RejectedExecutionException} back.
+     */
+    public static final String REJECTION_ABORT = "abort";
+
+    /**
+     * The request is dropped and the caller eventually times out.
+     */
+    public static final String REJECTION_DISCARD = "discard";
+
+    public static final long DEFAULT_KEEP_ALIVE = TimeUnit.MINUTES.toMillis(1);
+
+    private final String serviceId;
+    private final ThreadPoolExecutor pool;
+    private final int maximumQueueSize;
+    private final String rejectionPolicy;
+    private ObjectName objectName;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maximumLatency = new AtomicLong();
+
+    public ServiceExecutor(String serviceId) {
+        this(serviceId, 0, 0, REJECTION_ABORT);
+    }
+
+    public ServiceExecutor(final String serviceId, int threads, int maximumQueueSize, String rejectionPolicy) {
+        if (!REJECTION_ABORT.equals(rejectionPolicy) && !REJECTION_DISCARD.equals(rejectionPolicy)) {
+            throw new IllegalArgumentException("Unknown rejection policy: " + rejectionPolicy);
+        }
+        this.serviceId = serviceId;
+        this.maximumQueueSize = maximumQueueSize;
+        this.rejectionPolicy = rejectionPolicy;
+        if (threads > 0) {
+            // The queue bound is enforced in execute() so that the shared and
+            // dedicated executors behave the same.
+            pool = new ThreadPoolExecutor(threads, threads, DEFAULT_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger counter = new AtomicInteger();
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "DOSGi service " + serviceId + " #" + counter.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+        } else {
+            pool = null;
+        }
+    }
+
+    /**
+     * Creates the executor described by the export properties of a service.
+     */
+    public static ServiceExecutor create(String serviceId, Map<String, Object> properties) {
+        if (properties == null) {
+            return new ServiceExecutor(serviceId);
+        }
+        int threads = getInt(properties, THREADS_PROPERTY, 0);
+        int queue = getInt(properties, QUEUE_PROPERTY, 0);
+        Object rejection = properties.get(REJECTION_PROPERTY);
+        return new ServiceExecutor(serviceId, threads, queue,
+                rejection != null ? rejection.toString().trim().toLowerCase() : REJECTION_ABORT);
+    }
+
+    private static int getInt(Map<String, Object> properties, String name, int defaultValue) {
+        Object value = properties.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int rc = value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString().trim());
+            if (rc < 0) {
+                throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+            }
+            return rc;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+        }
+    }
+
+    /**
+     * Runs the task on the dedicated pool if there is one, on the given executor otherwise.
+     *
+     * @throws RejectedExecutionException if the queue is full or the executor has been shut down
+     */
+    public void execute(Executor fallback, final Runnable task) throws RejectedExecutionException {
+        if (maximumQueueSize > 0 && queued.get() >= maximumQueueSize) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("Too many pending requests for service " + serviceId);
+        }
+        queued.incrementAndGet();
+        try {
+            (pool != null ? pool : fallback).execute(new Runnable() {
+                public void run() {
+                    queued.decrementAndGet();
+                    active.incrementAndGet();
+                    task.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Records the completion of a request.
+     *
+     * @param start the {@link System#nanoTime()} at which the request was read
+     */
+    public void done(long start) {
+        long latency = System.nanoTime() - start;
+        active.decrementAndGet();
+        completed.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        long max = maximumLatency.get();
+        while (latency > max && !maximumLatency.compareAndSet(max, latency)) {
+            max = maximumLatency.get();
+        }
+    }
+
+    /**
+     * Records a request dropped because its caller stopped waiting before it could be serviced.
+     */
+    public void expired() {
+        active.decrementAndGet();
+        expired.incrementAndGet();
+    }
+
+    public boolean isDiscarding() {
+        return REJECTION_DISCARD.equals(rejectionPolicy);
+    }
+
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    public String getServiceId() {
+        return serviceId;
+    }
+
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public int getMaximumPoolSize() {
+        return pool != null ? pool.getMaximumPoolSize() : 0;
+    }
+
+    public int getMaximumQueueSize() {
+        return maximumQueueSize;
+    }
+
+    public String getRejectionPolicy() {
+        return rejectionPolicy;
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    public double getAverageLatency() {
+        long count = completed.get();
+        return count > 0 ? totalLatency.get() / (count * 1000000.0) : 0.0;
+    }
+
+    public double getMaximumLatency() {
+        return maximumLatency.get() / 1000000.0;
+    }
+
+    public void resetStatistics() {
+        completed.set(0);
+        rejected.set(0);
+        expired.set(0);
+        totalLatency.set(0);
+        maximumLatency.set(0);
+    }
+
+    public ObjectName getObjectName() throws MalformedObjectNameException {
+        if (objectName == null) {
+            objectName = new ObjectName("org.fusesource.fabric:type=DOSGi,service=" + ObjectName.quote(serviceId));
+        }
+        return objectName;
+    }
+
+    public void registerMBeanServer(MBeanServer mbeanServer) {
+        try {
+            ObjectName name = getObjectName();
+            if (!mbeanServer.isRegistered(name)) {
+                mbeanServer.registerMBean(this, name);
+            }
+        } catch (Exception e) {
+            LOG.warn("An error occured during mbean server registration: " + e, e);
+        }
+    }
+
+    public void unregisterMBeanServer(MBeanServer mbeanServer) {
+        if (mbeanServer != null) {
+            try {
+                ObjectName name = getObjectName();
+                if (mbeanServer.isRegistered(name)) {
+                    mbeanServer.unregisterMBean(name);
+                }
+            } catch (Exception e) {
+                LOG.warn("An error occured during mbean server unregistration: " + e, e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.tcp;
+
+/**
+ * Management interface exposing the dispatch statistics of a single exported service.
+ */
+public interface ServiceExecutorMBean {
+
+    String getServiceId();
+
+    /**
+     * @return the number of requests waiting for a thread
+     */
+    int getQueueDepth();
+
+    /**
+     * @return the number of requests currently being serviced
+     */
+    int getActiveCount();
+
+    int getMaximumPoolSize();
+
+    int getMaximumQueueSize();
+
+    String getRejectionPolicy();
+
+    long getCompletedCount();
+
+    long getRejectedCount();
+
+    /**
+     * @return the number of requests dropped because the caller had timed out before they could be serviced
+     */
+    long getExpiredCount();
+
+    /**
+     * @return the average time in milliseconds between a request being read and its response being ready
+     */
+    double getAverageLatency();
+
+    /**
+     * @return the longest time in milliseconds between a request being read and its response being ready
+     */
+    double getMaximumLatency();
+
+    void resetStatistics();
+
+}
@@ -293,6 +293,7 @@ public class TcpTransport implements Transport {
 
     int max_read_rate;
     int max_write_rate;
+    int max_write_delay;
     protected RateLimitingChannel rateLimitingChannel;
 
     class RateLimitingChannel implements ReadableByteChannel, WritableByteChannel {
@@ -610,7 +611,17 @@ public class TcpTransport implements Transport {
                 default:
                     if( drained ) {
                         drained = false;
-                        resumeWrite();
+                        if( max_write_delay > 0 ) {
+                            // Give the commands offered in the meantime a chance
+                            // to go out in the same write.
+                            dispatchQueue.executeAfter(max_write_delay, TimeUnit.MICROSECONDS, new Runnable() {
+                                public void run() {
+                                    resumeWrite();
+                                }
+                            });
+                        } else {
+                            resumeWrite();
+                        }
                     }
                     return true;
             }
@@ -828,4 +839,17 @@ public class TcpTransport implements Transport {
         this.max_write_rate = max_write_rate;
     }
 
+    public int getMax_write_delay() {
+        return max_write_delay;
+    }
+
+    /**
+     * Sets how long, in microseconds, the first command offered to an idle transport
+     * may wait for more commands to be written along with it.  Defaults to 0, in which
+     * case only the commands offered while the write is being scheduled get coalesced.
+     */
+    public void setMax_write_delay(int max_write_delay) {
+        this.max_write_delay = max_write_delay;
+    }
+
 }
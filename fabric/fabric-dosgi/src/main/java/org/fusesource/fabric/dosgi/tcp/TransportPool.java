@@ -19,6 +19,7 @@ package org.fusesource.fabric.dosgi.tcp;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
@@ -34,11 +35,23 @@ import org.fusesource.hawtdispatch.DispatchQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * <p>
+ * A pool of transports to a given uri.  Each command is sent on the writable
+ * transport with the fewest commands in flight.  The pool starts with a single
+ * transport and opens new ones, up to <code>poolSize</code>, when commands
+ * have to wait for a writable transport or when the least loaded transport
+ * has <code>growThreshold</code> commands in flight.  Transports without any
+ * command in flight for <code>evictionDelay</code> milliseconds are closed.
+ * </p>
+ */
 public abstract class TransportPool implements Service {
 
     protected static final Logger LOGGER = LoggerFactory.getLogger(TransportPool.class);
 
-    public static final int DEFAULT_POOL_SIZE = 2;
+    public static final int DEFAULT_POOL_SIZE = 8;
+
+    public static final int DEFAULT_GROW_THRESHOLD = 16;
 
     public static final long DEFAULT_EVICTION_DELAY = TimeUnit.MINUTES.toMillis(5);
 
@@ -46,10 +59,15 @@ public abstract class TransportPool implements Service {
     protected final DispatchQueue queue;
     protected final LinkedList<Pair> pending = new LinkedList<Pair>();
     protected final Map<Transport, TransportState> transports = new HashMap<Transport, TransportState>();
+    // The state of the transport each command in flight was sent on.
+    protected final Map<Object, TransportState> inflight = new HashMap<Object, TransportState>();
     protected AtomicBoolean running = new AtomicBoolean(false);
 
     protected int poolSize;
+    protected int growThreshold = DEFAULT_GROW_THRESHOLD;
     protected long evictionDelay;
+    // Number of transports started but not connected yet
+    protected int connecting;
 
     public TransportPool(String uri, DispatchQueue queue) {
         this(uri, queue, DEFAULT_POOL_SIZE, DEFAULT_EVICTION_DELAY);
@@ -68,12 +86,36 @@ public abstract class TransportPool implements Service {
 
     protected abstract void onCommand(Object command);
 
-    protected abstract void onFailure(Object id, Throwable throwable);
+    /**
+     * Called on the queue when a command fails to complete.
+     *
+     * @param sent whether the command was handed to a transport, in which case the remote
+     *             end may have received and processed it
+     */
+    protected abstract void onFailure(Object id, Throwable throwable, boolean sent);
+
+    public int getGrowThreshold() {
+        return growThreshold;
+    }
+
+    public void setGrowThreshold(int growThreshold) {
+        this.growThreshold = growThreshold;
+    }
 
     protected void onDone(Object id) {
-        for (TransportState state : transports.values()) {
-            if (state.inflight.remove(id)) {
-                break;
+        TransportState state = inflight.remove(id);
+        if (state != null) {
+            state.inflight.remove(id);
+            if (state.inflight.isEmpty()) {
+                scheduleEviction(state);
+            }
+        } else if (!pending.isEmpty()) {
+            // Given up on before it could even be sent
+            for (Iterator<Pair> it = pending.iterator(); it.hasNext();) {
+                if (it.next().id.equals(id)) {
+                    it.remove();
+                    break;
+                }
             }
         }
     }
@@ -98,24 +140,59 @@ public abstract class TransportPool implements Service {
     }
 
     protected boolean doOffer(Transport transport, Object command, Object id) {
-        transports.get(transport).inflight.add(id);
+        TransportState state = transports.get(transport);
+        state.inflight.add(id);
+        state.activity++;
+        inflight.put(id, state);
         return transport.offer(command);
     }
 
+    /**
+     * Returns the writable transport with the fewest commands in flight, if any, and
+     * starts a new transport when none is writable or the least loaded one is busy.
+     */
     protected Transport getIdleTransport() {
+        Transport transport = null;
+        int load = Integer.MAX_VALUE;
         for (Map.Entry<Transport, TransportState> entry : transports.entrySet()) {
-            if (entry.getValue().time > 0) {
-                return entry.getKey();
+            TransportState state = entry.getValue();
+            if (state.time > 0 && state.inflight.size() < load) {
+                transport = entry.getKey();
+                load = state.inflight.size();
             }
         }
-        if (transports.size() < poolSize) {
+        if ((transport == null || load >= growThreshold) && connecting == 0 && transports.size() < poolSize) {
             try {
                 startNewTransport();
             } catch (Exception e) {
                 LOGGER.info("Unable to start new transport", e);
             }
         }
-        return null;
+        return transport;
+    }
+
+    protected void scheduleEviction(final TransportState state) {
+        if (evictionDelay <= 0 || state.evictionScheduled) {
+            return;
+        }
+        state.evictionScheduled = true;
+        final long activity = state.activity;
+        queue.executeAfter(evictionDelay, TimeUnit.MILLISECONDS, new Runnable() {
+            public void run() {
+                state.evictionScheduled = false;
+                if (transports.get(state.transport) != state || !state.inflight.isEmpty()) {
+                    // Gone or busy: the next completed command will reschedule it.
+                    return;
+                }
+                if (state.activity == activity) {
+                    LOGGER.debug("Closing idle transport to: {}", uri);
+                    transports.remove(state.transport);
+                    state.transport.stop();
+                } else {
+                    scheduleEviction(state);
+                }
+            }
+        });
     }
 
     public void start() throws Exception {
@@ -140,7 +217,7 @@ public abstract class TransportPool implements Service {
                             if (latch.decrementAndGet() == 0) {
                                 while (!pending.isEmpty()) {
                                     Pair p = pending.removeFirst();
-                                    onFailure(p.id, new IOException("Transport stopped"));
+                                    onFailure(p.id, new IOException("Transport stopped"), false);
                                 }
                                 onComplete.run();
                             }
@@ -151,11 +228,13 @@ public abstract class TransportPool implements Service {
                         TransportState state = transports.remove(transport);
                         if (state != null) {
                             for (Object id : state.inflight) {
-                                onFailure(id, new IOException("Transport stopped"));
+                                inflight.remove(id);
+                                onFailure(id, new IOException("Transport stopped"), true);
                             }
                         }
                         transport.stop(coutDown);
                     }
+                    connecting = 0;
                 }
             });
         } else {
@@ -169,7 +248,8 @@ public abstract class TransportPool implements Service {
         transport.setDispatchQueue(queue);
         transport.setProtocolCodec(createCodec());
         transport.setTransportListener(new Listener());
-        transports.put(transport, new TransportState());
+        transports.put(transport, new TransportState(transport));
+        connecting++;
         transport.start();
     }
 
@@ -184,10 +264,16 @@ public abstract class TransportPool implements Service {
     }
 
     protected static class TransportState {
+        final Transport transport;
         long time;
         final Set<Object> inflight;
+        boolean connected;
+        // Bumped for every command sent, tells the eviction whether the transport was used meanwhile
+        long activity;
+        boolean evictionScheduled;
 
-        public TransportState() {
+        public TransportState(Transport transport) {
+            this.transport = transport;
             time = 0;
             inflight = new HashSet<Object>();
         }
@@ -200,6 +286,10 @@ public abstract class TransportPool implements Service {
         }
 
         public void onRefill(final Transport transport) {
+            TransportState state = transports.get(transport);
+            if (state == null) {
+                return;
+            }
             while (pending.size() > 0 &&  !transport.full()) {
                 Pair pair = pending.removeFirst();
                 boolean accepted = doOffer(transport, pair.command, pair.id);
@@ -207,20 +297,11 @@ public abstract class TransportPool implements Service {
             }
 
             if( transport.full() ) {
-                transports.get(transport).time = 0L;
+                state.time = 0L;
             } else {
-                final long time = System.currentTimeMillis();
-                transports.get(transport).time = time;
-                if (evictionDelay > 0) {
-                    queue.executeAfter(evictionDelay, TimeUnit.MILLISECONDS, new Runnable() {
-                        public void run() {
-                            TransportState state = transports.get(transport);
-                            if (state != null && state.time == time) {
-                                transports.remove(transport);
-                                transport.stop();
-                            }
-                        }
-                    });
+                state.time = System.currentTimeMillis();
+                if (state.inflight.isEmpty()) {
+                    scheduleEviction(state);
                 }
             }
 
@@ -231,21 +312,30 @@ public abstract class TransportPool implements Service {
                 LOGGER.info("Transport failure", error);
                 TransportState state = transports.remove(transport);
                 if (state != null) {
+                    if (!state.connected) {
+                        connecting--;
+                    }
                     for (Object id : state.inflight) {
-                        onFailure(id, error);
+                        inflight.remove(id);
+                        onFailure(id, error, true);
                     }
                 }
                 transport.stop();
                 if (transports.isEmpty()) {
                     while (!pending.isEmpty()) {
                         Pair p = pending.removeFirst();
-                        onFailure(p.id, error);
+                        onFailure(p.id, error, false);
                     }
                 }
             }
         }
 
         public void onTransportConnected(Transport transport) {
+            TransportState state = transports.get(transport);
+            if (state != null && !state.connected) {
+                state.connected = true;
+                connecting--;
+            }
             transport.resumeRead();
             onRefill(transport);
         }
@@ -19,12 +19,17 @@ package org.fusesource.fabric.dosgi;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Proxy;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.fusesource.fabric.dosgi.api.*;
@@ -37,6 +42,8 @@ import org.junit.Test;
 
 import static org.fusesource.hawtdispatch.Dispatch.createQueue;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class InvocationTest {
     final static long MILLIS_IN_A_NANO = TimeUnit.MILLISECONDS.toNanos(1);
@@ -88,6 +95,9 @@ public class InvocationTest {
             hello.hello("Hiram", future1);
             assertEquals("Hello Hiram!", future1.get(2, TimeUnit.SECONDS));
 
+            Future<String> future3 = hello.helloFuture("Future");
+            assertEquals("Hello Future!", future3.get(2, TimeUnit.SECONDS));
+
             assertEquals("Hello Hiram!", hello.protobuf(stringValue("Hiram")).getValue());
 
             AsyncCallbackFuture<StringValue.Getter> future2 = new AsyncCallbackFuture<StringValue.Getter>();
@@ -101,6 +111,238 @@ public class InvocationTest {
         }
     }
 
+    @Test
+    public void testInvokeFutureCompletedLater() throws Exception {
+
+        DispatchQueue queue = Dispatch.createQueue();
+        HashMap<String, SerializationStrategy> map = new HashMap<String, SerializationStrategy>();
+        map.put("protobuf", new ProtobufSerializationStrategy());
+
+        ServerInvokerImpl server = new ServerInvokerImpl("tcp://localhost:0", queue, map);
+        server.start();
+
+        ClientInvokerImpl client = new ClientInvokerImpl(queue, map);
+        client.start();
+
+        try {
+            final HelloImpl impl = new HelloImpl();
+            server.registerService("service-id", new ServerInvoker.ServiceFactory() {
+                public Object get() {
+                    return impl;
+                }
+                public void unget() {
+                }
+            }, HelloImpl.class.getClassLoader());
+
+            InvocationHandler handler = client.getProxy(server.getConnectAddress(), "service-id", HelloImpl.class.getClassLoader());
+            Hello hello  = (Hello) Proxy.newProxyInstance(HelloImpl.class.getClassLoader(), new Class[] { Hello.class }, handler);
+
+            Future<String> later = hello.helloFutureLater("Later", 500);
+            Future<String> polled = hello.helloFutureTaskLater("Polled", 500);
+            // The service queue keeps serving requests while the futures are pending
+            assertEquals("Hello Fabric!", hello.hello("Fabric"));
+            assertEquals("Hello Later!", later.get(5, TimeUnit.SECONDS));
+            assertEquals("Hello Polled!", polled.get(5, TimeUnit.SECONDS));
+        }
+        finally {
+            server.stop();
+            client.stop();
+        }
+    }
+
+    @Test
+    public void testInvokeUnknownService() throws Exception {
+
+        DispatchQueue queue = Dispatch.createQueue();
+        HashMap<String, SerializationStrategy> map = new HashMap<String, SerializationStrategy>();
+        map.put("protobuf", new ProtobufSerializationStrategy());
+
+        ServerInvokerImpl server = new ServerInvokerImpl("tcp://localhost:0", queue, map);
+        server.start();
+
+        ClientInvokerImpl client = new ClientInvokerImpl(queue, map);
+        client.start();
+
+        try {
+            server.registerService("service-id", new ServerInvoker.ServiceFactory() {
+                public Object get() {
+                    return new HelloImpl();
+                }
+                public void unget() {
+                }
+            }, HelloImpl.class.getClassLoader());
+
+            // Each request carries the service id
+            InvocationHandler handler = client.getProxy(server.getConnectAddress(), "unknown-id", HelloImpl.class.getClassLoader());
+            Hello hello  = (Hello) Proxy.newProxyInstance(HelloImpl.class.getClassLoader(), new Class[] { Hello.class }, handler);
+            assertFailsRemotely(hello);
+
+            // Requests refer to a method id
+            HashMap<String, Object> properties = new HashMap<String, Object>();
+            properties.put(ServerInvokerImpl.PROTOCOL_VERSION_PROPERTY, ServerInvokerImpl.PROTOCOL_VERSION);
+            handler = client.getProxy(server.getConnectAddress(), "service-id", properties, HelloImpl.class.getClassLoader());
+            hello  = (Hello) Proxy.newProxyInstance(HelloImpl.class.getClassLoader(), new Class[] { Hello.class }, handler);
+            AsyncCallbackFuture<String> future = new AsyncCallbackFuture<String>();
+            hello.hello("Fabric", future);
+            assertEquals("Hello Fabric!", future.get(2, TimeUnit.SECONDS));
+
+            server.unregisterService("service-id");
+            assertFailsRemotely(hello);
+        }
+        finally {
+            server.stop();
+            client.stop();
+        }
+    }
+
+    // The caller gets an error right away instead of waiting for the timeout
+    private static void assertFailsRemotely(Hello hello) throws Exception {
+        AsyncCallbackFuture<String> future = new AsyncCallbackFuture<String>();
+        hello.hello("Fabric", future);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Expected an error");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RemoteException);
+        }
+    }
+
+    @Test
+    public void testInvokeWithMethodIds() throws Exception {
+
+        DispatchQueue queue = Dispatch.createQueue();
+        HashMap<String, SerializationStrategy> map = new HashMap<String, SerializationStrategy>();
+        map.put("protobuf", new ProtobufSerializationStrategy());
+
+        ServerInvokerImpl server = new ServerInvokerImpl("tcp://localhost:0", queue, map);
+        server.start();
+
+        ClientInvokerImpl client = new ClientInvokerImpl(queue, map);
+        client.start();
+
+        try {
+            server.registerService("service-id", new ServerInvoker.ServiceFactory() {
+                public Object get() {
+                    return new HelloImpl();
+                }
+                public void unget() {
+                }
+            }, HelloImpl.class.getClassLoader());
+
+            HashMap<String, Object> properties = new HashMap<String, Object>();
+            properties.put(ServerInvokerImpl.PROTOCOL_VERSION_PROPERTY, ServerInvokerImpl.PROTOCOL_VERSION);
+            InvocationHandler handler = client.getProxy(server.getConnectAddress(), "service-id", properties, HelloImpl.class.getClassLoader());
+            Hello hello  = (Hello) Proxy.newProxyInstance(HelloImpl.class.getClassLoader(), new Class[] { Hello.class }, handler);
+
+            // Invoke each method more than once so that both the method definition
+            // and the method id reference paths are used.
+            for (int i = 0; i < 3; i++) {
+                assertEquals("Hello Fabric!", hello.hello("Fabric"));
+                assertEquals("Hello World!", hello.helloworld());
+                assertEquals('a', hello.mix(0));
+                assertEquals('f', hello.mix(new Integer[0][0]));
+                assertEquals("Hello Hiram!", hello.protobuf(stringValue("Hiram")).getValue());
+            }
+        }
+        finally {
+            server.stop();
+            client.stop();
+        }
+    }
+
+    @Test
+    public void testInvokeWithTimeout() throws Exception {
+
+        DispatchQueue queue = Dispatch.createQueue();
+        HashMap<String, SerializationStrategy> map = new HashMap<String, SerializationStrategy>();
+
+        ServerInvokerImpl server = new ServerInvokerImpl("tcp://localhost:0", queue, map);
+        server.start();
+
+        ClientInvokerImpl client = new ClientInvokerImpl(queue, map);
+        client.start();
+
+        try {
+            server.registerService("service-id", new ServerInvoker.ServiceFactory() {
+                public Object get() {
+                    return new HelloImpl();
+                }
+                public void unget() {
+                }
+            }, HelloImpl.class.getClassLoader());
+
+            HashMap<String, Object> properties = new HashMap<String, Object>();
+            properties.put(ServerInvokerImpl.PROTOCOL_VERSION_PROPERTY, ServerInvokerImpl.PROTOCOL_VERSION);
+            properties.put(ServerInvokerImpl.TIMEOUT_PROPERTY + ".helloLater", "100");
+            InvocationHandler handler = client.getProxy(server.getConnectAddress(), "service-id", properties, HelloImpl.class.getClassLoader());
+            Hello hello  = (Hello) Proxy.newProxyInstance(HelloImpl.class.getClassLoader(), new Class[] { Hello.class }, handler);
+
+            AsyncCallbackFuture<String> future = new AsyncCallbackFuture<String>();
+            long t0 = System.currentTimeMillis();
+            hello.helloLater("Fabric", 1000, future);
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("Expected a timeout");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            assertTrue(System.currentTimeMillis() - t0 < 1000);
+
+            // The other methods use the default timeout
+            assertEquals("Hello Fabric!", hello.hello("Fabric"));
+        }
+        finally {
+            server.stop();
+            client.stop();
+        }
+    }
+
+    @Test
+    public void testInvokeWithDefaultSerialization() throws Exception {
+
+        DispatchQueue queue = Dispatch.createQueue();
+        HashMap<String, SerializationStrategy> map = new HashMap<String, SerializationStrategy>();
+        map.put("protobuf", new ProtobufSerializationStrategy());
+
+        ServerInvokerImpl server = new ServerInvokerImpl("tcp://localhost:0", queue, map);
+        server.start();
+
+        ClientInvokerImpl client = new ClientInvokerImpl(queue, map);
+        client.start();
+
+        try {
+            HashMap<String, Object> properties = new HashMap<String, Object>();
+            properties.put(ServerInvokerImpl.PROTOCOL_VERSION_PROPERTY, ServerInvokerImpl.PROTOCOL_VERSION);
+            properties.put(ServerInvokerImpl.SERIALIZATION_PROPERTY, CompactSerializationStrategy.INSTANCE.name());
+
+            server.registerService("service-id", new ServerInvoker.ServiceFactory() {
+                public Object get() {
+                    return new HelloImpl();
+                }
+                public void unget() {
+                }
+            }, properties, HelloImpl.class.getClassLoader());
+
+            InvocationHandler handler = client.getProxy(server.getConnectAddress(), "service-id", properties, HelloImpl.class.getClassLoader());
+            Hello hello  = (Hello) Proxy.newProxyInstance(HelloImpl.class.getClassLoader(), new Class[] { Hello.class }, handler);
+
+            assertEquals("Hello Fabric!", hello.hello("Fabric"));
+            assertEquals('b', hello.mix(new int[]{0}));
+            assertEquals('d', hello.mix(new Integer[]{new Integer(0)}));
+
+            AsyncCallbackFuture<String> future = new AsyncCallbackFuture<String>();
+            hello.hello("Hiram", future);
+            assertEquals("Hello Hiram!", future.get(2, TimeUnit.SECONDS));
+
+            // annotated methods keep their own serialization
+            assertEquals("Hello Hiram!", hello.protobuf(stringValue("Hiram")).getValue());
+        }
+        finally {
+            server.stop();
+            client.stop();
+        }
+    }
+
     @Test
     public void testOverflowAsync() throws Exception {
 
@@ -480,6 +722,18 @@ public class InvocationTest {
         // async version of the hello method.
         void hello(String name, AsyncCallback<String> callback);
 
+        // future version of the hello method.
+        Future<String> helloFuture(String name);
+
+        // future version of the hello method, completed after the given delay
+        Future<String> helloFutureLater(String name, long delay);
+
+        // same as above, with a future which does not tell when it completes
+        Future<String> helloFutureTaskLater(String name, long delay);
+
+        // answers after the given delay
+        void helloLater(String name, long delay, AsyncCallback<String> callback);
+
         String helloworld();
 
         char mix(int value);
@@ -541,6 +795,44 @@ public class InvocationTest {
             callback.onSuccess(hello(name));
         }
 
+        public Future<String> helloFuture(String name) {
+            queueCheck();
+            AsyncCallbackFuture<String> future = new AsyncCallbackFuture<String>();
+            future.onSuccess(hello(name));
+            return future;
+        }
+
+        public Future<String> helloFutureLater(final String name, long delay) {
+            queueCheck();
+            final AsyncCallbackFuture<String> future = new AsyncCallbackFuture<String>();
+            // Completed from our own queue, which must not be blocked meanwhile
+            queue.executeAfter(delay, TimeUnit.MILLISECONDS, new Runnable() {
+                public void run() {
+                    future.onSuccess(hello(name));
+                }
+            });
+            return future;
+        }
+
+        public Future<String> helloFutureTaskLater(final String name, long delay) {
+            queueCheck();
+            FutureTask<String> future = new FutureTask<String>(new Callable<String>() {
+                public String call() {
+                    return hello(name);
+                }
+            });
+            queue.executeAfter(delay, TimeUnit.MILLISECONDS, future);
+            return future;
+        }
+
+        public void helloLater(final String name, long delay, final AsyncCallback<String> callback) {
+            queue.executeAfter(delay, TimeUnit.MILLISECONDS, new Runnable() {
+                public void run() {
+                    callback.onSuccess(hello(name));
+                }
+            });
+        }
+
         public char mix(int value) {
             queueCheck();
             return 'a';
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.api;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.hawtbuf.DataByteArrayInputStream;
+import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompactSerializationStrategyTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Person person = person("Hiram", 42);
+        person.friends.add(person);
+        person.tags.put("color", Color.BLUE);
+        person.scores = new int[] { 1, -2, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        person.birth = new Date(1000L);
+        person.nickname = "nope";
+
+        Class<?>[] types = new Class<?>[] { Person.class, long.class, String.class, Object.class };
+        Object[] args = new Object[] { person, Long.MIN_VALUE, "hello", null };
+
+        DataByteArrayOutputStream baos = new DataByteArrayOutputStream();
+        CompactSerializationStrategy.INSTANCE.encodeRequest(getClass().getClassLoader(), types, args, baos);
+
+        Object[] decoded = new Object[types.length];
+        CompactSerializationStrategy.INSTANCE.decodeRequest(getClass().getClassLoader(), types, new DataByteArrayInputStream(baos.toBuffer()), decoded);
+
+        Person copy = (Person) decoded[0];
+        assertEquals("Hiram", copy.name);
+        assertEquals(42, copy.age);
+        assertSame(copy, copy.friends.get(0));
+        assertEquals(Color.BLUE, copy.tags.get("color"));
+        assertArrayEquals(person.scores, copy.scores);
+        assertEquals(1000L, copy.birth.getTime());
+        assertNull(copy.nickname);
+        assertEquals(Long.MIN_VALUE, decoded[1]);
+        assertEquals("hello", decoded[2]);
+        assertNull(decoded[3]);
+    }
+
+    @Test
+    public void testFailureResponse() throws Exception {
+        DataByteArrayOutputStream baos = new DataByteArrayOutputStream();
+        CompactSerializationStrategy.INSTANCE.encodeResponse(getClass().getClassLoader(), String.class, null, new IllegalStateException("boom"), baos);
+
+        AsyncCallbackFuture<Object> future = new AsyncCallbackFuture<Object>();
+        CompactSerializationStrategy.INSTANCE.decodeResponse(getClass().getClassLoader(), String.class, new DataByteArrayInputStream(baos.toBuffer()), future);
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("Expected the decoded failure");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+            assertEquals("boom", e.getCause().getMessage());
+        }
+    }
+
+    static Person person(String name, int age) {
+        Person person = new Person();
+        person.name = name;
+        person.age = age;
+        return person;
+    }
+
+    enum Color {
+        RED, BLUE
+    }
+
+    static class Person implements Serializable {
+        String name;
+        int age;
+        int[] scores;
+        Date birth;
+        transient String nickname;
+        List<Person> friends = new ArrayList<Person>();
+        Map<String, Color> tags = new HashMap<String, Color>();
+    }
+
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.fusesource.fabric.dosgi.api.SerializationStrategy;
+import org.fusesource.fabric.dosgi.tcp.ClientInvokerImpl;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class EndpointSelectorTest {
+
+    private final ClientInvokerImpl client = new ClientInvokerImpl(Dispatch.createQueue(), new HashMap<String, SerializationStrategy>());
+
+    @Test
+    public void testLocalEndpointsFirst() throws Exception {
+        EndpointDescription near = endpoint("near", "tcp://localhost:2543");
+        EndpointDescription far = endpoint("far", "tcp://far.example.com:2543");
+        List<EndpointDescription> candidates = Arrays.asList(far, near);
+
+        EndpointSelector selector = new EndpointSelector(client, EndpointSelector.Policy.LOCAL, Collections.singleton("localhost"));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(near, selector.select(candidates, Collections.<EndpointDescription>emptyList()));
+        }
+        // Falls back to the remote endpoint
+        assertEquals(far, selector.select(candidates, Collections.singletonList(near)));
+        assertNull(selector.select(candidates, candidates));
+    }
+
+    @Test
+    public void testCheapestEndpoint() throws Exception {
+        EndpointDescription fast = endpoint("fast", "tcp://host1:2543");
+        EndpointDescription slow = endpoint("slow", "tcp://host2:2543");
+        List<EndpointDescription> candidates = Arrays.asList(slow, fast);
+
+        final Map<EndpointDescription, Double> costs = new HashMap<EndpointDescription, Double>();
+        costs.put(fast, 1.0);
+        costs.put(slow, 10.0);
+        EndpointSelector selector = new EndpointSelector(client, EndpointSelector.Policy.BALANCED, Collections.<String>emptySet()) {
+            @Override
+            protected double getCost(EndpointDescription endpoint) {
+                return costs.get(endpoint);
+            }
+        };
+        for (int i = 0; i < 10; i++) {
+            assertEquals(fast, selector.select(candidates, Collections.<EndpointDescription>emptyList()));
+        }
+        costs.put(fast, 100.0);
+        assertEquals(slow, selector.select(candidates, Collections.<EndpointDescription>emptyList()));
+    }
+
+    private EndpointDescription endpoint(String id, String address) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("objectClass", new String[] { "org.acme.Hello" });
+        properties.put("endpoint.id", id);
+        properties.put("service.imported.configs", new String[] { Manager.CONFIG });
+        properties.put(Manager.FABRIC_ADDRESS, address);
+        return new EndpointDescription(properties);
+    }
+
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.tcp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testSizeClass() throws Exception {
+        assertEquals(BufferPool.MIN_SIZE_CLASS, BufferPool.sizeClass(0));
+        assertEquals(BufferPool.MIN_SIZE_CLASS, BufferPool.sizeClass(256));
+        assertEquals(9, BufferPool.sizeClass(257));
+        assertEquals(16, BufferPool.sizeClass(64 * 1024));
+        assertEquals(17, BufferPool.sizeClass(64 * 1024 + 1));
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        BufferPool pool = new BufferPool();
+        BufferPool.PooledStream first = pool.acquire(300);
+        first.stream.writeInt(42);
+        BufferPool.PooledBuffer buffer = first.toBuffer();
+        assertEquals(4, buffer.length);
+
+        buffer.release();
+        // releasing twice must not hand the stream out twice
+        buffer.release();
+        assertEquals(1, pool.getPooledCount());
+
+        BufferPool.PooledStream second = pool.acquire(400);
+        assertSame(first, second);
+        assertEquals(0, second.stream.position());
+        assertEquals(0, pool.getPooledCount());
+
+        // different size class
+        assertNotSame(first, pool.acquire(100));
+    }
+
+    @Test
+    public void testBounds() throws Exception {
+        BufferPool pool = new BufferPool(1);
+        BufferPool.PooledStream s1 = pool.acquire(100);
+        BufferPool.PooledStream s2 = pool.acquire(100);
+        s1.release();
+        s2.release();
+        assertEquals(1, pool.getPooledCount());
+
+        // Too big to be pooled
+        pool.acquire(1024 * 1024).release();
+        assertEquals(1, pool.getPooledCount());
+    }
+
+    @Test
+    public void testReleasedOnceWritten() throws Exception {
+        BufferPool pool = new BufferPool();
+        BufferPool.PooledStream stream = pool.acquire(100);
+        stream.stream.write(new Buffer(new byte[] {1, 2, 3, 4, 5, 6}));
+        Buffer frame = stream.toBuffer();
+
+        LengthPrefixedCodec codec = new LengthPrefixedCodec();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.setWritableByteChannel(Channels.newChannel(out));
+        codec.write(frame);
+        assertEquals(0, pool.getPooledCount());
+        codec.flush();
+        assertEquals(6, out.size());
+        assertEquals(1, pool.getPooledCount());
+    }
+
+}
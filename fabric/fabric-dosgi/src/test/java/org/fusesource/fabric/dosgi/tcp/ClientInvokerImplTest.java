@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.tcp;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.fusesource.fabric.dosgi.api.SerializationStrategy;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ClientInvokerImplTest {
+
+    public static interface Hello {
+        String hello(String name);
+        String bye(String name);
+        String later(String name);
+    }
+
+    @Test
+    public void testTimeouts() throws Exception {
+        ClientInvokerImpl client = new ClientInvokerImpl(Dispatch.createQueue(), 1000, new HashMap<String, SerializationStrategy>());
+
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(ServerInvokerImpl.TIMEOUT_PROPERTY, "5000");
+        properties.put(ServerInvokerImpl.TIMEOUT_PROPERTY + ".bye", "200");
+        properties.put(ServerInvokerImpl.TIMEOUT_PROPERTY + ".later", "invalid");
+        ClientInvokerImpl.ProxyInvocationHandler handler = (ClientInvokerImpl.ProxyInvocationHandler)
+                client.getProxy("tcp://localhost:0", "service-id", properties, getClass().getClassLoader());
+
+        assertEquals(5000, handler.getTimeout(method("hello")));
+        assertEquals(200, handler.getTimeout(method("bye")));
+        // Invalid method timeouts use the one of the service
+        assertEquals(5000, handler.getTimeout(method("later")));
+
+        handler = (ClientInvokerImpl.ProxyInvocationHandler)
+                client.getProxy("tcp://localhost:0", "service-id", new HashMap<String, Object>(), getClass().getClassLoader());
+        assertEquals(1000, handler.getTimeout(method("hello")));
+    }
+
+    private static Method method(String name) throws NoSuchMethodException {
+        return Hello.class.getMethod(name, String.class);
+    }
+}
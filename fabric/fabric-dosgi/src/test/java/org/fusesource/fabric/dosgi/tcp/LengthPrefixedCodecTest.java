@@ -21,6 +21,7 @@ import static org.junit.Assert.*;
 
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 
@@ -132,6 +133,67 @@ public class LengthPrefixedCodecTest {
 		assertEquals(bytesThatWillBeWritten, codec.getWriteCounter());
 	}
 
+	@Test
+	public void testFlush$Gathering() throws Exception {
+		final GatheringByteChannel gatheringByteChannel = createMock(GatheringByteChannel.class);
+		codec.setWritableByteChannel(gatheringByteChannel);
+		final Buffer value1 = Buffer.ascii("TESTDATA");
+		final Buffer value2 = Buffer.ascii("MORETESTDATA");
+		codec.write(value1);
+		codec.write(value2);
+		final int bytesThatWillBeWritten = value1.length() + value2.length();
+		expect(gatheringByteChannel.write((ByteBuffer[]) anyObject(), eq(0), eq(2))).andAnswer(createGatheringWriteAnswer(bytesThatWillBeWritten));
+		replay(gatheringByteChannel);
+
+		final BufferState state = codec.flush();
+
+		verify(gatheringByteChannel);
+		assertEquals(BufferState.EMPTY, state);
+		assertEquals(true, codec.empty());
+		assertEquals(bytesThatWillBeWritten, codec.getWriteCounter());
+	}
+
+	@Test
+	public void testFlush$GatheringPartially() throws Exception {
+		final GatheringByteChannel gatheringByteChannel = createMock(GatheringByteChannel.class);
+		codec.setWritableByteChannel(gatheringByteChannel);
+		final Buffer value1 = Buffer.ascii("TESTDATA");
+		final Buffer value2 = Buffer.ascii("MORETESTDATA");
+		codec.write(value1);
+		codec.write(value2);
+		final int bytesThatWillBeWritten = value1.length() + 2;
+		expect(gatheringByteChannel.write((ByteBuffer[]) anyObject(), eq(0), eq(2))).andAnswer(createGatheringWriteAnswer(bytesThatWillBeWritten));
+		expect(gatheringByteChannel.write((ByteBuffer) anyObject())).andReturn(0);
+		replay(gatheringByteChannel);
+
+		final BufferState state = codec.flush();
+
+		verify(gatheringByteChannel);
+		assertEquals(BufferState.NOT_EMPTY, state);
+		assertEquals(false, codec.empty());
+		assertEquals(bytesThatWillBeWritten, codec.getWriteCounter());
+	}
+
+	private IAnswer<Long> createGatheringWriteAnswer(final int length) {
+		return new IAnswer<Long>() {
+			@Override
+			public Long answer() throws Throwable {
+				final ByteBuffer[] buffers = (ByteBuffer[]) getCurrentArguments()[0];
+				int remaining = length;
+				for (ByteBuffer buffer : buffers) {
+					if (buffer == null || remaining == 0)
+						break;
+					final int count = Math.min(remaining, buffer.remaining());
+					buffer.position(buffer.position() + count);
+					remaining -= count;
+				}
+				if(remaining > 0)
+					throw new BufferUnderflowException();
+				return (long) length;
+			}
+		};
+	}
+
 	private IAnswer<Integer> createWriteAnswer(final int length) {
 		return new IAnswer<Integer>() {
 			@Override
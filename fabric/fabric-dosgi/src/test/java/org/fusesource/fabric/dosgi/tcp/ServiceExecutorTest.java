@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.tcp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ServiceExecutorTest {
+
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test
+    public void testCreateFromProperties() throws Exception {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(ServiceExecutor.THREADS_PROPERTY, "4");
+        properties.put(ServiceExecutor.QUEUE_PROPERTY, 10);
+        properties.put(ServiceExecutor.REJECTION_PROPERTY, "Discard");
+        ServiceExecutor executor = ServiceExecutor.create("svc", properties);
+        try {
+            assertEquals(4, executor.getMaximumPoolSize());
+            assertEquals(10, executor.getMaximumQueueSize());
+            assertTrue(executor.isDiscarding());
+        } finally {
+            executor.shutdown();
+        }
+
+        executor = ServiceExecutor.create("svc", null);
+        assertEquals(0, executor.getMaximumPoolSize());
+        assertEquals(0, executor.getMaximumQueueSize());
+        assertFalse(executor.isDiscarding());
+
+        properties.put(ServiceExecutor.THREADS_PROPERTY, "many");
+        try {
+            ServiceExecutor.create("svc", properties);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testQueueBound() throws Exception {
+        final ServiceExecutor executor = new ServiceExecutor("svc", 1, 1, ServiceExecutor.REJECTION_ABORT);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        try {
+            final long start = System.nanoTime();
+            Runnable blocking = new Runnable() {
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                    }
+                    executor.done(start);
+                    done.countDown();
+                }
+            };
+            executor.execute(DIRECT, blocking);
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            // The only thread is busy, so this one waits in the queue...
+            executor.execute(DIRECT, blocking);
+            assertEquals(1, executor.getQueueDepth());
+            assertEquals(1, executor.getActiveCount());
+
+            // ... and this one goes over the bound.
+            try {
+                executor.execute(DIRECT, blocking);
+                fail("Expected a RejectedExecutionException");
+            } catch (RejectedExecutionException e) {
+            }
+            assertEquals(1, executor.getRejectedCount());
+
+            release.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(0, executor.getQueueDepth());
+            assertEquals(2, executor.getCompletedCount());
+            assertTrue(executor.getMaximumLatency() >= executor.getAverageLatency());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSharedExecutor() throws Exception {
+        ServiceExecutor executor = new ServiceExecutor("svc");
+        final long start = System.nanoTime();
+        final ServiceExecutor target = executor;
+        executor.execute(DIRECT, new Runnable() {
+            public void run() {
+                target.done(start);
+            }
+        });
+        assertEquals(1, executor.getCompletedCount());
+        assertEquals(0, executor.getActiveCount());
+
+        executor.shutdown();
+        // Only the dedicated pool is owned by the service executor.
+        executor.execute(DIRECT, new Runnable() {
+            public void run() {
+            }
+        });
+    }
+
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.fabric.dosgi.io.Transport;
+import org.fusesource.fabric.dosgi.io.TransportAcceptListener;
+import org.fusesource.fabric.dosgi.io.TransportListener;
+import org.fusesource.fabric.dosgi.io.TransportServer;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TcpTransportTest {
+
+    static final int FRAMES = 10;
+
+    DispatchQueue queue;
+    TcpTransportServer server;
+    TcpTransport client;
+    CountDownLatch received;
+    // The number of frames handed to each write of the client, one for a plain write
+    final List<Integer> writes = Collections.synchronizedList(new ArrayList<Integer>());
+
+    @Before
+    public void setUp() throws Exception {
+        queue = Dispatch.createQueue();
+        received = new CountDownLatch(FRAMES);
+        server = new TcpTransportFactory().bind("tcp://localhost:0");
+        server.setDispatchQueue(queue);
+        server.setAcceptListener(new TransportAcceptListener() {
+            public void onAccept(TransportServer transportServer, TcpTransport transport) {
+                transport.setProtocolCodec(new LengthPrefixedCodec());
+                transport.setDispatchQueue(queue);
+                transport.setTransportListener(new Listener() {
+                    public void onTransportCommand(Transport transport, Object command) {
+                        received.countDown();
+                    }
+                });
+                transport.start();
+            }
+
+            public void onAcceptError(TransportServer transportServer, Exception error) {
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.stop();
+        }
+        server.stop();
+    }
+
+    @Test
+    public void testDelayedWritesAreGathered() throws Exception {
+        offerFrames(100000);
+
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(FRAMES), writes);
+    }
+
+    @Test
+    public void testImmediateWrite() throws Exception {
+        offerFrames(0);
+
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        // The first frame goes out before the next ones are offered
+        assertEquals(Integer.valueOf(1), writes.get(0));
+    }
+
+    /**
+     * Offers a first frame to an idle client transport, then the other ones from
+     * the next task of its queue.
+     */
+    private void offerFrames(int maxWriteDelay) throws Exception {
+        final CountDownLatch connected = new CountDownLatch(1);
+        client = new TcpTransportFactory().connect(server.getConnectAddress() + "?max_write_delay=" + maxWriteDelay);
+        client.setProtocolCodec(new CountingCodec());
+        client.setDispatchQueue(queue);
+        client.setTransportListener(new Listener() {
+            public void onTransportConnected(Transport transport) {
+                connected.countDown();
+            }
+        });
+        client.start();
+        assertTrue(connected.await(10, TimeUnit.SECONDS));
+
+        queue.execute(new Runnable() {
+            public void run() {
+                client.offer(frame(0));
+                queue.execute(new Runnable() {
+                    public void run() {
+                        for (int i = 1; i < FRAMES; i++) {
+                            client.offer(frame(i));
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    static Buffer frame(int value) {
+        ByteBuffer frame = ByteBuffer.allocate(8);
+        frame.putInt(8);
+        frame.putInt(value);
+        return new Buffer(frame.array());
+    }
+
+    class CountingCodec extends LengthPrefixedCodec {
+        @Override
+        public void setWritableByteChannel(WritableByteChannel channel) {
+            super.setWritableByteChannel(new CountingChannel((GatheringByteChannel) channel));
+        }
+    }
+
+    class CountingChannel implements GatheringByteChannel {
+
+        final GatheringByteChannel channel;
+
+        CountingChannel(GatheringByteChannel channel) {
+            this.channel = channel;
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            writes.add(length);
+            return channel.write(srcs, offset, length);
+        }
+
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            writes.add(1);
+            return channel.write(src);
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    static class Listener implements TransportListener {
+        public void onTransportCommand(Transport transport, Object command) {
+        }
+
+        public void onRefill(Transport transport) {
+        }
+
+        public void onTransportFailure(Transport transport, IOException error) {
+        }
+
+        public void onTransportConnected(Transport transport) {
+        }
+
+        public void onTransportDisconnected(Transport transport) {
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.dosgi.tcp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.fabric.dosgi.io.ProtocolCodec;
+import org.fusesource.fabric.dosgi.io.Transport;
+import org.fusesource.fabric.dosgi.io.TransportListener;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TransportPoolTest {
+
+    @Test
+    public void testLeastLoaded() throws Exception {
+        final TestPool pool = new TestPool(2, 100);
+        pool.start();
+
+        // The first offer opens the first transport
+        pool.offer("a", 1L);
+        sync(pool);
+        assertEquals(1, pool.created.size());
+        final TestTransport t1 = pool.created.get(0);
+        connect(pool, t1);
+        assertEquals(1, t1.commands.size());
+
+        // Below the threshold, the connected transport is used
+        pool.offer("b", 2L);
+        sync(pool);
+        assertEquals(1, pool.created.size());
+        assertEquals(2, t1.commands.size());
+
+        pool.setGrowThreshold(2);
+        pool.offer("c", 3L);
+        sync(pool);
+        // t1 is busy, a second transport is being opened meanwhile
+        assertEquals(2, pool.created.size());
+        assertEquals(3, t1.commands.size());
+        TestTransport t2 = pool.created.get(1);
+        connect(pool, t2);
+
+        // t2 is idle, so it gets the next commands until it is as loaded as t1
+        pool.offer("d", 4L);
+        pool.offer("e", 5L);
+        sync(pool);
+        assertEquals(2, t2.commands.size());
+
+        // Completing commands on t1 makes it the least loaded again
+        run(pool, new Runnable() {
+            public void run() {
+                pool.onDone(1L);
+                pool.onDone(2L);
+            }
+        });
+        pool.offer("f", 6L);
+        sync(pool);
+        assertEquals(4, t1.commands.size());
+        assertEquals(2, pool.created.size());
+
+        pool.stop(new Runnable() {
+            public void run() {
+            }
+        });
+        sync(pool);
+        // 3, 4, 5 and 6 were still in flight
+        assertEquals(4, pool.failed.size());
+        assertTrue(pool.inflightIds().isEmpty());
+    }
+
+    @Test
+    public void testFailureTellsSentCommands() throws Exception {
+        final TestPool pool = new TestPool(1, 0);
+        pool.start();
+        pool.offer("a", 1L);
+        sync(pool);
+        final TestTransport t1 = pool.created.get(0);
+        connect(pool, t1);
+
+        // b has to wait, as the single transport is not writable anymore
+        t1.full = true;
+        run(pool, new Runnable() {
+            public void run() {
+                pool.transports.get(t1).time = 0L;
+            }
+        });
+        pool.offer("b", 2L);
+        sync(pool);
+        assertEquals(1, t1.commands.size());
+
+        run(pool, new Runnable() {
+            public void run() {
+                t1.getTransportListener().onTransportFailure(t1, new IOException("Connection reset"));
+            }
+        });
+        assertEquals(Arrays.<Object>asList(1L, 2L), pool.failed);
+        // Only the command handed to the transport may have reached the remote end
+        assertEquals(Collections.<Object>singletonList(1L), pool.sent);
+    }
+
+    @Test
+    public void testEvictIdle() throws Exception {
+        final TestPool pool = new TestPool(2, 50);
+        pool.start();
+        pool.offer("a", 1L);
+        sync(pool);
+        TestTransport t1 = pool.created.get(0);
+        connect(pool, t1);
+
+        // Busy transports are not evicted
+        Thread.sleep(200);
+        sync(pool);
+        assertFalse(t1.stopped);
+
+        run(pool, new Runnable() {
+            public void run() {
+                pool.onDone(1L);
+            }
+        });
+        Thread.sleep(200);
+        sync(pool);
+        assertTrue(t1.stopped);
+        assertTrue(pool.inflightIds().isEmpty());
+    }
+
+    private static void connect(TransportPool pool, final TestTransport transport) throws Exception {
+        run(pool, new Runnable() {
+            public void run() {
+                transport.getTransportListener().onTransportConnected(transport);
+            }
+        });
+    }
+
+    private static void sync(TransportPool pool) throws Exception {
+        run(pool, new Runnable() {
+            public void run() {
+            }
+        });
+    }
+
+    private static void run(TransportPool pool, final Runnable runnable) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        pool.queue.execute(new Runnable() {
+            public void run() {
+                runnable.run();
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    static class TestPool extends TransportPool {
+
+        final List<TestTransport> created = new ArrayList<TestTransport>();
+        final List<Object> failed = new ArrayList<Object>();
+        final List<Object> sent = new ArrayList<Object>();
+
+        TestPool(int poolSize, long evictionDelay) {
+            super("test://", Dispatch.createQueue(), poolSize, evictionDelay);
+        }
+
+        List<Object> inflightIds() {
+            return new ArrayList<Object>(inflight.keySet());
+        }
+
+        @Override
+        protected Transport createTransport(String uri) throws Exception {
+            TestTransport transport = new TestTransport();
+            created.add(transport);
+            return transport;
+        }
+
+        @Override
+        protected ProtocolCodec createCodec() {
+            return null;
+        }
+
+        @Override
+        protected void onCommand(Object command) {
+        }
+
+        @Override
+        protected void onFailure(Object id, Throwable throwable, boolean sent) {
+            failed.add(id);
+            if (sent) {
+                this.sent.add(id);
+            }
+        }
+    }
+
+    static class TestTransport implements Transport {
+
+        final List<Object> commands = new ArrayList<Object>();
+        TransportListener listener;
+        DispatchQueue queue;
+        boolean stopped;
+        boolean full;
+
+        public boolean full() {
+            return full;
+        }
+
+        public boolean offer(Object command) {
+            commands.add(command);
+            return true;
+        }
+
+        public TransportListener getTransportListener() {
+            return listener;
+        }
+
+        public void setTransportListener(TransportListener listener) {
+            this.listener = listener;
+        }
+
+        public void setDispatchQueue(DispatchQueue queue) {
+            this.queue = queue;
+        }
+
+        public DispatchQueue queue() {
+            return queue;
+        }
+
+        public void suspendRead() {
+        }
+
+        public void resumeRead() {
+        }
+
+        public String getRemoteAddress() {
+            return "test://";
+        }
+
+        public boolean isDisposed() {
+            return stopped;
+        }
+
+        public boolean isConnected() {
+            return !stopped;
+        }
+
+        public ProtocolCodec getProtocolCodec() {
+            return null;
+        }
+
+        public void setProtocolCodec(ProtocolCodec protocolCodec) {
+        }
+
+        public void start() throws Exception {
+        }
+
+        public void start(Runnable onComplete) throws Exception {
+        }
+
+        public void stop() {
+            stopped = true;
+        }
+
+        public void stop(Runnable onComplete) {
+            stopped = true;
+            if (onComplete != null) {
+                onComplete.run();
+            }
+        }
+    }
+
+}
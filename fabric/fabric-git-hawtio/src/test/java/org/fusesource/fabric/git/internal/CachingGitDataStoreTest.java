@@ -16,11 +16,156 @@
  */
 package org.fusesource.fabric.git.internal;
 
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.fusesource.fabric.git.GitListener;
+import org.fusesource.fabric.git.GitService;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
 /**
  */
 public class CachingGitDataStoreTest extends GitDataStoreTest {
 
+    // Run the next time the test thread gets the repository
+    private final ThreadLocal<Runnable> onGet = new ThreadLocal<Runnable>();
+
     protected GitDataStore createDataStore() {
         return  new CachingGitDataStore();
     }
+
+    @Override
+    protected GitService createGitService(final GitService gitService) {
+        return new GitService() {
+            public Git get() throws IOException {
+                Runnable hook = onGet.get();
+                if (hook != null) {
+                    onGet.remove();
+                    hook.run();
+                }
+                return gitService.get();
+            }
+
+            public String getRemoteUrl() {
+                return gitService.getRemoteUrl();
+            }
+
+            public void notifyRemoteChanged(String remoteUrl) {
+                gitService.notifyRemoteChanged(remoteUrl);
+            }
+
+            public void notifyReceivePacket() {
+                gitService.notifyReceivePacket();
+            }
+
+            public void notifyRemoteHeadsChanged(Map<String, String> heads) {
+                gitService.notifyRemoteHeadsChanged(heads);
+            }
+
+            public void addGitListener(GitListener listener) {
+                gitService.addGitListener(listener);
+            }
+
+            public void removeGitListener(GitListener listener) {
+                gitService.removeGitListener(listener);
+            }
+        };
+    }
+
+    @Override
+    @Test
+    public void testReadDirectoryFromBranch() throws Exception {
+        // The cache only holds the files of the profiles, not their directories
+    }
+
+    @Test
+    public void testUnchangedProfileIsKept() throws Exception {
+        String version = "1.0";
+        dataStore.createVersion(version);
+        dataStore.createProfile(version, "changed");
+        dataStore.createProfile(version, "unchanged");
+        dataStore.setFileConfiguration(version, "changed", "org.foo.properties", "a = b\n".getBytes());
+        dataStore.setFileConfiguration(version, "unchanged", "org.foo.properties", "a = b\n".getBytes());
+        Map<String, byte[]> changed = dataStore.getFileConfigurations(version, "changed");
+        Map<String, byte[]> unchanged = dataStore.getFileConfigurations(version, "unchanged");
+
+        dataStore.setFileConfiguration(version, "changed", "org.foo.properties", "a = c\n".getBytes());
+
+        // Only the profile which changed is loaded again
+        assertSame(unchanged, dataStore.getFileConfigurations(version, "unchanged"));
+        Map<String, byte[]> reloaded = dataStore.getFileConfigurations(version, "changed");
+        assertNotSame(changed, reloaded);
+        assertEquals("a = c\n", new String(reloaded.get("org.foo.properties")));
+        assertMapContains("configuration", dataStore.getConfiguration(version, "changed", "org.foo"), "a", "c");
+    }
+
+    @Test
+    public void testClearCachesWhileLoading() throws Exception {
+        final String version = "1.0";
+        dataStore.createVersion(version);
+        dataStore.createProfile(version, "loaded");
+        dataStore.clearCaches();
+        dataStore.getVersions();
+
+        // The version is loaded from the branch once the cache has been cleared
+        onGet.set(new Runnable() {
+            public void run() {
+                dataStore.clearCaches();
+            }
+        });
+        assertTrue(dataStore.getProfiles(version).contains("loaded"));
+
+        // so what has been loaded is not cached, but loaded again
+        dataStore.getVersions();
+        final AtomicBoolean loaded = new AtomicBoolean();
+        Runnable load = new Runnable() {
+            public void run() {
+                loaded.set(true);
+            }
+        };
+        onGet.set(load);
+        assertTrue(dataStore.getProfiles(version).contains("loaded"));
+        assertTrue(loaded.get());
+
+        // which is then cached
+        loaded.set(false);
+        onGet.set(load);
+        assertTrue(dataStore.getProfiles(version).contains("loaded"));
+        assertFalse(loaded.get());
+        onGet.remove();
+    }
+
+    @Test
+    public void testBlobsPrunedAfterProfileDeleted() throws Exception {
+        String version = "1.0";
+        String profile = "deleted";
+        dataStore.createVersion(version);
+        dataStore.createProfile(version, profile);
+        dataStore.setFileConfiguration(version, profile, "org.foo.properties", "deleted = true\n".getBytes());
+        assertNotNull(dataStore.getFileConfiguration(version, profile, "org.foo.properties"));
+
+        ObjectId blobId;
+        GitBranchReader reader = new GitBranchReader(dataStore.getGit().getRepository(), version);
+        try {
+            blobId = reader.listAll(dataStore.getProfilePath(profile)).get("org.foo.properties");
+        } finally {
+            reader.close();
+        }
+        CachingGitDataStore cachingDataStore = (CachingGitDataStore) dataStore;
+        assertTrue(cachingDataStore.isBlobCachedForTesting(blobId));
+
+        dataStore.deleteProfile(version, profile);
+        assertFalse(dataStore.getProfiles(version).contains(profile));
+        assertFalse(cachingDataStore.isBlobCachedForTesting(blobId));
+    }
 }
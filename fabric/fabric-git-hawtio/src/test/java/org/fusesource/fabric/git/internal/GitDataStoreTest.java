@@ -21,9 +21,11 @@ import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.retry.RetryOneTime;
 import org.easymock.EasyMock;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.StoredConfig;
 import org.fusesource.fabric.git.GitService;
 import org.fusesource.fabric.git.hawtio.FabricGitFacade;
+import org.fusesource.fabric.utils.Files;
 import org.fusesource.fabric.utils.Strings;
 import org.fusesource.fabric.zookeeper.spring.ZKServerFactoryBean;
 import org.gitective.core.RepositoryUtils;
@@ -40,10 +42,17 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class GitDataStoreTest {
@@ -100,7 +109,7 @@ public class GitDataStoreTest {
 
         dataStore = createDataStore();
         dataStore.bindCuratorForTesting(curator);
-        dataStore.bindGitService(gitService);
+        dataStore.bindGitService(createGitService(gitService));
         dataStore.activate(EasyMock.createMock(ComponentContext.class));
         Map<String, String> datastoreProperties = new HashMap<String, String>();
         datastoreProperties.put(GitDataStore.GIT_REMOTE_URL, remoteUrl);
@@ -112,6 +121,10 @@ public class GitDataStoreTest {
         return new GitDataStore();
     }
 
+    protected GitService createGitService(GitService gitService) {
+        return gitService;
+    }
+
     @After
     public void tearDown() throws Exception {
         dataStore.deactivate();
@@ -245,6 +258,130 @@ public class GitDataStoreTest {
         assertFolderNotExists(getRemoteGitFile("fabric/profiles/" + dataStore.convertProfileIdToDirectory(newProfile)));
     }
 
+    @Test
+    public void testReadFromBranch() throws Exception {
+        String version = "1.0";
+        String profile = "branch-read";
+        dataStore.createVersion(version);
+        dataStore.createProfile(version, profile);
+        dataStore.setFileConfiguration(version, profile, "org.foo.properties", "a = b\n".getBytes());
+        dataStore.setFileConfiguration(version, profile, "conf/one.txt", "1".getBytes());
+
+        // The working tree is on another branch, the reads only see the commits
+        git.checkout().setName("master").call();
+        assertFolderNotExists(getLocalGitFile("fabric/profiles/" + dataStore.convertProfileIdToDirectory(profile)));
+
+        assertTrue(dataStore.getProfiles(version).contains(profile));
+        Map<String, byte[]> fileConfigurations = dataStore.getFileConfigurations(version, profile);
+        assertEquals("a = b\n", new String(fileConfigurations.get("org.foo.properties")));
+        assertEquals("1", new String(fileConfigurations.get("conf/one.txt")));
+        assertEquals("a = b\n", new String(dataStore.getFileConfiguration(version, profile, "org.foo.properties")));
+        assertNull(dataStore.getFileConfiguration(version, profile, "missing.properties"));
+        assertMapContains("configuration", dataStore.getConfiguration(version, profile, "org.foo"), "a", "b");
+        assertTrue(dataStore.getConfiguration(version, profile, "missing").isEmpty());
+        assertContainerEquals("files of " + profile, Arrays.asList("one.txt"),
+                new ArrayList<String>(dataStore.listFiles(version, Arrays.asList(profile), "conf")));
+    }
+
+    @Test
+    public void testReadDirectoryFromBranch() throws Exception {
+        String version = "1.0";
+        String profile = "branch-read";
+        dataStore.createVersion(version);
+        dataStore.createProfile(version, profile);
+        dataStore.setFileConfiguration(version, profile, "conf/one.txt", "1".getBytes());
+        dataStore.setFileConfiguration(version, profile, "conf/two.txt", "2".getBytes());
+        git.checkout().setName("master").call();
+
+        // A line for each of the files of the directory
+        assertEquals("one.txt = 1\ntwo.txt = 2\n", new String(dataStore.getFileConfiguration(version, profile, "conf")));
+    }
+
+    @Test
+    public void testLastModifiedAfterCommit() throws Exception {
+        String version = "1.0";
+        dataStore.createVersion(version);
+        dataStore.createProfile(version, "changed");
+        dataStore.createProfile(version, "unchanged");
+        dataStore.setFileConfiguration(version, "changed", "org.foo.properties", "a = b\n".getBytes());
+        long changed = dataStore.getLastModified(version, "changed");
+        long unchanged = dataStore.getLastModified(version, "unchanged");
+        assertTrue(changed > 0);
+        assertTrue(unchanged > 0);
+
+        // The commit times only have a precision of a second
+        Thread.sleep(1100);
+        dataStore.setFileConfiguration(version, "changed", "org.foo.properties", "a = c\n".getBytes());
+        assertTrue(dataStore.getLastModified(version, "changed") > changed);
+        assertEquals(unchanged, dataStore.getLastModified(version, "unchanged"));
+    }
+
+    @Test
+    public void testPullWhileWriting() throws Exception {
+        final String version = "1.0";
+        final String profile = "pulled";
+        dataStore.createVersion(version);
+        dataStore.createProfile(version, profile);
+        dataStore.setFileConfiguration(version, profile, "org.foo.properties", "a = b\n".getBytes());
+        // Up to date, a pull would not have to update the branches
+        assertFalse(dataStore.doFetch(git, null));
+
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<Void> writer = executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    return dataStore.gitReadOperation(new GitOperation<Void>() {
+                        public Void call(Git git, GitContext context) throws Exception {
+                            writing.countDown();
+                            release.await();
+                            return null;
+                        }
+                    });
+                }
+            });
+            assertTrue(writing.await(10, TimeUnit.SECONDS));
+
+            // Someone else pushes a change while the writer holds the lock
+            remote.checkout().setName(version).call();
+            String path = "fabric/profiles/" + dataStore.convertProfileIdToDirectory(profile) + "/org.foo.properties";
+            Files.writeToFile(getRemoteGitFile(path), "a = c\n".getBytes());
+            remote.add().addFilepattern(path).call();
+            ObjectId pushed = remote.commit().setMessage("Changed " + profile).setCommitter("fabric", "user@fabric").call().getId();
+
+            Future<?> pull = executor.submit(new Runnable() {
+                public void run() {
+                    dataStore.pull();
+                }
+            });
+
+            // The fetch does not wait for the writer, updating the branch does
+            for (int i = 0; !pushed.equals(git.getRepository().getRef("refs/remotes/origin/" + version).getObjectId()); i++) {
+                assertTrue("The fetch waited for the writer", i < 100);
+                Thread.sleep(100);
+            }
+            assertFalse(pull.isDone());
+
+            // Nor do the reads, which see the branch as it was before the pull
+            Future<Map<String, String>> read = executor.submit(new Callable<Map<String, String>>() {
+                public Map<String, String> call() throws Exception {
+                    return dataStore.getConfiguration(version, profile, "org.foo");
+                }
+            });
+            assertMapContains("configuration", read.get(10, TimeUnit.SECONDS), "a", "b");
+
+            release.countDown();
+            writer.get(10, TimeUnit.SECONDS);
+            pull.get(10, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+        assertMapContains("configuration", dataStore.getConfiguration(version, profile, "org.foo"), "a", "c");
+        assertFalse(dataStore.doFetch(git, null));
+    }
+
     public static void assertContainerEquals(String message, List<String> expected, List<String> actual) {
         assertEquals(message + "Size wrong for actual " + actual + " expected " + expected, expected.size(), actual.size());
         for (int i = 0, size = expected.size(); i < size; i++) {
@@ -25,6 +25,16 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.karaf.jaas.config.JaasRealm;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.http.server.GitServlet;
+import org.eclipse.jgit.http.server.resolver.DefaultReceivePackFactory;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.PostReceiveHook;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.transport.ReceivePack;
+import org.eclipse.jgit.transport.resolver.ReceivePackFactory;
+import org.eclipse.jgit.transport.resolver.ServiceNotAuthorizedException;
+import org.eclipse.jgit.transport.resolver.ServiceNotEnabledException;
 import org.fusesource.fabric.api.FabricException;
 import org.fusesource.fabric.api.FabricService;
 import org.fusesource.fabric.api.jcip.GuardedBy;
@@ -47,9 +57,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.TreeMap;
+import javax.servlet.http.HttpServletRequest;
 
 import static org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils.getSubstitutedData;
 
@@ -88,6 +102,9 @@ public final class GitHttpServerRegistrationHandler extends AbstractComponent im
 
     @GuardedBy("volatile") private volatile Group<GitNode> group;
     @GuardedBy("volatile") private volatile String gitRemoteUrl;
+    @GuardedBy("volatile") private volatile File fabricRoot;
+    // The commit id of each branch of the served repository, published while we are the master
+    @GuardedBy("volatile") private volatile Map<String, String> heads;
 
     private String realm;
     private String role;
@@ -141,6 +158,9 @@ public final class GitHttpServerRegistrationHandler extends AbstractComponent im
             LOGGER.debug("Git repo is not the master");
         }
         try {
+            if (group.isMaster()) {
+                heads = readHeads(fabricRoot);
+            }
             GitNode state = createState();
             group.update(state);
             String url = state.getUrl();
@@ -159,7 +179,7 @@ public final class GitHttpServerRegistrationHandler extends AbstractComponent im
             HttpContext secure = new SecureHttpContext(base, realm, role);
             String basePath = System.getProperty("karaf.data") + File.separator + "git" + File.separator + "servlet" + File.separator;
             String fabricGitPath = basePath + "fabric";
-            File fabricRoot = new File(fabricGitPath);
+            fabricRoot = new File(fabricGitPath);
 
             //Only need to clone once. If repo already exists, just skip.
             if (!fabricRoot.exists()) {
@@ -173,6 +193,22 @@ public final class GitHttpServerRegistrationHandler extends AbstractComponent im
                         .call();
             }
 
+            // Publish the new branch heads after each push, so that containers only fetch when they moved
+            final ReceivePackFactory<HttpServletRequest> receivePackFactory = new DefaultReceivePackFactory();
+            gitServlet.setReceivePackFactory(new ReceivePackFactory<HttpServletRequest>() {
+                @Override
+                public ReceivePack create(HttpServletRequest req, Repository db) throws ServiceNotEnabledException, ServiceNotAuthorizedException {
+                    ReceivePack receivePack = receivePackFactory.create(req, db);
+                    receivePack.setPostReceiveHook(new PostReceiveHook() {
+                        @Override
+                        public void onPostReceive(ReceivePack rp, Collection<ReceiveCommand> commands) {
+                            publishHeads(rp.getRepository());
+                        }
+                    });
+                    return receivePack;
+                }
+            });
+
             Dictionary<String, Object> initParams = new Hashtable<String, Object>();
             initParams.put("base-path", basePath);
             initParams.put("repository-root", basePath);
@@ -184,6 +220,43 @@ public final class GitHttpServerRegistrationHandler extends AbstractComponent im
         }
     }
 
+    private void publishHeads(Repository repository) {
+        Group<GitNode> group = this.group;
+        if (group != null && group.isMaster()) {
+            try {
+                heads = readHeads(repository);
+                group.update(createState());
+            } catch (Exception e) {
+                LOGGER.warn("Failed to publish the git branch heads.", e);
+            }
+        }
+    }
+
+    private static Map<String, String> readHeads(File repositoryDir) {
+        if (repositoryDir == null || !repositoryDir.exists()) {
+            return null;
+        }
+        try {
+            Repository repository = Git.open(repositoryDir).getRepository();
+            try {
+                return readHeads(repository);
+            } finally {
+                repository.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to read the git branch heads.", e);
+            return null;
+        }
+    }
+
+    private static Map<String, String> readHeads(Repository repository) throws IOException {
+        Map<String, String> answer = new TreeMap<String, String>();
+        for (Map.Entry<String, Ref> entry : repository.getRefDatabase().getRefs(Constants.R_HEADS).entrySet()) {
+            answer.put(entry.getKey(), entry.getValue().getObjectId().getName());
+        }
+        return answer;
+    }
+
     private void unregisterServlet() {
        httpService.get().unregister("/git");
     }
@@ -218,6 +291,7 @@ public final class GitHttpServerRegistrationHandler extends AbstractComponent im
         state.setContainer(KARAF_NAME);
         if (group != null && group.isMaster()) {
             state.setServices(new String[] { fabricRepoUrl });
+            state.setHeads(heads);
         }
         return state;
     }
@@ -16,6 +16,8 @@
  */
 package org.fusesource.fabric.git;
 
+import java.util.Map;
+
 /**
  * Provide a hook that the Fabric git repository
  * has moved or that it has changed
@@ -25,4 +27,9 @@ public interface GitListener {
     void onRemoteUrlChanged(String remoteUrl);
 
     void onReceivePack();
+
+    /**
+     * The master published new commit ids for its branches
+     */
+    void onRemoteHeadsChanged(Map<String, String> heads);
 }
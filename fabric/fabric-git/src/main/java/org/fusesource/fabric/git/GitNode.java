@@ -16,6 +16,8 @@
  */
 package org.fusesource.fabric.git;
 
+import java.util.Map;
+
 import org.codehaus.jackson.annotate.JsonProperty;
 import org.fusesource.fabric.groups.NodeState;
 
@@ -26,6 +28,12 @@ public class GitNode extends NodeState {
     @JsonProperty
     String[] services;
 
+    /**
+     * The commit id of each branch, only published by the master.
+     */
+    @JsonProperty
+    Map<String, String> heads;
+
     public String getUrl() {
         return url;
     }
@@ -42,6 +50,14 @@ public class GitNode extends NodeState {
         this.services = services;
     }
 
+    public Map<String, String> getHeads() {
+        return heads;
+    }
+
+    public void setHeads(Map<String, String> heads) {
+        this.heads = heads;
+    }
+
     @Override
 	public String toString() {
 		return "GitNode{" +
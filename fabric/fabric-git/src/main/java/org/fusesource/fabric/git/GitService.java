@@ -17,6 +17,7 @@
 package org.fusesource.fabric.git;
 
 import java.io.IOException;
+import java.util.Map;
 
 import org.eclipse.jgit.api.Git;
 import org.fusesource.fabric.git.GitListener;
@@ -38,6 +39,11 @@ public interface GitService {
 
     void notifyReceivePacket();
 
+    /**
+     * A hook if the branches of the remote repository have moved
+     */
+    void notifyRemoteHeadsChanged(Map<String, String> heads);
+
     void addGitListener(GitListener listener);
 
     void removeGitListener(GitListener listener);
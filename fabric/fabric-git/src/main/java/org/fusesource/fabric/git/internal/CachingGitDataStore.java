@@ -25,7 +25,7 @@ import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.References;
 import org.apache.felix.scr.annotations.Service;
-import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
 import org.fusesource.fabric.api.DataStorePlugin;
 import org.fusesource.fabric.api.PlaceholderResolver;
 import org.fusesource.fabric.api.jcip.GuardedBy;
@@ -33,13 +33,13 @@ import org.fusesource.fabric.api.jcip.ThreadSafe;
 import org.fusesource.fabric.git.GitService;
 import org.osgi.service.component.ComponentContext;
 
-import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A Caching version of {@link GitDataStore} to minimise the use of git operations
@@ -61,6 +61,12 @@ public final class CachingGitDataStore extends GitDataStore implements DataStore
     private static final VersionData NOT_LOADED = new VersionData();
 
     @GuardedBy("cachedVersions") private final Map<String, VersionData> cachedVersions = new HashMap<String, VersionData>();
+    // The data of the versions before the last change, what did not change since is reused
+    @GuardedBy("cachedVersions") private final Map<String, VersionData> previousVersions = new HashMap<String, VersionData>();
+    // Bumped each time the cache is cleared
+    @GuardedBy("cachedVersions") private long generation;
+    // The content of the files by blob id, shared by all the versions
+    @GuardedBy("blobs") private final Map<ObjectId, byte[]> blobs = new HashMap<ObjectId, byte[]>();
 
     @Activate
     void activate(ComponentContext context) {
@@ -90,6 +96,7 @@ public final class CachingGitDataStore extends GitDataStore implements DataStore
                     for (String version : versions) {
                         cachedVersions.put(version, NOT_LOADED);
                     }
+                    previousVersions.keySet().retainAll(versions);
                 }
             }
         }
@@ -106,74 +113,129 @@ public final class CachingGitDataStore extends GitDataStore implements DataStore
             data = cachedVersions.get(version);
         }
         if (data == NOT_LOADED) {
+            VersionData previous;
+            long loadGeneration;
+            synchronized (cachedVersions) {
+                previous = previousVersions.get(version);
+                loadGeneration = generation;
+            }
             // If not, load it ...
-            data = loadVersion(version);
-            // ... and update the cache
+            data = loadVersion(version, previous != null ? previous : NOT_LOADED);
+            // ... and update the cache, unless it has been cleared meanwhile
             synchronized (cachedVersions) {
-                cachedVersions.put(version, data);
+                if (generation == loadGeneration) {
+                    cachedVersions.put(version, data);
+                    previousVersions.remove(version);
+                } else {
+                    previousVersions.put(version, data);
+                }
             }
+            pruneBlobs();
         }
         return data;
     }
 
-    protected VersionData loadVersion(final String version) {
+    protected VersionData loadVersion(final String version, final VersionData previous) {
         assertValid();
-        return gitReadOperation(new GitOperation<VersionData>() {
-            public VersionData call(Git git, GitContext context) throws Exception {
-                VersionData data = new VersionData();
-                pouplateVersionData(git, version, data);
-                pouplateVersionData(git, "master", data);
-                return data;
+        // Read straight from the branches, concurrent loads don't wait for each other
+        final VersionData data = new VersionData();
+        branchReadOperation(version, new BranchReadOperation<Void>() {
+            public Void call(GitBranchReader reader) throws Exception {
+                pouplateVersionData(version, reader, previous, data);
+                return null;
+            }
+        });
+        branchReadOperation(MASTER_BRANCH, new BranchReadOperation<Void>() {
+            public Void call(GitBranchReader reader) throws Exception {
+                pouplateVersionData(MASTER_BRANCH, reader, previous, data);
+                return null;
             }
         });
+        return data;
     }
 
-    protected void pouplateVersionData(Git git, String branch, VersionData data) throws Exception {
+    protected void pouplateVersionData(String branch, GitBranchReader reader, VersionData previous, VersionData data) throws Exception {
         assertValid();
-        checkoutVersion(git, branch);
-        File profilesDir = getProfilesDirectory(git);
-        if (profilesDir.exists()) {
-            File[] files = profilesDir.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (file.isDirectory()) {
-                        addProfileData(git, data, file, "");
-                    }
-                }
-            }
+        BranchData before = previous.branches.get(branch);
+        ObjectId commitId = reader.getCommitId();
+        BranchData after;
+        if (before != null && commitId != null && commitId.equals(before.commitId)) {
+            after = before;
+        } else {
+            after = loadBranch(reader, before);
         }
+        data.branches.put(branch, after);
+        data.profiles.putAll(after.profiles);
     }
 
-    private void addProfileData(Git git, VersionData data, File file, String prefix) throws IOException {
-        // TODO we could recursively scan for magic ".profile" files or something
-        // then we could put profiles into nicer tree structure?
-        String profile = file.getName();
-        if (useDirectoriesForProfiles) {
-            if (profile.endsWith(PROFILE_FOLDER_SUFFIX)) {
-                profile = prefix + profile.substring(0, profile.length() - PROFILE_FOLDER_SUFFIX.length());
+    /**
+     * Loads the profiles of a branch, the ones whose directory is still the same
+     * tree as in the given data are taken from it instead.
+     */
+    private BranchData loadBranch(GitBranchReader reader, BranchData before) throws Exception {
+        BranchData answer = new BranchData(reader.getCommitId());
+        Map<String, String> changed = new HashMap<String, String>();
+        Map<String, ObjectId> trees = new HashMap<String, ObjectId>();
+        for (Map.Entry<String, String> entry : doGetProfilePaths(reader).entrySet()) {
+            ObjectId treeId = reader.getTreeId(entry.getValue());
+            ProfileData profile = before != null ? before.profiles.get(entry.getKey()) : null;
+            if (profile != null && profile.treeId.equals(treeId)) {
+                answer.profiles.put(entry.getKey(), profile);
             } else {
-                // lets recurse all children
-                File[] files = file.listFiles();
-                if (files != null) {
-                    for (File child : files) {
-                        if (child.isDirectory()) {
-                            addProfileData(git, data, child, prefix + file.getName() + "-");
-                        }
-                    }
-                }
-                return;
+                changed.put(entry.getKey(), entry.getValue());
+                trees.put(entry.getKey(), treeId);
             }
         }
+        // A single walk through the history for all the changed profiles
+        Map<String, Long> lastModified = reader.getLastModified(changed.values());
+        for (Map.Entry<String, String> entry : changed.entrySet()) {
+            Long modified = lastModified.get(entry.getValue());
+            Map<String, ObjectId> blobIds = reader.listAll(entry.getValue());
+            Map<String, byte[]> configurations = new HashMap<String, byte[]>();
+            for (Map.Entry<String, ObjectId> blob : blobIds.entrySet()) {
+                configurations.put(blob.getKey(), readBlob(reader, blob.getValue()));
+            }
+            answer.profiles.put(entry.getKey(), new ProfileData(trees.get(entry.getKey()), modified != null ? modified : 0L, blobIds, configurations));
+        }
+        return answer;
+    }
 
-        long lastModified = file.lastModified();
-        File metadataFile = new File(file, AGENT_METADATA_FILE);
-        if (metadataFile.exists()) {
-            long modified = metadataFile.lastModified();
-            lastModified = Math.max(lastModified, modified);
+    private byte[] readBlob(GitBranchReader reader, ObjectId blobId) throws Exception {
+        synchronized (blobs) {
+            byte[] content = blobs.get(blobId);
+            if (content != null) {
+                return content;
+            }
+        }
+        byte[] content = reader.open(blobId);
+        synchronized (blobs) {
+            blobs.put(blobId, content);
+        }
+        return content;
+    }
+
+    /**
+     * Forgets the content of the files no cached profile refers to anymore.
+     */
+    private void pruneBlobs() {
+        Set<ObjectId> used = new HashSet<ObjectId>();
+        synchronized (cachedVersions) {
+            for (VersionData data : cachedVersions.values()) {
+                data.addBlobIds(used);
+            }
+            for (VersionData data : previousVersions.values()) {
+                data.addBlobIds(used);
+            }
+        }
+        synchronized (blobs) {
+            blobs.keySet().retainAll(used);
+        }
+    }
+
+    boolean isBlobCachedForTesting(ObjectId blobId) {
+        synchronized (blobs) {
+            return blobs.containsKey(blobId);
         }
-        Map<String, byte[]> configurations = doGetFileConfigurations(git, profile);
-        ProfileData profileData = new ProfileData(lastModified, configurations);
-        data.profiles.put(profile, profileData);
     }
 
     public List<String> getProfiles(String version) {
@@ -223,11 +285,21 @@ public final class CachingGitDataStore extends GitDataStore implements DataStore
         }
     }
 
+    /**
+     * Marks all the versions to be reloaded.  Only what changed since will actually be read,
+     * the loaded data being kept aside for the next load of each version.
+     */
     @Override
     protected void clearCaches() {
         synchronized (cachedVersions) {
             assertValid();
+            for (Map.Entry<String, VersionData> entry : cachedVersions.entrySet()) {
+                if (entry.getValue() != NOT_LOADED) {
+                    previousVersions.put(entry.getKey(), entry.getValue());
+                }
+            }
             cachedVersions.clear();
+            generation++;
         }
     }
 
@@ -243,13 +315,34 @@ public final class CachingGitDataStore extends GitDataStore implements DataStore
 
     private static class VersionData {
         final Map<String, ProfileData> profiles = new HashMap<String, ProfileData>();
+        final Map<String, BranchData> branches = new HashMap<String, BranchData>();
+
+        void addBlobIds(Set<ObjectId> blobIds) {
+            for (BranchData branch : branches.values()) {
+                for (ProfileData profile : branch.profiles.values()) {
+                    blobIds.addAll(profile.blobIds.values());
+                }
+            }
+        }
+    }
+
+    private static class BranchData {
+        final ObjectId commitId;
+        final Map<String, ProfileData> profiles = new HashMap<String, ProfileData>();
+        BranchData(ObjectId commitId) {
+            this.commitId = commitId;
+        }
     }
 
     private static class ProfileData {
+        final ObjectId treeId;
         final long lastModified;
+        final Map<String, ObjectId> blobIds;
         final Map<String, byte[]> configurations;
-        ProfileData(long lastModified, Map<String, byte[]> configurations) {
+        ProfileData(ObjectId treeId, long lastModified, Map<String, ObjectId> blobIds, Map<String, byte[]> configurations) {
+            this.treeId = treeId;
             this.lastModified = lastModified;
+            this.blobIds = blobIds;
             this.configurations = configurations;
         }
     }
@@ -37,6 +37,7 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 @ThreadSafe
@@ -110,6 +111,13 @@ public final class FabricGitServiceImpl extends AbstractComponent implements Git
         }
     }
 
+    @Override
+    public void notifyRemoteHeadsChanged(Map<String, String> heads) {
+        for (GitListener listener : listeners) {
+            listener.onRemoteHeadsChanged(heads);
+        }
+    }
+
     @Override
     public void addGitListener(GitListener listener) {
         listeners.add(listener);
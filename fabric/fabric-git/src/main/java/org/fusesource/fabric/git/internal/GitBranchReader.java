@@ -0,0 +1,291 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.git.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Reads the files committed on a branch straight from the object database, without
+ * checking the branch out.  A reader sticks to the commit the branch pointed to when
+ * it was created.  Readers are not thread safe, but any number of them can be used
+ * at the same time, and they must be closed once done.
+ */
+public class GitBranchReader {
+
+    private final ObjectReader reader;
+    private final RevCommit commit;
+
+    public GitBranchReader(Repository repository, String branch) throws IOException {
+        this.reader = repository.newObjectReader();
+        ObjectId id = repository.resolve(Constants.R_HEADS + branch);
+        if (id != null) {
+            RevWalk walk = new RevWalk(reader);
+            try {
+                this.commit = walk.parseCommit(id);
+            } finally {
+                walk.release();
+            }
+        } else {
+            this.commit = null;
+        }
+    }
+
+    /**
+     * Returns true if the branch exists.
+     */
+    public boolean exists() {
+        return commit != null;
+    }
+
+    /**
+     * Returns the id of the commit read, or null if the branch does not exist.
+     */
+    public ObjectId getCommitId() {
+        return commit != null ? commit.copy() : null;
+    }
+
+    /**
+     * Returns true if the given file or directory exists on the branch.
+     */
+    public boolean exists(String path) throws IOException {
+        return getObjectId(path, null) != null;
+    }
+
+    /**
+     * Returns true if the given path is a file on the branch.
+     */
+    public boolean isFile(String path) throws IOException {
+        TreeWalk walk = find(path);
+        if (walk == null) {
+            return false;
+        }
+        try {
+            return !walk.isSubtree();
+        } finally {
+            walk.release();
+        }
+    }
+
+    /**
+     * Returns the names of the files and directories in the given directory.
+     */
+    public List<String> list(String path) throws IOException {
+        return list(path, false);
+    }
+
+    /**
+     * Returns the names of the directories in the given directory.
+     */
+    public List<String> listDirectories(String path) throws IOException {
+        return list(path, true);
+    }
+
+    private List<String> list(String path, boolean directoriesOnly) throws IOException {
+        List<String> answer = new ArrayList<String>();
+        ObjectId tree = getObjectId(path, FileMode.TREE);
+        if (tree != null) {
+            TreeWalk walk = new TreeWalk(reader);
+            try {
+                walk.addTree(tree);
+                while (walk.next()) {
+                    if (!directoriesOnly || walk.isSubtree()) {
+                        answer.add(walk.getNameString());
+                    }
+                }
+            } finally {
+                walk.release();
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Returns the content of the given file, or null if it does not exist.  For a directory
+     * a line <code>name = content</code> is returned for each of the files it contains.
+     */
+    public byte[] read(String path) throws IOException {
+        TreeWalk walk = find(path);
+        if (walk == null) {
+            return null;
+        }
+        try {
+            if (!walk.isSubtree()) {
+                return reader.open(walk.getObjectId(0), Constants.OBJ_BLOB).getBytes(Integer.MAX_VALUE);
+            }
+            StringBuilder buf = new StringBuilder();
+            walk.enterSubtree();
+            while (walk.next()) {
+                if (!walk.isSubtree()) {
+                    String value = new String(reader.open(walk.getObjectId(0), Constants.OBJ_BLOB).getBytes(Integer.MAX_VALUE));
+                    buf.append(String.format("%s = %s\n", walk.getNameString(), value));
+                }
+            }
+            return buf.toString().getBytes();
+        } finally {
+            walk.release();
+        }
+    }
+
+    /**
+     * Returns the content of all the files below the given directory, by path relative to it.
+     */
+    public Map<String, byte[]> readAll(String path) throws IOException {
+        Map<String, byte[]> answer = new HashMap<String, byte[]>();
+        for (Map.Entry<String, ObjectId> entry : listAll(path).entrySet()) {
+            answer.put(entry.getKey(), open(entry.getValue()));
+        }
+        return answer;
+    }
+
+    /**
+     * Returns the blob ids of all the files below the given directory, by path relative to it.
+     * Files are not read, a blob id identifies its content.
+     */
+    public Map<String, ObjectId> listAll(String path) throws IOException {
+        Map<String, ObjectId> answer = new HashMap<String, ObjectId>();
+        ObjectId tree = getTreeId(path);
+        if (tree != null) {
+            TreeWalk walk = new TreeWalk(reader);
+            try {
+                walk.addTree(tree);
+                walk.setRecursive(true);
+                while (walk.next()) {
+                    answer.put(walk.getPathString(), walk.getObjectId(0));
+                }
+            } finally {
+                walk.release();
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Returns the id of the tree of the given directory, or null if there is no such directory.
+     * The id only changes when something below the directory does.
+     */
+    public ObjectId getTreeId(String path) throws IOException {
+        ObjectId tree = getObjectId(path, FileMode.TREE);
+        return tree != null ? tree.copy() : null;
+    }
+
+    /**
+     * Returns the content of the given blob.
+     */
+    public byte[] open(ObjectId blobId) throws IOException {
+        return reader.open(blobId, Constants.OBJ_BLOB).getBytes(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns, for each of the given paths, the time in milliseconds of the last commit
+     * which changed it or anything below it.  The history is only walked once.
+     */
+    public Map<String, Long> getLastModified(Collection<String> paths) throws IOException {
+        Map<String, Long> answer = new HashMap<String, Long>();
+        if (commit == null || paths.isEmpty()) {
+            return answer;
+        }
+        Set<String> remaining = new HashSet<String>(paths);
+        RevWalk walk = new RevWalk(reader);
+        try {
+            // Only the commits changing one of the paths are returned
+            walk.setTreeFilter(AndTreeFilter.create(PathFilterGroup.createFromStrings(paths), TreeFilter.ANY_DIFF));
+            walk.markStart(walk.parseCommit(commit));
+            for (RevCommit rc : walk) {
+                TreeWalk diff = new TreeWalk(reader);
+                try {
+                    diff.setRecursive(true);
+                    diff.setFilter(AndTreeFilter.create(PathFilterGroup.createFromStrings(remaining), TreeFilter.ANY_DIFF));
+                    if (rc.getParentCount() > 0) {
+                        diff.addTree(walk.parseCommit(rc.getParent(0)).getTree());
+                    } else {
+                        diff.addTree(new EmptyTreeIterator());
+                    }
+                    diff.addTree(rc.getTree());
+                    while (!remaining.isEmpty() && diff.next()) {
+                        String changed = diff.getPathString();
+                        for (Iterator<String> iterator = remaining.iterator(); iterator.hasNext();) {
+                            String path = iterator.next();
+                            if (changed.equals(path) || changed.startsWith(path + "/")) {
+                                answer.put(path, rc.getCommitTime() * 1000L);
+                                iterator.remove();
+                            }
+                        }
+                    }
+                } finally {
+                    diff.release();
+                }
+                if (remaining.isEmpty()) {
+                    break;
+                }
+            }
+        } finally {
+            walk.release();
+        }
+        return answer;
+    }
+
+    public void close() {
+        reader.release();
+    }
+
+    private ObjectId getObjectId(String path, FileMode mode) throws IOException {
+        if (commit == null) {
+            return null;
+        }
+        if (path.length() == 0) {
+            return commit.getTree();
+        }
+        TreeWalk walk = find(path);
+        if (walk == null) {
+            return null;
+        }
+        try {
+            if (mode != null && walk.getFileMode(0) != mode) {
+                return null;
+            }
+            return walk.getObjectId(0);
+        } finally {
+            walk.release();
+        }
+    }
+
+    private TreeWalk find(String path) throws IOException {
+        return commit != null ? TreeWalk.forPath(reader, path, commit.getTree()) : null;
+    }
+
+}
@@ -25,14 +25,19 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.felix.scr.annotations.Activate;
@@ -49,6 +54,7 @@ import org.eclipse.jgit.api.ListBranchCommand;
 import org.eclipse.jgit.api.MergeResult;
 import org.eclipse.jgit.api.errors.CannotDeleteCurrentBranchException;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
@@ -106,14 +112,18 @@ import static org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils.setProperties
 public class GitDataStore extends AbstractDataStore implements DataStorePlugin<GitDataStore> {
     private static final transient Logger LOG = LoggerFactory.getLogger(GitDataStore.class);
 
-    private static final String MASTER_BRANCH = "master";
+    protected static final String MASTER_BRANCH = "master";
     private static final String CONFIG_ROOT_DIR = "fabric";
 
     public static final String GIT_PULL_PERIOD = "gitPullPeriod";
     public static final String GIT_REMOTE_URL = "gitRemoteUrl";
     public static final String GIT_REMOTE_USER = "gitRemoteUser";
     public static final String GIT_REMOTE_PASSWORD = "gitRemotePassword";
-    public static final String[] SUPPORTED_CONFIGURATION = {DATASTORE_TYPE_PROPERTY, GIT_REMOTE_URL, GIT_REMOTE_USER, GIT_REMOTE_PASSWORD, GIT_PULL_PERIOD};
+    public static final String GIT_PULL_ON_CHANGE = "gitPullOnChange";
+    public static final String GIT_PULL_JITTER = "gitPullJitter";
+    public static final String[] SUPPORTED_CONFIGURATION = {DATASTORE_TYPE_PROPERTY, GIT_REMOTE_URL, GIT_REMOTE_USER, GIT_REMOTE_PASSWORD, GIT_PULL_PERIOD, GIT_PULL_ON_CHANGE, GIT_PULL_JITTER};
+
+    private static final long MAX_PULL_BACKOFF = TimeUnit.MINUTES.toMillis(1);
 
     public static final String CONFIGS = "/" + CONFIG_ROOT_DIR;
     public static final String CONFIGS_PROFILES = CONFIGS + "/profiles";
@@ -130,7 +140,14 @@ public class GitDataStore extends AbstractDataStore implements DataStorePlugin<G
     private final ValidatingReference<GitService> gitService = new ValidatingReference<GitService>();
 
     private final ScheduledExecutorService threadPool = Executors.newSingleThreadScheduledExecutor();
-    private final Object gitOperationMonitor = new Object();
+    // Readers work on commit snapshots through branchReadOperation and never take it,
+    // only the operations that move the working tree or the branches have to.
+    private final Lock writeLock = new ReentrantLock();
+    private final Object fetchMonitor = new Object();
+    private final AtomicBoolean pullScheduled = new AtomicBoolean();
+    private final Random random = new Random();
+    // Only used by the thread pool
+    private int failedPulls;
 
     private final GitListener gitListener = new GitListener() {
         @Override
@@ -167,12 +184,26 @@ public class GitDataStore extends AbstractDataStore implements DataStorePlugin<G
             assertValid();
             clearCaches();
         }
+
+        @Override
+        public void onRemoteHeadsChanged(Map<String, String> heads) {
+            assertValid();
+            remoteHeads = heads;
+            if (pullOnChange && isBehind(heads)) {
+                // Spread the fetches of all the containers seeing the same change
+                schedulePull(0);
+            }
+        }
     };
 
     private volatile String remote = "origin";
 
     @GuardedBy("this") private String remoteUrl;
     @GuardedBy("this") private long pullPeriod = 1000;
+    @GuardedBy("volatile") private volatile boolean pullOnChange;
+    @GuardedBy("volatile") private volatile long pullJitter = 1000;
+    // The branch heads last published by the git master, if any
+    @GuardedBy("volatile") private volatile Map<String, String> remoteHeads;
 
     @Activate
     void activate(ComponentContext context) {
@@ -193,6 +224,8 @@ public class GitDataStore extends AbstractDataStore implements DataStorePlugin<G
             if (properties != null) {
                 this.pullPeriod = PropertiesHelper.getLongValue(properties, GIT_PULL_PERIOD, this.pullPeriod);
                 this.remoteUrl = properties.get(GIT_REMOTE_URL);
+                this.pullOnChange = Boolean.parseBoolean(properties.get(GIT_PULL_ON_CHANGE));
+                this.pullJitter = PropertiesHelper.getLongValue(properties, GIT_PULL_JITTER, this.pullJitter);
             }
 
             // [FIXME] Why can we not rely on the injected GitService
@@ -211,6 +244,10 @@ public class GitDataStore extends AbstractDataStore implements DataStorePlugin<G
             threadPool.scheduleWithFixedDelay(new Runnable() {
                 @Override
                 public void run() {
+                    // Once the master publishes its branch heads we only pull when they move
+                    if (pullOnChange && remoteHeads != null) {
+                        return;
+                    }
                     LOG.debug("Performing timed pull");
                     pull();
                 }
@@ -361,23 +398,24 @@ public class GitDataStore extends AbstractDataStore implements DataStorePlugin<G
     @Override
     public List<String> getVersions() {
         assertValid();
-        return gitReadOperation(new GitOperation<List<String>>() {
-            public List<String> call(Git git, GitContext context) throws Exception {
-                Collection<String> branches = RepositoryUtils.getBranches(git.getRepository());
-                List<String> answer = new ArrayList<String>();
-                for (String branch : branches) {
-                    String name = branch;
-                    String prefix = "refs/heads/";
-                    if (name.startsWith(prefix)) {
-                        name = name.substring(prefix.length());
-                        if (!name.equals(MASTER_BRANCH)) {
-                            answer.add(name);
-                        }
+        try {
+            // Only reads the refs, no need to wait for the operations on the working tree
+            Collection<String> branches = RepositoryUtils.getBranches(getGit().getRepository());
+            List<String> answer = new ArrayList<String>();
+            for (String branch : branches) {
+                String name = branch;
+                String prefix = "refs/heads/";
+                if (name.startsWith(prefix)) {
+                    name = name.substring(prefix.length());
+                    if (!name.equals(MASTER_BRANCH)) {
+                        answer.add(name);
                     }
                 }
-                return answer;
             }
-        });
+            return answer;
+        } catch (Exception e) {
+            throw FabricException.launderThrowable(e);
+        }
     }
 
     @Override
@@ -389,49 +427,52 @@ public class GitDataStore extends AbstractDataStore implements DataStorePlugin<G
     @Override
     public List<String> getProfiles(final String version) {
         assertValid();
-        return gitReadOperation(new GitOperation<List<String>>() {
-            public List<String> call(Git git, GitContext context) throws Exception {
-                List<String> answer = new ArrayList<String>();
-                File profilesDir = getProfilesDirectory(git);
-                if (hasVersion(version)) {
-                    //We are also checking the master branch for non versioned profiles (e.g. ensemble profiles).
-                    checkoutVersion(git, "master");
-                    doAddProfileNames(answer, profilesDir, "");
-
-                    checkoutVersion(git, version);
-                    doAddProfileNames(answer, profilesDir, "");
-
+        List<String> answer = new ArrayList<String>();
+        if (hasVersion(version)) {
+            //We are also checking the master branch for non versioned profiles (e.g. ensemble profiles).
+            BranchReadOperation<Set<String>> operation = new BranchReadOperation<Set<String>>() {
+                public Set<String> call(GitBranchReader reader) throws Exception {
+                    return doGetProfilePaths(reader).keySet();
                 }
-                return answer;
-            }
-        });
+            };
+            answer.addAll(branchReadOperation(MASTER_BRANCH, operation));
+            answer.addAll(branchReadOperation(version, operation));
+        }
+        return answer;
     }
 
-    private void doAddProfileNames(List<String> answer, File profilesDir, String prefix) {
-        if (profilesDir.exists()) {
-            File[] files = profilesDir.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (file.isDirectory()) {
-                        // TODO we could recursively scan for magic ".profile" files or something
-                        // then we could put profiles into nicer tree structure?
-                        String name = file.getName();
-                        if (useDirectoriesForProfiles) {
-                            if (name.endsWith(PROFILE_FOLDER_SUFFIX)) {
-                                name = name.substring(0, name.length() - PROFILE_FOLDER_SUFFIX.length());
-                                answer.add(prefix + name);
-                            } else {
-                                doAddProfileNames(answer, file, prefix + name + "-");
-                            }
-                        } else {
-                            answer.add(name);
-                        }
-                    }
+    /**
+     * Returns the path of each of the profiles committed on the branch, by profile id
+     */
+    protected Map<String, String> doGetProfilePaths(GitBranchReader reader) throws IOException {
+        Map<String, String> answer = new LinkedHashMap<String, String>();
+        doAddProfilePaths(reader, answer, CONFIGS_PROFILES.substring(1), "");
+        return answer;
+    }
+
+    private void doAddProfilePaths(GitBranchReader reader, Map<String, String> answer, String path, String prefix) throws IOException {
+        for (String name : reader.listDirectories(path)) {
+            // TODO we could recursively scan for magic ".profile" files or something
+            // then we could put profiles into nicer tree structure?
+            if (useDirectoriesForProfiles) {
+                if (name.endsWith(PROFILE_FOLDER_SUFFIX)) {
+                    answer.put(prefix + name.substring(0, name.length() - PROFILE_FOLDER_SUFFIX.length()), path + "/" + name);
+                } else {
+                    doAddProfilePaths(reader, answer, path + "/" + name, prefix + name + "-");
                 }
+            } else {
+                answer.put(name, path + "/" + name);
             }
         }
     }
 
+    /**
+     * Returns the path of the profile directory relative to the root of the repository
+     */
+    protected String getProfilePath(String profile) {
+        return CONFIGS_PROFILES.substring(1) + "/" + convertProfileIdToDirectory(profile);
+    }
+
     protected File getProfilesDirectory(Git git) {
         assertValid();
         return new File(GitHelpers.getRootGitDirectory(git), GitDataStore.CONFIGS_PROFILES);
@@ -520,22 +561,11 @@ public class GitDataStore extends AbstractDataStore implements DataStorePlugin<G
     @Override
     public long getLastModified(final String version, final String profile) {
         assertValid();
-        Long answer = gitReadOperation(new GitOperation<Long>() {
-            public Long call(Git git, GitContext context) throws Exception {
-                checkoutVersion(git, GitProfiles.getBranch(version, profile));
-                File profileDirectory = getProfileDirectory(git, profile);
-                File metadataFile = new File(profileDirectory, AGENT_METADATA_FILE);
-                Long answer = null;
-                if (profileDirectory.exists()) {
-                    answer = profileDirectory.lastModified();
-                    if (metadataFile.exists()) {
-                        long modified = metadataFile.lastModified();
-                        if (modified > answer) {
-                            answer = modified;
-                        }
-                    }
-                }
-                return answer;
+        Long answer = branchReadOperation(GitProfiles.getBranch(version, profile), new BranchReadOperation<Long>() {
+            public Long call(GitBranchReader reader) throws Exception {
+                // The time of the last commit which changed the profile
+                String path = getProfilePath(profile);
+                return reader.getLastModified(Collections.singleton(path)).get(path);
             }
         });
         return answer != null ? answer.longValue() : 0;
@@ -544,35 +574,24 @@ public class GitDataStore extends AbstractDataStore implements DataStorePlugin<G
     @Override
     public Collection<String> listFiles(final String version, final Iterable<String> profiles, final String path) {
         assertValid();
-        return gitReadOperation(new GitOperation<Collection<String>>() {
-            public Collection<String> call(Git git, GitContext context) throws Exception {
-                SortedSet<String> answer = new TreeSet<String>();
-                for (String profile : profiles) {
-                    checkoutVersion(git, GitProfiles.getBranch(version, profile));
-                    File profileDirectory = getProfileDirectory(git, profile);
-                    File file = Strings.isNotBlank(path)
-                            ? new File(profileDirectory, path): profileDirectory;
-                    if (file.exists()) {
-                        String[] values = file.list();
-                        if (values != null) {
-                            for (String value : values) {
-                                answer.add(value);
-                            }
-                        }
-                    }
+        SortedSet<String> answer = new TreeSet<String>();
+        for (final String profile : profiles) {
+            answer.addAll(branchReadOperation(GitProfiles.getBranch(version, profile), new BranchReadOperation<List<String>>() {
+                public List<String> call(GitBranchReader reader) throws Exception {
+                    String profilePath = getProfilePath(profile);
+                    return reader.list(Strings.isNotBlank(path) ? profilePath + "/" + path : profilePath);
                 }
-                return answer;
-            }
-        });
+            }));
+        }
+        return answer;
     }
 
     @Override
     public Map<String, byte[]> getFileConfigurations(final String version, final String profile) {
         assertValid();
-        return gitReadOperation(new GitOperation<Map<String, byte[]>>() {
-            public Map<String, byte[]> call(Git git, GitContext context) throws Exception {
-                checkoutVersion(git, GitProfiles.getBranch(version, profile));
-                return doGetFileConfigurations(git, profile);
+        return branchReadOperation(GitProfiles.getBranch(version, profile), new BranchReadOperation<Map<String, byte[]>>() {
+            public Map<String, byte[]> call(GitBranchReader reader) throws Exception {
+                return reader.readAll(getProfilePath(profile));
             }
         });
     }
@@ -602,12 +621,9 @@ public class GitDataStore extends AbstractDataStore implements DataStorePlugin<G
     @Override
     public byte[] getFileConfiguration(final String version, final String profile, final String fileName) {
         assertValid();
-        return gitReadOperation(new GitOperation<byte[]>() {
-            public byte[] call(Git git, GitContext context) throws Exception {
-                checkoutVersion(git, GitProfiles.getBranch(version, profile));
-                File profileDirectory = getProfileDirectory(git, profile);
-                File file = new File(profileDirectory, fileName);
-                return doLoadFileConfiguration(file);
+        return branchReadOperation(GitProfiles.getBranch(version, profile), new BranchReadOperation<byte[]>() {
+            public byte[] call(GitBranchReader reader) throws Exception {
+                return reader.read(getProfilePath(profile) + "/" + fileName);
             }
         });
     }
@@ -682,14 +698,11 @@ public class GitDataStore extends AbstractDataStore implements DataStorePlugin<G
     @Override
     public Map<String, String> getConfiguration(final String version, final String profile, final String pid) {
         assertValid();
-        return gitReadOperation(new GitOperation<Map<String, String>>() {
-            public Map<String, String> call(Git git, GitContext context) throws Exception {
-                checkoutVersion(git, GitProfiles.getBranch(version, profile));
-                File profileDirectory = getProfileDirectory(git, profile);
-                File file = getPidFile(profileDirectory, pid);
-                if (file.isFile() && file.exists()) {
-                    byte[] data = Files.readBytes(file);
-                    return DataStoreHelpers.toMap(DataStoreHelpers.toProperties(data));
+        return branchReadOperation(GitProfiles.getBranch(version, profile), new BranchReadOperation<Map<String, String>>() {
+            public Map<String, String> call(GitBranchReader reader) throws Exception {
+                String path = getProfilePath(profile) + "/" + pid + ".properties";
+                if (reader.isFile(path)) {
+                    return DataStoreHelpers.toMap(DataStoreHelpers.toProperties(reader.read(path)));
                 } else {
                     return new HashMap<String, String>();
                 }
@@ -824,20 +837,42 @@ public class GitDataStore extends AbstractDataStore implements DataStorePlugin<G
 
     /**
      * Performs a read only set of operations on the git repository
-     * so that a pull is not done first
+     * so that a pull is not done first.  The operation is given the working tree,
+     * so it still waits for the writer: reads of committed data should rather use
+     * {@link #branchReadOperation(String, BranchReadOperation)}.
      */
     public <T> T gitReadOperation(GitOperation<T> operation) {
         assertValid();
         return gitOperation(null, operation, false);
     }
 
+    /**
+     * Reads what has been committed on the given branch, straight from the object database.
+     * The working tree is left alone and no lock is taken, so any number of reads can run
+     * concurrently, with each other and with the other git operations.
+     */
+    public <T> T branchReadOperation(String branch, BranchReadOperation<T> operation) {
+        assertValid();
+        try {
+            GitBranchReader reader = new GitBranchReader(getGit().getRepository(), branch);
+            try {
+                return operation.call(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (Exception e) {
+            throw FabricException.launderThrowable(e);
+        }
+    }
+
     public <T> T gitOperation(PersonIdent personIdent, GitOperation<T> operation, boolean pullFirst) {
         assertValid();
         return gitOperation(personIdent, operation, pullFirst, new GitContext());
     }
 
     public <T> T gitOperation(PersonIdent personIdent, GitOperation<T> operation, boolean pullFirst, GitContext context) {
-        synchronized (gitOperationMonitor) {
+        writeLock.lock();
+        try {
             assertValid();
             try {
                 Git git = getGit();
@@ -882,6 +917,8 @@ public class GitDataStore extends AbstractDataStore implements DataStorePlugin<G
             } catch (Exception e) {
                 throw FabricException.launderThrowable(e);
             }
+        } finally {
+            writeLock.unlock();
         }
     }
 
@@ -977,111 +1014,137 @@ public class GitDataStore extends AbstractDataStore implements DataStorePlugin<G
     protected void doPull(Git git, CredentialsProvider credentialsProvider) {
         assertValid();
         try {
-            Repository repository = git.getRepository();
-            StoredConfig config = repository.getConfig();
-            String url = config.getString("remote", remote, "url");
-            if (Strings.isNullOrBlank(url)) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("No remote repository defined for the git repository at " + GitHelpers
-                            .getRootGitDirectory(git)
-                            + " so not doing a pull");
-                }
-                return;
-            }
-            /*
-            String branch = repository.getBranch();
-            String mergeUrl = config.getString("branch", branch, "merge");
-            if (Strings.isNullOrBlank(mergeUrl)) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("No merge spec for branch." + branch + ".merge in the git repository at "
-                            + GitHelpers.getRootGitDirectory(git) + " so not doing a pull");
-                }
-                return;
+            if (doFetch(git, credentialsProvider)) {
+                doUpdateBranches(git);
             }
-            */
+        } catch (Throwable e) {
+            LOG.error(
+                    "Failed to pull from the remote git repo " + GitHelpers.getRootGitDirectory(git)
+                            + ". Reason: " + e,
+                    e);
+        }
+    }
+
+    /**
+     * Fetches from the remote repository and returns true if the local branches have to be updated.
+     * Only the remote tracking branches are moved, so this can run alongside the writer.
+     */
+    protected boolean doFetch(Git git, CredentialsProvider credentialsProvider) throws Exception {
+        assertValid();
+        Repository repository = git.getRepository();
+        StoredConfig config = repository.getConfig();
+        String url = config.getString("remote", remote, "url");
+        if (Strings.isNullOrBlank(url)) {
             if (LOG.isDebugEnabled()) {
-                LOG.debug(
-                        "Performing a fetch in git repository " + GitHelpers.getRootGitDirectory(git)
-                                + " on remote URL: "
-                                + url);
+                LOG.debug("No remote repository defined for the git repository at " + GitHelpers
+                        .getRootGitDirectory(git)
+                        + " so not doing a pull");
             }
+            return false;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(
+                    "Performing a fetch in git repository " + GitHelpers.getRootGitDirectory(git)
+                            + " on remote URL: "
+                            + url);
+        }
 
-            boolean hasChanged = false;
+        synchronized (fetchMonitor) {
             try {
-                git.fetch().setCredentialsProvider(credentialsProvider).setRemote(remote).call();
+                fetch(git, remote, credentialsProvider);
             } catch (Exception e) {
                 LOG.debug("Fetch failed. Ignoring");
-                return;
+                return false;
             }
+        }
 
-            // Get local and remote branches
-            Map<String, Ref> localBranches = new HashMap<String, Ref>();
-            Map<String, Ref> remoteBranches = new HashMap<String, Ref>();
-            Set<String> gitVersions = new HashSet<String>();
-            for (Ref ref : git.branchList().setListMode(ListBranchCommand.ListMode.ALL).call()) {
-                if (ref.getName().startsWith("refs/remotes/" + remote + "/")) {
-                    String name = ref.getName().substring(("refs/remotes/" + remote + "/").length());
-                    if (!name.endsWith("-tmp")) {
-                        remoteBranches.put(name, ref);
-                        gitVersions.add(name);
-                    }
-                } else if (ref.getName().startsWith("refs/heads/")) {
-                    String name = ref.getName().substring(("refs/heads/").length());
-                    if (!name.endsWith("-tmp")) {
-                        localBranches.put(name, ref);
-                        gitVersions.add(name);
-                    }
+        Map<String, Ref> localBranches = new HashMap<String, Ref>();
+        Map<String, Ref> remoteBranches = new HashMap<String, Ref>();
+        Set<String> gitVersions = new HashSet<String>();
+        getBranches(git, localBranches, remoteBranches, gitVersions);
+        for (String version : gitVersions) {
+            Ref localRef = localBranches.get(version);
+            Ref remoteRef = remoteBranches.get(version);
+            if (remoteRef == null) {
+                if (!remoteBranches.isEmpty() && !version.equals(MASTER_BRANCH)) {
+                    return true;
                 }
+            } else if (localRef == null || !localRef.getObjectId().equals(remoteRef.getObjectId())) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            // Check git commmits
-            for (String version : gitVersions) {
-                // Delete unneeded local branches.
-                //Check if any remote branches was found as a guard for unwanted deletions.
-                if (!remoteBranches.containsKey(version) && !remoteBranches.isEmpty()) {
-                    //We never want to delete the master branch.
-                    if (!version.equals(MASTER_BRANCH)) {
-                        try {
-                            git.branchDelete().setBranchNames(localBranches.get(version).getName()).setForce(true).call();
-                        } catch (CannotDeleteCurrentBranchException ex) {
-                            git.checkout().setName(MASTER_BRANCH).setForce(true).call();
-                            git.branchDelete().setBranchNames(localBranches.get(version).getName()).setForce(true).call();
-                        }
-                        hasChanged = true;
+    /**
+     * Brings the local branches in line with the fetched remote ones - assumed to be invoked within a gitOperation method!
+     */
+    protected void doUpdateBranches(Git git) throws Exception {
+        assertValid();
+        boolean hasChanged = false;
+
+        // Get local and remote branches
+        Map<String, Ref> localBranches = new HashMap<String, Ref>();
+        Map<String, Ref> remoteBranches = new HashMap<String, Ref>();
+        Set<String> gitVersions = new HashSet<String>();
+        getBranches(git, localBranches, remoteBranches, gitVersions);
+
+        // Check git commmits
+        for (String version : gitVersions) {
+            // Delete unneeded local branches.
+            //Check if any remote branches was found as a guard for unwanted deletions.
+            if (!remoteBranches.containsKey(version) && !remoteBranches.isEmpty()) {
+                //We never want to delete the master branch.
+                if (!version.equals(MASTER_BRANCH)) {
+                    try {
+                        git.branchDelete().setBranchNames(localBranches.get(version).getName()).setForce(true).call();
+                    } catch (CannotDeleteCurrentBranchException ex) {
+                        git.checkout().setName(MASTER_BRANCH).setForce(true).call();
+                        git.branchDelete().setBranchNames(localBranches.get(version).getName()).setForce(true).call();
                     }
-                }
-                // Create new local branches
-                else if (!localBranches.containsKey(version)) {
-                    git.checkout().setCreateBranch(true).setName(version).setStartPoint(remote +"/" + version).setUpstreamMode(CreateBranchCommand.SetupUpstreamMode.TRACK).setForce(true).call();
                     hasChanged = true;
-                } else {
-                    String localCommit = localBranches.get(version).getObjectId().getName();
-                    String remoteCommit = remoteBranches.get(version).getObjectId().getName();
-                    if (!localCommit.equals(remoteCommit)) {
-                        git.clean().setCleanDirectories(true).call();
-                        git.checkout().setName("HEAD").setForce(true).call();
-                        git.checkout().setName(version).setForce(true).call();
-                        MergeResult result = git.merge().setStrategy(MergeStrategy.THEIRS).include(remoteBranches.get(version).getObjectId()).call();
-                        if (result.getMergeStatus() != MergeResult.MergeStatus.ALREADY_UP_TO_DATE) {
-                            hasChanged = true;
-                        }
-                        // TODO: handle conflicts
+                }
+            }
+            // Create new local branches
+            else if (!localBranches.containsKey(version)) {
+                git.checkout().setCreateBranch(true).setName(version).setStartPoint(remote +"/" + version).setUpstreamMode(CreateBranchCommand.SetupUpstreamMode.TRACK).setForce(true).call();
+                hasChanged = true;
+            } else {
+                String localCommit = localBranches.get(version).getObjectId().getName();
+                String remoteCommit = remoteBranches.get(version).getObjectId().getName();
+                if (!localCommit.equals(remoteCommit)) {
+                    git.clean().setCleanDirectories(true).call();
+                    git.checkout().setName("HEAD").setForce(true).call();
+                    git.checkout().setName(version).setForce(true).call();
+                    MergeResult result = git.merge().setStrategy(MergeStrategy.THEIRS).include(remoteBranches.get(version).getObjectId()).call();
+                    if (result.getMergeStatus() != MergeResult.MergeStatus.ALREADY_UP_TO_DATE) {
+                        hasChanged = true;
                     }
+                    // TODO: handle conflicts
                 }
             }
-            if (hasChanged) {
-                LOG.debug("Changed after pull!");
-                if (credentialsProvider != null) {
-                    // TODO lets test if the profiles directory is present after checking out version 1.0?
-                    File profilesDirectory = getProfilesDirectory(git);
+        }
+        if (hasChanged) {
+            LOG.debug("Changed after pull!");
+            fireChangeNotifications();
+        }
+    }
+
+    private void getBranches(Git git, Map<String, Ref> localBranches, Map<String, Ref> remoteBranches, Set<String> gitVersions) throws GitAPIException {
+        for (Ref ref : git.branchList().setListMode(ListBranchCommand.ListMode.ALL).call()) {
+            if (ref.getName().startsWith("refs/remotes/" + remote + "/")) {
+                String name = ref.getName().substring(("refs/remotes/" + remote + "/").length());
+                if (!name.endsWith("-tmp")) {
+                    remoteBranches.put(name, ref);
+                    gitVersions.add(name);
+                }
+            } else if (ref.getName().startsWith("refs/heads/")) {
+                String name = ref.getName().substring(("refs/heads/").length());
+                if (!name.endsWith("-tmp")) {
+                    localBranches.put(name, ref);
+                    gitVersions.add(name);
                 }
-                fireChangeNotifications();
             }
-        } catch (Throwable e) {
-            LOG.error(
-                    "Failed to pull from the remote git repo " + GitHelpers.getRootGitDirectory(git)
-                            + ". Reason: " + e,
-                    e);
         }
     }
 
@@ -1177,6 +1240,14 @@ public class GitDataStore extends AbstractDataStore implements DataStorePlugin<G
         return false;
     }
 
+    /**
+     * Fetches the remote tracking branches, pruning the ones of the branches deleted on the remote
+     * so that they can be compared with the published heads.
+     */
+    static void fetch(Git git, String remote, CredentialsProvider credentialsProvider) throws GitAPIException {
+        git.fetch().setCredentialsProvider(credentialsProvider).setRemote(remote).setRemoveDeletedRefs(true).call();
+    }
+
     /**
      * Takes a profile ID of the form "foo-bar" and if we are using directory trees for profiles then
      * converts it to "foo/bar.profile"
@@ -1193,16 +1264,78 @@ public class GitDataStore extends AbstractDataStore implements DataStorePlugin<G
     protected void pull() {
         assertValid();
         try {
-            gitOperation(new GitOperation<Object>() {
-                public Object call(Git git, GitContext context) throws Exception {
-                    return null;
-                }
-            });
+            // Fetching only moves the remote tracking branches, so the writer is
+            // only needed when the local branches are behind.
+            if (doFetch(getGit(), getCredentialsProvider())) {
+                gitOperation(null, new GitOperation<Object>() {
+                    public Object call(Git git, GitContext context) throws Exception {
+                        doUpdateBranches(git);
+                        return null;
+                    }
+                }, false);
+            }
         } catch (Exception e) {
             LOG.warn("Failed to perform a pull " + e, e);
         }
     }
 
+    /**
+     * Returns true if the given branch heads differ from the remote tracking branches.
+     */
+    protected boolean isBehind(Map<String, String> heads) {
+        assertValid();
+        try {
+            return isBehind(getGit().getRepository(), remote, heads);
+        } catch (IOException e) {
+            throw FabricException.launderThrowable(e);
+        }
+    }
+
+    static boolean isBehind(Repository repository, String remote, Map<String, String> heads) throws IOException {
+        Map<String, Ref> refs = repository.getRefDatabase().getRefs(Constants.R_REMOTES + remote + "/");
+        for (Map.Entry<String, String> entry : heads.entrySet()) {
+            Ref ref = refs.get(entry.getKey());
+            if (ref == null || !ref.getObjectId().getName().equals(entry.getValue())) {
+                return true;
+            }
+        }
+        // Branches deleted on the remote are pruned by the next fetch
+        for (String branch : refs.keySet()) {
+            if (!branch.equals(Constants.HEAD) && !heads.containsKey(branch)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Pulls after a random delay, backing off while the remote heads still cannot be reached.
+     */
+    private void schedulePull(int attempt) {
+        if (!pullScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        long window = Math.min(pullJitter << Math.min(attempt, 16), MAX_PULL_BACKOFF);
+        long delay = window > 0 ? (long) (random.nextDouble() * window) : 0;
+        threadPool.schedule(new Runnable() {
+            @Override
+            public void run() {
+                pullScheduled.set(false);
+                if (!isValid()) {
+                    return;
+                }
+                pull();
+                Map<String, String> heads = remoteHeads;
+                if (heads != null && isBehind(heads)) {
+                    LOG.debug("Still behind the remote heads after a pull");
+                    schedulePull(++failedPulls);
+                } else {
+                    failedPulls = 0;
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
     protected void checkoutVersion(Git git, String version) throws GitAPIException {
         assertValid();
         GitHelpers.checkoutBranch(git, version, remote);
@@ -36,6 +36,7 @@ public class GitMasterListener implements GroupListener<GitNode> {
     private ContainerRegistration containerRegistration;
 
     private Group<GitNode> group;
+    private volatile String remoteUrl;
 
     @Activate
     public void init() throws IOException {
@@ -62,7 +63,7 @@ public class GitMasterListener implements GroupListener<GitNode> {
     }
 
     /**
-     * Updates the git master url, if needed.
+     * Updates the git master url, if needed, and passes on the branch heads it published.
      *
      * @param group
      */
@@ -71,7 +72,15 @@ public class GitMasterListener implements GroupListener<GitNode> {
         String masterUrl = master != null ? master.getUrl() : null;
         try {
             if (masterUrl != null) {
-                gitService.notifyRemoteChanged(getSubstitutedData(curator, masterUrl));
+                String url = getSubstitutedData(curator, masterUrl);
+                // The master node also changes each time it publishes its heads
+                if (!url.equals(remoteUrl)) {
+                    remoteUrl = url;
+                    gitService.notifyRemoteChanged(url);
+                }
+                if (master.getHeads() != null) {
+                    gitService.notifyRemoteHeadsChanged(master.getHeads());
+                }
             }
         } catch (Exception e) {
             LOGGER.error("Failed to point origin to the new master.", e);
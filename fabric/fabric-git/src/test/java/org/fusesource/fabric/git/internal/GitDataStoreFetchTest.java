@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) FuseSource, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.fabric.git.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GitDataStoreFetchTest {
+
+    private File dir;
+    private Git origin;
+    private Git local;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File("target/git-fetch-" + System.currentTimeMillis());
+        origin = Git.init().setDirectory(new File(dir, "origin")).call();
+        origin.commit().setMessage("Initial commit").call();
+        origin.branchCreate().setName("1.0").call();
+        origin.branchCreate().setName("1.1").call();
+        local = Git.cloneRepository().setURI(new File(dir, "origin").toURI().toString())
+                .setDirectory(new File(dir, "local")).call();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        origin.getRepository().close();
+        local.getRepository().close();
+        delete(dir);
+    }
+
+    @Test
+    public void testUpToDate() throws Exception {
+        assertFalse(GitDataStore.isBehind(local.getRepository(), "origin", heads(origin.getRepository())));
+    }
+
+    @Test
+    public void testBehindAfterCommit() throws Exception {
+        origin.commit().setMessage("Change").call();
+        assertTrue(GitDataStore.isBehind(local.getRepository(), "origin", heads(origin.getRepository())));
+
+        GitDataStore.fetch(local, "origin", null);
+        assertFalse(GitDataStore.isBehind(local.getRepository(), "origin", heads(origin.getRepository())));
+    }
+
+    @Test
+    public void testDeletedBranchIsPruned() throws Exception {
+        origin.branchDelete().setBranchNames("1.1").setForce(true).call();
+        Map<String, String> heads = heads(origin.getRepository());
+        // The remote tracking branch of 1.1 is still there
+        assertTrue(GitDataStore.isBehind(local.getRepository(), "origin", heads));
+
+        GitDataStore.fetch(local, "origin", null);
+        assertFalse(GitDataStore.isBehind(local.getRepository(), "origin", heads));
+    }
+
+    // The heads as published by the git master
+    private static Map<String, String> heads(Repository repository) throws IOException {
+        Map<String, String> heads = new TreeMap<String, String>();
+        for (Map.Entry<String, Ref> entry : repository.getRefDatabase().getRefs(Constants.R_HEADS).entrySet()) {
+            heads.put(entry.getKey(), entry.getValue().getObjectId().getName());
+        }
+        return heads;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -89,6 +89,9 @@ public class ZooKeeperGroup<T> implements Group<T> {
     protected final ConcurrentMap<String, ChildData<T>> currentData = Maps.newConcurrentMap();
     private final AtomicBoolean started = new AtomicBoolean();
     protected final SequenceComparator sequenceComparator = new SequenceComparator();
+    // Rebuilt whenever currentData changes so that the membership queries don't have to sort it
+    private volatile Members<T> members = new Members<T>(Collections.<ChildData<T>>emptyList());
+    private final Object membersLock = new Object();
 
 
     private final Watcher childrenWatcher = new Watcher() {
@@ -258,42 +261,51 @@ public class ZooKeeperGroup<T> implements Group<T> {
         }
     }
 
+    /**
+     * Returns the members in join order, as an unmodifiable map.
+     */
     @Override
     public Map<String, T> members() {
-        List<ChildData<T>> children = new ArrayList<ChildData<T>>(currentData.values());
-        Map<String, T> members = new LinkedHashMap<String, T>();
-        for (ChildData<T> child : children) {
-            members.put(child.getPath(), child.getNode());
-        }
-        return members;
+        return members.members;
     }
 
     @Override
     public boolean isMaster() {
-        List<ChildData<T>> children = new ArrayList<ChildData<T>>(currentData.values());
-        Collections.sort(children, sequenceComparator);
-        return (!children.isEmpty() && children.get(0).getPath().equals(id));
+        ChildData<T> master = members.master;
+        return master != null && master.getPath().equals(id);
     }
 
     @Override
     public T master() {
-        List<ChildData<T>> children = new ArrayList<ChildData<T>>(currentData.values());
-        Collections.sort(children, sequenceComparator);
-        if (children.isEmpty()) {
-            return null;
-        }
-        return children.get(0).getNode();
+        ChildData<T> master = members.master;
+        return master != null ? master.getNode() : null;
     }
 
+    /**
+     * Returns the members but the master in join order, as an unmodifiable list.
+     */
     @Override
     public List<T> slaves() {
-        List<ChildData<T>> children = new ArrayList<ChildData<T>>(currentData.values());
-        Collections.sort(children, sequenceComparator);
-        List<T> slaves = new ArrayList<T>();
-        for (int i = 1; i < children.size(); i++) {
-            slaves.add(children.get(i).getNode());
+        return members.slaves;
+    }
+
+    /**
+     * Returns the children sorted by sequence, as an unmodifiable list.
+     */
+    protected List<ChildData<T>> getSortedChildren() {
+        return members.children;
+    }
+
+    /**
+     * Rebuilds the membership snapshot, to be called after every change of {@link #currentData}.
+     */
+    protected void membersChanged() {
+        // Serialized so that the last rebuild always sees the latest change
+        synchronized (membersLock) {
+            List<ChildData<T>> children = new ArrayList<ChildData<T>>(currentData.values());
+            Collections.sort(children, sequenceComparator);
+            members = new Members<T>(children);
         }
-        return slaves;
     }
 
 
@@ -335,6 +347,7 @@ public class ZooKeeperGroup<T> implements Group<T> {
      */
     public void clearAndRefresh() throws Exception {
         currentData.clear();
+        membersChanged();
         offerOperation(new RefreshOperation(this, RefreshMode.STANDARD));
     }
 
@@ -344,6 +357,7 @@ public class ZooKeeperGroup<T> implements Group<T> {
      */
     public void clear() {
         currentData.clear();
+        membersChanged();
     }
 
     enum RefreshMode {
@@ -406,6 +420,7 @@ public class ZooKeeperGroup<T> implements Group<T> {
     protected void remove(String fullPath) {
         ChildData data = currentData.remove(fullPath);
         if (data != null) {
+            membersChanged();
             offerOperation(new EventOperation(this, GroupListener.GroupEvent.CHANGED));
         }
     }
@@ -419,6 +434,7 @@ public class ZooKeeperGroup<T> implements Group<T> {
             // node no longer exists - remove it
             currentData.remove(fullPath);
         }
+        membersChanged();
     }
 
     private void handleStateChange(ConnectionState newState) {
@@ -473,6 +489,7 @@ public class ZooKeeperGroup<T> implements Group<T> {
             ChildData data = new ChildData(fullPath, stat, bytes, decode(bytes));
             ChildData previousData = currentData.put(fullPath, data);
             if (previousData == null || previousData.getStat().getVersion() != stat.getVersion()) {
+                membersChanged();
                 offerOperation(new EventOperation(this, GroupListener.GroupEvent.CHANGED));
             }
         }
@@ -514,6 +531,32 @@ public class ZooKeeperGroup<T> implements Group<T> {
         operations.offer(operation);
     }
 
+    /**
+     * An immutable view of the members sorted by sequence.
+     */
+    private static final class Members<T> {
+        final List<ChildData<T>> children;
+        final ChildData<T> master;
+        final Map<String, T> members;
+        final List<T> slaves;
+
+        Members(List<ChildData<T>> sorted) {
+            Map<String, T> members = new LinkedHashMap<String, T>();
+            List<T> slaves = new ArrayList<T>();
+            for (int i = 0; i < sorted.size(); i++) {
+                ChildData<T> child = sorted.get(i);
+                members.put(child.getPath(), child.getNode());
+                if (i > 0) {
+                    slaves.add(child.getNode());
+                }
+            }
+            this.children = Collections.unmodifiableList(sorted);
+            this.master = sorted.isEmpty() ? null : sorted.get(0);
+            this.members = Collections.unmodifiableMap(members);
+            this.slaves = Collections.unmodifiableList(slaves);
+        }
+    }
+
     public static <T> Map<String, T> members(CuratorFramework curator, String path, Class<T> clazz) throws Exception {
         Map<String, T> map = new TreeMap<String, T>();
         List<String> nodes = curator.getChildren().forPath(path);
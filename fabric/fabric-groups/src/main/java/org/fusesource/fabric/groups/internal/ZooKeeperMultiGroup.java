@@ -22,9 +22,6 @@ import org.fusesource.fabric.groups.NodeState;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadFactory;
 
@@ -45,9 +42,7 @@ public class ZooKeeperMultiGroup<T> extends ZooKeeperGroup<T> implements MultiGr
 
     @Override
     public boolean isMaster(String name) {
-        List<ChildData<T>> children = new ArrayList<ChildData<T>>(currentData.values());
-        Collections.sort(children, sequenceComparator);
-        for (ChildData child : children) {
+        for (ChildData child : getSortedChildren()) {
             NodeState node = (NodeState) child.getNode();
             if (node.id.equals(name)) {
                 if (child.getPath().equals(id)) {
@@ -29,10 +29,14 @@ import org.junit.Test;
 
 import java.io.File;
 import java.net.ServerSocket;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class GroupTest {
 
@@ -181,4 +185,58 @@ public class GroupTest {
         cnxnFactory.join();
     }
 
+    @Test
+    public void testMembersInJoinOrder() throws Exception {
+        int port = findFreePort();
+
+        CuratorFramework curator = CuratorFrameworkFactory.builder()
+                .connectString("localhost:" + port)
+                .retryPolicy(new RetryNTimes(10, 100))
+                .build();
+        curator.start();
+
+        NIOServerCnxnFactory cnxnFactory = startZooKeeper(port);
+        curator.getZookeeperClient().blockUntilConnectedOrTimedOut();
+
+        String path = "/singletons/test" + System.currentTimeMillis();
+        Group<NodeState> first = new ZooKeeperGroup<NodeState>(curator, path, NodeState.class);
+        first.update(new NodeState("foo"));
+        first.start();
+        Thread.sleep(1000);
+        Group<NodeState> second = new ZooKeeperGroup<NodeState>(curator, path, NodeState.class);
+        second.update(new NodeState("bar"));
+        second.start();
+        Thread.sleep(1000);
+
+        assertTrue(first.isMaster());
+        assertFalse(second.isMaster());
+        for (Group<NodeState> group : Arrays.asList(first, second)) {
+            assertEquals("foo", group.master().id);
+            assertEquals(1, group.slaves().size());
+            assertEquals("bar", group.slaves().get(0).id);
+            Iterator<NodeState> members = group.members().values().iterator();
+            assertEquals("foo", members.next().id);
+            assertEquals("bar", members.next().id);
+            assertFalse(members.hasNext());
+            try {
+                group.members().clear();
+                fail("Expected an unmodifiable view");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+        }
+
+        first.close();
+        Thread.sleep(1000);
+        assertTrue(second.isMaster());
+        assertEquals("bar", second.master().id);
+        assertTrue(second.slaves().isEmpty());
+        assertEquals(1, second.members().size());
+
+        second.close();
+        curator.close();
+        cnxnFactory.shutdown();
+        cnxnFactory.join();
+    }
+
 }
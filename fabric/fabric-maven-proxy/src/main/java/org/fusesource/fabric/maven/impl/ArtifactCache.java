@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) FuseSource, Inc.
+ *   http://fusesource.com
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.fusesource.fabric.maven.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.fusesource.fabric.utils.Closeables;
+
+/**
+ * A bounded on-disk cache of the files served by the maven proxy.
+ * <p>
+ * Files are stored once per content, under the name of their SHA-1 digest, and the requested
+ * paths point to them.  The least recently used paths are evicted when the cache grows over its
+ * maximum size.  Snapshots and metadata expire after a time to live, releases never change.
+ * The index is saved in the cache directory, so the cache survives restarts; files found on
+ * disk are checked against their digest before being served for the first time.  It is saved
+ * in the background, at most once per second, and when the cache is stopped.
+ * </p>
+ * <p>
+ * The files returned are pinned until given back to {@link #release(File)}, a file removed
+ * from the cache meanwhile is only deleted once it is not served anymore.
+ * </p>
+ */
+public class ArtifactCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ArtifactCache.class.getName());
+
+    private static final String INDEX_FILE = "index.properties";
+    // How long the changes wait before the index is saved, in milliseconds
+    private static final long SAVE_DELAY = 1000;
+
+    private final File directory;
+    private final long maxSize;
+    private final long snapshotTimeToLive;
+
+    // Access ordered, the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    // Number of paths pointing to each stored file
+    private final Map<String, Integer> references = new HashMap<String, Integer>();
+    // Number of requests serving each stored file
+    private final Map<String, Integer> pins = new HashMap<String, Integer>();
+    private long size;
+    private ScheduledExecutorService saver;
+    private boolean saveScheduled;
+    // Held while the index is written
+    private final Object saveLock = new Object();
+
+    /**
+     * @param directory          the directory of the cache
+     * @param maxSize            the maximum size of the stored files, in bytes
+     * @param snapshotTimeToLive how long snapshots and metadata are served from the cache, in milliseconds
+     */
+    public ArtifactCache(File directory, long maxSize, long snapshotTimeToLive) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.snapshotTimeToLive = snapshotTimeToLive;
+    }
+
+    public synchronized void start() throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create artifact cache folder " + directory);
+        }
+        entries.clear();
+        references.clear();
+        size = 0;
+        File index = new File(directory, INDEX_FILE);
+        if (index.isFile()) {
+            Properties props = new Properties();
+            InputStream is = new FileInputStream(index);
+            try {
+                props.load(is);
+            } finally {
+                Closeables.closeQuitely(is);
+            }
+            for (String path : props.stringPropertyNames()) {
+                String[] value = props.getProperty(path).split(",");
+                File file = getFile(value[0]);
+                if (value.length == 2 && file.isFile()) {
+                    addEntry(path, new Entry(value[0], Long.parseLong(value[1]), false), file.length());
+                }
+            }
+        }
+        evict();
+        saveScheduled = false;
+        saver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Maven proxy cache index");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Saves the pending changes of the index.
+     */
+    public void stop() {
+        ScheduledExecutorService saver;
+        synchronized (this) {
+            saver = this.saver;
+            this.saver = null;
+        }
+        if (saver != null) {
+            saver.shutdownNow();
+            save();
+        }
+    }
+
+    /**
+     * Returns the cached file of the given path, or <code>null</code> if it is not cached
+     * or expired.  The file is pinned, to be released once served.
+     */
+    public File get(String path) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(path);
+            if (entry == null) {
+                return null;
+            }
+            if (isExpired(path, entry)) {
+                removeEntry(path);
+                scheduleSave();
+                return null;
+            }
+            pin(entry.digest);
+        }
+        File file = getFile(entry.digest);
+        if (!entry.verified) {
+            // Stored by a previous run
+            try {
+                if (!entry.digest.equals(digest(file))) {
+                    LOGGER.log(Level.WARNING, String.format("Corrupted cache entry for %s, discarding it", path));
+                    release(file);
+                    remove(path);
+                    return null;
+                }
+                entry.verified = true;
+            } catch (IOException e) {
+                release(file);
+                remove(path);
+                return null;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Stores a copy of the given file for the path and returns it, pinned like
+     * the files returned by {@link #get(String)}.
+     *
+     * @param expectedDigest the SHA-1 digest the file should have, if known
+     */
+    public File put(String path, File source, String expectedDigest) throws IOException {
+        File tmp = File.createTempFile("artifact", ".tmp", directory);
+        String digest;
+        try {
+            digest = copy(source, tmp);
+            if (expectedDigest != null && !expectedDigest.equalsIgnoreCase(digest)) {
+                throw new IOException("Checksum mismatch for " + path + ": expected " + expectedDigest + " but was " + digest);
+            }
+            synchronized (this) {
+                File file = getFile(digest);
+                if (!file.isFile()) {
+                    file.getParentFile().mkdirs();
+                    if (!tmp.renameTo(file)) {
+                        throw new IOException("Failed to move " + tmp + " to " + file);
+                    }
+                }
+                removeEntry(path);
+                addEntry(path, new Entry(digest, System.currentTimeMillis(), true), file.length());
+                evict();
+                scheduleSave();
+                // Evicted right away if bigger than the whole cache
+                if (!entries.containsKey(path)) {
+                    return null;
+                }
+                pin(digest);
+                return file;
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Returns the SHA-1 digest of the given file if it is stored in the cache, or <code>null</code>.
+     */
+    public String getDigest(File file) {
+        File parent = file.getParentFile();
+        if (parent != null && directory.equals(parent.getParentFile())
+                && file.getName().length() == 40 && file.getName().startsWith(parent.getName())) {
+            return file.getName();
+        }
+        return null;
+    }
+
+    public synchronized void remove(String path) {
+        if (removeEntry(path) != null) {
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Releases a file returned by {@link #get(String)} or {@link #put(String, File, String)}
+     * once it has been served.
+     */
+    public synchronized void release(File file) {
+        String digest = getDigest(file);
+        Integer count = digest != null ? pins.get(digest) : null;
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            pins.put(digest, count - 1);
+        } else {
+            pins.remove(digest);
+            if (!references.containsKey(digest)) {
+                // Removed while it was served
+                file.delete();
+            }
+        }
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    static boolean isVolatile(String path) {
+        return path.contains("SNAPSHOT") || path.contains("maven-metadata");
+    }
+
+    private boolean isExpired(String path, Entry entry) {
+        return isVolatile(path) && System.currentTimeMillis() - entry.time > snapshotTimeToLive;
+    }
+
+    private File getFile(String digest) {
+        return new File(new File(directory, digest.substring(0, 2)), digest);
+    }
+
+    private void pin(String digest) {
+        Integer count = pins.get(digest);
+        pins.put(digest, count != null ? count + 1 : 1);
+    }
+
+    private void addEntry(String path, Entry entry, long length) {
+        entries.put(path, entry);
+        Integer count = references.get(entry.digest);
+        if (count == null) {
+            size += length;
+            count = 0;
+        }
+        references.put(entry.digest, count + 1);
+    }
+
+    private Entry removeEntry(String path) {
+        Entry entry = entries.remove(path);
+        if (entry != null) {
+            int count = references.get(entry.digest) - 1;
+            if (count == 0) {
+                references.remove(entry.digest);
+                File file = getFile(entry.digest);
+                size -= file.length();
+                if (!pins.containsKey(entry.digest)) {
+                    file.delete();
+                }
+            } else {
+                references.put(entry.digest, count);
+            }
+        }
+        return entry;
+    }
+
+    private void evict() {
+        while (size > maxSize && !entries.isEmpty()) {
+            removeEntry(entries.keySet().iterator().next());
+        }
+    }
+
+    private void scheduleSave() {
+        if (!saveScheduled && saver != null) {
+            saveScheduled = true;
+            saver.schedule(new Runnable() {
+                public void run() {
+                    save();
+                }
+            }, SAVE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void save() {
+        // Taken while holding the save lock, so an older copy never overwrites a newer one
+        synchronized (saveLock) {
+            Properties props = new Properties();
+            synchronized (this) {
+                saveScheduled = false;
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    props.setProperty(entry.getKey(), entry.getValue().digest + "," + entry.getValue().time);
+                }
+            }
+            writeIndex(props);
+        }
+    }
+
+    private void writeIndex(Properties props) {
+        File tmp = new File(directory, INDEX_FILE + ".tmp");
+        try {
+            OutputStream os = new FileOutputStream(tmp);
+            try {
+                props.store(os, null);
+            } finally {
+                Closeables.closeQuitely(os);
+            }
+            File index = new File(directory, INDEX_FILE);
+            if (!tmp.renameTo(index)) {
+                index.delete();
+                if (!tmp.renameTo(index)) {
+                    throw new IOException("Failed to move " + tmp + " to " + index);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the artifact cache index", e);
+        }
+    }
+
+    private static String copy(File source, File target) throws IOException {
+        MessageDigest md = newDigest();
+        InputStream is = new FileInputStream(source);
+        try {
+            OutputStream os = new FileOutputStream(target);
+            try {
+                byte[] buffer = new byte[65536];
+                int length;
+                while ((length = is.read(buffer)) != -1) {
+                    md.update(buffer, 0, length);
+                    os.write(buffer, 0, length);
+                }
+            } finally {
+                Closeables.closeQuitely(os);
+            }
+        } finally {
+            Closeables.closeQuitely(is);
+        }
+        return toHex(md.digest());
+    }
+
+    static String digest(File file) throws IOException {
+        MessageDigest md = newDigest();
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[65536];
+            int length;
+            while ((length = is.read(buffer)) != -1) {
+                md.update(buffer, 0, length);
+            }
+        } finally {
+            Closeables.closeQuitely(is);
+        }
+        return toHex(md.digest());
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static class Entry {
+        final String digest;
+        final long time;
+        volatile boolean verified;
+
+        Entry(String digest, long time, boolean verified) {
+            this.digest = digest;
+            this.time = time;
+            this.verified = verified;
+        }
+    }
+}
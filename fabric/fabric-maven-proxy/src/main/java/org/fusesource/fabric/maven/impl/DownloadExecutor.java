@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) FuseSource, Inc.
+ *   http://fusesource.com
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.fusesource.fabric.maven.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * <p>
+ * Runs the resolutions of the download proxy on a fixed number of threads.
+ * Once <code>maximumQueueSize</code> resolutions are waiting for a thread, new
+ * ones are rejected so that the proxy can tell its clients to come back later
+ * instead of piling up requests against the upstream repositories.
+ * </p>
+ * <p>
+ * Also keeps track of the requests served by the proxy.
+ * </p>
+ * <p>
+ * The proxy has a second, named, executor for the requests of its peers, so that
+ * resolutions blocked on a peer never hold up the requests this peer sends back.
+ * </p>
+ */
+public class DownloadExecutor implements DownloadExecutorMBean {
+
+    private static final Logger LOGGER = Logger.getLogger(DownloadExecutor.class.getName());
+
+    public static final long DEFAULT_KEEP_ALIVE = TimeUnit.MINUTES.toMillis(1);
+
+    public static final String DEFAULT_NAME = "download";
+
+    private final String name;
+    private final ThreadPoolExecutor pool;
+    private final int maximumQueueSize;
+    private ObjectName objectName;
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+
+    public DownloadExecutor(int threads, int maximumQueueSize) {
+        this(DEFAULT_NAME, threads, maximumQueueSize);
+    }
+
+    public DownloadExecutor(final String name, int threads, int maximumQueueSize) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Invalid number of download threads: " + threads);
+        }
+        this.name = name;
+        this.maximumQueueSize = maximumQueueSize;
+        BlockingQueue<Runnable> queue = maximumQueueSize > 0
+                ? new ArrayBlockingQueue<Runnable>(maximumQueueSize)
+                : new LinkedBlockingQueue<Runnable>();
+        pool = new ThreadPoolExecutor(threads, threads, DEFAULT_KEEP_ALIVE, TimeUnit.MILLISECONDS, queue,
+                new ThreadFactory() {
+                    private final AtomicInteger counter = new AtomicInteger();
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Maven proxy " + name + " #" + counter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @throws RejectedExecutionException if the queue is full or the executor has been shut down
+     */
+    public void execute(Runnable task) throws RejectedExecutionException {
+        try {
+            pool.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    public void hit() {
+        hits.incrementAndGet();
+    }
+
+    public void miss() {
+        misses.incrementAndGet();
+    }
+
+    public void served(long bytes) {
+        bytesServed.addAndGet(bytes);
+    }
+
+    public int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return pool.getActiveCount();
+    }
+
+    public int getMaximumPoolSize() {
+        return pool.getMaximumPoolSize();
+    }
+
+    public int getMaximumQueueSize() {
+        return maximumQueueSize;
+    }
+
+    public long getCompletedCount() {
+        return pool.getCompletedTaskCount();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getBytesServed() {
+        return bytesServed.get();
+    }
+
+    public void resetStatistics() {
+        rejected.set(0);
+        hits.set(0);
+        misses.set(0);
+        bytesServed.set(0);
+    }
+
+    public ObjectName getObjectName() throws MalformedObjectNameException {
+        if (objectName == null) {
+            objectName = new ObjectName("org.fusesource.fabric:type=MavenProxy,name=" + name);
+        }
+        return objectName;
+    }
+
+    public void registerMBeanServer(MBeanServer mbeanServer) {
+        try {
+            ObjectName name = getObjectName();
+            if (!mbeanServer.isRegistered(name)) {
+                mbeanServer.registerMBean(this, name);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "An error occured during mbean server registration: " + e, e);
+        }
+    }
+
+    public void unregisterMBeanServer(MBeanServer mbeanServer) {
+        if (mbeanServer != null) {
+            try {
+                ObjectName name = getObjectName();
+                if (mbeanServer.isRegistered(name)) {
+                    mbeanServer.unregisterMBean(name);
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "An error occured during mbean server unregistration: " + e, e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) FuseSource, Inc.
+ *   http://fusesource.com
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.fusesource.fabric.maven.impl;
+
+/**
+ * Management interface exposing the downloads of the maven proxy.
+ */
+public interface DownloadExecutorMBean {
+
+    /**
+     * @return the number of downloads waiting for a thread
+     */
+    int getQueueDepth();
+
+    /**
+     * @return the number of downloads currently running
+     */
+    int getActiveCount();
+
+    int getMaximumPoolSize();
+
+    /**
+     * @return the maximum number of downloads waiting for a thread, 0 if unbounded
+     */
+    int getMaximumQueueSize();
+
+    long getCompletedCount();
+
+    /**
+     * @return the number of requests answered with a 503 because the queue was full
+     */
+    long getRejectedCount();
+
+    /**
+     * @return the number of requests served from the artifact cache
+     */
+    long getHitCount();
+
+    /**
+     * @return the number of requests which had to be resolved
+     */
+    long getMissCount();
+
+    long getBytesServed();
+
+    void resetStatistics();
+
+}
@@ -17,14 +17,26 @@
 
 package org.fusesource.fabric.maven.impl;
 
-import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
+import javax.management.MBeanServer;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -35,18 +47,204 @@ import org.fusesource.fabric.internal.FabricConstants;
 import org.fusesource.fabric.utils.Closeables;
 import org.fusesource.fabric.utils.Files;
 import org.osgi.service.http.HttpService;
+import org.sonatype.aether.repository.RemoteRepository;
+import org.sonatype.aether.resolution.ArtifactRequest;
+import org.sonatype.aether.resolution.ArtifactResolutionException;
+import org.sonatype.aether.resolution.ArtifactResult;
+import org.sonatype.aether.resolution.MetadataRequest;
+import org.sonatype.aether.resolution.MetadataResult;
 
 
 public class MavenDownloadProxyServlet extends MavenProxyServletSupport {
 
+    public static final long DEFAULT_CACHE_MAX_SIZE = 1024L * 1024L * 1024L;
+    public static final long DEFAULT_SNAPSHOT_TIME_TO_LIVE = TimeUnit.MINUTES.toMillis(1);
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_PEER_THREADS = 4;
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+    public static final int DEFAULT_REPOSITORY_CONCURRENCY = 4;
+
+    // Seconds after which clients turned away because the queue is full should retry
+    private static final int RETRY_AFTER = 5;
+
+    /**
+     * Header set by a proxy fetching an artifact it does not own from its owner,
+     * the owner then resolves it itself instead of asking another proxy.
+     */
+    public static final String PEER_HEADER = "X-Fabric-Maven-Proxy-Peer";
+    public static final int PEER_CONNECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(5);
+    // The owner may have to resolve the artifact before sending it
+    public static final int PEER_READ_TIMEOUT = (int) TimeUnit.MINUTES.toMillis(2);
+
     private ConcurrentMap<String, ArtifactDownloadFuture> requestMap = new ConcurrentHashMap<String, ArtifactDownloadFuture>();
-    private ExecutorService executorService = Executors.newCachedThreadPool();
+    private int threads = DEFAULT_THREADS;
+    private int peerThreads = DEFAULT_PEER_THREADS;
+    private int maximumQueueSize = DEFAULT_QUEUE_SIZE;
+    private int repositoryConcurrency = DEFAULT_REPOSITORY_CONCURRENCY;
+    private volatile DownloadExecutor executor;
+    // Requests from peers are never forwarded, so these threads never wait on another proxy
+    private volatile DownloadExecutor peerExecutor;
+    private volatile Map<String, RepositoryThrottle> throttles = Collections.emptyMap();
+    private volatile PeerRing peers;
+    private MBeanServer mbeanServer;
+
+    private File cacheFolder = new File(System.getProperty("karaf.data") + File.separator + "maven" + File.separator + "proxy" + File.separator + "cache");
+    private long cacheMaxSize = DEFAULT_CACHE_MAX_SIZE;
+    private long snapshotTimeToLive = DEFAULT_SNAPSHOT_TIME_TO_LIVE;
+    private volatile ArtifactCache cache;
 
 
     public MavenDownloadProxyServlet(String localRepository, String remoteRepositories, boolean appendSystemRepos, String updatePolicy, String checksumPolicy, String proxyProtocol, String proxyHost, int proxyPort, String proxyUsername, String proxyPassword, String proxyNonProxyHosts) {
         super(localRepository, remoteRepositories, appendSystemRepos, updatePolicy, checksumPolicy, proxyProtocol, proxyHost, proxyPort, proxyUsername, proxyPassword, proxyNonProxyHosts);
     }
 
+    @Override
+    public synchronized void start() throws IOException {
+        super.start();
+        stopCache();
+        if (cacheMaxSize > 0) {
+            ArtifactCache cache = new ArtifactCache(cacheFolder, cacheMaxSize, snapshotTimeToLive);
+            cache.start();
+            this.cache = cache;
+        } else {
+            this.cache = null;
+        }
+
+        unregisterMBeans();
+        shutdownExecutors();
+        executor = new DownloadExecutor(threads, maximumQueueSize);
+        peerExecutor = new DownloadExecutor("peer", peerThreads, maximumQueueSize);
+        Map<String, RepositoryThrottle> throttles = new HashMap<String, RepositoryThrottle>();
+        for (RemoteRepository repository : repositories.values()) {
+            throttles.put(repository.getId(), new RepositoryThrottle(repository.getId(), repository.getUrl(), repositoryConcurrency));
+        }
+        this.throttles = throttles;
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        executor.registerMBeanServer(mbeanServer);
+        peerExecutor.registerMBeanServer(mbeanServer);
+        for (RepositoryThrottle throttle : throttles.values()) {
+            throttle.registerMBeanServer(mbeanServer);
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        unregisterMBeans();
+        shutdownExecutors();
+        stopCache();
+        super.stop();
+    }
+
+    private void stopCache() {
+        ArtifactCache cache = this.cache;
+        if (cache != null) {
+            cache.stop();
+        }
+    }
+
+    private void shutdownExecutors() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        if (peerExecutor != null) {
+            peerExecutor.shutdown();
+        }
+    }
+
+    private void unregisterMBeans() {
+        if (mbeanServer != null) {
+            if (executor != null) {
+                executor.unregisterMBeanServer(mbeanServer);
+            }
+            if (peerExecutor != null) {
+                peerExecutor.unregisterMBeanServer(mbeanServer);
+            }
+            for (RepositoryThrottle throttle : throttles.values()) {
+                throttle.unregisterMBeanServer(mbeanServer);
+            }
+            mbeanServer = null;
+        }
+    }
+
+    public long getCacheMaxSize() {
+        return cacheMaxSize;
+    }
+
+    /**
+     * Sets the maximum size in bytes of the artifacts kept on disk, 0 disables the cache.
+     */
+    public void setCacheMaxSize(long cacheMaxSize) {
+        this.cacheMaxSize = cacheMaxSize;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of threads resolving artifacts.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getPeerThreads() {
+        return peerThreads;
+    }
+
+    /**
+     * Sets the number of threads resolving the artifacts requested by other proxies.
+     */
+    public void setPeerThreads(int peerThreads) {
+        this.peerThreads = peerThreads;
+    }
+
+    public int getMaximumQueueSize() {
+        return maximumQueueSize;
+    }
+
+    /**
+     * Sets how many resolutions can wait for a thread before requests are answered
+     * with a 503, 0 for no limit.
+     */
+    public void setMaximumQueueSize(int maximumQueueSize) {
+        this.maximumQueueSize = maximumQueueSize;
+    }
+
+    public int getRepositoryConcurrency() {
+        return repositoryConcurrency;
+    }
+
+    /**
+     * Sets the maximum number of concurrent resolutions against each repository, 0 for no limit.
+     */
+    public void setRepositoryConcurrency(int repositoryConcurrency) {
+        this.repositoryConcurrency = repositoryConcurrency;
+    }
+
+    public PeerRing getPeers() {
+        return peers;
+    }
+
+    /**
+     * Sets the proxies to fetch artifacts from before resolving them, <code>null</code> to always resolve them.
+     */
+    public void setPeers(PeerRing peers) {
+        this.peers = peers;
+    }
+
+    public long getSnapshotTimeToLive() {
+        return snapshotTimeToLive;
+    }
+
+    /**
+     * Sets how long in milliseconds snapshots and metadata are served from the cache
+     * before being resolved again.
+     */
+    public void setSnapshotTimeToLive(long snapshotTimeToLive) {
+        this.snapshotTimeToLive = snapshotTimeToLive;
+    }
+
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         super.doPost(req, resp);
@@ -59,8 +257,7 @@ public class MavenDownloadProxyServlet extends MavenProxyServletSupport {
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        InputStream is = null;
-        BufferedInputStream bis = null;
+        FileInputStream is = null;
         File artifactFile = null;
         ArtifactDownloadFuture masterFuture = null;
 
@@ -70,43 +267,62 @@ public class MavenDownloadProxyServlet extends MavenProxyServletSupport {
                 path = path.substring(1);
             }
 
+            DownloadExecutor executor = this.executor;
+            ArtifactCache cache = this.cache;
             try {
-                ArtifactDownloadFuture future = new ArtifactDownloadFuture(path);
-                masterFuture = requestMap.putIfAbsent(path, future);
-                if (masterFuture == null) {
-                    masterFuture = future;
-                    executorService.submit(future);
+                artifactFile = cache != null && path != null ? cache.get(path) : null;
+                if (artifactFile == null) {
+                    executor.miss();
+                    boolean fromPeer = req.getHeader(PEER_HEADER) != null;
+                    // Requests from peers are never forwarded, so they must not wait on a forwarded one
+                    String key = fromPeer ? PEER_HEADER + ":" + path : path;
+                    ArtifactDownloadFuture future = new ArtifactDownloadFuture(new ArtifactDownloadTask(path, !fromPeer));
+                    masterFuture = requestMap.putIfAbsent(key, future);
+                    while (masterFuture != null && !masterFuture.join()) {
+                        // Served and released already, start over
+                        requestMap.remove(key, masterFuture);
+                        masterFuture = requestMap.putIfAbsent(key, future);
+                    }
+                    if (masterFuture == null) {
+                        masterFuture = future;
+                        future.join();
+                        try {
+                            // Peers get their own threads, two proxies forwarding to each other
+                            // would otherwise fill each other's threads and wait until the timeout
+                            (fromPeer ? peerExecutor : executor).execute(future);
+                        } catch (RejectedExecutionException e) {
+                            // Wakes up the requests already waiting for it
+                            requestMap.remove(key, future);
+                            future.cancel(false);
+                            throw e;
+                        }
+                    }
                     artifactFile = masterFuture.get();
+
+                    requestMap.remove(key, masterFuture);
                 } else {
-                    artifactFile = masterFuture.get();
+                    executor.hit();
                 }
-
-                requestMap.remove(path);
                 if (artifactFile == null) {
                     resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
                     return;
                 }
 
-                is = new FileInputStream(artifactFile);
                 LOGGER.log(Level.INFO, String.format("Writing response for file : %s", path));
-                resp.setStatus(HttpServletResponse.SC_OK);
-                resp.setContentType("application/octet-stream");
-                resp.setDateHeader("Date", System.currentTimeMillis());
-                resp.setHeader("Connection", "close");
-                resp.setContentLength(is.available());
-                resp.setHeader("Server", "MavenProxy Proxy/" + FabricConstants.FABRIC_VERSION);
-                byte buffer[] = new byte[8192];
-                int length;
-                while ((length = is.read(buffer)) != -1) {
-                    resp.getOutputStream().write(buffer, 0, length);
-                }
-                resp.getOutputStream().flush();
+                is = new FileInputStream(artifactFile);
+                executor.served(serve(req, resp, artifactFile, is));
+            } catch (RejectedExecutionException ex) {
+                unavailable(resp);
+            } catch (CancellationException ex) {
+                unavailable(resp);
             } catch (Exception ex) {
                 LOGGER.warning("Error while downloading artifact:" + ex.getMessage());
             } finally {
                 Closeables.closeQuitely(is);
-                if (masterFuture != null && artifactFile != null) {
-                    masterFuture.release(artifactFile);
+                if (masterFuture != null) {
+                    masterFuture.release();
+                } else if (artifactFile != null) {
+                    cache.release(artifactFile);
                 }
             }
         } catch (Exception ex) {
@@ -114,23 +330,289 @@ public class MavenDownloadProxyServlet extends MavenProxyServletSupport {
         }
     }
 
+    private void unavailable(HttpServletResponse resp) {
+        LOGGER.log(Level.WARNING, "Too many pending downloads, asking the client to retry later");
+        resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        resp.setIntHeader("Retry-After", RETRY_AFTER);
+    }
+
+    /**
+     * Writes the file, honouring conditional and single byte range requests.
+     *
+     * @return the number of bytes written
+     */
+    long serve(HttpServletRequest req, HttpServletResponse resp, File file, FileInputStream is) throws IOException {
+        FileChannel channel = is.getChannel();
+        // Read the length from the opened file, which can't be replaced anymore
+        long length = channel.size();
+        // HTTP dates have a one second precision
+        long lastModified = file.lastModified() / 1000L * 1000L;
+        String etag = getETag(file, length, lastModified);
+
+        resp.setDateHeader("Date", System.currentTimeMillis());
+        resp.setHeader("Server", "MavenProxy Proxy/" + FabricConstants.FABRIC_VERSION);
+        resp.setHeader("Accept-Ranges", "bytes");
+        resp.setHeader("ETag", etag);
+        resp.setDateHeader("Last-Modified", lastModified);
+
+        if (isNotModified(req, etag, lastModified)) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return 0;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        long[] bounds = null;
+        String range = req.getHeader("Range");
+        String ifRange = req.getHeader("If-Range");
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            bounds = parseRange(range, length);
+            if (bounds == UNSATISFIABLE_RANGE) {
+                resp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                resp.setHeader("Content-Range", "bytes */" + length);
+                return 0;
+            }
+        }
+        if (bounds != null) {
+            // Even when it covers the whole file, the client asked for a range and gets one
+            start = bounds[0];
+            end = bounds[1];
+            resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            resp.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        } else {
+            resp.setStatus(HttpServletResponse.SC_OK);
+        }
+        long total = end - start + 1;
+        long count = total;
+        resp.setContentType("application/octet-stream");
+        // setContentLength only takes an int
+        resp.setHeader("Content-Length", Long.toString(count));
+
+        // The servlet output stream is not a channel, so this copies through a heap buffer,
+        // but only reads the requested range from the file
+        WritableByteChannel out = Channels.newChannel(resp.getOutputStream());
+        long position = start;
+        while (count > 0) {
+            long written = channel.transferTo(position, count, out);
+            if (written <= 0) {
+                throw new EOFException("Unexpected end of file " + file);
+            }
+            position += written;
+            count -= written;
+        }
+        resp.getOutputStream().flush();
+        return total;
+    }
+
+    private String getETag(File file, long length, long lastModified) {
+        ArtifactCache cache = this.cache;
+        String digest = cache != null ? cache.getDigest(file) : null;
+        if (digest != null) {
+            return "\"" + digest + "\"";
+        }
+        return "W/\"" + length + "-" + lastModified + "\"";
+    }
+
+    static boolean isNotModified(HttpServletRequest req, String etag, long lastModified) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            // If-Modified-Since is ignored when If-None-Match is present
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        try {
+            long ifModifiedSince = req.getDateHeader("If-Modified-Since");
+            return ifModifiedSince >= 0 && lastModified <= ifModifiedSince;
+        } catch (IllegalArgumentException e) {
+            // Not a date
+            return false;
+        }
+    }
+
+    static final long[] UNSATISFIABLE_RANGE = new long[0];
+
+    /**
+     * Parses a single byte range header.
+     *
+     * @return the first and last positions of the range, {@link #UNSATISFIABLE_RANGE} if it is out of the file,
+     *         or <code>null</code> if the header can't be honoured and the whole file has to be sent
+     */
+    static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                // Suffix range: the last n bytes
+                long suffix = Long.parseLong(spec.substring(1).trim());
+                if (suffix <= 0) {
+                    return UNSATISFIABLE_RANGE;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash).trim());
+                String last = spec.substring(dash + 1).trim();
+                end = last.length() > 0 ? Math.min(Long.parseLong(last), length - 1) : length - 1;
+                if (end < start) {
+                    return start >= length ? UNSATISFIABLE_RANGE : null;
+                }
+            }
+            if (start >= length) {
+                return UNSATISFIABLE_RANGE;
+            }
+            return new long[] {start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Tries the repositories one at a time for releases, so that each resolution only holds
+     * the throttle of the repository it is talking to. Snapshots are resolved against all the
+     * repositories in a single call, as the newest snapshot can only be picked once the metadata
+     * of every repository has been merged; that call holds the throttles of all the repositories.
+     */
+    @Override
+    protected ArtifactResult resolveArtifact(ArtifactRequest request) throws Exception {
+        if (request.getArtifact().isSnapshot()) {
+            return resolveSnapshot(request);
+        }
+        ArtifactResolutionException failure = null;
+        ArtifactResult last = null;
+        for (RemoteRepository repository : request.getRepositories()) {
+            ArtifactRequest single = new ArtifactRequest(request.getArtifact(),
+                    Collections.singletonList(repository), request.getRequestContext());
+            RepositoryThrottle throttle = throttles.get(repository.getId());
+            long start = throttle != null ? throttle.acquire() : 0L;
+            boolean found = false;
+            try {
+                last = super.resolveArtifact(single);
+                found = last.isResolved();
+                if (found) {
+                    return last;
+                }
+            } catch (ArtifactResolutionException e) {
+                failure = e;
+            } finally {
+                if (throttle != null) {
+                    throttle.release(start, found);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (last != null) {
+            return last;
+        }
+        // no remote repository, only the local one is looked at
+        return super.resolveArtifact(request);
+    }
+
+    private ArtifactResult resolveSnapshot(ArtifactRequest request) throws Exception {
+        // acquire in a stable order so that concurrent snapshot resolutions cannot deadlock
+        Map<String, RepositoryThrottle> held = new TreeMap<String, RepositoryThrottle>();
+        for (RemoteRepository repository : request.getRepositories()) {
+            RepositoryThrottle throttle = throttles.get(repository.getId());
+            if (throttle != null) {
+                held.put(repository.getId(), throttle);
+            }
+        }
+        List<RepositoryThrottle> acquired = new ArrayList<RepositoryThrottle>();
+        List<Long> starts = new ArrayList<Long>();
+        boolean found = false;
+        try {
+            for (RepositoryThrottle throttle : held.values()) {
+                starts.add(throttle.acquire());
+                acquired.add(throttle);
+            }
+            ArtifactResult result = super.resolveArtifact(request);
+            found = result.isResolved();
+            return result;
+        } finally {
+            for (int i = acquired.size() - 1; i >= 0; i--) {
+                acquired.get(i).release(starts.get(i), found);
+            }
+        }
+    }
+
+    /**
+     * Resolves the requests one repository at a time and stops at the first one having the metadata.
+     */
+    @Override
+    protected List<MetadataResult> resolveMetadata(List<MetadataRequest> requests) throws Exception {
+        List<MetadataResult> results = new ArrayList<MetadataResult>();
+        for (MetadataRequest request : requests) {
+            RepositoryThrottle throttle = request.getRepository() != null ? throttles.get(request.getRepository().getId()) : null;
+            long start = throttle != null ? throttle.acquire() : 0L;
+            boolean found = false;
+            try {
+                List<MetadataResult> result = super.resolveMetadata(Collections.singletonList(request));
+                results.addAll(result);
+                for (MetadataResult r : result) {
+                    found |= r.getMetadata() != null && r.getMetadata().getFile() != null;
+                }
+            } finally {
+                if (throttle != null) {
+                    throttle.release(start, found);
+                }
+            }
+            if (found) {
+                break;
+            }
+        }
+        return results;
+    }
+
     private class ArtifactDownloadFuture extends FutureTask<File> {
 
-        private final AtomicInteger paritcipans = new AtomicInteger();
+        private final ArtifactDownloadTask task;
+        // Number of requests serving the file, -1 once they are all done
+        private int participants;
 
-        public ArtifactDownloadFuture(String path) {
-            super(new ArtifactDownloadTask(path));
+        public ArtifactDownloadFuture(ArtifactDownloadTask task) {
+            super(task);
+            this.task = task;
         }
 
-        @Override
-        public File get() throws InterruptedException, ExecutionException {
-            paritcipans.incrementAndGet();
-            return super.get();
+        /**
+         * Registers a request serving the file, returns false if the file has been released already.
+         */
+        public synchronized boolean join() {
+            if (participants < 0) {
+                return false;
+            }
+            participants++;
+            return true;
+        }
+
+        public synchronized void release() {
+            if (--participants == 0) {
+                participants = -1;
+                if (isDone()) {
+                    task.release();
+                }
+            }
         }
 
-        public synchronized void release(File f) {
-            if (paritcipans.decrementAndGet() == 0) {
-                f.delete();
+        @Override
+        protected synchronized void done() {
+            // The requests gave up before the download completed
+            if (participants < 0) {
+                task.release();
             }
         }
     }
@@ -138,22 +620,132 @@ public class MavenDownloadProxyServlet extends MavenProxyServletSupport {
     private class ArtifactDownloadTask implements Callable<File> {
 
         private final String path;
+        private final boolean forward;
+        // The returned file, until released
+        private volatile File file;
+        // The cache the returned file is pinned in, if it is not a private copy to be deleted once served
+        private volatile ArtifactCache pinnedIn;
 
-        private ArtifactDownloadTask(String path) {
+        private ArtifactDownloadTask(String path, boolean forward) {
             this.path = path;
+            this.forward = forward;
         }
 
         @Override
         public File call() throws Exception {
-            File download = download(path);
+            File fetched = forward ? fetchFromOwner() : null;
+            File download = fetched != null ? fetched : download(path);
             if (download != null)  {
-            File tmpFile = Files.createTempFile();
-            Files.copy(download, tmpFile);
-            return tmpFile;
+                ArtifactCache cache = MavenDownloadProxyServlet.this.cache;
+                if (cache != null) {
+                    try {
+                        // Whatever came from another proxy has already been checked
+                        File cached = cache.put(path, download, fetched != null ? null : readChecksum(download));
+                        if (cached != null) {
+                            if (fetched != null) {
+                                fetched.delete();
+                            }
+                            pinnedIn = cache;
+                            file = cached;
+                            return cached;
+                        }
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, String.format("Failed to cache %s due to %s", path, e));
+                    }
+                }
+                if (fetched != null) {
+                    file = fetched;
+                    return fetched;
+                }
+                File tmpFile = Files.createTempFile();
+                Files.copy(download, tmpFile);
+                file = tmpFile;
+                return tmpFile;
             } else {
                 return null;
             }
         }
+
+        private void release() {
+            File f = file;
+            file = null;
+            if (f != null) {
+                if (pinnedIn != null) {
+                    pinnedIn.release(f);
+                } else {
+                    f.delete();
+                }
+            }
+        }
+
+        /**
+         * Fetches the artifact from the proxy owning it, if that's another proxy.
+         *
+         * @return a temporary file, or <code>null</code> if it has to be resolved locally
+         */
+        private File fetchFromOwner() {
+            PeerRing peers = MavenDownloadProxyServlet.this.peers;
+            String owner = peers != null && path != null ? peers.getOwner(path) : null;
+            String url = owner != null && !peers.isLocal(owner) ? peers.getUrl(owner) : null;
+            if (url == null) {
+                return null;
+            }
+            HttpURLConnection connection = null;
+            File tmpFile = null;
+            try {
+                connection = (HttpURLConnection) new URL(url + path).openConnection();
+                connection.setConnectTimeout(PEER_CONNECT_TIMEOUT);
+                connection.setReadTimeout(PEER_READ_TIMEOUT);
+                connection.setRequestProperty(PEER_HEADER, peers.getLocalId());
+                int status = connection.getResponseCode();
+                if (status != HttpURLConnection.HTTP_OK) {
+                    // Not found or busy, resolve it here rather than failing the request
+                    LOGGER.log(Level.FINE, String.format("Proxy %s answered %d for %s", url, status, path));
+                    Closeables.closeQuitely(connection.getErrorStream());
+                    return null;
+                }
+                tmpFile = File.createTempFile("peer", ".tmp", tmpFolder);
+                Files.copy(connection.getInputStream(), new FileOutputStream(tmpFile));
+                long length = connection.getContentLength();
+                if (length >= 0 && length != tmpFile.length()) {
+                    throw new IOException("Received " + tmpFile.length() + " bytes instead of " + length);
+                }
+                // The owner uses the digest as a strong etag for the cached artifacts
+                String etag = connection.getHeaderField("ETag");
+                if (etag != null && etag.length() == 42 && etag.startsWith("\"")
+                        && !etag.substring(1, 41).equalsIgnoreCase(ArtifactCache.digest(tmpFile))) {
+                    throw new IOException("Checksum mismatch, expected " + etag);
+                }
+                LOGGER.log(Level.INFO, String.format("Fetched %s from proxy %s", path, url));
+                File result = tmpFile;
+                tmpFile = null;
+                return result;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, String.format("Failed to fetch %s from proxy %s due to %s", path, url, e));
+                return null;
+            } finally {
+                // The connection itself is left open to be reused for the next artifacts
+                if (tmpFile != null) {
+                    tmpFile.delete();
+                }
+            }
+        }
     }
-}
 
+    /**
+     * Returns the SHA-1 checksum stored next to the given file, if any.
+     */
+    private static String readChecksum(File file) {
+        File sha1 = new File(file.getPath() + ".sha1");
+        if (sha1.isFile()) {
+            try {
+                String checksum = Files.toString(sha1).trim();
+                int idx = checksum.indexOf(' ');
+                return idx > 0 ? checksum.substring(0, idx) : checksum;
+            } catch (IOException e) {
+                // Ignore, the copy is verified when the artifact is resolved
+            }
+        }
+        return null;
+    }
+}
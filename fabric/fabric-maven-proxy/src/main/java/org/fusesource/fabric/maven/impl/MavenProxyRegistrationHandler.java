@@ -18,6 +18,10 @@
 package org.fusesource.fabric.maven.impl;
 
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
 import org.apache.curator.framework.state.ConnectionState;
 import org.apache.curator.framework.state.ConnectionStateListener;
 import org.apache.felix.scr.annotations.Activate;
@@ -31,6 +35,7 @@ import org.fusesource.fabric.api.jcip.ThreadSafe;
 import org.fusesource.fabric.api.scr.AbstractComponent;
 import org.fusesource.fabric.api.scr.ValidatingReference;
 import org.fusesource.fabric.maven.MavenProxy;
+import org.fusesource.fabric.utils.Closeables;
 import org.fusesource.fabric.utils.SystemProperties;
 import org.fusesource.fabric.zookeeper.ZkPath;
 import org.osgi.service.component.ComponentContext;
@@ -42,6 +47,7 @@ import org.sonatype.aether.repository.RepositoryPolicy;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
@@ -49,10 +55,12 @@ import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils.deleteSafe;
 import static org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils.create;
+import static org.fusesource.fabric.zookeeper.utils.ZooKeeperUtils.getSubstitutedData;
 
 @ThreadSafe
 @Component(name = "org.fusesource.fabric.maven", description = "Fabric Maven Proxy Registration Handler", immediate = true)
@@ -72,6 +80,13 @@ public final class MavenProxyRegistrationHandler extends AbstractComponent imple
     private static final String PROXY_USERNAME_PROPERTY = "proxy.username";
     private static final String PROXY_PASSWORD_PROPERTY = "proxy.password";
     private static final String NON_PROXY_HOSTS_PROPERTY = "proxy.nonProxyHosts";
+    private static final String CACHE_MAX_SIZE_PROPERTY = "cache.maxSize";
+    private static final String CACHE_SNAPSHOT_TIME_TO_LIVE_PROPERTY = "cache.snapshotTimeToLive";
+    private static final String DOWNLOAD_THREADS_PROPERTY = "download.threads";
+    private static final String DOWNLOAD_PEER_THREADS_PROPERTY = "download.peerThreads";
+    private static final String DOWNLOAD_QUEUE_SIZE_PROPERTY = "download.queueSize";
+    private static final String DOWNLOAD_REPOSITORY_CONCURRENCY_PROPERTY = "download.repositoryConcurrency";
+    private static final String DOWNLOAD_PEERS_PROPERTY = "download.peers";
 
     private static final String REQUIRED_ROLE = "role";
     private static final String REQUIRED_REALM = "realm";
@@ -83,6 +98,8 @@ public final class MavenProxyRegistrationHandler extends AbstractComponent imple
 
     private static final String KARAF_NAME = System.getProperty(SystemProperties.KARAF_NAME);
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     @Reference(referenceInterface = HttpService.class)
     private final ValidatingReference<HttpService> httpService = new ValidatingReference<HttpService>();
     @Reference(referenceInterface = CuratorFramework.class)
@@ -94,6 +111,7 @@ public final class MavenProxyRegistrationHandler extends AbstractComponent imple
     @GuardedBy("volatile") private volatile MavenUploadProxyServlet mavenUploadProxyServlet;
     @GuardedBy("volatile") private volatile String realm;
     @GuardedBy("volatile") private volatile String role;
+    @GuardedBy("volatile") private volatile PathChildrenCache peerCache;
 
     @GuardedBy("AtomicBoolean") private final AtomicBoolean connected = new AtomicBoolean(false);
 
@@ -118,10 +136,24 @@ public final class MavenProxyRegistrationHandler extends AbstractComponent imple
         String proxyUsername = readProperty(properties, PROXY_USERNAME_PROPERTY, "");
         String proxyPassword = readProperty(properties, PROXY_PASSWORD_PROPERTY, "");
         String nonProxyHosts = readProperty(properties, NON_PROXY_HOSTS_PROPERTY, "");
+        // In megabytes and seconds
+        long cacheMaxSize = Long.parseLong(readProperty(properties, CACHE_MAX_SIZE_PROPERTY, String.valueOf(MavenDownloadProxyServlet.DEFAULT_CACHE_MAX_SIZE / (1024L * 1024L))));
+        long snapshotTimeToLive = Long.parseLong(readProperty(properties, CACHE_SNAPSHOT_TIME_TO_LIVE_PROPERTY, String.valueOf(MavenDownloadProxyServlet.DEFAULT_SNAPSHOT_TIME_TO_LIVE / 1000L)));
+        int downloadThreads = Integer.parseInt(readProperty(properties, DOWNLOAD_THREADS_PROPERTY, String.valueOf(MavenDownloadProxyServlet.DEFAULT_THREADS)));
+        int downloadPeerThreads = Integer.parseInt(readProperty(properties, DOWNLOAD_PEER_THREADS_PROPERTY, String.valueOf(MavenDownloadProxyServlet.DEFAULT_PEER_THREADS)));
+        int downloadQueueSize = Integer.parseInt(readProperty(properties, DOWNLOAD_QUEUE_SIZE_PROPERTY, String.valueOf(MavenDownloadProxyServlet.DEFAULT_QUEUE_SIZE)));
+        int repositoryConcurrency = Integer.parseInt(readProperty(properties, DOWNLOAD_REPOSITORY_CONCURRENCY_PROPERTY, String.valueOf(MavenDownloadProxyServlet.DEFAULT_REPOSITORY_CONCURRENCY)));
+        boolean peers = Boolean.parseBoolean(readProperty(properties, DOWNLOAD_PEERS_PROPERTY, "true"));
 
         this.role = readProperty(properties, REQUIRED_ROLE, DEFAULT_ROLE);
         this.realm = readProperty(properties, REQUIRED_REALM, DEFAULT_REALM);
         this.mavenDownloadProxyServlet = new MavenDownloadProxyServlet(localRepository, remoteRepositories, appendSystemRepos, updatePolicy, checksumPolicy, proxyProtocol, proxyHost, proxyPort, proxyUsername, proxyPassword, nonProxyHosts);
+        this.mavenDownloadProxyServlet.setCacheMaxSize(cacheMaxSize * 1024L * 1024L);
+        this.mavenDownloadProxyServlet.setSnapshotTimeToLive(TimeUnit.SECONDS.toMillis(snapshotTimeToLive));
+        this.mavenDownloadProxyServlet.setThreads(downloadThreads);
+        this.mavenDownloadProxyServlet.setPeerThreads(downloadPeerThreads);
+        this.mavenDownloadProxyServlet.setMaximumQueueSize(downloadQueueSize);
+        this.mavenDownloadProxyServlet.setRepositoryConcurrency(repositoryConcurrency);
         this.mavenDownloadProxyServlet.start();
         this.mavenUploadProxyServlet = new MavenUploadProxyServlet(localRepository, remoteRepositories, appendSystemRepos, updatePolicy, checksumPolicy, proxyProtocol, proxyHost, proxyPort, proxyUsername, proxyPassword, nonProxyHosts);
         this.mavenUploadProxyServlet.start();
@@ -133,12 +165,17 @@ public final class MavenProxyRegistrationHandler extends AbstractComponent imple
         } catch (Throwable t) {
             LOGGER.warn("Failed to register fabric maven proxy servlets, due to:" + t.getMessage());
         }
+        if (peers) {
+            startPeerCache();
+        }
         activateComponent();
     }
 
     @Deactivate
     synchronized void deactivate() {
         deactivateComponent();
+        Closeables.closeQuitely(peerCache);
+        peerCache = null;
         if (mavenDownloadProxyServlet != null) {
             mavenDownloadProxyServlet.stop();
         }
@@ -165,10 +202,70 @@ public final class MavenProxyRegistrationHandler extends AbstractComponent imple
         return d;
     }
 
+    /**
+     * Watches the download proxies registered in the fabric, which share the artifacts they fetch.
+     */
+    private void startPeerCache() {
+        try {
+            PathChildrenCache cache = new PathChildrenCache(curator.get(), ZkPath.MAVEN_PROXY.getPath(MavenProxy.DOWNLOAD_TYPE), true);
+            cache.getListenable().addListener(new PathChildrenCacheListener() {
+                @Override
+                public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+                    switch (event.getType()) {
+                        case CHILD_ADDED:
+                        case CHILD_UPDATED:
+                        case CHILD_REMOVED:
+                            updatePeers();
+                            break;
+                    }
+                }
+            });
+            cache.start();
+            peerCache = cache;
+        } catch (Exception e) {
+            LOGGER.warn("Failed to watch the other maven proxies, due to:" + e.getMessage());
+        }
+    }
+
+    private void updatePeers() {
+        PathChildrenCache cache = peerCache;
+        MavenDownloadProxyServlet servlet = mavenDownloadProxyServlet;
+        if (cache == null || servlet == null) {
+            return;
+        }
+        // Keyed by the registered data, which unlike the urls is the same on every container
+        Map<String, String> urls = new HashMap<String, String>();
+        for (ChildData child : cache.getCurrentData()) {
+            if (child.getData() == null) {
+                continue;
+            }
+            String id = new String(child.getData(), UTF_8);
+            String url = null;
+            try {
+                url = getSubstitutedData(curator.get(), id);
+            } catch (Exception e) {
+                LOGGER.debug("Failed to resolve the url of maven proxy " + id, e);
+            }
+            urls.put(id, url);
+        }
+        String localId = getProxyUrl(MavenProxy.DOWNLOAD_TYPE);
+        // Until this proxy is registered, the others don't count it in and would disagree on the owners
+        if (urls.size() > 1 && urls.containsKey(localId)) {
+            LOGGER.debug("Sharing artifacts with maven proxies: " + urls.values());
+            servlet.setPeers(new PeerRing(localId, urls));
+        } else {
+            servlet.setPeers(null);
+        }
+    }
+
+    private String getProxyUrl(String type) {
+        return "${zk:" + KARAF_NAME + "/http}/maven/" + type + "/";
+    }
+
     private void register(String type) {
         unregister(type);
         try {
-            String mavenProxyUrl = "${zk:" + KARAF_NAME + "/http}/maven/" + type + "/";
+            String mavenProxyUrl = getProxyUrl(type);
             String parentPath = ZkPath.MAVEN_PROXY.getPath(type);
             String path = parentPath + "/p_";
             registeredProxies.get(type).add(create(curator.get(), path, mavenProxyUrl, CreateMode.EPHEMERAL_SEQUENTIAL));
@@ -188,7 +188,7 @@ public class MavenProxyServletSupport extends HttpServlet implements MavenProxy
                         requests.add(request);
                     }
                 }
-                List<MetadataResult> results = system.resolveMetadata(session, requests);
+                List<MetadataResult> results = resolveMetadata(requests);
                 for (MetadataResult result : results) {
                     if (result.getMetadata() != null && result.getMetadata().getFile() != null) {
                         return result.getMetadata().getFile();
@@ -206,7 +206,7 @@ public class MavenProxyServletSupport extends HttpServlet implements MavenProxy
             String id = artifact.getGroupId() + ":" + artifact.getArtifactId();
             try {
                 ArtifactRequest request = new ArtifactRequest(artifact, new ArrayList<RemoteRepository>(repositories.values()), null);
-                ArtifactResult result = system.resolveArtifact(session, request);
+                ArtifactResult result = resolveArtifact(request);
                 return result.getArtifact().getFile();
             } catch (Exception e) {
                 LOGGER.log(Level.WARNING, String.format("Could not find artifact : %s due to %s", artifact, e));
@@ -216,6 +216,20 @@ public class MavenProxyServletSupport extends HttpServlet implements MavenProxy
         return null;
     }
 
+    /**
+     * Resolves metadata for {@link #download(String)}, the first result having a file is used.
+     */
+    protected List<MetadataResult> resolveMetadata(List<MetadataRequest> requests) throws Exception {
+        return system.resolveMetadata(session, requests);
+    }
+
+    /**
+     * Resolves an artifact for {@link #download(String)}.
+     */
+    protected ArtifactResult resolveArtifact(ArtifactRequest request) throws Exception {
+        return system.resolveArtifact(session, request);
+    }
+
     @Override
     public boolean upload(InputStream is, String path) throws InvalidMavenArtifactRequest {
         boolean success = true;
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) FuseSource, Inc.
+ *   http://fusesource.com
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.fusesource.fabric.maven.impl;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * Spreads the artifacts over the download proxies of the fabric with consistent
+ * hashing: every proxy builds the same ring from the registrations it sees and
+ * agrees on which proxy owns an artifact, that is which one fetches it from the
+ * upstream repositories.  A proxy joining or leaving the fabric only moves the
+ * artifacts of its neighbours on the ring.
+ * </p>
+ * <p>
+ * All the files of a version (jar, pom, checksums, ...) have the same owner.
+ * </p>
+ */
+public class PeerRing {
+
+    /**
+     * Number of points of each proxy on the ring, evens out the share of each proxy.
+     */
+    public static final int VIRTUAL_NODES = 64;
+
+    private final String localId;
+    private final Map<String, String> urls;
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+    /**
+     * @param localId the registration of this proxy
+     * @param urls    the url of each registered proxy, this one included
+     */
+    public PeerRing(String localId, Map<String, String> urls) {
+        this.localId = localId;
+        this.urls = Collections.unmodifiableMap(new HashMap<String, String>(urls));
+        for (String id : urls.keySet()) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(id + "#" + i), id);
+            }
+        }
+    }
+
+    /**
+     * Returns the registration of the proxy owning the given path.
+     */
+    public String getOwner(String path) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(getKey(path)));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    public boolean isLocal(String id) {
+        return localId.equals(id);
+    }
+
+    public String getLocalId() {
+        return localId;
+    }
+
+    /**
+     * Returns the url of the given proxy, ending with a slash, or <code>null</code> if unknown.
+     */
+    public String getUrl(String id) {
+        String url = urls.get(id);
+        return url == null || url.endsWith("/") ? url : url + "/";
+    }
+
+    public int size() {
+        return urls.size();
+    }
+
+    static String getKey(String path) {
+        int idx = path.lastIndexOf('/');
+        return idx > 0 ? path.substring(0, idx) : path;
+    }
+
+    static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
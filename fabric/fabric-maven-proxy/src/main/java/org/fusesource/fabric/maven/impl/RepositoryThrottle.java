@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) FuseSource, Inc.
+ *   http://fusesource.com
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.fusesource.fabric.maven.impl;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Bounds the number of resolutions running concurrently against one upstream
+ * repository and keeps track of how long they take.
+ */
+public class RepositoryThrottle implements RepositoryThrottleMBean {
+
+    private static final Logger LOGGER = Logger.getLogger(RepositoryThrottle.class.getName());
+
+    private final String repositoryId;
+    private final String url;
+    private final int maximumConcurrency;
+    private final Semaphore permits;
+    private ObjectName objectName;
+
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maximumLatency = new AtomicLong();
+
+    public RepositoryThrottle(String repositoryId, String url, int maximumConcurrency) {
+        this.repositoryId = repositoryId;
+        this.url = url;
+        this.maximumConcurrency = maximumConcurrency;
+        this.permits = maximumConcurrency > 0 ? new Semaphore(maximumConcurrency, true) : null;
+    }
+
+    /**
+     * Waits until a resolution can be started against the repository.
+     *
+     * @return the {@link System#nanoTime()} to give back to {@link #release(long, boolean)}
+     */
+    public long acquire() throws InterruptedException {
+        waiting.incrementAndGet();
+        try {
+            if (permits != null) {
+                permits.acquire();
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+        active.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the end of a resolution started with {@link #acquire()}.
+     */
+    public void release(long start, boolean found) {
+        long latency = System.nanoTime() - start;
+        active.decrementAndGet();
+        if (permits != null) {
+            permits.release();
+        }
+        requests.incrementAndGet();
+        if (!found) {
+            misses.incrementAndGet();
+        }
+        totalLatency.addAndGet(latency);
+        long max = maximumLatency.get();
+        while (latency > max && !maximumLatency.compareAndSet(max, latency)) {
+            max = maximumLatency.get();
+        }
+    }
+
+    public String getRepositoryId() {
+        return repositoryId;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public int getMaximumConcurrency() {
+        return maximumConcurrency;
+    }
+
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public double getAverageLatency() {
+        long count = requests.get();
+        return count > 0 ? totalLatency.get() / (count * 1000000.0) : 0.0;
+    }
+
+    public double getMaximumLatency() {
+        return maximumLatency.get() / 1000000.0;
+    }
+
+    public void resetStatistics() {
+        requests.set(0);
+        misses.set(0);
+        totalLatency.set(0);
+        maximumLatency.set(0);
+    }
+
+    public ObjectName getObjectName() throws MalformedObjectNameException {
+        if (objectName == null) {
+            objectName = new ObjectName("org.fusesource.fabric:type=MavenProxy,repository=" + ObjectName.quote(repositoryId));
+        }
+        return objectName;
+    }
+
+    public void registerMBeanServer(MBeanServer mbeanServer) {
+        try {
+            ObjectName name = getObjectName();
+            if (!mbeanServer.isRegistered(name)) {
+                mbeanServer.registerMBean(this, name);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "An error occured during mbean server registration: " + e, e);
+        }
+    }
+
+    public void unregisterMBeanServer(MBeanServer mbeanServer) {
+        if (mbeanServer != null) {
+            try {
+                ObjectName name = getObjectName();
+                if (mbeanServer.isRegistered(name)) {
+                    mbeanServer.unregisterMBean(name);
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "An error occured during mbean server unregistration: " + e, e);
+            }
+        }
+    }
+
+}
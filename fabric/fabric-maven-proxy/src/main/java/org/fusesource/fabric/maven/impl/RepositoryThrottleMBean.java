@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) FuseSource, Inc.
+ *   http://fusesource.com
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.fusesource.fabric.maven.impl;
+
+/**
+ * Management interface exposing the resolutions done against one upstream repository.
+ */
+public interface RepositoryThrottleMBean {
+
+    String getRepositoryId();
+
+    String getUrl();
+
+    /**
+     * @return the maximum number of concurrent resolutions, 0 if unbounded
+     */
+    int getMaximumConcurrency();
+
+    /**
+     * @return the number of resolutions waiting for the repository
+     */
+    int getWaitingCount();
+
+    int getActiveCount();
+
+    long getRequestCount();
+
+    /**
+     * @return the number of resolutions which did not find anything in the repository
+     */
+    long getMissCount();
+
+    /**
+     * @return the average time in milliseconds taken by a resolution, not counting the time spent waiting
+     */
+    double getAverageLatency();
+
+    double getMaximumLatency();
+
+    void resetStatistics();
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) FuseSource, Inc.
+ *   http://fusesource.com
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.fusesource.fabric.maven.impl;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.fusesource.fabric.utils.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ArtifactCacheTest {
+
+    private static final String RELEASE = "org/foo/bar/1.0/bar-1.0.jar";
+    private static final String OTHER_RELEASE = "org/foo/baz/1.0/baz-1.0.jar";
+    private static final String SNAPSHOT = "org/foo/bar/1.1-SNAPSHOT/bar-1.1-SNAPSHOT.jar";
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = new File("target/artifact-cache-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        ArtifactCache cache = newCache(1000, 60000);
+        assertNull(cache.get(RELEASE));
+        File cached = cache.put(RELEASE, newFile("content"), null);
+        assertEquals("content", Files.toString(cached));
+        assertEquals(cached, cache.get(RELEASE));
+        assertEquals(ArtifactCache.digest(cached), cache.getDigest(cached));
+        assertNull(cache.getDigest(newFile("content")));
+    }
+
+    @Test
+    public void testSameContentStoredOnce() throws IOException {
+        ArtifactCache cache = newCache(1000, 60000);
+        File f1 = cache.put(RELEASE, newFile("content"), null);
+        File f2 = cache.put(OTHER_RELEASE, newFile("content"), null);
+        assertEquals(f1, f2);
+        cache.release(f1);
+        cache.release(f2);
+        assertEquals(7, cache.getSize());
+        cache.remove(RELEASE);
+        assertTrue(f2.isFile());
+        cache.remove(OTHER_RELEASE);
+        assertFalse(f2.isFile());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testRemovedWhileServed() throws IOException {
+        ArtifactCache cache = newCache(1000, 60000);
+        cache.release(cache.put(RELEASE, newFile("content"), null));
+        File served = cache.get(RELEASE);
+        cache.remove(RELEASE);
+        assertNull(cache.get(RELEASE));
+        assertEquals(0, cache.getSize());
+        // Only deleted once served
+        assertTrue(served.isFile());
+        cache.release(served);
+        assertFalse(served.isFile());
+
+        // Stored again before being released
+        served = cache.put(RELEASE, newFile("content"), null);
+        cache.remove(RELEASE);
+        File stored = cache.put(OTHER_RELEASE, newFile("content"), null);
+        cache.release(served);
+        assertTrue(stored.isFile());
+        cache.release(stored);
+        assertEquals(stored, cache.get(OTHER_RELEASE));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws IOException {
+        ArtifactCache cache = newCache(10, 60000);
+        cache.put(RELEASE, newFile("12345"), null);
+        cache.put(OTHER_RELEASE, newFile("67890"), null);
+        // Makes the other release the least recently used one
+        assertNotNull(cache.get(RELEASE));
+        cache.put(SNAPSHOT, newFile("abc"), null);
+        assertNotNull(cache.get(RELEASE));
+        assertNull(cache.get(OTHER_RELEASE));
+        assertNotNull(cache.get(SNAPSHOT));
+        assertEquals(8, cache.getSize());
+    }
+
+    @Test
+    public void testTooBigForCache() throws IOException {
+        ArtifactCache cache = newCache(3, 60000);
+        assertNull(cache.put(RELEASE, newFile("content"), null));
+        assertNull(cache.get(RELEASE));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testSnapshotExpiration() throws Exception {
+        ArtifactCache cache = newCache(1000, 0);
+        cache.put(RELEASE, newFile("release"), null);
+        cache.put(SNAPSHOT, newFile("snapshot"), null);
+        Thread.sleep(10);
+        assertNotNull(cache.get(RELEASE));
+        assertNull(cache.get(SNAPSHOT));
+    }
+
+    @Test(expected = IOException.class)
+    public void testChecksumMismatch() throws IOException {
+        ArtifactCache cache = newCache(1000, 60000);
+        cache.put(RELEASE, newFile("content"), "0000000000000000000000000000000000000000");
+    }
+
+    @Test
+    public void testPersistence() throws IOException {
+        ArtifactCache cache = newCache(1000, 60000);
+        File cached = cache.put(RELEASE, newFile("content"), ArtifactCache.digest(newFile("content")));
+        cache.put(OTHER_RELEASE, newFile("other"), null);
+        cache.stop();
+
+        cache = newCache(1000, 60000);
+        assertEquals(2, cache.getCount());
+        assertEquals(cached, cache.get(RELEASE));
+
+        // Files altered on disk are discarded
+        Files.writeToFile(cache.get(OTHER_RELEASE), "altered".getBytes());
+        cache.stop();
+        cache = newCache(1000, 60000);
+        assertNull(cache.get(OTHER_RELEASE));
+        assertEquals(1, cache.getCount());
+    }
+
+    @Test
+    public void testIndexSavedInBackground() throws Exception {
+        ArtifactCache cache = newCache(1000, 60000);
+        cache.put(RELEASE, newFile("content"), null);
+        File index = new File(directory, "index.properties");
+        for (int i = 0; !index.isFile(); i++) {
+            assertTrue("The index was not saved in time", i < 50);
+            Thread.sleep(100);
+        }
+        assertEquals(1, newCache(1000, 60000).getCount());
+    }
+
+    private ArtifactCache newCache(long maxSize, long timeToLive) throws IOException {
+        ArtifactCache cache = new ArtifactCache(directory, maxSize, timeToLive);
+        cache.start();
+        return cache;
+    }
+
+    private File newFile(String content) throws IOException {
+        File file = File.createTempFile("artifact", ".jar");
+        file.deleteOnExit();
+        Files.writeToFile(file, content.getBytes());
+        return file;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
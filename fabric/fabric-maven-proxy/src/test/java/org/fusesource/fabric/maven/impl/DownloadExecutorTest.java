@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) FuseSource, Inc.
+ *   http://fusesource.com
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.fusesource.fabric.maven.impl;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DownloadExecutorTest {
+
+    private DownloadExecutor executor;
+
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testRejectWhenQueueIsFull() throws Exception {
+        executor = new DownloadExecutor(1, 2);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(block(started, release));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        executor.execute(block(null, release));
+        executor.execute(block(null, release));
+        assertEquals(2, executor.getQueueDepth());
+        try {
+            executor.execute(block(null, release));
+            fail("Expected the download to be rejected");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(1, executor.getRejectedCount());
+
+        release.countDown();
+        long timeout = System.currentTimeMillis() + 5000;
+        while (executor.getCompletedCount() < 3 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, executor.getCompletedCount());
+        executor.execute(block(null, release));
+    }
+
+    @Test
+    public void testRepositoryThrottle() throws Exception {
+        final RepositoryThrottle throttle = new RepositoryThrottle("central", "http://repo1.maven.org/maven2", 1);
+        long start = throttle.acquire();
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    throttle.release(throttle.acquire(), false);
+                    acquired.countDown();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        };
+        waiter.start();
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, throttle.getWaitingCount());
+        assertEquals(1, throttle.getActiveCount());
+
+        throttle.release(start, true);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        waiter.join();
+        assertEquals(0, throttle.getActiveCount());
+        assertEquals(2, throttle.getRequestCount());
+        assertEquals(1, throttle.getMissCount());
+        assertTrue(throttle.getMaximumLatency() >= throttle.getAverageLatency());
+    }
+
+    private static Runnable block(final CountDownLatch started, final CountDownLatch release) {
+        return new Runnable() {
+            public void run() {
+                if (started != null) {
+                    started.countDown();
+                }
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+}
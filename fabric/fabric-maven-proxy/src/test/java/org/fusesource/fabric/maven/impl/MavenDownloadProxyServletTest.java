@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) FuseSource, Inc.
+ *   http://fusesource.com
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.fusesource.fabric.maven.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.fusesource.fabric.utils.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.fusesource.fabric.maven.impl.MavenDownloadProxyServlet.UNSATISFIABLE_RANGE;
+import static org.fusesource.fabric.maven.impl.MavenDownloadProxyServlet.isNotModified;
+import static org.fusesource.fabric.maven.impl.MavenDownloadProxyServlet.parseRange;
+import static org.junit.Assert.*;
+
+public class MavenDownloadProxyServletTest {
+
+    private static final long LAST_MODIFIED = 1000000000000L;
+
+    private final MavenDownloadProxyServlet servlet = new MavenDownloadProxyServlet(null, null, false, null, null, null, null, 0, null, null, null);
+    private final byte[] data = new byte[100];
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private File file;
+    private String etag;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        file = File.createTempFile("artifact", ".jar");
+        Files.writeToFile(file, data);
+        file.setLastModified(LAST_MODIFIED);
+        etag = "W/\"" + data.length + "-" + LAST_MODIFIED + "\"";
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testParseRange() {
+        assertArrayEquals(new long[] {0, 99}, parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[] {100, 999}, parseRange("bytes=100-", 1000));
+        assertArrayEquals(new long[] {900, 999}, parseRange("bytes=-100", 1000));
+        assertArrayEquals(new long[] {0, 999}, parseRange("bytes=-2000", 1000));
+        assertArrayEquals(new long[] {500, 999}, parseRange("bytes=500-5000", 1000));
+    }
+
+    @Test
+    public void testUnsatisfiableRange() {
+        assertSame(UNSATISFIABLE_RANGE, parseRange("bytes=1000-", 1000));
+        assertSame(UNSATISFIABLE_RANGE, parseRange("bytes=2000-3000", 1000));
+        assertSame(UNSATISFIABLE_RANGE, parseRange("bytes=-0", 1000));
+    }
+
+    @Test
+    public void testIgnoredRange() {
+        assertNull(parseRange("items=0-10", 1000));
+        assertNull(parseRange("bytes=0-10,20-30", 1000));
+        assertNull(parseRange("bytes=10-5", 1000));
+        assertNull(parseRange("bytes=a-b", 1000));
+        assertNull(parseRange("bytes=10", 1000));
+    }
+
+    @Test
+    public void testNotModifiedByETag() {
+        assertTrue(isNotModified(request("If-None-Match", "\"a\", \"b\""), "\"b\"", LAST_MODIFIED));
+        assertTrue(isNotModified(request("If-None-Match", "*"), "\"b\"", LAST_MODIFIED));
+        assertFalse(isNotModified(request("If-None-Match", "\"a\""), "\"b\"", LAST_MODIFIED));
+        // If-Modified-Since is ignored when If-None-Match is present
+        assertFalse(isNotModified(request("If-None-Match", "\"a\"", "If-Modified-Since", LAST_MODIFIED), "\"b\"", LAST_MODIFIED));
+    }
+
+    @Test
+    public void testNotModifiedSince() {
+        assertTrue(isNotModified(request("If-Modified-Since", LAST_MODIFIED), etag, LAST_MODIFIED));
+        assertTrue(isNotModified(request("If-Modified-Since", LAST_MODIFIED + 1000), etag, LAST_MODIFIED));
+        assertFalse(isNotModified(request("If-Modified-Since", LAST_MODIFIED - 1000), etag, LAST_MODIFIED));
+        assertFalse(isNotModified(request(), etag, LAST_MODIFIED));
+
+        HttpServletRequest invalid = createNiceMock(HttpServletRequest.class);
+        expect(invalid.getDateHeader("If-Modified-Since")).andThrow(new IllegalArgumentException()).anyTimes();
+        replay(invalid);
+        assertFalse(isNotModified(invalid, etag, LAST_MODIFIED));
+    }
+
+    @Test
+    public void testServe() throws Exception {
+        HttpServletResponse resp = response(HttpServletResponse.SC_OK);
+        replay(resp);
+
+        assertEquals(data.length, serve(request(), resp));
+
+        verify(resp);
+        assertArrayEquals(data, body.toByteArray());
+    }
+
+    @Test
+    public void testServeRange() throws Exception {
+        HttpServletResponse resp = response(HttpServletResponse.SC_PARTIAL_CONTENT);
+        resp.setHeader("Content-Range", "bytes 10-19/100");
+        replay(resp);
+
+        assertEquals(10, serve(request("Range", "bytes=10-19"), resp));
+
+        verify(resp);
+        assertArrayEquals(Arrays.copyOfRange(data, 10, 20), body.toByteArray());
+    }
+
+    @Test
+    public void testServeWholeRange() throws Exception {
+        HttpServletResponse resp = response(HttpServletResponse.SC_PARTIAL_CONTENT);
+        resp.setHeader("Content-Range", "bytes 0-99/100");
+        resp.setStatus(HttpServletResponse.SC_OK);
+        expectLastCall().andThrow(new AssertionError("The partial content status was reset")).anyTimes();
+        replay(resp);
+
+        assertEquals(data.length, serve(request("Range", "bytes=0-"), resp));
+
+        verify(resp);
+        assertArrayEquals(data, body.toByteArray());
+    }
+
+    @Test
+    public void testServeRangeIfRange() throws Exception {
+        HttpServletResponse resp = response(HttpServletResponse.SC_PARTIAL_CONTENT);
+        resp.setHeader("Content-Range", "bytes 90-99/100");
+        replay(resp);
+
+        assertEquals(10, serve(request("Range", "bytes=-10", "If-Range", etag), resp));
+
+        verify(resp);
+        assertArrayEquals(Arrays.copyOfRange(data, 90, 100), body.toByteArray());
+    }
+
+    @Test
+    public void testServeChangedIfRange() throws Exception {
+        HttpServletResponse resp = response(HttpServletResponse.SC_OK);
+        replay(resp);
+
+        assertEquals(data.length, serve(request("Range", "bytes=-10", "If-Range", "W/\"100-0\""), resp));
+
+        verify(resp);
+        assertArrayEquals(data, body.toByteArray());
+    }
+
+    @Test
+    public void testServeNotModified() throws Exception {
+        HttpServletResponse resp = response(HttpServletResponse.SC_NOT_MODIFIED);
+        replay(resp);
+
+        assertEquals(0, serve(request("If-None-Match", etag, "Range", "bytes=10-19"), resp));
+
+        verify(resp);
+        assertEquals(0, body.size());
+    }
+
+    @Test
+    public void testServeUnsatisfiableRange() throws Exception {
+        HttpServletResponse resp = response(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        resp.setHeader("Content-Range", "bytes */100");
+        replay(resp);
+
+        assertEquals(0, serve(request("Range", "bytes=100-"), resp));
+
+        verify(resp);
+        assertEquals(0, body.size());
+    }
+
+    private long serve(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        FileInputStream is = new FileInputStream(file);
+        try {
+            return servlet.serve(req, resp, file, is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Creates a request with the given header names and values, dates being given as longs.
+     */
+    private HttpServletRequest request(Object... headers) {
+        HttpServletRequest req = createNiceMock(HttpServletRequest.class);
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (int i = 0; i < headers.length; i += 2) {
+            values.put((String) headers[i], headers[i + 1]);
+        }
+        for (String name : new String[] {"If-None-Match", "If-Modified-Since", "Range", "If-Range"}) {
+            Object value = values.get(name);
+            if (value instanceof Long) {
+                expect(req.getDateHeader(name)).andReturn((Long) value).anyTimes();
+                expect(req.getHeader(name)).andReturn(value.toString()).anyTimes();
+            } else {
+                expect(req.getDateHeader(name)).andReturn(-1L).anyTimes();
+                expect(req.getHeader(name)).andReturn((String) value).anyTimes();
+            }
+        }
+        replay(req);
+        return req;
+    }
+
+    /**
+     * Creates a response expecting the given status, to be replayed once the other expectations are set.
+     */
+    private HttpServletResponse response(int status) throws IOException {
+        HttpServletResponse resp = createNiceMock(HttpServletResponse.class);
+        expect(resp.getOutputStream()).andReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                body.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                body.write(b, off, len);
+            }
+        }).anyTimes();
+        resp.setStatus(status);
+        return resp;
+    }
+}
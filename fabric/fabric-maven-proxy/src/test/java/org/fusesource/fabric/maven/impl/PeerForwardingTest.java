@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) FuseSource, Inc.
+ *   http://fusesource.com
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.fusesource.fabric.maven.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.fusesource.fabric.utils.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PeerForwardingTest {
+
+    private static final String CONTEXT = "/maven/download";
+    // Resolution threads of each proxy, all of them end up waiting on the other proxy
+    private static final int THREADS = 2;
+
+    private final File dir = new File("target/peers-" + System.currentTimeMillis()).getAbsoluteFile();
+    private final ExecutorService clients = Executors.newCachedThreadPool();
+    private final List<HttpServer> servers = new ArrayList<HttpServer>();
+    private final List<MavenDownloadProxyServlet> servlets = new ArrayList<MavenDownloadProxyServlet>();
+    // Holds the forwarded requests until every resolution thread waits on a peer
+    private final CountDownLatch forwarded = new CountDownLatch(2 * THREADS);
+
+    @Before
+    public void setUp() throws Exception {
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        clients.shutdownNow();
+        for (HttpServer server : servers) {
+            server.stop(0);
+        }
+        for (MavenDownloadProxyServlet servlet : servlets) {
+            servlet.stop();
+        }
+        delete(dir);
+    }
+
+    @Test
+    public void testSaturatedProxiesForwardToEachOther() throws Exception {
+        Map<String, String> urls = new HashMap<String, String>();
+        MavenDownloadProxyServlet a = proxy("a", urls);
+        MavenDownloadProxyServlet b = proxy("b", urls);
+        PeerRing ring = new PeerRing("a", urls);
+        a.setPeers(ring);
+        b.setPeers(new PeerRing("b", urls));
+
+        // Each proxy gets as many requests for artifacts owned by the other as it has threads
+        List<Future<String>> responses = new ArrayList<Future<String>>();
+        int ownedByA = 0;
+        int ownedByB = 0;
+        for (int i = 0; ownedByA < THREADS || ownedByB < THREADS; i++) {
+            String path = "org/foo/bar" + i + "/1.0/bar" + i + "-1.0.jar";
+            if ("a".equals(ring.getOwner(path)) && ownedByA++ < THREADS) {
+                responses.add(get(b, path));
+            } else if ("b".equals(ring.getOwner(path)) && ownedByB++ < THREADS) {
+                responses.add(get(a, path));
+            }
+        }
+
+        for (Future<String> response : responses) {
+            // Well below the read timeout of the peers, after which a proxy resolves the artifact itself
+            String body = response.get(30, TimeUnit.SECONDS);
+            String path = body.substring(body.indexOf(':') + 1);
+            assertEquals("resolved by " + ring.getOwner(path) + ":" + path, body);
+        }
+    }
+
+    private MavenDownloadProxyServlet proxy(final String id, Map<String, String> urls) throws Exception {
+        final File resolved = new File(dir, id);
+        resolved.mkdirs();
+        final MavenDownloadProxyServlet servlet = new MavenDownloadProxyServlet(new File(dir, "repository").getPath(), "", false, null, null, null, null, 0, null, null, null) {
+            @Override
+            public File download(String path) throws InvalidMavenArtifactRequest {
+                try {
+                    File file = new File(resolved, path.replace('/', '_'));
+                    Files.writeToFile(file, ("resolved by " + id + ":" + path).getBytes("UTF-8"));
+                    return file;
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        servlet.tmpFolder = new File(dir, "tmp");
+        servlet.setCacheMaxSize(0);
+        servlet.setThreads(THREADS);
+        servlet.setPeerThreads(1);
+        servlet.setMaximumQueueSize(0);
+        servlet.start();
+        servlets.add(servlet);
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext(CONTEXT, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    String peer = exchange.getRequestHeaders().getFirst(MavenDownloadProxyServlet.PEER_HEADER);
+                    if (peer != null) {
+                        forwarded.countDown();
+                    }
+                    forwarded.await(10, TimeUnit.SECONDS);
+                    String path = exchange.getRequestURI().getPath().substring(CONTEXT.length());
+                    Response response = new Response();
+                    servlet.doGet(request(path, peer), response.proxy());
+                    if (response.headers.containsKey("ETag")) {
+                        exchange.getResponseHeaders().set("ETag", response.headers.get("ETag"));
+                    }
+                    byte[] body = response.body.toByteArray();
+                    exchange.sendResponseHeaders(response.status, body.length > 0 ? body.length : -1);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(body);
+                    os.close();
+                } catch (Exception e) {
+                    throw new IOException(e.toString());
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        servers.add(server);
+        urls.put(id, "http://localhost:" + server.getAddress().getPort() + CONTEXT);
+        return servlet;
+    }
+
+    private Future<String> get(final MavenDownloadProxyServlet servlet, final String path) {
+        return clients.submit(new Callable<String>() {
+            public String call() throws Exception {
+                Response response = new Response();
+                servlet.doGet(request("/" + path, null), response.proxy());
+                assertEquals(HttpServletResponse.SC_OK, response.status);
+                return new String(response.body.toByteArray(), "UTF-8");
+            }
+        });
+    }
+
+    private HttpServletRequest request(final String pathInfo, final String peer) {
+        return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { HttpServletRequest.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("getPathInfo")) {
+                    return pathInfo;
+                } else if (method.getName().equals("getHeader")) {
+                    return MavenDownloadProxyServlet.PEER_HEADER.equals(args[0]) ? peer : null;
+                } else if (method.getName().equals("getDateHeader")) {
+                    return -1L;
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Records what the servlet writes, the status being 200 unless set otherwise.
+     */
+    static class Response {
+
+        int status = HttpServletResponse.SC_OK;
+        final Map<String, String> headers = new HashMap<String, String>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        HttpServletResponse proxy() {
+            final ServletOutputStream out = new ServletOutputStream() {
+                @Override
+                public void write(int b) {
+                    body.write(b);
+                }
+            };
+            return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { HttpServletResponse.class }, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getName().equals("setStatus")) {
+                        status = (Integer) args[0];
+                    } else if (method.getName().equals("setHeader")) {
+                        headers.put((String) args[0], (String) args[1]);
+                    } else if (method.getName().equals("getOutputStream")) {
+                        return out;
+                    } else if (method.getName().equals("isCommitted")) {
+                        return false;
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) FuseSource, Inc.
+ *   http://fusesource.com
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.fusesource.fabric.maven.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PeerRingTest {
+
+    private static final String[] PROXIES = {"${zk:root/http}/maven/download/", "${zk:c1/http}/maven/download/", "${zk:c2/http}/maven/download/"};
+
+    @Test
+    public void testSameOwnerOnEveryProxy() {
+        PeerRing first = new PeerRing(PROXIES[0], urls(PROXIES));
+        PeerRing second = new PeerRing(PROXIES[1], urls(PROXIES));
+        for (int i = 0; i < 100; i++) {
+            String path = "org/foo/bar" + i + "/1.0/bar" + i + "-1.0.jar";
+            assertEquals(first.getOwner(path), second.getOwner(path));
+        }
+    }
+
+    @Test
+    public void testVersionHasSingleOwner() {
+        PeerRing ring = new PeerRing(PROXIES[0], urls(PROXIES));
+        String owner = ring.getOwner("org/foo/bar/1.0/bar-1.0.jar");
+        assertEquals(owner, ring.getOwner("org/foo/bar/1.0/bar-1.0.pom"));
+        assertEquals(owner, ring.getOwner("org/foo/bar/1.0/bar-1.0.jar.sha1"));
+    }
+
+    @Test
+    public void testArtifactsAreSpread() {
+        PeerRing ring = new PeerRing(PROXIES[0], urls(PROXIES));
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < 3000; i++) {
+            String owner = ring.getOwner("org/foo/bar" + i + "/1.0/bar" + i + "-1.0.jar");
+            counts.put(owner, counts.containsKey(owner) ? counts.get(owner) + 1 : 1);
+        }
+        assertEquals(3, counts.size());
+        for (int count : counts.values()) {
+            assertTrue("Unbalanced ring: " + counts, count > 500);
+        }
+    }
+
+    @Test
+    public void testOnlyLeavingProxyArtifactsMove() {
+        PeerRing before = new PeerRing(PROXIES[0], urls(PROXIES));
+        PeerRing after = new PeerRing(PROXIES[0], urls(PROXIES[0], PROXIES[1]));
+        for (int i = 0; i < 1000; i++) {
+            String path = "org/foo/bar" + i + "/1.0/bar" + i + "-1.0.jar";
+            if (!before.getOwner(path).equals(PROXIES[2])) {
+                assertEquals(before.getOwner(path), after.getOwner(path));
+            }
+        }
+    }
+
+    @Test
+    public void testUrls() {
+        Map<String, String> urls = new HashMap<String, String>();
+        urls.put(PROXIES[0], "http://root:8181/maven/download");
+        urls.put(PROXIES[1], null);
+        PeerRing ring = new PeerRing(PROXIES[0], urls);
+        assertTrue(ring.isLocal(PROXIES[0]));
+        assertFalse(ring.isLocal(PROXIES[1]));
+        assertEquals("http://root:8181/maven/download/", ring.getUrl(PROXIES[0]));
+        assertNull(ring.getUrl(PROXIES[1]));
+        assertNull(ring.getUrl(PROXIES[2]));
+    }
+
+    private static Map<String, String> urls(String... ids) {
+        Map<String, String> urls = new HashMap<String, String>();
+        for (String id : ids) {
+            urls.put(id, "http://" + id.hashCode() + ":8181/maven/download/");
+        }
+        return urls;
+    }
+}